@@ -1,9 +1,15 @@
 package com.github.markusbernhardt.proxy;
 
 import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.io.IOException;
 import java.net.ProxySelector;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 
 import org.slf4j.helpers.MessageFormatter;
@@ -20,6 +26,10 @@ import com.github.markusbernhardt.proxy.search.java.JavaProxySearchStrategy;
 import com.github.markusbernhardt.proxy.search.wpad.WpadProxySearchStrategy;
 import com.github.markusbernhardt.proxy.selector.misc.BufferedProxySelector;
 import com.github.markusbernhardt.proxy.selector.misc.BufferedProxySelector.CacheScope;
+import com.github.markusbernhardt.proxy.selector.misc.FlattenedProxySelector;
+import com.github.markusbernhardt.proxy.selector.misc.HealthCheckingProxySelector;
+import com.github.markusbernhardt.proxy.selector.misc.LoadBalancingProxySelector;
+import com.github.markusbernhardt.proxy.selector.misc.LoadBalancingProxySelector.BalancingStrategy;
 import com.github.markusbernhardt.proxy.selector.misc.ProxyListFallbackSelector;
 import com.github.markusbernhardt.proxy.selector.pac.PacProxySelector;
 import com.github.markusbernhardt.proxy.util.Logger;
@@ -60,6 +70,35 @@ public class ProxySearch implements ProxySearchStrategy {
 
     private CacheScope pacCacheScope;
 
+    private int pacCacheDomainDepth;
+
+    private File pacCacheSnapshotFile;
+
+    private long pacCacheSnapshotInterval;
+
+    // Write the snapshots of the returned PAC selectors until shutdown(), also used by the shutdown hook.
+    private final List<Runnable> pacCacheSnapshotWriters = new CopyOnWriteArrayList<Runnable>();
+
+    private Thread pacCacheSnapshotHook;
+
+    private ScheduledExecutorService pacCacheSnapshotExecutor;
+
+    private long healthCheckInterval;
+
+    private long healthCheckTimeout;
+
+    private int healthCheckConcurrency;
+
+    private HealthCheckingProxySelector healthCheckingSelector;
+
+    // The started health checking selectors of all returned selectors, stopped by shutdown().
+    private final List<HealthCheckingProxySelector> healthCheckingSelectors =
+        new ArrayList<HealthCheckingProxySelector>();
+
+    private BalancingStrategy balancingStrategy;
+
+    private boolean flattenSelectors;
+
     /*****************************************************************************
      * Types of proxy detection supported by the builder.
      ****************************************************************************/
@@ -268,9 +307,137 @@ public class ProxySearch implements ProxySearchStrategy {
      ************************************************************************/
 
     public void setPacCacheSettings(int size, long ttl, CacheScope cacheScope) {
+        setPacCacheSettings(size, ttl, cacheScope, 0);
+    }
+
+    /*************************************************************************
+     * Sets the cache settings of the PAC proxy selector cache like {@link #setPacCacheSettings(int, long, CacheScope)}
+     * with the domain depth of the domain scopes {@link CacheScope#CACHE_SCOPE_DOMAIN} and
+     * {@link CacheScope#CACHE_SCOPE_SCHEME_DOMAIN}.
+     * <p>
+     * A depth of 0 approximates the registrable domain without the public suffix list, see
+     * {@link BufferedProxySelector#setDomainDepth(int)}. Hosts below suffixes it does not know, like
+     * <code>github.io</code> or <code>co.za</code>, then share one entry with all other sites under that suffix. Use an
+     * explicit depth if the PAC script decides by such hosts.
+     * </p>
+     * 
+     * @param size
+     *            of the cache. Set it to 0 to disable caching.
+     * @param ttl
+     *            is the time to live of the cache entries as amount of milliseconds.
+     * @param cacheScope
+     *            the desired cache scope.
+     * @param domainDepth
+     *            the number of domain labels used as cache key, 0 for the approximate registrable domain.
+     ************************************************************************/
+
+    public void setPacCacheSettings(int size, long ttl, CacheScope cacheScope, int domainDepth) {
+        if (domainDepth < 0) {
+            throw new IllegalArgumentException("Domain depth must not be negative: " + domainDepth);
+        }
         this.pacCacheSize = size;
         this.pacCacheTTL = ttl;
         this.pacCacheScope = cacheScope;
+        this.pacCacheDomainDepth = domainDepth;
+    }
+
+    /*************************************************************************
+     * Sets a snapshot file for the PAC proxy selector cache. On startup the cache is filled from the snapshot if it
+     * was written with the same PAC script content, so that the first requests after a restart do not wait for the
+     * PAC script evaluation. The snapshot of each selector returned by {@link #getProxySelector()} is written on
+     * shutdown of the JVM and optionally periodically, until {@link #shutdown()} writes it a last time. Selectors
+     * returned with the same file overwrite each others snapshot.
+     * 
+     * @param file
+     *            the snapshot file, null to disable snapshots.
+     * @param interval
+     *            the time between periodic snapshots as amount of milliseconds, 0 to write it only on shutdown.
+     ************************************************************************/
+
+    public void setPacCacheSnapshot(File file, long interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("Snapshot interval must not be negative: " + interval);
+        }
+        this.pacCacheSnapshotFile = file;
+        this.pacCacheSnapshotInterval = interval;
+    }
+
+    /*************************************************************************
+     * Enables active health checks of the proxies returned by the PAC proxy selector. Each proxy is probed with a TCP
+     * connect in the background and unhealthy proxies are removed from the returned lists. The probes run until
+     * {@link #shutdown()} is called. Disabled per default.
+     * 
+     * @param interval
+     *            the time between two probes of a proxy as amount of milliseconds, 0 to disable health checks.
+     * @param timeout
+     *            the timeout of one probe as amount of milliseconds.
+     * @param maxConcurrentProbes
+     *            the maximum number of probes running at the same time.
+     * @see #getHealthCheckingSelector()
+     ************************************************************************/
+
+    public void setProxyHealthCheck(long interval, long timeout, int maxConcurrentProbes) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("Health check interval must not be negative: " + interval);
+        }
+        if (interval > 0 && (timeout <= 0 || maxConcurrentProbes <= 0)) {
+            throw new IllegalArgumentException(
+                "Invalid health check timeout or concurrency: " + timeout + ", " + maxConcurrentProbes);
+        }
+        this.healthCheckInterval = interval;
+        this.healthCheckTimeout = timeout;
+        this.healthCheckConcurrency = maxConcurrentProbes;
+    }
+
+    /*************************************************************************
+     * Gets the health checking selector of the PAC proxy selector returned last by {@link #getProxySelector()}. It
+     * gives the health state and probe latency of each proxy.
+     * 
+     * @return the health checking selector, null if health checks are disabled or no PAC proxy selector was returned.
+     ************************************************************************/
+
+    public HealthCheckingProxySelector getHealthCheckingSelector() {
+        return this.healthCheckingSelector;
+    }
+
+    /*************************************************************************
+     * Sets how the load is balanced over equivalent proxies returned by the PAC proxy selector. The balancing is
+     * applied to the cached results. Disabled per default, then the first proxy of a PAC result is always used first.
+     * <p>
+     * {@link BalancingStrategy#BALANCING_POWER_OF_TWO_CHOICES} is not supported here. It needs the finished requests
+     * reported to {@link LoadBalancingProxySelector#requestFinished(java.net.SocketAddress)}, which the returned
+     * selector chain does not expose. Wrap the selector with a {@link LoadBalancingProxySelector} yourself to use it.
+     * </p>
+     * 
+     * @param strategy
+     *            the balancing strategy, null to disable load balancing.
+     * @throws IllegalArgumentException
+     *             for {@link BalancingStrategy#BALANCING_POWER_OF_TWO_CHOICES}.
+     ************************************************************************/
+
+    public void setPacLoadBalancing(BalancingStrategy strategy) {
+        if (strategy == BalancingStrategy.BALANCING_POWER_OF_TWO_CHOICES) {
+            throw new IllegalArgumentException("Balancing strategy needs request reports, not supported: " + strategy);
+        }
+        this.balancingStrategy = strategy;
+    }
+
+    /*************************************************************************
+     * Sets if the found selector chain is flattened into one routing table, see
+     * {@link FlattenedProxySelector}. The decisions stay the same, but the returned selector is immutable. Disabled
+     * per default.
+     * <p>
+     * This only applies to selectors of strategies that do not use a PAC script, e.g. the fixed and bypass list
+     * selectors of the desktop, browser and environment settings. A PAC proxy selector found by a strategy is
+     * returned as it is, with its cache and fallback selectors.
+     * </p>
+     * 
+     * @param flattenSelectors
+     *            true to flatten the selector chain.
+     ************************************************************************/
+
+    public void setFlattenSelectors(boolean flattenSelectors) {
+        this.flattenSelectors = flattenSelectors;
     }
 
     /*************************************************************************
@@ -290,7 +457,8 @@ public class ProxySearch implements ProxySearchStrategy {
     }
 
     /*************************************************************************
-     * Gets the proxy selector that will use the configured search order.
+     * Gets the proxy selector that will use the configured search order. Selectors returned before are not changed,
+     * their background tasks keep running until {@link #shutdown()} is called.
      * 
      * @return a ProxySelector, null if none was found for the current builder configuration.
      ************************************************************************/
@@ -303,6 +471,9 @@ public class ProxySearch implements ProxySearchStrategy {
                 ProxySelector selector = strat.getProxySelector();
                 if (selector != null) {
                     selector = installBufferingAndFallbackBehaviour(selector);
+                    if (this.flattenSelectors) {
+                        selector = FlattenedProxySelector.flatten(selector);
+                    }
                     Logger.log(getClass(), LogLevel.INFO, "Proxy found for " + strat.getName());
 
                     return selector;
@@ -343,13 +514,118 @@ public class ProxySearch implements ProxySearchStrategy {
     private ProxySelector installBufferingAndFallbackBehaviour(ProxySelector selector) {
         if (selector instanceof PacProxySelector) {
             if (this.pacCacheSize > 0) {
-                selector = new BufferedProxySelector(this.pacCacheSize, this.pacCacheTTL, selector, pacCacheScope);
+                BufferedProxySelector bufferedSelector = new BufferedProxySelector(this.pacCacheSize, this.pacCacheTTL,
+                        selector, pacCacheScope);
+                bufferedSelector.setDomainDepth(this.pacCacheDomainDepth);
+                if (this.pacCacheSnapshotFile != null) {
+                    installSnapshot(bufferedSelector, (PacProxySelector) selector);
+                }
+                selector = bufferedSelector;
+            }
+            if (this.healthCheckInterval > 0) {
+                HealthCheckingProxySelector healthCheckingSelector = new HealthCheckingProxySelector(selector,
+                        this.healthCheckInterval, this.healthCheckTimeout, this.healthCheckConcurrency);
+                healthCheckingSelector.start();
+                this.healthCheckingSelectors.add(healthCheckingSelector);
+                this.healthCheckingSelector = healthCheckingSelector;
+                selector = healthCheckingSelector;
+            }
+            if (this.balancingStrategy != null) {
+                selector = new LoadBalancingProxySelector(selector, this.balancingStrategy);
             }
             selector = new ProxyListFallbackSelector(selector);
         }
         return selector;
     }
 
+    /*************************************************************************
+     * Fills the cache from the snapshot file and schedules writing the snapshot.
+     * 
+     * @param bufferedSelector
+     *            the cache.
+     * @param pacSelector
+     *            the PAC selector that computes the cached results.
+     ************************************************************************/
+
+    private void installSnapshot(BufferedProxySelector bufferedSelector, PacProxySelector pacSelector) {
+        File file = this.pacCacheSnapshotFile;
+        if (file.isFile()) {
+            try {
+                int count = bufferedSelector.readSnapshot(file, pacSelector.getScriptContentHash());
+                Logger.log(getClass(), LogLevel.INFO, "Restored {} PAC cache entries from {}", count, file);
+            }
+            catch (IOException e) {
+                Logger.log(getClass(), LogLevel.WARNING, "Reading PAC cache snapshot {} failed: {}", file,
+                    e.getMessage());
+            }
+        }
+
+        Runnable writer = () -> {
+            try {
+                bufferedSelector.writeSnapshot(file, pacSelector.getScriptContentHash());
+            }
+            catch (IOException e) {
+                Logger.log(getClass(), LogLevel.WARNING, "Writing PAC cache snapshot {} failed: {}", file,
+                    e.getMessage());
+            }
+        };
+        this.pacCacheSnapshotWriters.add(writer);
+        if (this.pacCacheSnapshotHook == null) {
+            this.pacCacheSnapshotHook = new Thread(this::writePacCacheSnapshots, "proxy-vole-cache-snapshot");
+            Runtime.getRuntime().addShutdownHook(this.pacCacheSnapshotHook);
+        }
+        if (this.pacCacheSnapshotInterval > 0) {
+            if (this.pacCacheSnapshotExecutor == null) {
+                // One thread for the periodic snapshots of all returned selectors
+                this.pacCacheSnapshotExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "proxy-vole-cache-snapshot");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            this.pacCacheSnapshotExecutor.scheduleWithFixedDelay(writer, this.pacCacheSnapshotInterval,
+                this.pacCacheSnapshotInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /*************************************************************************
+     * Writes the snapshots of all returned PAC selectors. Used by the shutdown hook, which is registered only once
+     * per ProxySearch, and by {@link #shutdown()}.
+     ************************************************************************/
+
+    private void writePacCacheSnapshots() {
+        for (Runnable writer : this.pacCacheSnapshotWriters) {
+            writer.run();
+        }
+    }
+
+    /*************************************************************************
+     * Stops the background tasks of all selectors returned by {@link #getProxySelector()}. Their cache snapshots are
+     * written a last time, their health checks stop and the proxies are not filtered by health anymore. Call it when
+     * the selectors are not used anymore.
+     ************************************************************************/
+
+    public void shutdown() {
+        if (this.pacCacheSnapshotExecutor != null) {
+            // Lets a running periodic snapshot finish before the last one is written
+            this.pacCacheSnapshotExecutor.shutdown();
+            try {
+                this.pacCacheSnapshotExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            this.pacCacheSnapshotExecutor = null;
+        }
+        writePacCacheSnapshots();
+        this.pacCacheSnapshotWriters.clear();
+        for (HealthCheckingProxySelector selector : this.healthCheckingSelectors) {
+            selector.stop();
+        }
+        this.healthCheckingSelectors.clear();
+        this.healthCheckingSelector = null;
+    }
+
     /*************************************************************************
      * toString
      * 
@@ -50,6 +50,16 @@ public class FixedProxySelector extends ProxySelector {
 		this(new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved(proxyHost, proxyPort)));
 	}
 
+	/*************************************************************************
+	 * Gets the list returned for all URIs.
+	 * 
+	 * @return the list with the proxy, not modifiable.
+	 ************************************************************************/
+
+	public List<Proxy> getProxyList() {
+		return this.proxyList;
+	}
+
 	/*************************************************************************
 	 * connectFailed
 	 * 
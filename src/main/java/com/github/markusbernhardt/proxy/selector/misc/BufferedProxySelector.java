@@ -1,5 +1,6 @@
 package com.github.markusbernhardt.proxy.selector.misc;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.Proxy;
 import java.net.ProxySelector;
@@ -7,16 +8,70 @@ import java.net.SocketAddress;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.markusbernhardt.proxy.selector.misc.ProxyDecisionCache.Entry;
+import com.github.markusbernhardt.proxy.util.Logger;
+import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
 
 /*****************************************************************************
  * Implements a cache that can be used to warp it around an existing
  * ProxySelector. You can specify a maximum cache size and a "time to live" for
  * positive resolves.
+ * <p>
+ * Lookups do not lock. When the cache is full the least recently used
+ * entries are evicted in an approximated LRU order, see
+ * {@link ProxyDecisionCache}.
+ * </p>
+ * <p>
+ * Concurrent misses on the same cache key share one call of the delegate.
+ * The other callers wait for its result. If the delegate fails all of them
+ * get the error and nothing is cached.
+ * </p>
+ * <p>
+ * An optional expiry jitter shortens the "time to live" of each entry by a
+ * random amount, so that entries created together do not expire together.
+ * It is off by default. With a refresh ahead window a hit on an entry that
+ * expires soon returns the cached result and reloads the entry in the
+ * background.
+ * </p>
+ * <p>
+ * Hits, misses, evictions and the calls of the delegate are counted with
+ * striped counters, see {@link #getStatistics()}.
+ * </p>
+ * <p>
+ * For very large caches the {@link CacheStorage#CACHE_STORAGE_COMPACT} storage keeps only
+ * fingerprints of the keys and shares equal results, see
+ * {@link CompactProxyDecisionCache}.
+ * </p>
+ * <p>
+ * When a connection through a proxy fails,
+ * {@link #connectFailed(URI, SocketAddress, IOException)} evicts the entries
+ * that contain this proxy. An index from the proxy addresses to the cache
+ * keys makes this independent of the cache size.
+ * </p>
+ * <p>
+ * Threads that ask for the same few hosts again and again can use a small
+ * per thread near cache in front of the shared cache, see
+ * {@link #setNearCacheSize(int)}.
+ * </p>
+ * <p>
+ * The entries can be written to a snapshot file and read again after a
+ * restart, see {@link #writeSnapshot(File, String)} and
+ * {@link #readSnapshot(File, String)}.
+ * </p>
  * 
  * @author Markus Bernhardt, Copyright 2016
  * @author Bernd Rosstauscher, Copyright 2009
@@ -47,41 +102,121 @@ public class BufferedProxySelector extends ProxySelector {
          * Cache keys are generated by <code>uri.toString()</code>.
          ********************************************************************/
 
-        CACHE_SCOPE_URL
+        CACHE_SCOPE_URL,
+
+        /*********************************************************************
+         * Cache keys are generated by the domain of <code>uri.getHost()</code>,
+         * by default the approximate registrable domain, see
+         * {@link BufferedProxySelector#setDomainDepth(int)}. All hosts of a
+         * domain share one entry. Use it only if the delegate decides by the
+         * domain and not by the individual host.
+         ********************************************************************/
+
+        CACHE_SCOPE_DOMAIN,
+
+        /*********************************************************************
+         * Cache keys are generated by <code>uri.getScheme()</code> and the
+         * domain of <code>uri.getHost()</code> like
+         * {@link #CACHE_SCOPE_DOMAIN}.
+         ********************************************************************/
+
+        CACHE_SCOPE_SCHEME_DOMAIN
     }
 
+    /*************************************************************************
+     * Define the available storages of the cache entries
+     ************************************************************************/
+
+    public enum CacheStorage {
+
+        /*********************************************************************
+         * Each entry is an object with its key and result.
+         ********************************************************************/
+
+        CACHE_STORAGE_STANDARD,
+
+        /*********************************************************************
+         * Entries are kept in primitive arrays with a 64 bit fingerprint of
+         * the key instead of the key. Different keys with the same
+         * fingerprint share one entry. The refresh ahead window is not
+         * supported.
+         ********************************************************************/
+
+        CACHE_STORAGE_COMPACT,
+
+        /*********************************************************************
+         * Like {@link #CACHE_STORAGE_COMPACT} but the keys are kept too and
+         * compared on lookup, so fingerprint collisions are detected.
+         ********************************************************************/
+
+        CACHE_STORAGE_COMPACT_VERIFIED
+    }
+
+    public static final double DEFAULT_EXPIRY_JITTER = 0;
+
+    private static final int MAX_NEAR_CACHE_SIZE = 1024;
+
+    private static volatile Executor refreshExecutor;
+
     @Override
     public String toString() {
 		return "BufferedProxySelector{" +
 				"delegate=" + delegate +
-				", cache=" + cache +
+				", cache=" + (cache != null ? cache : compactCache) +
 				", maxSize=" + maxSize +
 				", ttl=" + ttl +
 				", cacheScope=" + cacheScope +
+				", domainDepth=" + domainDepth +
+				", refreshAhead=" + refreshAhead +
+				", expiryJitter=" + expiryJitter +
+				", nearCacheSize=" + nearCacheSize +
 				'}';
     }
 
     private ProxySelector delegate;
 
-    private ConcurrentHashMap<String, CacheEntry> cache;
+    private ProxyDecisionCache cache;
+    private CompactProxyDecisionCache compactCache;
     private int maxSize;
     private long ttl;
     private CacheScope cacheScope;
+    private final ConcurrentHashMap<Object, Load> loading;
+    private volatile long refreshAhead;
+    private volatile double expiryJitter;
+    private volatile int domainDepth;
+    private volatile ThreadLocal<NearCache> nearCache;
+    private volatile int nearCacheSize;
+    private final AtomicLong generation = new AtomicLong();
+    private final ConcurrentHashMap<SocketAddress, Set<Object>> proxyIndex;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder loadCount = new LongAdder();
+    private final LongAdder loadFailureCount = new LongAdder();
+    private final LongAdder totalLoadTime = new LongAdder();
+    private final LongAccumulator maxLoadTime = new LongAccumulator(Math::max, 0);
+    private final LongAdder[] loadTimeHistogram;
+
+    /*************************************************************************
+     * A running call of the delegate that other callers can wait for.
+     ************************************************************************/
 
-    private static class CacheEntry {
-        List<Proxy> result;
-        long expireAt;
+    private static final class Load extends CompletableFuture<Entry> {
 
-        public CacheEntry(List<Proxy> r, long expireAt) {
-            super();
-            this.result = new ArrayList<Proxy>(r.size());
-            this.result.addAll(r);
-            this.result = Collections.unmodifiableList(this.result);
-            this.expireAt = expireAt;
-        }
+        volatile Thread owner = Thread.currentThread();
 
-        public boolean isExpired() {
-            return System.nanoTime() >= this.expireAt;
+        Entry await() {
+            try {
+                return join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw e;
+            }
         }
     }
 
@@ -100,16 +235,210 @@ public class BufferedProxySelector extends ProxySelector {
      ************************************************************************/
 
     public BufferedProxySelector(int maxSize, long ttl, ProxySelector delegate, CacheScope cacheScope) {
+        this(maxSize, ttl, delegate, cacheScope, CacheStorage.CACHE_STORAGE_STANDARD);
+    }
+
+    /*************************************************************************
+     * Constructor
+     * 
+     * @param maxSize
+     *            the max size for the cache.
+     * @param ttl
+     *            the "time to live" for cache entries as amount in
+     *            milliseconds.
+     * @param delegate
+     *            the delegate to use.
+     * @param cacheScope
+     *            the desired cache scope.
+     * @param cacheStorage
+     *            the desired storage of the entries.
+     ************************************************************************/
+
+    public BufferedProxySelector(int maxSize, long ttl, ProxySelector delegate, CacheScope cacheScope,
+            CacheStorage cacheStorage) {
         super();
-        this.cache = new ConcurrentHashMap<String, CacheEntry>();
+        switch (cacheStorage) {
+            case CACHE_STORAGE_STANDARD:
+                this.cache = new ProxyDecisionCache(maxSize);
+                this.cache.setRemovalListener(entry -> unindex(entry.key, entry.result, null));
+                break;
+            case CACHE_STORAGE_COMPACT:
+            case CACHE_STORAGE_COMPACT_VERIFIED:
+                this.compactCache = new CompactProxyDecisionCache(maxSize,
+                        cacheStorage == CacheStorage.CACHE_STORAGE_COMPACT_VERIFIED);
+                this.compactCache.setRemovalListener((fingerprint, key, result, expireAt) -> unindex(
+                        indexToken(key, fingerprint), result, null));
+                break;
+            default:
+                throw new RuntimeException("FixMe: Unhandled CacheStorage enum constant.");
+        }
+        this.proxyIndex = new ConcurrentHashMap<SocketAddress, Set<Object>>();
         this.maxSize = maxSize;
         this.delegate = delegate;
         this.ttl = ttl;
         this.cacheScope = cacheScope;
+        this.loading = new ConcurrentHashMap<Object, Load>();
+        this.expiryJitter = DEFAULT_EXPIRY_JITTER;
+        this.loadTimeHistogram = new LongAdder[CacheStatistics.bucketCount()];
+        for (int i = 0; i < this.loadTimeHistogram.length; i++) {
+            this.loadTimeHistogram[i] = new LongAdder();
+        }
+    }
+
+    /*************************************************************************
+     * Sets the refresh ahead window. A hit on an entry that expires within
+     * this window returns the cached result and starts to reload the entry in
+     * the background, so that callers of hot keys do not wait for the
+     * delegate.
+     * 
+     * @param refreshAhead
+     *            the window as amount of milliseconds, 0 to disable.
+     ************************************************************************/
+
+    public void setRefreshAhead(long refreshAhead) {
+        this.refreshAhead = Math.max(refreshAhead, 0);
+    }
+
+    /*************************************************************************
+     * Gets the refresh ahead window.
+     * 
+     * @return the window as amount of milliseconds, 0 if disabled.
+     ************************************************************************/
+
+    public long getRefreshAhead() {
+        return this.refreshAhead;
+    }
+
+    /*************************************************************************
+     * Sets the expiry jitter. The "time to live" of each entry is shortened
+     * by a random fraction of up to this value. Default is 0, no jitter.
+     * 
+     * @param expiryJitter
+     *            the maximum fraction, from 0 (no jitter) to less than 1.
+     ************************************************************************/
+
+    public void setExpiryJitter(double expiryJitter) {
+        if (!(expiryJitter >= 0 && expiryJitter < 1)) {
+            throw new IllegalArgumentException("Expiry jitter must be in the range [0, 1): " + expiryJitter);
+        }
+        this.expiryJitter = expiryJitter;
+    }
+
+    /*************************************************************************
+     * Gets the expiry jitter.
+     * 
+     * @return the maximum fraction of the "time to live" that is cut off.
+     ************************************************************************/
+
+    public double getExpiryJitter() {
+        return this.expiryJitter;
+    }
+
+    /*************************************************************************
+     * Sets the number of domain labels used as cache key by the domain
+     * scopes. With a depth of 2 <code>a1.cdn.example.com</code> and
+     * <code>b2.cdn.example.com</code> share the entry of
+     * <code>example.com</code>, with a depth of 3 the entry of
+     * <code>cdn.example.com</code>.
+     * <p>
+     * The default depth of 0 is only an approximation of the registrable
+     * domain. It keeps the last two labels, or three if the top level domain
+     * is a country code and the second level a common generic label like
+     * <code>co.uk</code> or <code>com.au</code>. Other multi label suffixes
+     * like <code>github.io</code> or <code>co.za</code> are not known, so
+     * all sites below such a suffix share one entry. Set an explicit depth
+     * if the delegate decides by hosts below such suffixes.
+     * </p>
+     * 
+     * @param domainDepth
+     *            the number of labels, 0 for the approximate registrable
+     *            domain.
+     ************************************************************************/
+
+    public void setDomainDepth(int domainDepth) {
+        if (domainDepth < 0) {
+            throw new IllegalArgumentException("Domain depth must not be negative: " + domainDepth);
+        }
+        this.domainDepth = domainDepth;
+    }
+
+    /*************************************************************************
+     * Gets the number of domain labels used as cache key by the domain
+     * scopes.
+     * 
+     * @return the number of labels, 0 for the approximate registrable
+     *         domain.
+     ************************************************************************/
+
+    public int getDomainDepth() {
+        return this.domainDepth;
+    }
+
+    /*************************************************************************
+     * Enables a near cache per thread with the given number of slots. A near
+     * cache hit does not touch the shared cache, which helps threads that
+     * select for the same few hosts repeatedly, e.g. event loop threads. The
+     * near cache is direct mapped, so keys that share a slot replace each
+     * other.
+     * <p>
+     * Near cache entries expire with the shared entries and are dropped by
+     * {@link #invalidateAll()}. Hits are counted as cache hits but do not
+     * mark the shared entry as used.
+     * </p>
+     * 
+     * @param size
+     *            the number of slots per thread, rounded up to a power of
+     *            two. A few dozen slots are usually enough. 0 disables the
+     *            near cache.
+     ************************************************************************/
+
+    public void setNearCacheSize(int size) {
+        if (size < 0 || size > MAX_NEAR_CACHE_SIZE) {
+            throw new IllegalArgumentException("Near cache size must be between 0 and " + MAX_NEAR_CACHE_SIZE
+                    + ": " + size);
+        }
+        if (size == 0) {
+            this.nearCache = null;
+            this.nearCacheSize = 0;
+        } else {
+            int slots = Integer.highestOneBit(size * 2 - 1);
+            this.nearCache = ThreadLocal.withInitial(() -> new NearCache(slots));
+            this.nearCacheSize = slots;
+        }
+    }
+
+    /*************************************************************************
+     * Gets the number of near cache slots per thread.
+     * 
+     * @return the number of slots, 0 if the near cache is disabled.
+     ************************************************************************/
+
+    public int getNearCacheSize() {
+        return this.nearCacheSize;
+    }
+
+    /*************************************************************************
+     * Removes all cached entries, including the entries of the near caches.
+     ************************************************************************/
+
+    public void invalidateAll() {
+        if (this.compactCache == null) {
+            this.cache.clear();
+        } else {
+            this.compactCache.clear();
+        }
+        // After clearing, so a near cache can not be filled again with an
+        // old entry under the new generation
+        this.generation.incrementAndGet();
     }
 
     /*************************************************************************
      * connectFailed
+     * <p>
+     * Evicts all cached entries that contain the failed proxy, so that the
+     * next select asks the delegate again. The work is proportional to the
+     * number of these entries.
+     * </p>
      * 
 	 * @see java.net.ProxySelector#connectFailed(java.net.URI,
 	 *      java.net.SocketAddress, java.io.IOException)
@@ -117,9 +446,94 @@ public class BufferedProxySelector extends ProxySelector {
 
     @Override
     public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+        if (sa != null) {
+            evictEntriesWith(sa);
+        }
         this.delegate.connectFailed(uri, sa, ioe);
     }
 
+    /*************************************************************************
+     * Evicts the entries with a proxy of the given address.
+     ************************************************************************/
+
+    private void evictEntriesWith(SocketAddress address) {
+        Set<Object> tokens = this.proxyIndex.remove(address);
+        if (tokens == null) {
+            return;
+        }
+        int count = 0;
+        for (Object token : tokens) {
+            if (this.compactCache != null) {
+                boolean removed = token instanceof CacheKey
+                        ? this.compactCache.remove((CacheKey) token, ((CacheKey) token).fingerprint())
+                        : this.compactCache.remove(null, (Long) token);
+                count += removed ? 1 : 0;
+            } else {
+                Entry entry = this.cache.get(token);
+                if (entry != null && containsAddress(entry.result, address) && this.cache.remove(entry)) {
+                    count++;
+                }
+            }
+        }
+        // Near caches may hold the evicted entries
+        this.generation.incrementAndGet();
+        Logger.log(getClass(), LogLevel.DEBUG, "Evicted {} cached entries with the failed proxy {}", count, address);
+    }
+
+    /*************************************************************************
+     * Adds the token of an entry to the index of each proxy address of the
+     * result.
+     ************************************************************************/
+
+    private void index(Object token, List<Proxy> result) {
+        for (Proxy proxy : result) {
+            SocketAddress address = proxy.address();
+            if (address != null) {
+                this.proxyIndex.compute(address, (a, tokens) -> {
+                    Set<Object> updated = tokens != null ? tokens : new HashSet<Object>();
+                    updated.add(token);
+                    return updated;
+                });
+            }
+        }
+    }
+
+    /*************************************************************************
+     * Removes the token of an entry from the index of each proxy address of
+     * the result, except for the addresses that are still used by the kept
+     * result.
+     ************************************************************************/
+
+    private void unindex(Object token, List<Proxy> result, List<Proxy> kept) {
+        for (Proxy proxy : result) {
+            SocketAddress address = proxy.address();
+            if (address != null && (kept == null || !containsAddress(kept, address))) {
+                this.proxyIndex.computeIfPresent(address, (a, tokens) -> {
+                    tokens.remove(token);
+                    return tokens.isEmpty() ? null : tokens;
+                });
+            }
+        }
+    }
+
+    private static boolean containsAddress(List<Proxy> result, SocketAddress address) {
+        for (Proxy proxy : result) {
+            if (address.equals(proxy.address())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*************************************************************************
+     * Gets the index token of an entry of the compact storage. Without
+     * verified keys only the fingerprint identifies the entry.
+     ************************************************************************/
+
+    private Object indexToken(CacheKey key, long fingerprint) {
+        return this.compactCache.isVerifyingKeys() ? key : Long.valueOf(fingerprint);
+    }
+
     /*************************************************************************
      * select
      * 
@@ -128,68 +542,405 @@ public class BufferedProxySelector extends ProxySelector {
 
     @Override
     public List<Proxy> select(URI uri) {
-        String cacheKey;
-        switch (cacheScope) {
-            case CACHE_SCOPE_HOST:
-                cacheKey = uri.getHost();
-                break;
-            case CACHE_SCOPE_HOST_PORT:
-                cacheKey = uri.getHost() + ":" + uri.getPort();
-                break;
-            case CACHE_SCOPE_URL:
-                cacheKey = uri.toString();
-                break;
-            default:
-                throw new RuntimeException("FixMe: Unhandled CacheScope enum constant.");
+        CacheKey lookupKey = CacheKey.lookupKey(uri, this.cacheScope, this.domainDepth);
+        ThreadLocal<NearCache> nearCache = this.nearCache;
+        if (lookupKey == null || nearCache == null) {
+            return selectShared(lookupKey, uri, null, 0);
         }
 
-        CacheEntry entry = null;
-        if (cacheKey != null) {
-            entry = this.cache.get(cacheKey);
+        NearCache near = nearCache.get();
+        long generation = this.generation.get();
+        List<Proxy> result = near.get(lookupKey, generation, System.nanoTime());
+        if (result != null) {
+            this.hitCount.increment();
+            return result;
         }
+        return selectShared(lookupKey, uri, near, generation);
+    }
 
-        if (entry == null || entry.isExpired()) {
-            List<Proxy> result = this.delegate.select(uri);
-            entry = new CacheEntry(result, System.nanoTime() + this.ttl * 1000 * 1000);
+    /*************************************************************************
+     * Selects with the shared cache and fills the near cache if given.
+     ************************************************************************/
 
-            synchronized (this.cache) {
-                if (this.cache.size() >= this.maxSize) {
-                    purgeCache();
-                }
-                if (cacheKey != null) {
-                    this.cache.put(cacheKey, entry);
+    private List<Proxy> selectShared(CacheKey lookupKey, URI uri, NearCache near, long generation) {
+        if (this.compactCache != null) {
+            return selectCompact(lookupKey, uri, near, generation);
+        }
+
+        Entry entry = null;
+        if (lookupKey != null) {
+            entry = this.cache.get(lookupKey);
+        }
+
+        if (entry == null) {
+            this.missCount.increment();
+            entry = load(lookupKey == null ? null : lookupKey.copy(), uri);
+        } else {
+            long now = System.nanoTime();
+            if (entry.isExpired(now)) {
+                this.missCount.increment();
+                entry = load(entry.key, uri);
+            } else {
+                this.hitCount.increment();
+                if (entry.needsRefresh(now)) {
+                    refreshInBackground(entry.key, uri);
+                    // Not in the near cache, the next select has to see the
+                    // refreshed entry
+                    return entry.result;
                 }
             }
         }
 
+        if (near != null) {
+            near.put((CacheKey) entry.key, entry.result, entry.refreshAt, generation);
+        }
         return entry.result;
     }
 
     /*************************************************************************
-     * Purge cache to get some free space for a new entry.
+     * Selects with the compact storage.
+     ************************************************************************/
+
+    private List<Proxy> selectCompact(CacheKey lookupKey, URI uri, NearCache near, long generation) {
+        if (lookupKey != null) {
+            long now = System.nanoTime();
+            List<Proxy> result = this.compactCache.get(lookupKey, now);
+            if (result != null) {
+                this.hitCount.increment();
+                if (near != null) {
+                    near.put(lookupKey.copy(), result, this.compactCache.getExpireAt(lookupKey, now), generation);
+                }
+                return result;
+            }
+        }
+        this.missCount.increment();
+        if (lookupKey == null) {
+            return load(null, uri).result;
+        }
+        Entry entry = load(lookupKey.copy(), uri);
+        // Return the same list as the following hits
+        List<Proxy> result = this.compactCache.intern(entry.result);
+        if (near != null) {
+            near.put((CacheKey) entry.key, result, entry.expireAt, generation);
+        }
+        return result;
+    }
+
+    /*************************************************************************
+     * Calls the delegate and caches the result. If a call for the same key is
+     * already running its result is used instead.
+     * 
+     * @param cacheKey
+     *            the cache key, null if the result must not be cached.
+     * @param uri
+     *            the URI to select the proxies for.
+     * @return the new entry.
      ************************************************************************/
 
-    private void purgeCache() {
+    private Entry load(Object cacheKey, URI uri) {
+        if (cacheKey == null) {
+            return newEntry(null, callDelegate(uri));
+        }
 
-        // Remove all expired entries and find the oldest.
-        boolean removedOne = false;
-        Entry<String, CacheEntry> oldest = null;
+        Load load = new Load();
+        Load running = this.loading.putIfAbsent(cacheKey, load);
+        if (running != null) {
+            // A recursive select from within the delegate must not wait for itself
+            if (running.owner == Thread.currentThread()) {
+                return newEntry(cacheKey, callDelegate(uri));
+            }
+            return running.await();
+        }
 
-        Set<Entry<String, CacheEntry>> entries = this.cache.entrySet();
-        for (Iterator<Entry<String, CacheEntry>> it = entries.iterator(); it.hasNext();) {
-            Entry<String, CacheEntry> entry = it.next();
-            if (entry.getValue().isExpired()) {
-                it.remove();
-                removedOne = true;
-			} else if (oldest == null || entry.getValue().expireAt < oldest.getValue().expireAt) {
-                oldest = entry;
+        try {
+            // The entry may have been loaded since the miss
+            Entry entry = cachedEntry(cacheKey);
+            if (entry == null || entry.isExpired(System.nanoTime())) {
+                entry = newEntry(cacheKey, callDelegate(uri));
+                store(entry);
             }
+            load.complete(entry);
+            return entry;
+        } catch (RuntimeException | Error e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.loading.remove(cacheKey, load);
         }
+    }
 
-        // Remove oldest if no expired entries were found.
-        if (!removedOne && oldest != null) {
-            this.cache.remove(oldest.getKey());
+    /*************************************************************************
+     * Reloads the entry on the refresh executor unless a load for the key is
+     * already running. On error the current entry is kept until it expires.
+     ************************************************************************/
+
+    private void refreshInBackground(Object cacheKey, URI uri) {
+        Load load = new Load();
+        if (this.loading.putIfAbsent(cacheKey, load) != null) {
+            return;
+        }
+        try {
+            getRefreshExecutor().execute(() -> {
+                load.owner = Thread.currentThread();
+                try {
+                    Entry entry = newEntry(cacheKey, callDelegate(uri));
+                    store(entry);
+                    load.complete(entry);
+                } catch (RuntimeException | Error e) {
+                    Logger.log(getClass(), LogLevel.WARNING, "Refreshing cached proxies for {} failed: {}", uri,
+                            e.getMessage());
+                    load.completeExceptionally(e);
+                } finally {
+                    this.loading.remove(cacheKey, load);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.loading.remove(cacheKey, load);
+            load.completeExceptionally(e);
         }
     }
 
+    /*************************************************************************
+     * Gets the cached entry of the key from the storage.
+     ************************************************************************/
+
+    private Entry cachedEntry(Object cacheKey) {
+        if (this.compactCache == null) {
+            return this.cache.get(cacheKey);
+        }
+        long now = System.nanoTime();
+        List<Proxy> result = this.compactCache.get((CacheKey) cacheKey, now);
+        return result == null ? null : new Entry(cacheKey, result, now + 1);
+    }
+
+    /*************************************************************************
+     * Adds the entry to the storage.
+     ************************************************************************/
+
+    private void store(Entry entry) {
+        if (this.compactCache == null) {
+            // Indexed before it is visible, an eviction always finds it
+            index(entry.key, entry.result);
+            Entry old = this.cache.put(entry);
+            if (old != null) {
+                unindex(old.key, old.result, entry.result);
+            }
+        } else {
+            CacheKey key = (CacheKey) entry.key;
+            long fingerprint = key.fingerprint();
+            storeCompact(key, fingerprint, entry.result, entry.expireAt);
+        }
+    }
+
+    private void storeCompact(CacheKey key, long fingerprint, List<Proxy> result, long expireAt) {
+        Object token = indexToken(key, fingerprint);
+        index(token, result);
+        List<Proxy> old = this.compactCache.put(key, fingerprint, result, expireAt);
+        if (old != null) {
+            unindex(token, old, result);
+        }
+    }
+
+    /*************************************************************************
+     * Calls the delegate and records the load time.
+     ************************************************************************/
+
+    private List<Proxy> callDelegate(URI uri) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            List<Proxy> result = this.delegate.select(uri);
+            failed = false;
+            return result;
+        } finally {
+            long loadTime = System.nanoTime() - start;
+            this.loadCount.increment();
+            if (failed) {
+                this.loadFailureCount.increment();
+            }
+            this.totalLoadTime.add(loadTime);
+            this.maxLoadTime.accumulate(loadTime);
+            this.loadTimeHistogram[CacheStatistics.bucketOf(loadTime)].increment();
+        }
+    }
+
+    /*************************************************************************
+     * Gets a snapshot of the cache statistics. The counters are read one
+     * after the other without locking, so a snapshot taken under load may
+     * be slightly inconsistent.
+     * 
+     * @return the statistics.
+     ************************************************************************/
+
+    public CacheStatistics getStatistics() {
+        long[] histogram = new long[this.loadTimeHistogram.length];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = this.loadTimeHistogram[i].sum();
+        }
+        long expiredEvictions;
+        long capacityEvictions;
+        int size;
+        if (this.compactCache == null) {
+            expiredEvictions = this.cache.getExpiredEvictionCount();
+            capacityEvictions = this.cache.getCapacityEvictionCount();
+            size = this.cache.size();
+        } else {
+            expiredEvictions = this.compactCache.getExpiredEvictionCount();
+            capacityEvictions = this.compactCache.getCapacityEvictionCount();
+            size = this.compactCache.size();
+        }
+        return new CacheStatistics(this.hitCount.sum(), this.missCount.sum(), expiredEvictions, capacityEvictions,
+                this.loadCount.sum(), this.loadFailureCount.sum(), this.totalLoadTime.sum(), this.maxLoadTime.get(),
+                histogram, size);
+    }
+
+    /*************************************************************************
+     * Creates a cache entry with a jittered expire date.
+     ************************************************************************/
+
+    private Entry newEntry(Object cacheKey, List<Proxy> result) {
+        long ttlNanos = this.ttl * 1000 * 1000;
+        double jitter = this.expiryJitter;
+        if (jitter > 0) {
+            ttlNanos -= (long) (ttlNanos * jitter * ThreadLocalRandom.current().nextDouble());
+        }
+        return newEntry(cacheKey, result, System.nanoTime() + ttlNanos, ttlNanos);
+    }
+
+    private Entry newEntry(Object cacheKey, List<Proxy> result, long expireAt, long ttlNanos) {
+        long refreshAheadNanos = this.refreshAhead * 1000 * 1000;
+        if (refreshAheadNanos <= 0) {
+            return new Entry(cacheKey, result, expireAt);
+        }
+        return new Entry(cacheKey, result, expireAt, expireAt - Math.min(refreshAheadNanos, ttlNanos));
+    }
+
+    /*************************************************************************
+     * Writes the cached entries with their remaining time to live to a
+     * snapshot file. The file is replaced atomically, so this can be called
+     * periodically while the cache is in use.
+     * 
+     * @param file
+     *            the snapshot file.
+     * @param contentHash
+     *            the hash of the PAC script content the entries were
+     *            computed with, see
+     *            {@link com.github.markusbernhardt.proxy.selector.pac.PacProxySelector#getScriptContentHash()}.
+     *            Can be null.
+     * @return the number of written entries.
+     * @throws IOException
+     *             on write error.
+     ************************************************************************/
+
+    public int writeSnapshot(File file, String contentHash) throws IOException {
+        List<CacheSnapshot.Record> records = new ArrayList<CacheSnapshot.Record>();
+        if (this.compactCache == null) {
+            for (Entry entry : this.cache.entries()) {
+                records.add(new CacheSnapshot.Record((CacheKey) entry.key, 0, entry.result, entry.expireAt));
+            }
+        } else {
+            this.compactCache.forEach((fingerprint, key, result, expireAt) -> records
+                    .add(new CacheSnapshot.Record(key, fingerprint, result, expireAt)));
+        }
+        int count = CacheSnapshot.write(file, contentHash, this.cacheScope, this.domainDepth, records);
+        Logger.log(getClass(), LogLevel.DEBUG, "Wrote {} cache entries to snapshot {}", count, file);
+        return count;
+    }
+
+    /*************************************************************************
+     * Adds the entries of a snapshot file to the cache. The entries expire
+     * after their remaining time to live. Nothing is added if the snapshot
+     * was written for another PAC script content, cache scope or domain
+     * depth.
+     * 
+     * @param file
+     *            the snapshot file.
+     * @param contentHash
+     *            the hash of the current PAC script content, can be null.
+     * @return the number of added entries.
+     * @throws IOException
+     *             on read error or if the file is no snapshot.
+     ************************************************************************/
+
+    public int readSnapshot(File file, String contentHash) throws IOException {
+        List<CacheSnapshot.Record> records = CacheSnapshot.read(file, contentHash, this.cacheScope,
+                this.domainDepth);
+        long ttlNanos = this.ttl * 1000 * 1000;
+        int count = 0;
+        for (CacheSnapshot.Record record : records) {
+            // Restored results are shared by all callers like the live ones
+            List<Proxy> result = Collections.unmodifiableList(record.result);
+            if (record.key == null) {
+                // Only the compact storage without keys can use fingerprints
+                if (this.compactCache == null || this.compactCache.isVerifyingKeys()) {
+                    continue;
+                }
+                storeCompact(null, record.fingerprint, result, record.expireAt);
+            } else if (cachedEntry(record.key) == null) {
+                store(newEntry(record.key, result, record.expireAt, ttlNanos));
+            } else {
+                continue;
+            }
+            count++;
+        }
+        Logger.log(getClass(), LogLevel.DEBUG, "Read {} cache entries from snapshot {}", count, file);
+        return count;
+    }
+
+    /*************************************************************************
+     * Gets the shared executor for background refreshes and creates it if
+     * needed.
+     ************************************************************************/
+
+    private static Executor getRefreshExecutor() {
+        Executor executor = refreshExecutor;
+        if (executor == null) {
+            synchronized (BufferedProxySelector.class) {
+                executor = refreshExecutor;
+                if (executor == null) {
+                    executor = Executors.newCachedThreadPool(runnable -> {
+                        Thread thread = new Thread(runnable, "proxy-vole-cache-refresh");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    refreshExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /*************************************************************************
+     * Gets the cache for tests.
+     * 
+     * @return the cache.
+     ************************************************************************/
+
+    ProxyDecisionCache getCache() {
+        return this.cache;
+    }
+
+    /*************************************************************************
+     * Gets the compact cache for tests.
+     * 
+     * @return the cache, null if the standard storage is used.
+     ************************************************************************/
+
+    CompactProxyDecisionCache getCompactCache() {
+        return this.compactCache;
+    }
+
+    /*************************************************************************
+     * Gets the number of cached entries that use the proxy, for tests.
+     * 
+     * @param address
+     *            the proxy address.
+     * @return the number of indexed entries.
+     ************************************************************************/
+
+    int getIndexedEntryCount(SocketAddress address) {
+        Set<Object> tokens = this.proxyIndex.get(address);
+        return tokens == null ? 0 : tokens.size();
+    }
+
 }
@@ -0,0 +1,275 @@
+package com.github.markusbernhardt.proxy.selector.misc;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.URI;
+
+import com.github.markusbernhardt.proxy.selector.misc.BufferedProxySelector.CacheScope;
+
+/*****************************************************************************
+ * Cache key of the {@link BufferedProxySelector}. It refers to the parts of
+ * the URI that belong to the cache scope instead of building a string. Host
+ * and scheme are compared ignoring case without creating lower case copies.
+ * <p>
+ * Each thread has one mutable instance to look up entries, so a cache hit
+ * does not allocate. Only on a miss an immutable copy is created and stored.
+ * </p>
+ ****************************************************************************/
+
+final class CacheKey {
+
+	private static final int NO_PORT = Integer.MIN_VALUE;
+
+	private static final ThreadLocal<CacheKey> LOOKUP_KEY = ThreadLocal.withInitial(CacheKey::new);
+
+	private String scheme;
+	private String host;
+	private int hostStart;
+	private int hostEnd;
+	private int port;
+	private String url;
+	private int hash;
+
+	private CacheKey() {
+		super();
+	}
+
+	/*************************************************************************
+	 * Gets the lookup key of the current thread for the URI. The key is
+	 * reused by the next call on this thread, use {@link #copy()} to keep it.
+	 *
+	 * @param uri
+	 *            the URI.
+	 * @param scope
+	 *            the cache scope.
+	 * @param domainDepth
+	 *            the domain depth of the domain scopes.
+	 * @return the key, null if the URI can not be cached in this scope.
+	 ************************************************************************/
+
+	static CacheKey lookupKey(URI uri, CacheScope scope, int domainDepth) {
+		CacheKey key = LOOKUP_KEY.get();
+		return key.set(uri, scope, domainDepth) ? key : null;
+	}
+
+	private boolean set(URI uri, CacheScope scope, int domainDepth) {
+		this.scheme = null;
+		this.host = uri.getHost();
+		this.hostStart = 0;
+		this.hostEnd = this.host == null ? 0 : this.host.length();
+		this.port = NO_PORT;
+		this.url = null;
+		switch (scope) {
+			case CACHE_SCOPE_HOST:
+				if (this.host == null) {
+					return false;
+				}
+				break;
+			case CACHE_SCOPE_HOST_PORT:
+				this.port = uri.getPort();
+				break;
+			case CACHE_SCOPE_URL:
+				// The string form is kept by the URI, it is not built again
+				this.url = uri.toString();
+				this.host = null;
+				this.hostEnd = 0;
+				break;
+			case CACHE_SCOPE_SCHEME_DOMAIN:
+				this.scheme = uri.getScheme();
+				// fall through
+			case CACHE_SCOPE_DOMAIN:
+				if (this.host == null) {
+					return false;
+				}
+				this.hostEnd = DomainKeys.domainEnd(this.host);
+				this.hostStart = DomainKeys.domainStart(this.host, this.hostEnd, domainDepth);
+				break;
+			default:
+				throw new RuntimeException("FixMe: Unhandled CacheScope enum constant.");
+		}
+		this.hash = computeHash();
+		return true;
+	}
+
+	/*************************************************************************
+	 * Creates a copy that can be stored in the cache.
+	 *
+	 * @return the copy.
+	 ************************************************************************/
+
+	CacheKey copy() {
+		CacheKey copy = new CacheKey();
+		copy.scheme = this.scheme;
+		copy.host = this.host;
+		copy.hostStart = this.hostStart;
+		copy.hostEnd = this.hostEnd;
+		copy.port = this.port;
+		copy.url = this.url;
+		copy.hash = this.hash;
+		return copy;
+	}
+
+	/*************************************************************************
+	 * Writes the key for a snapshot of the cache.
+	 *
+	 * @param out
+	 *            the output.
+	 * @throws IOException
+	 *             on write error.
+	 ************************************************************************/
+
+	void writeTo(DataOutput out) throws IOException {
+		writeNullable(out, this.scheme);
+		writeNullable(out, this.host == null ? null : this.host.substring(this.hostStart, this.hostEnd));
+		out.writeInt(this.port);
+		writeNullable(out, this.url);
+	}
+
+	/*************************************************************************
+	 * Reads a key written by {@link #writeTo(DataOutput)}.
+	 *
+	 * @param in
+	 *            the input.
+	 * @return the key.
+	 * @throws IOException
+	 *             on read error.
+	 ************************************************************************/
+
+	static CacheKey readFrom(DataInput in) throws IOException {
+		CacheKey key = new CacheKey();
+		key.scheme = readNullable(in);
+		key.host = readNullable(in);
+		key.hostEnd = key.host == null ? 0 : key.host.length();
+		key.port = in.readInt();
+		key.url = readNullable(in);
+		key.hash = key.computeHash();
+		return key;
+	}
+
+	private static void writeNullable(DataOutput out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readNullable(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private int computeHash() {
+		int h = this.url == null ? 0 : this.url.hashCode();
+		h = 31 * h + this.port;
+		if (this.scheme != null) {
+			for (int i = 0; i < this.scheme.length(); i++) {
+				h = 31 * h + foldCase(this.scheme.charAt(i));
+			}
+		}
+		if (this.host != null) {
+			for (int i = this.hostStart; i < this.hostEnd; i++) {
+				h = 31 * h + foldCase(this.host.charAt(i));
+			}
+		}
+		return h;
+	}
+
+	/*************************************************************************
+	 * Computes a 64 bit fingerprint of the key. Keys that are equal have the
+	 * same fingerprint. It is never 0.
+	 *
+	 * @return the fingerprint.
+	 ************************************************************************/
+
+	long fingerprint() {
+		// FNV-1a over all parts, finished with the MurmurHash3 mixer
+		long h = 0xcbf29ce484222325L;
+		if (this.url != null) {
+			for (int i = 0; i < this.url.length(); i++) {
+				h = (h ^ this.url.charAt(i)) * 0x100000001b3L;
+			}
+		}
+		h = (h ^ this.port) * 0x100000001b3L;
+		if (this.scheme != null) {
+			for (int i = 0; i < this.scheme.length(); i++) {
+				h = (h ^ foldCase(this.scheme.charAt(i))) * 0x100000001b3L;
+			}
+		}
+		if (this.host != null) {
+			for (int i = this.hostStart; i < this.hostEnd; i++) {
+				h = (h ^ foldCase(this.host.charAt(i))) * 0x100000001b3L;
+			}
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h == 0 ? 1 : h;
+	}
+
+	/*************************************************************************
+	 * Folds the case like <code>String.regionMatches(true, ...)</code>
+	 * compares characters.
+	 ************************************************************************/
+
+	private static int foldCase(char c) {
+		if (c < 128) {
+			return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+		}
+		return Character.toLowerCase(Character.toUpperCase(c));
+	}
+
+	@Override
+	public int hashCode() {
+		return this.hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof CacheKey)) {
+			return false;
+		}
+		CacheKey other = (CacheKey) obj;
+		return this.hash == other.hash && this.port == other.port && equalUrls(other) && equalSchemes(other)
+		        && equalHosts(other);
+	}
+
+	private boolean equalUrls(CacheKey other) {
+		return this.url == null ? other.url == null : this.url.equals(other.url);
+	}
+
+	private boolean equalSchemes(CacheKey other) {
+		return this.scheme == null ? other.scheme == null : this.scheme.equalsIgnoreCase(other.scheme);
+	}
+
+	private boolean equalHosts(CacheKey other) {
+		if (this.host == null || other.host == null) {
+			return this.host == other.host;
+		}
+		int length = this.hostEnd - this.hostStart;
+		return length == other.hostEnd - other.hostStart
+		        && this.host.regionMatches(true, this.hostStart, other.host, other.hostStart, length);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder();
+		if (this.scheme != null) {
+			result.append(this.scheme).append("://");
+		}
+		if (this.url != null) {
+			result.append(this.url);
+		}
+		if (this.host != null) {
+			result.append(this.host, this.hostStart, this.hostEnd);
+		}
+		if (this.port != NO_PORT) {
+			result.append(':').append(this.port);
+		}
+		return result.toString();
+	}
+}
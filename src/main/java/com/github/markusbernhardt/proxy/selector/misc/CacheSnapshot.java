@@ -0,0 +1,268 @@
+package com.github.markusbernhardt.proxy.selector.misc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.SocketAddress;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.github.markusbernhardt.proxy.selector.misc.BufferedProxySelector.CacheScope;
+
+/*****************************************************************************
+ * Binary snapshot of the entries of a {@link BufferedProxySelector}. It is
+ * written on shutdown or periodically and read on startup, so that a new
+ * process does not start with an empty cache.
+ * <p>
+ * The file starts with a header holding the hash of the PAC script content,
+ * the cache scope and the time it was written. Each entry holds the key (or
+ * only its fingerprint for the compact storage without keys), the proxies as
+ * type, host and port and the remaining time to live. A snapshot of another
+ * script content or cache scope is not used.
+ * </p>
+ ****************************************************************************/
+
+final class CacheSnapshot {
+
+	private static final int MAGIC = 0x50565343;
+	private static final int VERSION = 1;
+
+	private static final byte KIND_KEY = 1;
+	private static final byte KIND_FINGERPRINT = 2;
+
+	private static final byte TYPE_DIRECT = 0;
+	private static final byte TYPE_HTTP = 1;
+	private static final byte TYPE_SOCKS = 2;
+
+	/*************************************************************************
+	 * One entry of the snapshot.
+	 ************************************************************************/
+
+	static final class Record {
+		final CacheKey key;
+		final long fingerprint;
+		final List<Proxy> result;
+		final long expireAt;
+
+		/*********************************************************************
+		 * Constructor
+		 *
+		 * @param key
+		 *            the key, null if only the fingerprint is known.
+		 * @param fingerprint
+		 *            the fingerprint of the key, used if the key is null.
+		 * @param result
+		 *            the proxies.
+		 * @param expireAt
+		 *            the expire date as <code>System.nanoTime()</code>
+		 *            value.
+		 ********************************************************************/
+
+		Record(CacheKey key, long fingerprint, List<Proxy> result, long expireAt) {
+			this.key = key;
+			this.fingerprint = fingerprint;
+			this.result = result;
+			this.expireAt = expireAt;
+		}
+	}
+
+	private CacheSnapshot() {
+		// Utility class
+	}
+
+	/*************************************************************************
+	 * Writes the snapshot. The file is replaced atomically. Expired entries
+	 * and entries with proxy addresses that are not host and port are
+	 * skipped.
+	 *
+	 * @param file
+	 *            the snapshot file.
+	 * @param contentHash
+	 *            the hash of the PAC script content, can be null.
+	 * @param scope
+	 *            the cache scope of the keys.
+	 * @param domainDepth
+	 *            the domain depth of the keys.
+	 * @param records
+	 *            the entries.
+	 * @return the number of written entries.
+	 * @throws IOException
+	 *             on write error.
+	 ************************************************************************/
+
+	static int write(File file, String contentHash, CacheScope scope, int domainDepth, List<Record> records)
+	        throws IOException {
+		long now = System.nanoTime();
+		List<Record> valid = new ArrayList<Record>(records.size());
+		for (Record record : records) {
+			if (record.expireAt - now > 0 && isWritable(record.result)) {
+				valid.add(record);
+			}
+		}
+
+		Path target = file.getAbsoluteFile().toPath();
+		Files.createDirectories(target.getParent());
+		Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(
+			        new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeUTF(contentHash == null ? "" : contentHash);
+				out.writeUTF(scope.name());
+				out.writeInt(domainDepth);
+				out.writeLong(System.currentTimeMillis());
+				out.writeInt(valid.size());
+				for (Record record : valid) {
+					if (record.key != null) {
+						out.writeByte(KIND_KEY);
+						record.key.writeTo(out);
+					} else {
+						out.writeByte(KIND_FINGERPRINT);
+						out.writeLong(record.fingerprint);
+					}
+					out.writeLong((record.expireAt - now) / (1000 * 1000));
+					out.writeShort(record.result.size());
+					for (Proxy proxy : record.result) {
+						writeProxy(out, proxy);
+					}
+				}
+			}
+			try {
+				Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+			temp = null;
+		} finally {
+			if (temp != null) {
+				Files.deleteIfExists(temp);
+			}
+		}
+		return valid.size();
+	}
+
+	/*************************************************************************
+	 * Reads the snapshot.
+	 *
+	 * @param file
+	 *            the snapshot file.
+	 * @param contentHash
+	 *            the hash of the current PAC script content, can be null.
+	 * @param scope
+	 *            the cache scope of the selector.
+	 * @param domainDepth
+	 *            the domain depth of the selector.
+	 * @return the entries that are not expired yet, an empty list if the
+	 *         snapshot was written for another script content or cache
+	 *         scope.
+	 * @throws IOException
+	 *             on read error or if the file is no snapshot.
+	 ************************************************************************/
+
+	static List<Record> read(File file, String contentHash, CacheScope scope, int domainDepth) throws IOException {
+		try (DataInputStream in = new DataInputStream(
+		        new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a proxy cache snapshot: " + file);
+			}
+			String hash = in.readUTF();
+			String scopeName = in.readUTF();
+			int depth = in.readInt();
+			long writtenAt = in.readLong();
+			if (!hash.equals(contentHash == null ? "" : contentHash) || !scopeName.equals(scope.name())
+			        || depth != domainDepth) {
+				return Collections.emptyList();
+			}
+
+			long now = System.nanoTime();
+			long elapsed = Math.max(0, System.currentTimeMillis() - writtenAt);
+			int count = in.readInt();
+			if (count < 0) {
+				throw new IOException("Invalid entry count in proxy cache snapshot: " + file);
+			}
+			List<Record> records = new ArrayList<Record>(Math.min(count, 1 << 16));
+			for (int i = 0; i < count; i++) {
+				byte kind = in.readByte();
+				CacheKey key = null;
+				long fingerprint = 0;
+				if (kind == KIND_KEY) {
+					key = CacheKey.readFrom(in);
+				} else if (kind == KIND_FINGERPRINT) {
+					fingerprint = in.readLong();
+				}
+				if (key == null && fingerprint == 0) {
+					throw new IOException("Invalid entry in proxy cache snapshot: " + file);
+				}
+				long remaining = in.readLong() - elapsed;
+				int size = in.readUnsignedShort();
+				List<Proxy> result = new ArrayList<Proxy>(size);
+				for (int j = 0; j < size; j++) {
+					result.add(readProxy(in));
+				}
+				if (remaining > 0) {
+					records.add(new Record(key, fingerprint, result, now + remaining * 1000 * 1000));
+				}
+			}
+			return records;
+		}
+	}
+
+	private static boolean isWritable(List<Proxy> result) {
+		for (Proxy proxy : result) {
+			if (proxy.type() != Proxy.Type.DIRECT && !(proxy.address() instanceof InetSocketAddress)) {
+				return false;
+			}
+		}
+		return result.size() <= 0xFFFF;
+	}
+
+	private static void writeProxy(DataOutputStream out, Proxy proxy) throws IOException {
+		switch (proxy.type()) {
+			case DIRECT:
+				out.writeByte(TYPE_DIRECT);
+				return;
+			case HTTP:
+				out.writeByte(TYPE_HTTP);
+				break;
+			case SOCKS:
+				out.writeByte(TYPE_SOCKS);
+				break;
+			default:
+				throw new RuntimeException("FixMe: Unhandled Proxy.Type enum constant.");
+		}
+		InetSocketAddress address = (InetSocketAddress) proxy.address();
+		out.writeUTF(address.getHostString());
+		out.writeInt(address.getPort());
+	}
+
+	private static Proxy readProxy(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		if (type == TYPE_DIRECT) {
+			return Proxy.NO_PROXY;
+		}
+		if (type != TYPE_HTTP && type != TYPE_SOCKS) {
+			throw new IOException("Invalid proxy type in proxy cache snapshot: " + type);
+		}
+		String host = in.readUTF();
+		int port = in.readInt();
+		try {
+			// Unresolved like the proxies created from PAC results
+			SocketAddress address = InetSocketAddress.createUnresolved(host, port);
+			return new Proxy(type == TYPE_HTTP ? Proxy.Type.HTTP : Proxy.Type.SOCKS, address);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Invalid proxy in proxy cache snapshot: " + host + ":" + port, e);
+		}
+	}
+
+}
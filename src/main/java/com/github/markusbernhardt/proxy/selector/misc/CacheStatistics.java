@@ -0,0 +1,228 @@
+package com.github.markusbernhardt.proxy.selector.misc;
+
+import java.util.Arrays;
+
+/*****************************************************************************
+ * Snapshot of the statistics of a {@link BufferedProxySelector}. All counts
+ * are totals since the selector was created.
+ * <p>
+ * Load times are measured around the calls of the delegate selector. Besides
+ * total and maximum they are counted in buckets with the upper bounds 1, 10,
+ * 100 and 1000 milliseconds, the last bucket counts the slower loads.
+ * </p>
+ ****************************************************************************/
+
+public final class CacheStatistics {
+
+	// Upper bounds of the load time buckets in milliseconds (exclusive)
+	private static final long[] LOAD_TIME_BUCKET_LIMITS = { 1, 10, 100, 1000 };
+
+	private final long hitCount;
+	private final long missCount;
+	private final long expiredEvictionCount;
+	private final long capacityEvictionCount;
+	private final long loadCount;
+	private final long loadFailureCount;
+	private final long totalLoadTime;
+	private final long maxLoadTime;
+	private final long[] loadTimeHistogram;
+	private final int size;
+
+	CacheStatistics(long hitCount, long missCount, long expiredEvictionCount, long capacityEvictionCount,
+	        long loadCount, long loadFailureCount, long totalLoadTime, long maxLoadTime, long[] loadTimeHistogram,
+	        int size) {
+		this.hitCount = hitCount;
+		this.missCount = missCount;
+		this.expiredEvictionCount = expiredEvictionCount;
+		this.capacityEvictionCount = capacityEvictionCount;
+		this.loadCount = loadCount;
+		this.loadFailureCount = loadFailureCount;
+		this.totalLoadTime = totalLoadTime;
+		this.maxLoadTime = maxLoadTime;
+		this.loadTimeHistogram = loadTimeHistogram;
+		this.size = size;
+	}
+
+	/*************************************************************************
+	 * Gets the number of selects that were answered from the cache.
+	 *
+	 * @return the hit count.
+	 ************************************************************************/
+
+	public long getHitCount() {
+		return this.hitCount;
+	}
+
+	/*************************************************************************
+	 * Gets the number of selects that found no valid entry.
+	 *
+	 * @return the miss count.
+	 ************************************************************************/
+
+	public long getMissCount() {
+		return this.missCount;
+	}
+
+	/*************************************************************************
+	 * Gets the ratio of hits to all selects.
+	 *
+	 * @return the hit ratio from 0 to 1, 1 if there was no select yet.
+	 ************************************************************************/
+
+	public double getHitRatio() {
+		long requests = this.hitCount + this.missCount;
+		return requests == 0 ? 1.0 : (double) this.hitCount / requests;
+	}
+
+	/*************************************************************************
+	 * Gets the number of entries that were evicted because they were
+	 * expired.
+	 *
+	 * @return the eviction count.
+	 ************************************************************************/
+
+	public long getExpiredEvictionCount() {
+		return this.expiredEvictionCount;
+	}
+
+	/*************************************************************************
+	 * Gets the number of valid entries that were evicted because the cache
+	 * was full.
+	 *
+	 * @return the eviction count.
+	 ************************************************************************/
+
+	public long getCapacityEvictionCount() {
+		return this.capacityEvictionCount;
+	}
+
+	/*************************************************************************
+	 * Gets the number of evicted entries.
+	 *
+	 * @return the sum of expired and capacity evictions.
+	 ************************************************************************/
+
+	public long getEvictionCount() {
+		return this.expiredEvictionCount + this.capacityEvictionCount;
+	}
+
+	/*************************************************************************
+	 * Gets the number of calls of the delegate selector including failed and
+	 * background calls.
+	 *
+	 * @return the load count.
+	 ************************************************************************/
+
+	public long getLoadCount() {
+		return this.loadCount;
+	}
+
+	/*************************************************************************
+	 * Gets the number of calls of the delegate selector that threw an
+	 * exception.
+	 *
+	 * @return the load failure count.
+	 ************************************************************************/
+
+	public long getLoadFailureCount() {
+		return this.loadFailureCount;
+	}
+
+	/*************************************************************************
+	 * Gets the time spent in the delegate selector.
+	 *
+	 * @return the time in nanoseconds.
+	 ************************************************************************/
+
+	public long getTotalLoadTime() {
+		return this.totalLoadTime;
+	}
+
+	/*************************************************************************
+	 * Gets the longest call of the delegate selector.
+	 *
+	 * @return the time in nanoseconds.
+	 ************************************************************************/
+
+	public long getMaxLoadTime() {
+		return this.maxLoadTime;
+	}
+
+	/*************************************************************************
+	 * Gets the average time of a call of the delegate selector.
+	 *
+	 * @return the time in nanoseconds, 0 if there was no call yet.
+	 ************************************************************************/
+
+	public long getAverageLoadTime() {
+		return this.loadCount == 0 ? 0 : this.totalLoadTime / this.loadCount;
+	}
+
+	/*************************************************************************
+	 * Gets the number of loads per load time bucket.
+	 *
+	 * @return the counts, one more than there are bucket limits.
+	 ************************************************************************/
+
+	public long[] getLoadTimeHistogram() {
+		return this.loadTimeHistogram.clone();
+	}
+
+	/*************************************************************************
+	 * Gets the upper bounds of the load time buckets.
+	 *
+	 * @return the bounds in milliseconds (exclusive).
+	 ************************************************************************/
+
+	public static long[] getLoadTimeBucketLimits() {
+		return LOAD_TIME_BUCKET_LIMITS.clone();
+	}
+
+	/*************************************************************************
+	 * Gets the bucket of a load time.
+	 *
+	 * @param loadTime
+	 *            the load time in nanoseconds.
+	 * @return the index of the bucket.
+	 ************************************************************************/
+
+	static int bucketOf(long loadTime) {
+		int bucket = 0;
+		while (bucket < LOAD_TIME_BUCKET_LIMITS.length && loadTime >= LOAD_TIME_BUCKET_LIMITS[bucket] * 1000 * 1000) {
+			bucket++;
+		}
+		return bucket;
+	}
+
+	static int bucketCount() {
+		return LOAD_TIME_BUCKET_LIMITS.length + 1;
+	}
+
+	/*************************************************************************
+	 * Gets the number of cached entries including expired ones that are not
+	 * evicted yet.
+	 *
+	 * @return the size.
+	 ************************************************************************/
+
+	public int getSize() {
+		return this.size;
+	}
+
+	@Override
+	public String toString() {
+		return "CacheStatistics{" +
+				"hitCount=" + hitCount +
+				", missCount=" + missCount +
+				", hitRatio=" + getHitRatio() +
+				", expiredEvictionCount=" + expiredEvictionCount +
+				", capacityEvictionCount=" + capacityEvictionCount +
+				", loadCount=" + loadCount +
+				", loadFailureCount=" + loadFailureCount +
+				", totalLoadTime=" + totalLoadTime +
+				", maxLoadTime=" + maxLoadTime +
+				", loadTimeHistogram=" + Arrays.toString(loadTimeHistogram) +
+				", size=" + size +
+				'}';
+	}
+}
@@ -0,0 +1,506 @@
+package com.github.markusbernhardt.proxy.selector.misc;
+
+import java.net.Proxy;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/*****************************************************************************
+ * Bounded cache for proxy decisions that needs little memory per entry. It
+ * is meant for caches with millions of entries, e.g. with the URL scope.
+ * <p>
+ * Instead of the key only its 64 bit fingerprint is stored. Different keys
+ * with the same fingerprint share one entry. The chance of this is very low,
+ * but if it must be excluded the keys can be kept for verification. Equal
+ * result lists are interned so that all entries share one list object.
+ * </p>
+ * <p>
+ * The entries are kept in primitive arrays, one open addressing hash table
+ * per segment. Reads do not lock, they validate an optimistic read stamp of
+ * the segment and only retry with a read lock if a write interfered.
+ * Eviction uses the CLOCK algorithm like {@link ProxyDecisionCache}.
+ * </p>
+ ****************************************************************************/
+
+final class CompactProxyDecisionCache {
+
+	private static final int MIN_SEGMENT_CAPACITY = 16;
+	private static final int MAX_SEGMENTS = 64;
+	private static final int MAX_INTERNED_RESULTS = 1024;
+
+	/*************************************************************************
+	 * An open addressing hash table with linear probing. A fingerprint of 0
+	 * marks an empty slot. The table is at most half full.
+	 ************************************************************************/
+
+	private static final class Segment {
+		final StampedLock lock = new StampedLock();
+		final int capacity;
+		final int mask;
+		final long[] fingerprints;
+		final long[] expireAts;
+		final Object[] results;
+		final byte[] referenced;
+		final CacheKey[] keys;
+		int size;
+		int hand;
+
+		Segment(int capacity, boolean verifyKeys) {
+			this.capacity = capacity;
+			int length = Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1) << 1;
+			this.mask = length - 1;
+			this.fingerprints = new long[length];
+			this.expireAts = new long[length];
+			this.results = new Object[length];
+			this.referenced = new byte[length];
+			this.keys = verifyKeys ? new CacheKey[length] : null;
+		}
+
+		/*********************************************************************
+		 * Finds the slot of the key or the empty slot where it belongs.
+		 ********************************************************************/
+
+		int find(long fingerprint, CacheKey key) {
+			int slot = home(fingerprint);
+			while (true) {
+				long current = this.fingerprints[slot];
+				if (current == 0) {
+					return slot;
+				}
+				if (current == fingerprint && (this.keys == null || key.equals(this.keys[slot]))) {
+					return slot;
+				}
+				slot = (slot + 1) & this.mask;
+			}
+		}
+
+		int home(long fingerprint) {
+			return (int) (fingerprint ^ (fingerprint >>> 32)) & this.mask;
+		}
+
+		/*********************************************************************
+		 * Clears the slot and moves following entries back so that no probe
+		 * sequence is interrupted.
+		 ********************************************************************/
+
+		void delete(int slot) {
+			int free = slot;
+			int next = slot;
+			while (true) {
+				next = (next + 1) & this.mask;
+				long fingerprint = this.fingerprints[next];
+				if (fingerprint == 0) {
+					break;
+				}
+				int home = home(fingerprint);
+				boolean stays = free <= next ? free < home && home <= next : free < home || home <= next;
+				if (!stays) {
+					move(next, free);
+					free = next;
+				}
+			}
+			this.fingerprints[free] = 0;
+			this.expireAts[free] = 0;
+			this.results[free] = null;
+			this.referenced[free] = 0;
+			if (this.keys != null) {
+				this.keys[free] = null;
+			}
+			this.size--;
+		}
+
+		private void move(int from, int to) {
+			this.fingerprints[to] = this.fingerprints[from];
+			this.expireAts[to] = this.expireAts[from];
+			this.results[to] = this.results[from];
+			this.referenced[to] = this.referenced[from];
+			if (this.keys != null) {
+				this.keys[to] = this.keys[from];
+			}
+		}
+	}
+
+	private final int maxSize;
+	private final boolean verifyKeys;
+	private final Segment[] segments;
+	private final ConcurrentHashMap<List<Proxy>, List<Proxy>> internedResults;
+	private final LongAdder expiredEvictions = new LongAdder();
+	private final LongAdder capacityEvictions = new LongAdder();
+	private volatile EntryVisitor removalListener;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param maxSize
+	 *            the maximum number of entries.
+	 * @param verifyKeys
+	 *            true to keep the keys and compare them on lookup, false to
+	 *            rely on the fingerprints only.
+	 ************************************************************************/
+
+	CompactProxyDecisionCache(int maxSize, boolean verifyKeys) {
+		this.maxSize = Math.max(maxSize, 1);
+		this.verifyKeys = verifyKeys;
+		int count = Integer.highestOneBit(Math.max(1, Math.min(this.maxSize / MIN_SEGMENT_CAPACITY, MAX_SEGMENTS)));
+		this.segments = new Segment[count];
+		for (int i = 0; i < count; i++) {
+			this.segments[i] = new Segment(this.maxSize / count + (i < this.maxSize % count ? 1 : 0), verifyKeys);
+		}
+		this.internedResults = new ConcurrentHashMap<List<Proxy>, List<Proxy>>();
+	}
+
+	/*************************************************************************
+	 * Sets a listener that is called when an entry is evicted or removed,
+	 * but not when its result is replaced. It is called while the segment of
+	 * the entry is locked.
+	 *
+	 * @param removalListener
+	 *            the listener, null for none.
+	 ************************************************************************/
+
+	void setRemovalListener(EntryVisitor removalListener) {
+		this.removalListener = removalListener;
+	}
+
+	/*************************************************************************
+	 * Gets the result for the key and marks the entry as recently used.
+	 *
+	 * @param key
+	 *            the cache key.
+	 * @param now
+	 *            the current <code>System.nanoTime()</code> value.
+	 * @return the result, null if there is no entry or it is expired.
+	 ************************************************************************/
+
+	List<Proxy> get(CacheKey key, long now) {
+		return get(key, key.fingerprint(), now);
+	}
+
+	@SuppressWarnings("unchecked")
+	List<Proxy> get(CacheKey key, long fingerprint, long now) {
+		Segment segment = segmentFor(fingerprint);
+		long stamp = segment.lock.tryOptimisticRead();
+		int slot = findOptimistic(segment, fingerprint, key);
+		Object result = segment.results[slot];
+		long expireAt = segment.expireAts[slot];
+		if (!segment.lock.validate(stamp)) {
+			stamp = segment.lock.readLock();
+			try {
+				slot = segment.find(fingerprint, key);
+				result = segment.results[slot];
+				expireAt = segment.expireAts[slot];
+			} finally {
+				segment.lock.unlockRead(stamp);
+			}
+		}
+		if (result == null || now - expireAt >= 0) {
+			return null;
+		}
+		// Racy but harmless, a lost flag only affects the eviction order
+		if (segment.referenced[slot] == 0) {
+			segment.referenced[slot] = 1;
+		}
+		return (List<Proxy>) result;
+	}
+
+	/*************************************************************************
+	 * Gets the expire date of the entry of the key.
+	 *
+	 * @param key
+	 *            the cache key.
+	 * @param now
+	 *            the current <code>System.nanoTime()</code> value.
+	 * @return the expire date as <code>System.nanoTime()</code> value, now if
+	 *         there is no entry.
+	 ************************************************************************/
+
+	long getExpireAt(CacheKey key, long now) {
+		long fingerprint = key.fingerprint();
+		Segment segment = segmentFor(fingerprint);
+		long stamp = segment.lock.readLock();
+		try {
+			int slot = segment.find(fingerprint, key);
+			return segment.fingerprints[slot] == 0 ? now : segment.expireAts[slot];
+		} finally {
+			segment.lock.unlockRead(stamp);
+		}
+	}
+
+	/*************************************************************************
+	 * Like {@link Segment#find(long, CacheKey)} but safe while a writer
+	 * changes the table: it gives up after a full round and does not fail on
+	 * a key that is being removed.
+	 ************************************************************************/
+
+	private static int findOptimistic(Segment segment, long fingerprint, CacheKey key) {
+		int slot = segment.home(fingerprint);
+		for (int i = 0; i <= segment.mask; i++) {
+			long current = segment.fingerprints[slot];
+			if (current == 0) {
+				return slot;
+			}
+			if (current == fingerprint && (segment.keys == null || key.equals(segment.keys[slot]))) {
+				return slot;
+			}
+			slot = (slot + 1) & segment.mask;
+		}
+		return slot;
+	}
+
+	/*************************************************************************
+	 * Adds or replaces the entry of the key. If the segment of the key is
+	 * full another entry is evicted.
+	 *
+	 * @param key
+	 *            the cache key, it is kept if keys are verified.
+	 * @param result
+	 *            the result.
+	 * @param expireAt
+	 *            the expire date as <code>System.nanoTime()</code> value.
+	 * @return the replaced result, null if there was no entry.
+	 ************************************************************************/
+
+	List<Proxy> put(CacheKey key, List<Proxy> result, long expireAt) {
+		return put(key, key.fingerprint(), result, expireAt);
+	}
+
+	@SuppressWarnings("unchecked")
+	List<Proxy> put(CacheKey key, long fingerprint, List<Proxy> result, long expireAt) {
+		List<Proxy> interned = intern(result);
+		Segment segment = segmentFor(fingerprint);
+		long stamp = segment.lock.writeLock();
+		try {
+			int slot = segment.find(fingerprint, key);
+			List<Proxy> old = (List<Proxy>) segment.results[slot];
+			if (segment.fingerprints[slot] == 0) {
+				if (segment.size >= segment.capacity) {
+					evict(segment, System.nanoTime());
+					slot = segment.find(fingerprint, key);
+				}
+				segment.size++;
+				segment.fingerprints[slot] = fingerprint;
+				if (segment.keys != null) {
+					segment.keys[slot] = key;
+				}
+			}
+			segment.results[slot] = interned;
+			segment.expireAts[slot] = expireAt;
+			return old;
+		} finally {
+			segment.lock.unlockWrite(stamp);
+		}
+	}
+
+	/*************************************************************************
+	 * Removes the entry of the key.
+	 *
+	 * @param key
+	 *            the cache key, can be null if keys are not verified.
+	 * @param fingerprint
+	 *            the fingerprint of the key.
+	 * @return true if an entry was removed.
+	 ************************************************************************/
+
+	boolean remove(CacheKey key, long fingerprint) {
+		Segment segment = segmentFor(fingerprint);
+		long stamp = segment.lock.writeLock();
+		try {
+			int slot = segment.find(fingerprint, key);
+			if (segment.fingerprints[slot] == 0) {
+				return false;
+			}
+			notifyRemoval(segment, slot);
+			segment.delete(slot);
+			return true;
+		} finally {
+			segment.lock.unlockWrite(stamp);
+		}
+	}
+
+	/*************************************************************************
+	 * Evicts one entry with the clock hand: the first expired or not
+	 * referenced entry.
+	 ************************************************************************/
+
+	private void evict(Segment segment, long now) {
+		while (true) {
+			int slot = segment.hand;
+			segment.hand = (slot + 1) & segment.mask;
+			if (segment.fingerprints[slot] == 0) {
+				continue;
+			}
+			if (now - segment.expireAts[slot] >= 0) {
+				this.expiredEvictions.increment();
+			} else if (segment.referenced[slot] != 0) {
+				segment.referenced[slot] = 0;
+				continue;
+			} else {
+				this.capacityEvictions.increment();
+			}
+			notifyRemoval(segment, slot);
+			segment.delete(slot);
+			return;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void notifyRemoval(Segment segment, int slot) {
+		EntryVisitor listener = this.removalListener;
+		if (listener != null) {
+			listener.visit(segment.fingerprints[slot], segment.keys == null ? null : segment.keys[slot],
+			        (List<Proxy>) segment.results[slot], segment.expireAts[slot]);
+		}
+	}
+
+	/*************************************************************************
+	 * Gets the shared instance of an equal result list. Only a limited
+	 * number of different lists is interned.
+	 *
+	 * @param result
+	 *            the result.
+	 * @return the shared instance, the result itself if it is not interned.
+	 ************************************************************************/
+
+	List<Proxy> intern(List<Proxy> result) {
+		List<Proxy> interned = this.internedResults.get(result);
+		if (interned != null) {
+			return interned;
+		}
+		if (this.internedResults.size() >= MAX_INTERNED_RESULTS) {
+			return result;
+		}
+		interned = this.internedResults.putIfAbsent(result, result);
+		return interned != null ? interned : result;
+	}
+
+	/*************************************************************************
+	 * Receives the entries of the cache, see {@link #forEach(EntryVisitor)}.
+	 ************************************************************************/
+
+	interface EntryVisitor {
+
+		/*********************************************************************
+		 * Called for one entry.
+		 *
+		 * @param fingerprint
+		 *            the fingerprint of the key.
+		 * @param key
+		 *            the key, null if keys are not verified.
+		 * @param result
+		 *            the result.
+		 * @param expireAt
+		 *            the expire date as <code>System.nanoTime()</code> value.
+		 ********************************************************************/
+
+		void visit(long fingerprint, CacheKey key, List<Proxy> result, long expireAt);
+	}
+
+	/*************************************************************************
+	 * Calls the visitor for all entries including expired ones. A segment is
+	 * locked while it is visited.
+	 *
+	 * @param visitor
+	 *            the visitor.
+	 ************************************************************************/
+
+	@SuppressWarnings("unchecked")
+	void forEach(EntryVisitor visitor) {
+		for (Segment segment : this.segments) {
+			long stamp = segment.lock.readLock();
+			try {
+				for (int slot = 0; slot <= segment.mask; slot++) {
+					if (segment.fingerprints[slot] != 0) {
+						visitor.visit(segment.fingerprints[slot], segment.keys == null ? null : segment.keys[slot],
+						        (List<Proxy>) segment.results[slot], segment.expireAts[slot]);
+					}
+				}
+			} finally {
+				segment.lock.unlockRead(stamp);
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Checks if the keys are kept and compared on lookup.
+	 *
+	 * @return true if keys are verified.
+	 ************************************************************************/
+
+	boolean isVerifyingKeys() {
+		return this.verifyKeys;
+	}
+
+	private Segment segmentFor(long fingerprint) {
+		return this.segments[(int) (fingerprint >>> 40) & (this.segments.length - 1)];
+	}
+
+	/*************************************************************************
+	 * Removes all entries.
+	 ************************************************************************/
+
+	void clear() {
+		for (Segment segment : this.segments) {
+			long stamp = segment.lock.writeLock();
+			try {
+				for (int slot = 0; slot <= segment.mask; slot++) {
+					if (segment.fingerprints[slot] != 0) {
+						notifyRemoval(segment, slot);
+					}
+					segment.fingerprints[slot] = 0;
+					segment.expireAts[slot] = 0;
+					segment.results[slot] = null;
+					segment.referenced[slot] = 0;
+					if (segment.keys != null) {
+						segment.keys[slot] = null;
+					}
+				}
+				segment.size = 0;
+			} finally {
+				segment.lock.unlockWrite(stamp);
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Gets the number of entries including expired ones that are not evicted
+	 * yet.
+	 *
+	 * @return the number of entries.
+	 ************************************************************************/
+
+	int size() {
+		int size = 0;
+		for (Segment segment : this.segments) {
+			long stamp = segment.lock.readLock();
+			try {
+				size += segment.size;
+			} finally {
+				segment.lock.unlockRead(stamp);
+			}
+		}
+		return size;
+	}
+
+	int getInternedResultCount() {
+		return this.internedResults.size();
+	}
+
+	long getExpiredEvictionCount() {
+		return this.expiredEvictions.sum();
+	}
+
+	long getCapacityEvictionCount() {
+		return this.capacityEvictions.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "CompactProxyDecisionCache{" +
+				"size=" + size() +
+				", maxSize=" + maxSize +
+				", verifyKeys=" + verifyKeys +
+				", segments=" + segments.length +
+				'}';
+	}
+}
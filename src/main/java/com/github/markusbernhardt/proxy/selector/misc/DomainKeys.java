@@ -0,0 +1,111 @@
+package com.github.markusbernhardt.proxy.selector.misc;
+
+import java.util.Locale;
+
+import com.github.markusbernhardt.proxy.util.ProxyUtil;
+
+/*****************************************************************************
+ * Finds the domain part of a host for the domain based cache keys of the
+ * {@link BufferedProxySelector}. The domain is returned as a region of the
+ * host string so that no new string has to be created for a lookup.
+ * <p>
+ * The registrable domain is determined without the full public suffix list:
+ * the public suffix is the top level domain, or the last two labels if the
+ * top level domain is a country code and the second level is one of the
+ * common generic labels like <code>co</code> or <code>com</code>
+ * (<code>example.co.uk</code>, <code>example.com.au</code>). This is only
+ * an approximation: for other multi label suffixes like
+ * <code>github.io</code> or <code>co.za</code> the suffix itself is taken as
+ * the domain, so unrelated sites share one key. Such hosts need an explicit
+ * domain depth.
+ * </p>
+ ****************************************************************************/
+
+final class DomainKeys {
+
+	private static final String[] GENERIC_SECOND_LEVEL_LABELS = { "ac", "co", "com", "edu", "go", "gob", "gov",
+	        "ltd", "mil", "ne", "net", "nic", "or", "org", "plc", "sch" };
+
+	private DomainKeys() {
+		// Utility class
+	}
+
+	/*************************************************************************
+	 * Gets the end of the host name without a trailing dot.
+	 *
+	 * @param host
+	 *            the host name.
+	 * @return the end index (exclusive).
+	 ************************************************************************/
+
+	static int domainEnd(String host) {
+		int end = host.length();
+		return end > 1 && host.charAt(end - 1) == '.' ? end - 1 : end;
+	}
+
+	/*************************************************************************
+	 * Gets the start of the domain in the host name.
+	 *
+	 * @param host
+	 *            the host name.
+	 * @param end
+	 *            the end of the host name, see {@link #domainEnd(String)}.
+	 * @param depth
+	 *            the number of labels to keep, 0 for the registrable domain.
+	 * @return the start index, 0 for IP addresses and hosts with fewer
+	 *         labels.
+	 ************************************************************************/
+
+	static int domainStart(String host, int end, int depth) {
+		if (ProxyUtil.isAddressLiteral(host)) {
+			return 0;
+		}
+		int labels = depth > 0 ? depth : registrableLabels(host, end);
+		int start = end;
+		for (int i = 0; i < labels; i++) {
+			start = host.lastIndexOf('.', start - 1);
+			if (start < 0) {
+				return 0;
+			}
+		}
+		return start + 1;
+	}
+
+	/*************************************************************************
+	 * Gets the domain of the host.
+	 *
+	 * @param host
+	 *            the host name, can be null.
+	 * @param depth
+	 *            the number of labels to keep, 0 for the registrable domain.
+	 * @return the domain in lower case, null if the host is null.
+	 ************************************************************************/
+
+	static String domainOf(String host, int depth) {
+		if (host == null) {
+			return null;
+		}
+		int end = domainEnd(host);
+		return host.substring(domainStart(host, end, depth), end).toLowerCase(Locale.ROOT);
+	}
+
+	/*************************************************************************
+	 * Gets the number of labels of the registrable domain.
+	 ************************************************************************/
+
+	private static int registrableLabels(String host, int end) {
+		int lastDot = host.lastIndexOf('.', end - 1);
+		if (lastDot < 0 || end - lastDot - 1 != 2) {
+			return 2;
+		}
+		int secondStart = host.lastIndexOf('.', lastDot - 1) + 1;
+		int secondLength = lastDot - secondStart;
+		for (String label : GENERIC_SECOND_LEVEL_LABELS) {
+			if (label.length() == secondLength && host.regionMatches(true, secondStart, label, 0, secondLength)) {
+				return 3;
+			}
+		}
+		return 2;
+	}
+
+}
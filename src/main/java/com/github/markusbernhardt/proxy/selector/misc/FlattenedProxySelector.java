@@ -0,0 +1,225 @@
+package com.github.markusbernhardt.proxy.selector.misc;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.github.markusbernhardt.proxy.selector.direct.NoProxySelector;
+import com.github.markusbernhardt.proxy.selector.fixed.FixedProxySelector;
+import com.github.markusbernhardt.proxy.selector.fixed.FixedSocksSelector;
+import com.github.markusbernhardt.proxy.selector.whitelist.ProxyBypassListSelector;
+import com.github.markusbernhardt.proxy.util.ProxyUtil;
+import com.github.markusbernhardt.proxy.util.UriFilter;
+
+/*****************************************************************************
+ * Immutable routing structure compiled from a chain of selectors. The
+ * selectors found by the search strategies are usually stacks like
+ * {@link ProxyBypassListSelector} on a {@link ProtocolDispatchSelector} with
+ * a {@link FixedProxySelector} per protocol. Each select then walks through
+ * all layers.
+ * <p>
+ * {@link #flatten(ProxySelector)} walks the chain once and builds a table
+ * with one route per scheme and a default route for all other schemes. A
+ * route holds the bypass filters of all layers on its path in their order
+ * and either the constant result of a fixed selector or the one selector
+ * that ends the path, e.g. a PAC selector. Routes ending with a DIRECT
+ * result need no bypass filters.
+ * </p>
+ * <p>
+ * The decisions are the same as those of the chain at the time it was
+ * flattened. Later changes of the chain, e.g. of a protocol dispatch
+ * selector, are not seen.
+ * </p>
+ ****************************************************************************/
+
+public final class FlattenedProxySelector extends ProxySelector {
+
+	private static final UriFilter[] NO_FILTERS = new UriFilter[0];
+
+	private final Map<String, Route> schemeRoutes;
+	private final Route defaultRoute;
+
+	/*************************************************************************
+	 * The path of the chain for a scheme.
+	 ************************************************************************/
+
+	static final class Route {
+		final UriFilter[] bypass;
+		final List<Proxy> constant;
+		final ProxySelector delegate;
+
+		Route(UriFilter[] bypass, List<Proxy> constant, ProxySelector delegate) {
+			this.bypass = bypass;
+			this.constant = constant;
+			this.delegate = delegate;
+		}
+
+		@Override
+		public String toString() {
+			return "Route{" +
+					"bypass=" + Arrays.toString(bypass) +
+					", constant=" + constant +
+					", delegate=" + delegate +
+					'}';
+		}
+	}
+
+	private FlattenedProxySelector(Map<String, Route> schemeRoutes, Route defaultRoute) {
+		super();
+		this.schemeRoutes = schemeRoutes;
+		this.defaultRoute = defaultRoute;
+	}
+
+	/*************************************************************************
+	 * Flattens a chain of selectors. Bypass list, protocol dispatch, fixed and
+	 * no proxy selectors are compiled into the routes, all other selectors
+	 * end a path and are called as they are.
+	 *
+	 * @param selector
+	 *            the first selector of the chain.
+	 * @return the flattened selector or <code>selector</code> if it is not a
+	 *         selector that can be compiled.
+	 ************************************************************************/
+
+	public static ProxySelector flatten(ProxySelector selector) {
+		if (selector == null) {
+			throw new NullPointerException("Selector must not be null.");
+		}
+		if (!isCompiled(selector)) {
+			return selector;
+		}
+		Set<String> schemes = new HashSet<String>();
+		collectSchemes(selector, schemes);
+		Map<String, Route> schemeRoutes = new HashMap<String, Route>();
+		for (String scheme : schemes) {
+			schemeRoutes.put(scheme, route(selector, scheme));
+		}
+		return new FlattenedProxySelector(Collections.unmodifiableMap(schemeRoutes), route(selector, null));
+	}
+
+	/*************************************************************************
+	 * Checks if the selector is one of the compiled layers. Subclasses are
+	 * not compiled as they may change the behavior.
+	 ************************************************************************/
+
+	private static boolean isCompiled(ProxySelector selector) {
+		Class<?> type = selector.getClass();
+		return type == ProxyBypassListSelector.class || type == ProtocolDispatchSelector.class
+		        || type == FixedProxySelector.class || type == FixedSocksSelector.class
+		        || type == NoProxySelector.class;
+	}
+
+	private static void collectSchemes(ProxySelector selector, Set<String> schemes) {
+		if (selector.getClass() == ProxyBypassListSelector.class) {
+			collectSchemes(((ProxyBypassListSelector) selector).getDelegate(), schemes);
+		} else if (selector.getClass() == ProtocolDispatchSelector.class) {
+			ProtocolDispatchSelector dispatchSelector = (ProtocolDispatchSelector) selector;
+			for (Map.Entry<String, ProxySelector> entry : dispatchSelector.getSelectors().entrySet()) {
+				schemes.add(entry.getKey());
+				collectSchemes(entry.getValue(), schemes);
+			}
+			collectSchemes(dispatchSelector.getFallbackSelector(), schemes);
+		}
+	}
+
+	/*************************************************************************
+	 * Follows the path of a scheme through the chain.
+	 *
+	 * @param selector
+	 *            the first selector of the chain.
+	 * @param scheme
+	 *            the scheme, null for the schemes without an own selector.
+	 * @return the route.
+	 ************************************************************************/
+
+	private static Route route(ProxySelector selector, String scheme) {
+		List<UriFilter> bypass = new ArrayList<UriFilter>();
+		while (true) {
+			Class<?> type = selector.getClass();
+			if (type == ProxyBypassListSelector.class) {
+				ProxyBypassListSelector bypassSelector = (ProxyBypassListSelector) selector;
+				bypass.addAll(bypassSelector.getWhiteListFilter());
+				selector = bypassSelector.getDelegate();
+			} else if (type == ProtocolDispatchSelector.class) {
+				ProtocolDispatchSelector dispatchSelector = (ProtocolDispatchSelector) selector;
+				ProxySelector protocolSelector = scheme == null ? null : dispatchSelector.getSelector(scheme);
+				selector = protocolSelector != null ? protocolSelector : dispatchSelector.getFallbackSelector();
+			} else if (type == FixedProxySelector.class || type == FixedSocksSelector.class) {
+				return new Route(bypass.toArray(NO_FILTERS), ((FixedProxySelector) selector).getProxyList(), null);
+			} else if (type == NoProxySelector.class) {
+				// Bypassed or not, the result is DIRECT
+				return new Route(NO_FILTERS, ProxyUtil.noProxyList(), null);
+			} else {
+				return new Route(bypass.toArray(NO_FILTERS), null, selector);
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * connectFailed, forwarded to the selector that ends the route.
+	 *
+	 * @see java.net.ProxySelector#connectFailed(java.net.URI,
+	 *      java.net.SocketAddress, java.io.IOException)
+	 ************************************************************************/
+
+	@Override
+	public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+		Route route = route(uri);
+		if (route.delegate != null) {
+			route.delegate.connectFailed(uri, sa, ioe);
+		}
+	}
+
+	/*************************************************************************
+	 * select
+	 *
+	 * @see java.net.ProxySelector#select(java.net.URI)
+	 ************************************************************************/
+
+	@Override
+	public List<Proxy> select(URI uri) {
+		Route route = route(uri);
+		for (UriFilter filter : route.bypass) {
+			if (filter.accept(uri)) {
+				return ProxyUtil.noProxyList();
+			}
+		}
+		return route.constant != null ? route.constant : route.delegate.select(uri);
+	}
+
+	private Route route(URI uri) {
+		String scheme = uri.getScheme();
+		Route route = scheme == null ? null : this.schemeRoutes.get(scheme);
+		return route != null ? route : this.defaultRoute;
+	}
+
+	/*************************************************************************
+	 * Gets the routes, only used for unit testing and debugging.
+	 *
+	 * @return the routes by scheme, the default route with the key null.
+	 ************************************************************************/
+
+	Map<String, Route> getRoutes() {
+		Map<String, Route> routes = new HashMap<String, Route>(this.schemeRoutes);
+		routes.put(null, this.defaultRoute);
+		return routes;
+	}
+
+	@Override
+	public String toString() {
+		return "FlattenedProxySelector{" +
+				"schemeRoutes=" + schemeRoutes +
+				", defaultRoute=" + defaultRoute +
+				'}';
+	}
+}
@@ -0,0 +1,472 @@
+package com.github.markusbernhardt.proxy.selector.misc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.github.markusbernhardt.proxy.util.Logger;
+import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
+
+/*****************************************************************************
+ * Implements a selector that actively checks the health of the proxies
+ * returned by the delegate selector and removes the unhealthy ones from the
+ * lists, before a request runs into them.
+ * <p>
+ * Every distinct proxy address the delegate returned is probed in the
+ * background after {@link #start()} was called: at first sight, after a
+ * reported failure and then periodically. A probe opens a TCP connection to
+ * the proxy. If HTTP CONNECT probes are enabled, HTTP proxies additionally
+ * have to answer a CONNECT request with a 2xx status. A proxy is unhealthy
+ * after the configured number of consecutive failed probes and healthy again
+ * after the first successful one. Proxies that were not probed yet are
+ * healthy. If all proxies of a list are unhealthy, a direct connection is
+ * returned.
+ * </p>
+ * <p>
+ * The probes run on a small scheduler whose thread count bounds the number of
+ * concurrent probes. Each probe has a timeout for the whole exchange. Proxies
+ * that were not returned for ten probe intervals are forgotten.
+ * </p>
+ ****************************************************************************/
+
+public class HealthCheckingProxySelector extends ProxySelector {
+
+	// Probe every 30 seconds with a timeout of 5 seconds per default.
+	private static final long DEFAULT_INTERVAL = 1000 * 30;
+	private static final long DEFAULT_TIMEOUT = 1000 * 5;
+	private static final int DEFAULT_MAX_CONCURRENT_PROBES = 4;
+	private static final int DEFAULT_FAILURE_THRESHOLD = 2;
+
+	private static final int IDLE_ROUNDS = 10;
+	private static final int MAX_STATUS_LINE = 1024;
+
+	private final ProxySelector delegate;
+	private final long intervalMs;
+	private final long timeoutMs;
+	private final int maxConcurrentProbes;
+	private final ConcurrentHashMap<SocketAddress, Target> targets;
+
+	private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+	private volatile String connectHost;
+	private volatile int connectPort;
+
+	// Written while holding this
+	private volatile ScheduledExecutorService executor;
+	// Set by stop(), the lists are passed through unfiltered then
+	private volatile boolean stopped;
+
+	/*************************************************************************
+	 * The health state of one proxy. Only one probe of a target runs at a
+	 * time, so the probe thread is the only writer of the probe results.
+	 ************************************************************************/
+
+	private static final class Target {
+		final SocketAddress address;
+		final Proxy.Type type;
+		final AtomicBoolean probing = new AtomicBoolean();
+		volatile boolean healthy = true;
+		volatile boolean probed;
+		volatile long latency = -1;
+		volatile int consecutiveFailures;
+		volatile long probeCount;
+		volatile long failureCount;
+		volatile long lastSelected;
+
+		Target(SocketAddress address, Proxy.Type type, long now) {
+			this.address = address;
+			this.type = type;
+			this.lastSelected = now;
+		}
+
+		@Override
+		public String toString() {
+			return "Target{" +
+					"address=" + address +
+					", healthy=" + healthy +
+					", latency=" + latency +
+					'}';
+		}
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param delegate
+	 *            the delegate to use.
+	 ************************************************************************/
+
+	public HealthCheckingProxySelector(ProxySelector delegate) {
+		this(delegate, DEFAULT_INTERVAL, DEFAULT_TIMEOUT, DEFAULT_MAX_CONCURRENT_PROBES);
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param delegate
+	 *            the delegate to use.
+	 * @param intervalMs
+	 *            the time between two probes of a proxy in milliseconds.
+	 * @param timeoutMs
+	 *            the timeout of one probe in milliseconds.
+	 * @param maxConcurrentProbes
+	 *            the maximum number of probes running at the same time.
+	 ************************************************************************/
+
+	public HealthCheckingProxySelector(ProxySelector delegate, long intervalMs, long timeoutMs,
+	        int maxConcurrentProbes) {
+		super();
+		if (intervalMs <= 0 || timeoutMs <= 0 || timeoutMs > Integer.MAX_VALUE || maxConcurrentProbes <= 0) {
+			throw new IllegalArgumentException("Invalid probe interval, timeout or concurrency: " + intervalMs + ", "
+			        + timeoutMs + ", " + maxConcurrentProbes);
+		}
+		this.delegate = delegate;
+		this.intervalMs = intervalMs;
+		this.timeoutMs = timeoutMs;
+		this.maxConcurrentProbes = maxConcurrentProbes;
+		this.targets = new ConcurrentHashMap<SocketAddress, Target>();
+	}
+
+	/*************************************************************************
+	 * Sets the number of consecutive failed probes after which a proxy is
+	 * unhealthy.
+	 *
+	 * @param failureThreshold
+	 *            the number of failures, at least 1.
+	 ************************************************************************/
+
+	public void setFailureThreshold(int failureThreshold) {
+		if (failureThreshold < 1) {
+			throw new IllegalArgumentException("Failure threshold must be positive: " + failureThreshold);
+		}
+		this.failureThreshold = failureThreshold;
+	}
+
+	/*************************************************************************
+	 * Enables HTTP CONNECT probes. HTTP proxies then have to answer a CONNECT
+	 * request for the given target with a 2xx status, SOCKS proxies are still
+	 * probed with a TCP connect only.
+	 *
+	 * @param host
+	 *            the host of the CONNECT target, null to probe with a TCP
+	 *            connect only.
+	 * @param port
+	 *            the port of the CONNECT target.
+	 ************************************************************************/
+
+	public void setHttpConnectProbe(String host, int port) {
+		if (host != null && (port <= 0 || port > 0xFFFF)) {
+			throw new IllegalArgumentException("Invalid CONNECT probe port: " + port);
+		}
+		this.connectPort = port;
+		this.connectHost = host;
+	}
+
+	/*************************************************************************
+	 * Starts probing in the background. The threads are daemon threads.
+	 ************************************************************************/
+
+	public synchronized void start() {
+		if (this.executor != null) {
+			return;
+		}
+		this.stopped = false;
+		this.executor = Executors.newScheduledThreadPool(this.maxConcurrentProbes, r -> {
+			Thread thread = new Thread(r, "proxy-vole-health-check");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.executor.scheduleWithFixedDelay(this::probeAll, 0, this.intervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	/*************************************************************************
+	 * Stops probing. The health states are dropped, as they would not be
+	 * updated anymore, and the lists of the delegate are returned unfiltered
+	 * until the selector is started again.
+	 ************************************************************************/
+
+	public synchronized void stop() {
+		if (this.executor == null) {
+			return;
+		}
+		this.stopped = true;
+		this.executor.shutdownNow();
+		this.executor = null;
+		this.targets.clear();
+	}
+
+	/*************************************************************************
+	 * connectFailed, a reported failure triggers a probe of the proxy.
+	 *
+	 * @see java.net.ProxySelector#connectFailed(java.net.URI,
+	 *      java.net.SocketAddress, java.io.IOException)
+	 ************************************************************************/
+
+	@Override
+	public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+		Target target = sa == null ? null : this.targets.get(sa);
+		if (target != null) {
+			submitProbe(target);
+		}
+		this.delegate.connectFailed(uri, sa, ioe);
+	}
+
+	/*************************************************************************
+	 * select
+	 *
+	 * @see java.net.ProxySelector#select(java.net.URI)
+	 ************************************************************************/
+
+	@Override
+	public List<Proxy> select(URI uri) {
+		List<Proxy> proxyList = this.delegate.select(uri);
+		if (this.stopped) {
+			return proxyList;
+		}
+		long now = System.nanoTime();
+		List<Proxy> result = null;
+		for (int i = 0; i < proxyList.size(); i++) {
+			Proxy proxy = proxyList.get(i);
+			if (isHealthy(proxy, now)) {
+				if (result != null) {
+					result.add(proxy);
+				}
+			} else if (result == null) {
+				// The list is only copied when a proxy has to be removed
+				result = new ArrayList<Proxy>(proxyList.subList(0, i));
+			}
+		}
+		if (result == null) {
+			return proxyList;
+		}
+		if (result.isEmpty()) {
+			result.add(Proxy.NO_PROXY);
+		}
+		return result;
+	}
+
+	/*************************************************************************
+	 * Checks the health of a proxy. A proxy seen for the first time is
+	 * registered for probing.
+	 *
+	 * @param proxy
+	 *            the proxy.
+	 * @param now
+	 *            the current <code>System.nanoTime()</code> value.
+	 * @return true if the proxy is healthy or can not be probed.
+	 ************************************************************************/
+
+	private boolean isHealthy(Proxy proxy, long now) {
+		if (proxy.type() == Proxy.Type.DIRECT || !(proxy.address() instanceof InetSocketAddress)) {
+			return true;
+		}
+		Target target = this.targets.get(proxy.address());
+		if (target == null) {
+			Target created = new Target(proxy.address(), proxy.type(), now);
+			target = this.targets.putIfAbsent(proxy.address(), created);
+			if (target == null) {
+				submitProbe(created);
+				return true;
+			}
+		}
+		// Only written once per interval, to not share a written field on each select
+		if (now - target.lastSelected > TimeUnit.MILLISECONDS.toNanos(this.intervalMs)) {
+			target.lastSelected = now;
+		}
+		return target.healthy;
+	}
+
+	/*************************************************************************
+	 * Starts a probe of each known proxy and forgets the proxies that were
+	 * not returned for a while.
+	 ************************************************************************/
+
+	private void probeAll() {
+		long now = System.nanoTime();
+		long idleTime = TimeUnit.MILLISECONDS.toNanos(this.intervalMs) * IDLE_ROUNDS;
+		for (Target target : this.targets.values()) {
+			if (now - target.lastSelected > idleTime) {
+				this.targets.remove(target.address, target);
+			} else {
+				submitProbe(target);
+			}
+		}
+	}
+
+	private void submitProbe(Target target) {
+		ScheduledExecutorService executor = this.executor;
+		if (executor == null || !target.probing.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			executor.execute(() -> probe(target));
+		} catch (RejectedExecutionException e) {
+			// Stopped in the meantime
+			target.probing.set(false);
+		}
+	}
+
+	/*************************************************************************
+	 * Probes a proxy and updates its health state.
+	 *
+	 * @param target
+	 *            the proxy.
+	 ************************************************************************/
+
+	private void probe(Target target) {
+		try {
+			long start = System.nanoTime();
+			IOException failure = null;
+			try {
+				connect(target, start + TimeUnit.MILLISECONDS.toNanos(this.timeoutMs));
+			} catch (IOException e) {
+				failure = e;
+			}
+			target.probeCount++;
+			if (failure == null) {
+				target.latency = System.nanoTime() - start;
+				target.consecutiveFailures = 0;
+				if (!target.healthy) {
+					Logger.log(getClass(), LogLevel.INFO, "Proxy {} is healthy again", target.address);
+					target.healthy = true;
+				}
+			} else {
+				target.failureCount++;
+				target.consecutiveFailures++;
+				if (target.healthy && target.consecutiveFailures >= this.failureThreshold) {
+					Logger.log(getClass(), LogLevel.WARNING, "Proxy {} is unhealthy: {}", target.address,
+					        failure.getMessage());
+					target.healthy = false;
+				}
+			}
+			target.probed = true;
+		} finally {
+			target.probing.set(false);
+		}
+	}
+
+	/*************************************************************************
+	 * Connects to the proxy and sends the CONNECT request if enabled.
+	 *
+	 * @param target
+	 *            the proxy.
+	 * @param deadline
+	 *            the end of the probe as <code>System.nanoTime()</code>
+	 *            value.
+	 * @throws IOException
+	 *             if the proxy is not reachable or did not accept the
+	 *             CONNECT request.
+	 ************************************************************************/
+
+	private void connect(Target target, long deadline) throws IOException {
+		InetSocketAddress address = (InetSocketAddress) target.address;
+		if (address.isUnresolved()) {
+			address = new InetSocketAddress(address.getHostString(), address.getPort());
+			if (address.isUnresolved()) {
+				throw new UnknownHostException(address.getHostString());
+			}
+		}
+		try (Socket socket = new Socket()) {
+			socket.connect(address, remainingMillis(deadline));
+			String host = this.connectHost;
+			if (host == null || target.type != Proxy.Type.HTTP) {
+				return;
+			}
+			String authority = host + ":" + this.connectPort;
+			OutputStream out = socket.getOutputStream();
+			out.write(("CONNECT " + authority + " HTTP/1.1\r\nHost: " + authority + "\r\n\r\n")
+			        .getBytes(StandardCharsets.US_ASCII));
+			out.flush();
+			String statusLine = readStatusLine(socket, deadline);
+			String[] parts = statusLine.split(" ", 3);
+			if (parts.length < 2 || !parts[0].startsWith("HTTP/") || parts[1].length() != 3
+			        || parts[1].charAt(0) != '2') {
+				throw new IOException("CONNECT refused: " + statusLine);
+			}
+		}
+	}
+
+	private String readStatusLine(Socket socket, long deadline) throws IOException {
+		InputStream in = socket.getInputStream();
+		StringBuilder line = new StringBuilder();
+		while (line.length() < MAX_STATUS_LINE) {
+			socket.setSoTimeout(remainingMillis(deadline));
+			int c = in.read();
+			if (c < 0) {
+				break;
+			}
+			if (c == '\n') {
+				return line.toString().trim();
+			}
+			line.append((char) c);
+		}
+		throw new IOException("No HTTP status line: " + line);
+	}
+
+	private static int remainingMillis(long deadline) throws SocketTimeoutException {
+		long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+		if (remaining <= 0) {
+			throw new SocketTimeoutException("Probe timed out");
+		}
+		return (int) Math.min(remaining, Integer.MAX_VALUE);
+	}
+
+	/*************************************************************************
+	 * Gets the health of a proxy.
+	 *
+	 * @param address
+	 *            the address of the proxy.
+	 * @return the health, null if the proxy was not returned by the delegate
+	 *         or was forgotten.
+	 ************************************************************************/
+
+	public ProxyHealth getHealth(SocketAddress address) {
+		Target target = this.targets.get(address);
+		return target == null ? null : toHealth(target);
+	}
+
+	/*************************************************************************
+	 * Gets the health of all known proxies.
+	 *
+	 * @return the health of each proxy.
+	 ************************************************************************/
+
+	public List<ProxyHealth> getHealth() {
+		List<ProxyHealth> result = new ArrayList<ProxyHealth>(this.targets.size());
+		for (Target target : this.targets.values()) {
+			result.add(toHealth(target));
+		}
+		return result;
+	}
+
+	private static ProxyHealth toHealth(Target target) {
+		return new ProxyHealth(target.address, target.healthy, target.probed, target.latency,
+		        target.consecutiveFailures, target.probeCount, target.failureCount);
+	}
+
+	@Override
+	public String toString() {
+		return "HealthCheckingProxySelector{" +
+				"delegate=" + delegate +
+				", intervalMs=" + intervalMs +
+				", timeoutMs=" + timeoutMs +
+				", targets=" + targets.values() +
+				'}';
+	}
+}
@@ -0,0 +1,300 @@
+package com.github.markusbernhardt.proxy.selector.misc;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*****************************************************************************
+ * Implements a selector that reorders equivalent proxies of the lists
+ * returned by the delegate by their observed performance. A PAC script like
+ * <code>PROXY p1:8080; PROXY p2:8080; DIRECT</code> then sends the requests
+ * to the faster proxy first instead of always to the first one.
+ * <p>
+ * For each proxy an exponentially weighted moving average (EWMA) of the
+ * connect latency and of the failure rate is kept. Latencies are reported
+ * with {@link #connectSucceeded(URI, SocketAddress, long)}, failures with
+ * {@link #connectFailed(URI, SocketAddress, IOException)}. The score of a
+ * proxy is its average latency plus its failure rate times the failure
+ * penalty, lower is better.
+ * </p>
+ * <p>
+ * Equivalent proxies are consecutive proxies of the same type. DIRECT
+ * entries keep their positions, so proxies are never moved across them.
+ * Within a run only the proxies with reports are sorted by score, proxies
+ * without reports keep their positions. Equal scores keep the order of the
+ * delegate.
+ * </p>
+ ****************************************************************************/
+
+public class LatencyAwareProxySelector extends ProxySelector {
+
+	// Weight of a new sample in the moving averages.
+	private static final double DEFAULT_SMOOTHING = 0.3;
+	// A failure costs as much as a connect of 5 seconds per default.
+	private static final long DEFAULT_FAILURE_PENALTY = 1000 * 5;
+
+	private final ProxySelector delegate;
+	private final ConcurrentHashMap<SocketAddress, Stats> statistics;
+	private volatile double smoothing = DEFAULT_SMOOTHING;
+	private volatile long failurePenaltyMs = DEFAULT_FAILURE_PENALTY;
+
+	/*************************************************************************
+	 * Moving averages of one proxy. Updates are synchronized, the score is
+	 * published for lock free reads by the selects.
+	 ************************************************************************/
+
+	private static final class Stats {
+		// Milliseconds, NaN until the first latency was reported
+		private double latency = Double.NaN;
+		private double failureRate;
+		volatile double score;
+
+		synchronized void success(double latencyMs, double smoothing, long failurePenaltyMs) {
+			this.latency = Double.isNaN(this.latency) ? latencyMs
+			        : this.latency + smoothing * (latencyMs - this.latency);
+			this.failureRate -= smoothing * this.failureRate;
+			updateScore(failurePenaltyMs);
+		}
+
+		synchronized void failure(double smoothing, long failurePenaltyMs) {
+			this.failureRate += smoothing * (1 - this.failureRate);
+			updateScore(failurePenaltyMs);
+		}
+
+		synchronized double getLatency() {
+			return this.latency;
+		}
+
+		synchronized double getFailureRate() {
+			return this.failureRate;
+		}
+
+		private void updateScore(long failurePenaltyMs) {
+			this.score = (Double.isNaN(this.latency) ? 0 : this.latency) + this.failureRate * failurePenaltyMs;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return "Stats{" +
+					"latency=" + latency +
+					", failureRate=" + failureRate +
+					'}';
+		}
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param delegate
+	 *            the delegate to use.
+	 ************************************************************************/
+
+	public LatencyAwareProxySelector(ProxySelector delegate) {
+		super();
+		this.delegate = delegate;
+		this.statistics = new ConcurrentHashMap<SocketAddress, Stats>();
+	}
+
+	/*************************************************************************
+	 * Sets the weight of a new sample in the moving averages. Higher values
+	 * follow changes faster, lower values smooth out outliers.
+	 *
+	 * @param smoothing
+	 *            the weight, greater than 0 and at most 1.
+	 ************************************************************************/
+
+	public void setSmoothing(double smoothing) {
+		if (!(smoothing > 0 && smoothing <= 1)) {
+			throw new IllegalArgumentException("Smoothing must be in (0, 1]: " + smoothing);
+		}
+		this.smoothing = smoothing;
+	}
+
+	/*************************************************************************
+	 * Sets the cost of a failed connect. It is added to the score of a proxy
+	 * weighted with its failure rate. Used for later reports.
+	 *
+	 * @param failurePenaltyMs
+	 *            the penalty in milliseconds.
+	 ************************************************************************/
+
+	public void setFailurePenalty(long failurePenaltyMs) {
+		if (failurePenaltyMs < 0) {
+			throw new IllegalArgumentException("Failure penalty must not be negative: " + failurePenaltyMs);
+		}
+		this.failurePenaltyMs = failurePenaltyMs;
+	}
+
+	/*************************************************************************
+	 * Reports a successful connect through a proxy.
+	 *
+	 * @param uri
+	 *            the URI that was connected to.
+	 * @param sa
+	 *            the socket address of the proxy.
+	 * @param connectTimeMs
+	 *            the time the connect took in milliseconds.
+	 ************************************************************************/
+
+	public void connectSucceeded(URI uri, SocketAddress sa, long connectTimeMs) {
+		if (connectTimeMs < 0) {
+			throw new IllegalArgumentException("Connect time must not be negative: " + connectTimeMs);
+		}
+		if (sa == null) {
+			return;
+		}
+		this.statistics.computeIfAbsent(sa, address -> new Stats()).success(connectTimeMs, this.smoothing,
+		        this.failurePenaltyMs);
+	}
+
+	/*************************************************************************
+	 * connectFailed
+	 *
+	 * @see java.net.ProxySelector#connectFailed(java.net.URI,
+	 *      java.net.SocketAddress, java.io.IOException)
+	 ************************************************************************/
+
+	@Override
+	public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+		if (sa != null) {
+			this.statistics.computeIfAbsent(sa, address -> new Stats()).failure(this.smoothing,
+			        this.failurePenaltyMs);
+		}
+		this.delegate.connectFailed(uri, sa, ioe);
+	}
+
+	/*************************************************************************
+	 * select
+	 *
+	 * @see java.net.ProxySelector#select(java.net.URI)
+	 ************************************************************************/
+
+	@Override
+	public List<Proxy> select(URI uri) {
+		List<Proxy> proxyList = this.delegate.select(uri);
+		if (this.statistics.isEmpty() || proxyList.size() < 2) {
+			return proxyList;
+		}
+		List<Proxy> result = null;
+		int start = 0;
+		while (start < proxyList.size()) {
+			Proxy.Type type = proxyList.get(start).type();
+			int end = start + 1;
+			while (end < proxyList.size() && proxyList.get(end).type() == type) {
+				end++;
+			}
+			if (type != Proxy.Type.DIRECT && end - start > 1) {
+				result = reorder(proxyList, start, end, result);
+			}
+			start = end;
+		}
+		return result == null ? proxyList : result;
+	}
+
+	/*************************************************************************
+	 * Sorts the proxies with reports of a run by score. Nothing is allocated
+	 * if the run is in order already, else the list is copied.
+	 *
+	 * @param proxyList
+	 *            the list of the delegate.
+	 * @param start
+	 *            the first index of the run.
+	 * @param end
+	 *            the index after the run.
+	 * @param result
+	 *            the copy of the list, null if it was not copied yet.
+	 * @return the reordered copy of the list or <code>result</code> if the
+	 *         run is in order.
+	 ************************************************************************/
+
+	private List<Proxy> reorder(List<Proxy> proxyList, int start, int end, List<Proxy> result) {
+		if (isSorted(proxyList, start, end)) {
+			return result;
+		}
+		int[] slots = new int[end - start];
+		int[] sources = new int[end - start];
+		double[] scores = new double[end - start];
+		int known = 0;
+		for (int i = start; i < end; i++) {
+			Stats stats = this.statistics.get(proxyList.get(i).address());
+			if (stats != null) {
+				double score = stats.score;
+				// Insertion sort, the runs are short. Stable, equal scores keep
+				// the order of the delegate
+				int j = known;
+				while (j > 0 && scores[j - 1] > score) {
+					scores[j] = scores[j - 1];
+					sources[j] = sources[j - 1];
+					j--;
+				}
+				scores[j] = score;
+				sources[j] = i;
+				slots[known] = i;
+				known++;
+			}
+		}
+		List<Proxy> reordered = result == null ? new ArrayList<Proxy>(proxyList) : result;
+		for (int i = 0; i < known; i++) {
+			reordered.set(slots[i], proxyList.get(sources[i]));
+		}
+		return reordered;
+	}
+
+	/*************************************************************************
+	 * Checks if the proxies with reports of a run are ordered by score.
+	 ************************************************************************/
+
+	private boolean isSorted(List<Proxy> proxyList, int start, int end) {
+		double previous = Double.NEGATIVE_INFINITY;
+		for (int i = start; i < end; i++) {
+			Stats stats = this.statistics.get(proxyList.get(i).address());
+			if (stats != null) {
+				double score = stats.score;
+				if (score < previous) {
+					return false;
+				}
+				previous = score;
+			}
+		}
+		return true;
+	}
+
+	/*************************************************************************
+	 * Gets the average connect latency of a proxy.
+	 *
+	 * @param address
+	 *            the address of the proxy.
+	 * @return the latency in milliseconds, NaN if no latency was reported.
+	 ************************************************************************/
+
+	public double getLatency(SocketAddress address) {
+		Stats stats = this.statistics.get(address);
+		return stats == null ? Double.NaN : stats.getLatency();
+	}
+
+	/*************************************************************************
+	 * Gets the average failure rate of a proxy.
+	 *
+	 * @param address
+	 *            the address of the proxy.
+	 * @return the rate between 0 and 1, 0 if nothing was reported.
+	 ************************************************************************/
+
+	public double getFailureRate(SocketAddress address) {
+		Stats stats = this.statistics.get(address);
+		return stats == null ? 0 : stats.getFailureRate();
+	}
+
+	@Override
+	public String toString() {
+		return "LatencyAwareProxySelector{" +
+				"delegate=" + delegate +
+				", statistics=" + statistics +
+				'}';
+	}
+}
@@ -0,0 +1,285 @@
+package com.github.markusbernhardt.proxy.selector.misc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*****************************************************************************
+ * Implements a selector that balances the load over equivalent proxies of
+ * the lists returned by the delegate. Without it every client uses the first
+ * proxy of a PAC result like
+ * <code>PROXY p1:8080; PROXY p2:8080; PROXY p3:8080</code>.
+ * <p>
+ * Equivalent proxies are consecutive proxies of the same type. The strategy
+ * picks one of them, the run is then rotated so that the picked proxy comes
+ * first and the others follow in their order for failover. DIRECT entries
+ * keep their positions.
+ * </p>
+ * <p>
+ * The list of the delegate is never changed, so the selector can be wrapped
+ * around a {@link BufferedProxySelector}: the balancing is applied to the
+ * cached results. Selects do not lock.
+ * </p>
+ ****************************************************************************/
+
+public class LoadBalancingProxySelector extends ProxySelector {
+
+	/*************************************************************************
+	 * Define the available balancing strategies
+	 ************************************************************************/
+
+	public enum BalancingStrategy {
+
+		/*********************************************************************
+		 * Each select starts with the next proxy.
+		 ********************************************************************/
+
+		BALANCING_ROUND_ROBIN,
+
+		/*********************************************************************
+		 * Two random proxies are compared, the one with less requests in
+		 * flight is used. A request is in flight from the select that put
+		 * the proxy first until
+		 * {@link LoadBalancingProxySelector#requestFinished(SocketAddress)}
+		 * or a failure is reported. Without these reports the number of
+		 * selects is balanced.
+		 ********************************************************************/
+
+		BALANCING_POWER_OF_TWO_CHOICES,
+
+		/*********************************************************************
+		 * The proxy is picked by a hash of the host of the URI, so all
+		 * requests to a host use the same proxy and find its cache warm.
+		 * Rendezvous hashing is used: if a proxy is missing from a list only
+		 * the hosts of this proxy move to others. The hash does not depend
+		 * on the process, all clients pick the same proxy for a host.
+		 ********************************************************************/
+
+		BALANCING_CONSISTENT_HASH
+	}
+
+	private final ProxySelector delegate;
+	private final BalancingStrategy strategy;
+	private final AtomicInteger nextIndex;
+	private final ConcurrentHashMap<SocketAddress, AtomicInteger> inFlight;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param delegate
+	 *            the delegate to use.
+	 * @param strategy
+	 *            the balancing strategy.
+	 ************************************************************************/
+
+	public LoadBalancingProxySelector(ProxySelector delegate, BalancingStrategy strategy) {
+		super();
+		if (strategy == null) {
+			throw new IllegalArgumentException("Balancing strategy must not be null");
+		}
+		this.delegate = delegate;
+		this.strategy = strategy;
+		this.nextIndex = new AtomicInteger();
+		this.inFlight = new ConcurrentHashMap<SocketAddress, AtomicInteger>();
+	}
+
+	/*************************************************************************
+	 * Reports that a request through a proxy has finished.
+	 *
+	 * @param sa
+	 *            the socket address of the proxy.
+	 ************************************************************************/
+
+	public void requestFinished(SocketAddress sa) {
+		AtomicInteger count = sa == null ? null : this.inFlight.get(sa);
+		if (count != null) {
+			count.getAndUpdate(value -> value > 0 ? value - 1 : 0);
+		}
+	}
+
+	/*************************************************************************
+	 * connectFailed, the request through the proxy is no longer in flight.
+	 *
+	 * @see java.net.ProxySelector#connectFailed(java.net.URI,
+	 *      java.net.SocketAddress, java.io.IOException)
+	 ************************************************************************/
+
+	@Override
+	public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+		requestFinished(sa);
+		this.delegate.connectFailed(uri, sa, ioe);
+	}
+
+	/*************************************************************************
+	 * select
+	 *
+	 * @see java.net.ProxySelector#select(java.net.URI)
+	 ************************************************************************/
+
+	@Override
+	public List<Proxy> select(URI uri) {
+		List<Proxy> proxyList = this.delegate.select(uri);
+		List<Proxy> result = null;
+		int start = 0;
+		while (start < proxyList.size()) {
+			Proxy.Type type = proxyList.get(start).type();
+			int end = start + 1;
+			while (end < proxyList.size() && proxyList.get(end).type() == type) {
+				end++;
+			}
+			if (type != Proxy.Type.DIRECT && end - start > 1) {
+				int picked = pick(proxyList, start, end, uri);
+				if (picked != start) {
+					if (result == null) {
+						result = new ArrayList<Proxy>(proxyList);
+					}
+					rotate(proxyList, start, end, picked, result);
+				}
+			}
+			start = end;
+		}
+		if (result == null) {
+			result = proxyList;
+		}
+		if (!result.isEmpty()) {
+			acquire(result.get(0));
+		}
+		return result;
+	}
+
+	/*************************************************************************
+	 * Picks the proxy of a run that comes first.
+	 *
+	 * @param proxyList
+	 *            the list of the delegate.
+	 * @param start
+	 *            the first index of the run.
+	 * @param end
+	 *            the index after the run.
+	 * @param uri
+	 *            the URI of the select.
+	 * @return the index of the picked proxy.
+	 ************************************************************************/
+
+	private int pick(List<Proxy> proxyList, int start, int end, URI uri) {
+		int size = end - start;
+		switch (this.strategy) {
+			case BALANCING_ROUND_ROBIN:
+				return start + Math.floorMod(this.nextIndex.getAndIncrement(), size);
+			case BALANCING_POWER_OF_TWO_CHOICES:
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				int first = start + random.nextInt(size);
+				int second = start + (first - start + 1 + random.nextInt(size - 1)) % size;
+				return inFlightCount(proxyList.get(second).address()) < inFlightCount(proxyList.get(first).address())
+				        ? second : first;
+			case BALANCING_CONSISTENT_HASH:
+				long hostHash = hash(uri.getHost());
+				int best = start;
+				long bestWeight = Long.MIN_VALUE;
+				for (int i = start; i < end; i++) {
+					long weight = mix(hostHash ^ hash(proxyList.get(i).address()));
+					if (weight > bestWeight) {
+						bestWeight = weight;
+						best = i;
+					}
+				}
+				return best;
+			default:
+				throw new RuntimeException("FixMe: Unhandled BalancingStrategy enum constant.");
+		}
+	}
+
+	private static void rotate(List<Proxy> proxyList, int start, int end, int picked, List<Proxy> result) {
+		int size = end - start;
+		for (int i = 0; i < size; i++) {
+			result.set(start + i, proxyList.get(start + (picked - start + i) % size));
+		}
+	}
+
+	/*************************************************************************
+	 * Counts a request in flight for the first proxy of a returned list.
+	 * Only done by the strategy that uses the counts.
+	 ************************************************************************/
+
+	private void acquire(Proxy proxy) {
+		if (this.strategy != BalancingStrategy.BALANCING_POWER_OF_TWO_CHOICES || proxy.type() == Proxy.Type.DIRECT
+		        || proxy.address() == null) {
+			return;
+		}
+		AtomicInteger count = this.inFlight.get(proxy.address());
+		if (count == null) {
+			count = this.inFlight.computeIfAbsent(proxy.address(), address -> new AtomicInteger());
+		}
+		count.incrementAndGet();
+	}
+
+	/*************************************************************************
+	 * Gets the number of requests in flight through a proxy.
+	 *
+	 * @param address
+	 *            the address of the proxy.
+	 * @return the number of requests.
+	 ************************************************************************/
+
+	public int getInFlightCount(SocketAddress address) {
+		return inFlightCount(address);
+	}
+
+	private int inFlightCount(SocketAddress address) {
+		AtomicInteger count = address == null ? null : this.inFlight.get(address);
+		return count == null ? 0 : count.get();
+	}
+
+	/*************************************************************************
+	 * Hashes a host name ignoring case with FNV-1a. Unlike
+	 * <code>hashCode()</code> of the addresses this is the same in all
+	 * processes.
+	 ************************************************************************/
+
+	private static long hash(String host) {
+		long h = 0xcbf29ce484222325L;
+		if (host != null) {
+			for (int i = 0; i < host.length(); i++) {
+				h = (h ^ Character.toLowerCase(host.charAt(i))) * 0x100000001b3L;
+			}
+		}
+		return h;
+	}
+
+	private static long hash(SocketAddress address) {
+		if (address instanceof InetSocketAddress) {
+			InetSocketAddress inetAddress = (InetSocketAddress) address;
+			return (hash(inetAddress.getHostString()) ^ inetAddress.getPort()) * 0x100000001b3L;
+		}
+		return hash(String.valueOf(address));
+	}
+
+	/*************************************************************************
+	 * The MurmurHash3 finalizer, spreads the combined hashes.
+	 ************************************************************************/
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	@Override
+	public String toString() {
+		return "LoadBalancingProxySelector{" +
+				"delegate=" + delegate +
+				", strategy=" + strategy +
+				'}';
+	}
+}
@@ -0,0 +1,108 @@
+package com.github.markusbernhardt.proxy.selector.misc;
+
+import java.net.Proxy;
+import java.util.List;
+
+/*****************************************************************************
+ * Small per thread cache in front of the shared cache of a
+ * {@link BufferedProxySelector}. It is direct mapped: each key has exactly
+ * one slot, a new key simply replaces the previous one. A lookup touches
+ * only memory of the current thread.
+ * <p>
+ * Entries are valid until the refresh date of the shared entry. To see
+ * invalidations of the shared cache the near cache remembers the generation
+ * of the selector it was filled with and drops all entries when the
+ * generation changed.
+ * </p>
+ * <p>
+ * Instances are not thread safe, each one is used by one thread only.
+ * </p>
+ ****************************************************************************/
+
+final class NearCache {
+
+	private final CacheKey[] keys;
+	private final Object[] results;
+	private final long[] validUntil;
+	private final int mask;
+	private long generation;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param size
+	 *            the number of slots, a power of two.
+	 ************************************************************************/
+
+	NearCache(int size) {
+		this.keys = new CacheKey[size];
+		this.results = new Object[size];
+		this.validUntil = new long[size];
+		this.mask = size - 1;
+	}
+
+	/*************************************************************************
+	 * Gets the result for the key.
+	 *
+	 * @param key
+	 *            the lookup key.
+	 * @param generation
+	 *            the current generation of the selector.
+	 * @param now
+	 *            the current <code>System.nanoTime()</code> value.
+	 * @return the result, null if it is not cached or not valid anymore.
+	 ************************************************************************/
+
+	@SuppressWarnings("unchecked")
+	List<Proxy> get(CacheKey key, long generation, long now) {
+		if (generation != this.generation) {
+			clear(generation);
+			return null;
+		}
+		int slot = slot(key);
+		CacheKey cached = this.keys[slot];
+		if (cached == null || now - this.validUntil[slot] >= 0 || !cached.equals(key)) {
+			return null;
+		}
+		return (List<Proxy>) this.results[slot];
+	}
+
+	/*************************************************************************
+	 * Puts the result into the slot of the key.
+	 *
+	 * @param key
+	 *            the stored key, it must not be changed afterwards.
+	 * @param result
+	 *            the result.
+	 * @param validUntil
+	 *            the date until the entry can be used as
+	 *            <code>System.nanoTime()</code> value.
+	 * @param generation
+	 *            the generation of the selector read before the shared cache
+	 *            was accessed.
+	 ************************************************************************/
+
+	void put(CacheKey key, List<Proxy> result, long validUntil, long generation) {
+		if (generation != this.generation) {
+			clear(generation);
+		}
+		int slot = slot(key);
+		this.keys[slot] = key;
+		this.results[slot] = result;
+		this.validUntil[slot] = validUntil;
+	}
+
+	private int slot(CacheKey key) {
+		int h = key.hashCode();
+		return (h ^ (h >>> 16)) & this.mask;
+	}
+
+	private void clear(long generation) {
+		for (int i = 0; i <= this.mask; i++) {
+			this.keys[i] = null;
+			this.results[i] = null;
+		}
+		this.generation = generation;
+	}
+
+}
@@ -5,6 +5,8 @@ import java.net.Proxy;
 import java.net.ProxySelector;
 import java.net.SocketAddress;
 import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -77,6 +79,26 @@ public class ProtocolDispatchSelector extends ProxySelector {
 		return this.selectors.get(protocol);
 	}
 
+	/*************************************************************************
+	 * Gets the selectors installed for the protocols.
+	 * 
+	 * @return a copy of the selectors by protocol name.
+	 ************************************************************************/
+
+	public Map<String, ProxySelector> getSelectors() {
+		return Collections.unmodifiableMap(new HashMap<String, ProxySelector>(this.selectors));
+	}
+
+	/*************************************************************************
+	 * Gets the fallback selector.
+	 * 
+	 * @return the selector used when no protocol selector matches.
+	 ************************************************************************/
+
+	public ProxySelector getFallbackSelector() {
+		return this.fallbackSelector;
+	}
+
 	/*************************************************************************
 	 * Sets the fallback selector that is always called when no matching
 	 * protocol selector was found..
@@ -0,0 +1,402 @@
+package com.github.markusbernhardt.proxy.selector.misc;
+
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*****************************************************************************
+ * Circuit breaker of one proxy, used by the {@link ProxyListFallbackSelector}.
+ * <p>
+ * While it is <i>closed</i> the proxy is used and its failures are counted in
+ * a sliding window. The requests are counted apart in a {@link RequestWindow}
+ * for every proxy, so healthy proxies need no breaker. If the failure rate
+ * of the window exceeds the threshold
+ * the breaker <i>opens</i> and the proxy is not used. The open time starts
+ * with the initial backoff and doubles with each consecutive trip up to the
+ * maximum backoff. After the open time the breaker is <i>half open</i> and
+ * admits a limited number of probe requests. A failure opens it again,
+ * enough reported successes or no failure within the probe timeout close it.
+ * A breaker that stays closed without requests and failures for a whole
+ * window is dropped, which also resets the backoff.
+ * </p>
+ * <p>
+ * Each state change is followed by a deadline at which
+ * {@link #onDeadline(long, Settings)} has to be called. All state changes are
+ * synchronized on the breaker, checking if the proxy is available is not.
+ * </p>
+ ****************************************************************************/
+
+final class ProxyCircuitBreaker {
+
+	// The deadline returned when nothing has to be scheduled
+	static final long NO_DEADLINE = Long.MIN_VALUE;
+	// The deadline returned when the breaker was dropped
+	static final long RETIRED = Long.MIN_VALUE + 1;
+
+	private static final int WINDOW_BUCKETS = 10;
+
+	/*************************************************************************
+	 * The sliding window of the requests of one proxy. It is lock free, as
+	 * it is updated by every select that returns the proxy first.
+	 ************************************************************************/
+
+	static final class RequestWindow {
+		private final AtomicLongArray bucketEpochs = new AtomicLongArray(WINDOW_BUCKETS);
+		private final LongAdder[] requests = new LongAdder[WINDOW_BUCKETS];
+
+		RequestWindow() {
+			for (int i = 0; i < WINDOW_BUCKETS; i++) {
+				this.requests[i] = new LongAdder();
+			}
+		}
+
+		/*********************************************************************
+		 * Counts a request.
+		 *
+		 * @param now
+		 *            the current <code>System.nanoTime()</code> value.
+		 * @param settings
+		 *            the settings.
+		 ********************************************************************/
+
+		void record(long now, Settings settings) {
+			long epoch = epoch(now, settings);
+			int bucket = Math.floorMod(epoch, WINDOW_BUCKETS);
+			long bucketEpoch = this.bucketEpochs.get(bucket);
+			if (bucketEpoch != epoch && this.bucketEpochs.compareAndSet(bucket, bucketEpoch, epoch)) {
+				// Requests counted in between get lost, the rate is close enough
+				this.requests[bucket].reset();
+			}
+			this.requests[bucket].increment();
+		}
+
+		/*********************************************************************
+		 * Sums the requests that are still in the window.
+		 *
+		 * @param now
+		 *            the current <code>System.nanoTime()</code> value.
+		 * @param settings
+		 *            the settings.
+		 * @return the number of requests.
+		 ********************************************************************/
+
+		long sum(long now, Settings settings) {
+			long epoch = epoch(now, settings);
+			long sum = 0;
+			for (int i = 0; i < WINDOW_BUCKETS; i++) {
+				if (epoch - this.bucketEpochs.get(i) < WINDOW_BUCKETS) {
+					sum += this.requests[i].sum();
+				}
+			}
+			return sum;
+		}
+
+		/*********************************************************************
+		 * Checks if the window has no requests anymore, then it can be
+		 * dropped.
+		 *
+		 * @param now
+		 *            the current <code>System.nanoTime()</code> value.
+		 * @param settings
+		 *            the settings.
+		 * @return true if no request is in the window.
+		 ********************************************************************/
+
+		boolean isIdle(long now, Settings settings) {
+			return sum(now, settings) == 0;
+		}
+	}
+
+	/*************************************************************************
+	 * The states of a breaker.
+	 ************************************************************************/
+
+	enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/*************************************************************************
+	 * Immutable settings shared by all breakers of a selector.
+	 ************************************************************************/
+
+	static final class Settings {
+		final long initialBackoff;
+		final long maxBackoff;
+		final double failureRateThreshold;
+		final int minimumRequests;
+		final long window;
+		final int halfOpenProbes;
+		final long probeTimeout;
+
+		/*********************************************************************
+		 * Constructor, all times in nanoseconds.
+		 ********************************************************************/
+
+		Settings(long initialBackoff, long maxBackoff, double failureRateThreshold, int minimumRequests,
+		        long window, int halfOpenProbes, long probeTimeout) {
+			this.initialBackoff = initialBackoff;
+			this.maxBackoff = maxBackoff;
+			this.failureRateThreshold = failureRateThreshold;
+			this.minimumRequests = minimumRequests;
+			this.window = window;
+			this.halfOpenProbes = halfOpenProbes;
+			this.probeTimeout = probeTimeout;
+		}
+
+		long backoff(int trips) {
+			long backoff = this.initialBackoff << Math.min(Math.max(trips - 1, 0), 30);
+			return backoff < 0 || backoff > this.maxBackoff ? this.maxBackoff : backoff;
+		}
+
+		@Override
+		public String toString() {
+			return "Settings{" +
+					"initialBackoff=" + initialBackoff +
+					", maxBackoff=" + maxBackoff +
+					", failureRateThreshold=" + failureRateThreshold +
+					", minimumRequests=" + minimumRequests +
+					", window=" + window +
+					", halfOpenProbes=" + halfOpenProbes +
+					", probeTimeout=" + probeTimeout +
+					'}';
+		}
+	}
+
+	private final SocketAddress address;
+	// Volatile for the unsynchronized availability check
+	private volatile State state = State.CLOSED;
+	private int trips;
+	private long deadline = NO_DEADLINE;
+	private boolean retired;
+	private volatile int probes;
+	private int successes;
+
+	// Sliding window of failures
+	private final long[] bucketEpochs = new long[WINDOW_BUCKETS];
+	private final int[] failures = new int[WINDOW_BUCKETS];
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param address
+	 *            the address of the proxy.
+	 ************************************************************************/
+
+	ProxyCircuitBreaker(SocketAddress address) {
+		this.address = address;
+	}
+
+	SocketAddress getAddress() {
+		return this.address;
+	}
+
+	State getState() {
+		return this.state;
+	}
+
+	synchronized int getTrips() {
+		return this.trips;
+	}
+
+	/*************************************************************************
+	 * Checks if the proxy may be used without taking a probe request, so it
+	 * can be called for every proxy of a list.
+	 *
+	 * @param settings
+	 *            the settings.
+	 * @return true if the breaker is closed or half open with probe requests
+	 *         left.
+	 ************************************************************************/
+
+	boolean isAvailable(Settings settings) {
+		State state = this.state;
+		return state == State.CLOSED || (state == State.HALF_OPEN && this.probes < settings.halfOpenProbes);
+	}
+
+	/*************************************************************************
+	 * Admits a request through the proxy. In the half open state this takes
+	 * one of the probe requests, so it is only called for the proxy that is
+	 * used first.
+	 *
+	 * @param settings
+	 *            the settings.
+	 * @return true if the proxy may be used.
+	 ************************************************************************/
+
+	boolean admit(Settings settings) {
+		if (this.state == State.CLOSED) {
+			return true;
+		}
+		synchronized (this) {
+			switch (this.state) {
+				case CLOSED:
+					return true;
+				case HALF_OPEN:
+					if (this.probes < settings.halfOpenProbes) {
+						this.probes++;
+						return true;
+					}
+					return false;
+				default:
+					return false;
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Records a failed connection.
+	 *
+	 * @param now
+	 *            the current <code>System.nanoTime()</code> value.
+	 * @param settings
+	 *            the settings.
+	 * @param requests
+	 *            the requests of the proxy in the window.
+	 * @return the new deadline, {@link #NO_DEADLINE} if it did not change or
+	 *         {@link #RETIRED} if the breaker was dropped and a new one has to
+	 *         be used.
+	 ************************************************************************/
+
+	synchronized long recordFailure(long now, Settings settings, long requests) {
+		if (this.retired) {
+			return RETIRED;
+		}
+		switch (this.state) {
+			case CLOSED:
+				int bucket = bucket(now, settings);
+				this.failures[bucket]++;
+				int failureCount = sumFailures(now, settings);
+				long requestCount = Math.max(requests, failureCount);
+				if (requestCount < settings.minimumRequests
+				        || failureCount >= settings.failureRateThreshold * requestCount) {
+					this.trips++;
+					return open(now, settings);
+				}
+				if (this.deadline == NO_DEADLINE) {
+					// A new breaker, check for retirement after the window
+					this.deadline = now + settings.window;
+					return this.deadline;
+				}
+				return NO_DEADLINE;
+			case OPEN:
+				// Restart the open time with the current backoff
+				return open(now, settings);
+			default:
+				this.trips++;
+				return open(now, settings);
+		}
+	}
+
+	/*************************************************************************
+	 * Records a successful connection. Enough successes close a half open
+	 * breaker.
+	 *
+	 * @param now
+	 *            the current <code>System.nanoTime()</code> value.
+	 * @param settings
+	 *            the settings.
+	 * @return the new deadline, {@link #NO_DEADLINE} if it did not change.
+	 ************************************************************************/
+
+	synchronized long recordSuccess(long now, Settings settings) {
+		if (this.state != State.HALF_OPEN || this.retired) {
+			return NO_DEADLINE;
+		}
+		this.successes++;
+		return this.successes >= settings.halfOpenProbes ? close(now, settings) : NO_DEADLINE;
+	}
+
+	/*************************************************************************
+	 * Handles a deadline. Deadlines that were replaced by a later state
+	 * change are ignored.
+	 *
+	 * @param deadline
+	 *            the deadline that is due.
+	 * @param settings
+	 *            the settings.
+	 * @return the next deadline, {@link #NO_DEADLINE} if the deadline was
+	 *         not current or {@link #RETIRED} if the breaker was dropped.
+	 ************************************************************************/
+
+	synchronized long onDeadline(long deadline, Settings settings) {
+		if (deadline != this.deadline || this.retired) {
+			return NO_DEADLINE;
+		}
+		switch (this.state) {
+			case OPEN:
+				this.state = State.HALF_OPEN;
+				this.probes = 0;
+				this.successes = 0;
+				this.deadline = deadline + settings.probeTimeout;
+				return this.deadline;
+			case HALF_OPEN:
+				// No probe failed in time
+				return close(deadline, settings);
+			default:
+				if (sumFailures(deadline, settings) == 0) {
+					this.retired = true;
+					return RETIRED;
+				}
+				this.deadline = deadline + settings.window;
+				return this.deadline;
+		}
+	}
+
+	private long open(long now, Settings settings) {
+		this.state = State.OPEN;
+		this.deadline = now + settings.backoff(this.trips);
+		return this.deadline;
+	}
+
+	private long close(long now, Settings settings) {
+		this.state = State.CLOSED;
+		for (int i = 0; i < WINDOW_BUCKETS; i++) {
+			this.failures[i] = 0;
+		}
+		this.deadline = now + settings.window;
+		return this.deadline;
+	}
+
+	/*************************************************************************
+	 * Gets the bucket of the window for the time and resets it if it was
+	 * last used in an earlier round.
+	 ************************************************************************/
+
+	private int bucket(long now, Settings settings) {
+		long epoch = epoch(now, settings);
+		int bucket = Math.floorMod(epoch, WINDOW_BUCKETS);
+		if (this.bucketEpochs[bucket] != epoch) {
+			this.bucketEpochs[bucket] = epoch;
+			this.failures[bucket] = 0;
+		}
+		return bucket;
+	}
+
+	/*************************************************************************
+	 * Sums the failures of the buckets that are still in the window.
+	 ************************************************************************/
+
+	private int sumFailures(long now, Settings settings) {
+		long epoch = epoch(now, settings);
+		int sum = 0;
+		for (int i = 0; i < WINDOW_BUCKETS; i++) {
+			if (epoch - this.bucketEpochs[i] < WINDOW_BUCKETS) {
+				sum += this.failures[i];
+			}
+		}
+		return sum;
+	}
+
+	private static long epoch(long now, Settings settings) {
+		return Math.floorDiv(now, Math.max(settings.window / WINDOW_BUCKETS, 1));
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ProxyCircuitBreaker{" +
+				"address=" + address +
+				", state=" + state +
+				", trips=" + trips +
+				'}';
+	}
+}
@@ -0,0 +1,314 @@
+package com.github.markusbernhardt.proxy.selector.misc;
+
+import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/*****************************************************************************
+ * Bounded cache for proxy decisions with lock-free reads.
+ * <p>
+ * The entries are kept in a <code>ConcurrentHashMap</code> for the lookups.
+ * For the eviction the cache is split into segments, each with a ring of
+ * slots that is managed with the CLOCK algorithm: a hit only sets the
+ * "referenced" flag of the entry. When a segment is full the clock hand
+ * sweeps over the ring, evicts the first expired or not referenced entry and
+ * clears the flags it passes. This approximates LRU order with amortized
+ * constant work per insert and no lock on the read path. Inserts only lock
+ * the segment of the key.
+ * </p>
+ ****************************************************************************/
+
+final class ProxyDecisionCache {
+
+	private static final int MIN_SEGMENT_CAPACITY = 16;
+	private static final int MAX_SEGMENTS = 64;
+
+	/*************************************************************************
+	 * A cached proxy decision.
+	 ************************************************************************/
+
+	static final class Entry {
+		final Object key;
+		final List<Proxy> result;
+		final long expireAt;
+		final long refreshAt;
+
+		// Set on every hit, cleared by the clock hand
+		volatile boolean referenced;
+
+		// Guarded by the lock of the segment
+		int slot;
+
+		/*********************************************************************
+		 * Constructor
+		 *
+		 * @param key
+		 *            the cache key.
+		 * @param result
+		 *            the proxy decision, it is copied.
+		 * @param expireAt
+		 *            the expire date as <code>System.nanoTime()</code>
+		 *            value.
+		 ********************************************************************/
+
+		Entry(Object key, List<Proxy> result, long expireAt) {
+			this(key, result, expireAt, expireAt);
+		}
+
+		/*********************************************************************
+		 * Constructor
+		 *
+		 * @param key
+		 *            the cache key.
+		 * @param result
+		 *            the proxy decision, it is copied.
+		 * @param expireAt
+		 *            the expire date as <code>System.nanoTime()</code>
+		 *            value.
+		 * @param refreshAt
+		 *            the date from which on a hit triggers a refresh as
+		 *            <code>System.nanoTime()</code> value.
+		 ********************************************************************/
+
+		Entry(Object key, List<Proxy> result, long expireAt, long refreshAt) {
+			this.key = key;
+			this.result = Collections.unmodifiableList(new ArrayList<Proxy>(result));
+			this.expireAt = expireAt;
+			this.refreshAt = refreshAt;
+		}
+
+		boolean isExpired(long now) {
+			return now - this.expireAt >= 0;
+		}
+
+		boolean needsRefresh(long now) {
+			return now - this.refreshAt >= 0;
+		}
+	}
+
+	/*************************************************************************
+	 * A ring of slots with its own clock hand.
+	 ************************************************************************/
+
+	private static final class Segment {
+		final Entry[] slots;
+		int used;
+		int hand;
+
+		Segment(int capacity) {
+			this.slots = new Entry[capacity];
+		}
+	}
+
+	private final int maxSize;
+	private final ConcurrentHashMap<Object, Entry> map;
+	private final Segment[] segments;
+	private final LongAdder expiredEvictions = new LongAdder();
+	private final LongAdder capacityEvictions = new LongAdder();
+	private volatile Consumer<Entry> removalListener;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param maxSize
+	 *            the maximum number of entries.
+	 ************************************************************************/
+
+	ProxyDecisionCache(int maxSize) {
+		this.maxSize = Math.max(maxSize, 1);
+		this.map = new ConcurrentHashMap<Object, Entry>(Math.min(this.maxSize, 1 << 16));
+		int count = Integer.highestOneBit(Math.max(1, Math.min(this.maxSize / MIN_SEGMENT_CAPACITY, MAX_SEGMENTS)));
+		this.segments = new Segment[count];
+		for (int i = 0; i < count; i++) {
+			this.segments[i] = new Segment(this.maxSize / count + (i < this.maxSize % count ? 1 : 0));
+		}
+	}
+
+	/*************************************************************************
+	 * Sets a listener that is called when an entry is evicted or removed,
+	 * but not when it is replaced by an entry with the same key. It is
+	 * called while the segment of the entry is locked.
+	 *
+	 * @param removalListener
+	 *            the listener, null for none.
+	 ************************************************************************/
+
+	void setRemovalListener(Consumer<Entry> removalListener) {
+		this.removalListener = removalListener;
+	}
+
+	/*************************************************************************
+	 * Gets the entry of the key and marks it as recently used. Expired
+	 * entries are returned too, the caller decides how to handle them.
+	 *
+	 * @param key
+	 *            the cache key.
+	 * @return the entry, null if there is none.
+	 ************************************************************************/
+
+	Entry get(Object key) {
+		Entry entry = this.map.get(key);
+		// Avoid a write to shared memory if the flag is already set
+		if (entry != null && !entry.referenced) {
+			entry.referenced = true;
+		}
+		return entry;
+	}
+
+	/*************************************************************************
+	 * Adds the entry or replaces the entry with the same key. If the segment
+	 * of the key is full another entry is evicted.
+	 *
+	 * @param entry
+	 *            the entry to add.
+	 * @return the replaced entry, null if there was none.
+	 ************************************************************************/
+
+	Entry put(Entry entry) {
+		Segment segment = segmentFor(entry.key);
+		synchronized (segment) {
+			Entry old = this.map.put(entry.key, entry);
+			if (old != null) {
+				entry.slot = old.slot;
+			} else {
+				entry.slot = freeSlot(segment, System.nanoTime());
+			}
+			segment.slots[entry.slot] = entry;
+			return old;
+		}
+	}
+
+	/*************************************************************************
+	 * Removes the entry if it is still cached.
+	 *
+	 * @param entry
+	 *            the entry to remove.
+	 * @return true if it was removed.
+	 ************************************************************************/
+
+	boolean remove(Entry entry) {
+		Segment segment = segmentFor(entry.key);
+		synchronized (segment) {
+			if (!this.map.remove(entry.key, entry)) {
+				return false;
+			}
+			segment.slots[entry.slot] = null;
+			notifyRemoval(entry);
+			return true;
+		}
+	}
+
+	/*************************************************************************
+	 * Removes all entries.
+	 ************************************************************************/
+
+	void clear() {
+		for (Segment segment : this.segments) {
+			synchronized (segment) {
+				for (int i = 0; i < segment.used; i++) {
+					Entry entry = segment.slots[i];
+					if (entry != null) {
+						this.map.remove(entry.key, entry);
+						segment.slots[i] = null;
+						notifyRemoval(entry);
+					}
+				}
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Finds a slot for a new entry. Unused slots are taken first, then the
+	 * clock hand looks for a victim. It terminates after at most two
+	 * rounds because the first round clears all "referenced" flags.
+	 ************************************************************************/
+
+	private int freeSlot(Segment segment, long now) {
+		Entry[] slots = segment.slots;
+		if (segment.used < slots.length) {
+			return segment.used++;
+		}
+		while (true) {
+			int slot = segment.hand;
+			segment.hand = slot + 1 == slots.length ? 0 : slot + 1;
+			Entry entry = slots[slot];
+			if (entry == null) {
+				return slot;
+			}
+			if (entry.isExpired(now)) {
+				this.expiredEvictions.increment();
+			} else if (entry.referenced) {
+				entry.referenced = false;
+				continue;
+			} else {
+				this.capacityEvictions.increment();
+			}
+			this.map.remove(entry.key, entry);
+			slots[slot] = null;
+			notifyRemoval(entry);
+			return slot;
+		}
+	}
+
+	private void notifyRemoval(Entry entry) {
+		Consumer<Entry> listener = this.removalListener;
+		if (listener != null) {
+			listener.accept(entry);
+		}
+	}
+
+	private Segment segmentFor(Object key) {
+		if (this.segments.length == 1) {
+			return this.segments[0];
+		}
+		int h = key.hashCode() * 0x9E3779B9;
+		return this.segments[(h ^ (h >>> 16)) & (this.segments.length - 1)];
+	}
+
+	/*************************************************************************
+	 * Gets a view of all entries including expired ones.
+	 *
+	 * @return the entries.
+	 ************************************************************************/
+
+	Collection<Entry> entries() {
+		return Collections.unmodifiableCollection(this.map.values());
+	}
+
+	/*************************************************************************
+	 * Gets the number of entries including expired ones that are not evicted
+	 * yet.
+	 *
+	 * @return the number of entries.
+	 ************************************************************************/
+
+	int size() {
+		return this.map.size();
+	}
+
+	long getExpiredEvictionCount() {
+		return this.expiredEvictions.sum();
+	}
+
+	long getCapacityEvictionCount() {
+		return this.capacityEvictions.sum();
+	}
+
+	int getMaxSize() {
+		return this.maxSize;
+	}
+
+	@Override
+	public String toString() {
+		return "ProxyDecisionCache{" +
+				"size=" + size() +
+				", maxSize=" + maxSize +
+				", segments=" + segments.length +
+				'}';
+	}
+}
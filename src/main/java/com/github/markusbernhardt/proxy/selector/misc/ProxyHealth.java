@@ -0,0 +1,118 @@
+package com.github.markusbernhardt.proxy.selector.misc;
+
+import java.net.SocketAddress;
+
+/*****************************************************************************
+ * Snapshot of the health of one proxy as seen by a
+ * {@link HealthCheckingProxySelector}.
+ * <p>
+ * A proxy that was not probed yet is healthy. The latency is the time of the
+ * last successful probe: the TCP connect or, with HTTP CONNECT probes, the
+ * time until the status line of the proxy was read.
+ * </p>
+ ****************************************************************************/
+
+public final class ProxyHealth {
+
+	private final SocketAddress address;
+	private final boolean healthy;
+	private final boolean probed;
+	private final long latency;
+	private final int consecutiveFailures;
+	private final long probeCount;
+	private final long failureCount;
+
+	ProxyHealth(SocketAddress address, boolean healthy, boolean probed, long latency, int consecutiveFailures,
+	        long probeCount, long failureCount) {
+		this.address = address;
+		this.healthy = healthy;
+		this.probed = probed;
+		this.latency = latency;
+		this.consecutiveFailures = consecutiveFailures;
+		this.probeCount = probeCount;
+		this.failureCount = failureCount;
+	}
+
+	/*************************************************************************
+	 * Gets the address of the proxy.
+	 *
+	 * @return the address.
+	 ************************************************************************/
+
+	public SocketAddress getAddress() {
+		return this.address;
+	}
+
+	/*************************************************************************
+	 * Checks if the proxy is returned by the selector.
+	 *
+	 * @return true if the proxy is healthy or was not probed yet.
+	 ************************************************************************/
+
+	public boolean isHealthy() {
+		return this.healthy;
+	}
+
+	/*************************************************************************
+	 * Checks if at least one probe of the proxy has finished.
+	 *
+	 * @return true if the proxy was probed.
+	 ************************************************************************/
+
+	public boolean isProbed() {
+		return this.probed;
+	}
+
+	/*************************************************************************
+	 * Gets the latency of the last successful probe.
+	 *
+	 * @return the latency in nanoseconds, -1 if no probe succeeded yet.
+	 ************************************************************************/
+
+	public long getLatency() {
+		return this.latency;
+	}
+
+	/*************************************************************************
+	 * Gets the number of failed probes since the last successful one.
+	 *
+	 * @return the consecutive failures.
+	 ************************************************************************/
+
+	public int getConsecutiveFailures() {
+		return this.consecutiveFailures;
+	}
+
+	/*************************************************************************
+	 * Gets the number of finished probes.
+	 *
+	 * @return the probe count.
+	 ************************************************************************/
+
+	public long getProbeCount() {
+		return this.probeCount;
+	}
+
+	/*************************************************************************
+	 * Gets the number of failed probes.
+	 *
+	 * @return the failure count.
+	 ************************************************************************/
+
+	public long getFailureCount() {
+		return this.failureCount;
+	}
+
+	@Override
+	public String toString() {
+		return "ProxyHealth{" +
+				"address=" + address +
+				", healthy=" + healthy +
+				", probed=" + probed +
+				", latency=" + latency +
+				", consecutiveFailures=" + consecutiveFailures +
+				", probeCount=" + probeCount +
+				", failureCount=" + failureCount +
+				'}';
+	}
+}
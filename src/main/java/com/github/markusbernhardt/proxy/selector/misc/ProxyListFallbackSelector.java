@@ -6,15 +6,36 @@ import java.net.ProxySelector;
 import java.net.SocketAddress;
 import java.net.URI;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.PriorityQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
 
 /*****************************************************************************
  * Implements a fallback selector to warp it around an existing ProxySelector.
  * This will remove proxies from a list of proxies and implement an automatic
  * retry mechanism.
+ * <p>
+ * Each failed proxy gets a {@link ProxyCircuitBreaker}. Below the minimum
+ * number of requests in the window a single failure opens it, above it the
+ * failure rate has to reach the threshold. An open proxy is removed from the
+ * lists until the backoff is over. The backoff starts with the initial retry
+ * delay and doubles with each consecutive trip up to the "retry delay" of
+ * the constructor. Then the proxy is half open and only returned for a
+ * limited number of probe requests. Their success can be reported with
+ * {@link #connectSucceeded(URI, SocketAddress)}, if no probe fails within
+ * the probe timeout the proxy is closed again as well. A probe request is
+ * only taken by the proxy that is returned first.
+ * </p>
+ * <p>
+ * The deadlines of the breakers are kept in a queue ordered by time, so the
+ * due ones are handled at the head of the queue. A select only reads the
+ * time of the next deadline as long as none is due. Requests are counted for
+ * the first proxy of the returned list without a lock, and as long as no
+ * proxy failed the list of the delegate is returned as it is. The request
+ * windows have deadlines in the same queue and are dropped when they run
+ * empty.
+ * </p>
  * 
  * @author Markus Bernhardt, Copyright 2016
  * @author Bernd Rosstauscher, Copyright 2009
@@ -24,10 +45,80 @@ public class ProxyListFallbackSelector extends ProxySelector {
 
 	// Retry a unresponsive proxy after 10 minutes per default.
 	private static final int DEFAULT_RETRY_DELAY = 1000 * 60 * 10;
+	// The first retry is after 30 seconds per default.
+	private static final long DEFAULT_INITIAL_RETRY_DELAY = 1000 * 30;
+	private static final double DEFAULT_FAILURE_RATE_THRESHOLD = 0.5;
+	private static final int DEFAULT_MINIMUM_REQUESTS = 10;
+	private static final long DEFAULT_WINDOW = 1000 * 60;
+	private static final int DEFAULT_HALF_OPEN_PROBES = 3;
+	private static final long DEFAULT_PROBE_TIMEOUT = 1000 * 30;
+
+	private static final long NO_EXPIRY = Long.MAX_VALUE;
 
 	private ProxySelector delegate;
-	private ConcurrentHashMap<SocketAddress, Long> failedDelayCache;
+	private ConcurrentHashMap<SocketAddress, ProxyCircuitBreaker> failedDelayCache;
+	private final ConcurrentHashMap<SocketAddress, ProxyCircuitBreaker.RequestWindow> requestWindows;
 	private long retryAfterMs;
+	private long initialRetryDelayMs = DEFAULT_INITIAL_RETRY_DELAY;
+	private double failureRateThreshold = DEFAULT_FAILURE_RATE_THRESHOLD;
+	private int minimumRequests = DEFAULT_MINIMUM_REQUESTS;
+	private long windowMs = DEFAULT_WINDOW;
+	private int halfOpenProbes = DEFAULT_HALF_OPEN_PROBES;
+	private long probeTimeoutMs = DEFAULT_PROBE_TIMEOUT;
+	private volatile ProxyCircuitBreaker.Settings settings;
+	private LongSupplier clock = System::nanoTime;
+
+	// Guarded by itself
+	private final PriorityQueue<Deadline> deadlineQueue;
+	// Time of the head of the queue, NO_EXPIRY if it is empty
+	private volatile long nextExpiry = NO_EXPIRY;
+
+	/*************************************************************************
+	 * A deadline of a breaker or of a request window. When the breaker
+	 * changes its state before, the deadline is ignored by the breaker. At
+	 * the deadline of a window it is dropped if it is idle.
+	 ************************************************************************/
+
+	private static final class Deadline implements Comparable<Deadline> {
+		final ProxyCircuitBreaker breaker;
+		final SocketAddress address;
+		final ProxyCircuitBreaker.RequestWindow window;
+		final long time;
+
+		Deadline(ProxyCircuitBreaker breaker, long time) {
+			this(breaker, null, null, time);
+		}
+
+		Deadline(SocketAddress address, ProxyCircuitBreaker.RequestWindow window, long time) {
+			this(null, address, window, time);
+		}
+
+		private Deadline(ProxyCircuitBreaker breaker, SocketAddress address, ProxyCircuitBreaker.RequestWindow window,
+		        long time) {
+			this.breaker = breaker;
+			this.address = address;
+			this.window = window;
+			this.time = time;
+		}
+
+		boolean isDue(long now) {
+			return now - this.time >= 0;
+		}
+
+		@Override
+		public int compareTo(Deadline other) {
+			return Long.compare(this.time - other.time, 0);
+		}
+
+		@Override
+		public String toString() {
+			return "Deadline{" +
+					"breaker=" + breaker +
+					", address=" + address +
+					", time=" + time +
+					'}';
+		}
+	}
 
 	/*************************************************************************
 	 * Constructor
@@ -51,9 +142,87 @@ public class ProxyListFallbackSelector extends ProxySelector {
 
 	public ProxyListFallbackSelector(long retryAfterMs, ProxySelector delegate) {
 		super();
-		this.failedDelayCache = new ConcurrentHashMap<SocketAddress, Long>();
+		this.failedDelayCache = new ConcurrentHashMap<SocketAddress, ProxyCircuitBreaker>();
+		this.requestWindows = new ConcurrentHashMap<SocketAddress, ProxyCircuitBreaker.RequestWindow>();
+		this.deadlineQueue = new PriorityQueue<Deadline>();
 		this.delegate = delegate;
 		this.retryAfterMs = retryAfterMs;
+		updateSettings();
+	}
+
+	/*************************************************************************
+	 * Sets the delay before the first retry of a failed proxy. It doubles
+	 * with each consecutive failure up to the "retry delay" of the
+	 * constructor.
+	 * 
+	 * @param initialRetryDelayMs
+	 *            the delay in milliseconds.
+	 ************************************************************************/
+
+	public void setInitialRetryDelay(long initialRetryDelayMs) {
+		if (initialRetryDelayMs <= 0) {
+			throw new IllegalArgumentException("Initial retry delay must be positive: " + initialRetryDelayMs);
+		}
+		this.initialRetryDelayMs = initialRetryDelayMs;
+		updateSettings();
+	}
+
+	/*************************************************************************
+	 * Sets when a proxy is treated as unresponsive.
+	 * 
+	 * @param failureRateThreshold
+	 *            the rate of failed requests in the window, greater than 0
+	 *            and at most 1.
+	 * @param minimumRequests
+	 *            the number of requests in the window from which on the rate
+	 *            is used. With less requests each failure opens the breaker.
+	 * @param windowMs
+	 *            the length of the sliding window in milliseconds.
+	 ************************************************************************/
+
+	public void setFailureRateThreshold(double failureRateThreshold, int minimumRequests, long windowMs) {
+		if (!(failureRateThreshold > 0 && failureRateThreshold <= 1)) {
+			throw new IllegalArgumentException("Failure rate threshold must be in (0, 1]: " + failureRateThreshold);
+		}
+		if (minimumRequests < 0 || windowMs <= 0) {
+			throw new IllegalArgumentException(
+			        "Invalid minimum requests or window: " + minimumRequests + ", " + windowMs);
+		}
+		this.failureRateThreshold = failureRateThreshold;
+		this.minimumRequests = minimumRequests;
+		this.windowMs = windowMs;
+		updateSettings();
+	}
+
+	/*************************************************************************
+	 * Sets how a half open proxy is probed.
+	 * 
+	 * @param halfOpenProbes
+	 *            the number of requests the proxy is returned for. The same
+	 *            number of reported successes closes the breaker.
+	 * @param probeTimeoutMs
+	 *            the time in milliseconds after which the breaker is closed
+	 *            if no probe failed.
+	 ************************************************************************/
+
+	public void setHalfOpenProbes(int halfOpenProbes, long probeTimeoutMs) {
+		if (halfOpenProbes <= 0 || probeTimeoutMs <= 0) {
+			throw new IllegalArgumentException(
+			        "Invalid half open probes or probe timeout: " + halfOpenProbes + ", " + probeTimeoutMs);
+		}
+		this.halfOpenProbes = halfOpenProbes;
+		this.probeTimeoutMs = probeTimeoutMs;
+		updateSettings();
+	}
+
+	private synchronized void updateSettings() {
+		this.settings = new ProxyCircuitBreaker.Settings(millisToNanos(this.initialRetryDelayMs),
+		        millisToNanos(Math.max(this.retryAfterMs, 1)), this.failureRateThreshold, this.minimumRequests,
+		        millisToNanos(this.windowMs), this.halfOpenProbes, millisToNanos(this.probeTimeoutMs));
+	}
+
+	private static long millisToNanos(long millis) {
+		return millis * 1000 * 1000;
 	}
 
 	/*************************************************************************
@@ -65,7 +234,57 @@ public class ProxyListFallbackSelector extends ProxySelector {
 
 	@Override
 	public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
-		this.failedDelayCache.put(sa, System.currentTimeMillis());
+		if (sa != null) {
+			ProxyCircuitBreaker.Settings settings = this.settings;
+			long now = this.clock.getAsLong();
+			ProxyCircuitBreaker.RequestWindow window = this.requestWindows.get(sa);
+			long requests = window == null ? 0 : window.sum(now, settings);
+			while (true) {
+				ProxyCircuitBreaker breaker = this.failedDelayCache.computeIfAbsent(sa, ProxyCircuitBreaker::new);
+				long deadline = breaker.recordFailure(now, settings, requests);
+				if (deadline != ProxyCircuitBreaker.RETIRED) {
+					schedule(breaker, deadline);
+					break;
+				}
+				// Dropped in the meantime, a new breaker takes the failure
+				this.failedDelayCache.remove(sa, breaker);
+			}
+		}
+		// Lets a caching delegate drop the decisions with this proxy
+		this.delegate.connectFailed(uri, sa, ioe);
+	}
+
+	/*************************************************************************
+	 * Reports a successful connection through a proxy. Enough successes close
+	 * a half open breaker before the probe timeout.
+	 * 
+	 * @param uri
+	 *            the URI that was connected to.
+	 * @param sa
+	 *            the socket address of the proxy.
+	 ************************************************************************/
+
+	public void connectSucceeded(URI uri, SocketAddress sa) {
+		if (sa == null) {
+			return;
+		}
+		ProxyCircuitBreaker breaker = this.failedDelayCache.get(sa);
+		if (breaker != null) {
+			schedule(breaker, breaker.recordSuccess(this.clock.getAsLong(), this.settings));
+		}
+	}
+
+	private void schedule(ProxyCircuitBreaker breaker, long deadline) {
+		if (deadline != ProxyCircuitBreaker.NO_DEADLINE) {
+			schedule(new Deadline(breaker, deadline));
+		}
+	}
+
+	private void schedule(Deadline deadline) {
+		synchronized (this.deadlineQueue) {
+			this.deadlineQueue.add(deadline);
+			this.nextExpiry = this.deadlineQueue.peek().time;
+		}
 	}
 
 	/*************************************************************************
@@ -83,17 +302,44 @@ public class ProxyListFallbackSelector extends ProxySelector {
 	}
 
 	/*************************************************************************
-	 * Cleanup the entries from the cache that are no longer unresponsive.
+	 * Handles the due deadlines at the head of the queue. This moves open
+	 * breakers to half open, closes half open ones and drops closed breakers
+	 * without failures and request windows without requests.
 	 ************************************************************************/
 
 	private void cleanupCache() {
-		Iterator<Entry<SocketAddress, Long>> it = this.failedDelayCache.entrySet().iterator();
-		while (it.hasNext()) {
-			Entry<SocketAddress, Long> e = it.next();
-			Long lastFailTime = e.getValue();
-			if (retryDelayHasPassedBy(lastFailTime)) {
-				it.remove();
+		long next = this.nextExpiry;
+		if (next == NO_EXPIRY) {
+			return;
+		}
+		long now = this.clock.getAsLong();
+		if (now - next < 0) {
+			return;
+		}
+		ProxyCircuitBreaker.Settings settings = this.settings;
+		synchronized (this.deadlineQueue) {
+			Deadline head = this.deadlineQueue.peek();
+			while (head != null && head.isDue(now)) {
+				this.deadlineQueue.poll();
+				if (head.window != null) {
+					if (head.window.isIdle(now, settings)) {
+						this.requestWindows.remove(head.address, head.window);
+					} else {
+						this.deadlineQueue.add(new Deadline(head.address, head.window, now + settings.window));
+					}
+					head = this.deadlineQueue.peek();
+					continue;
+				}
+				ProxyCircuitBreaker breaker = head.breaker;
+				long deadline = breaker.onDeadline(head.time, settings);
+				if (deadline == ProxyCircuitBreaker.RETIRED) {
+					this.failedDelayCache.remove(breaker.getAddress(), breaker);
+				} else if (deadline != ProxyCircuitBreaker.NO_DEADLINE) {
+					this.deadlineQueue.add(new Deadline(breaker, deadline));
+				}
+				head = this.deadlineQueue.peek();
 			}
+			this.nextExpiry = head == null ? NO_EXPIRY : head.time;
 		}
 	}
 
@@ -106,21 +352,73 @@ public class ProxyListFallbackSelector extends ProxySelector {
 	 ************************************************************************/
 
 	private List<Proxy> filterUnresponsiveProxiesFromList(List<Proxy> proxyList) {
-		if (this.failedDelayCache.isEmpty()) {
-			return proxyList;
-		}
-		List<Proxy> result = new ArrayList<Proxy>(proxyList.size());
-		for (Proxy proxy : proxyList) {
-			if (isDirect(proxy) || isNotUnresponsive(proxy)) {
-				result.add(proxy);
+		ProxyCircuitBreaker.Settings settings = this.settings;
+		List<Proxy> result = proxyList;
+		if (!this.failedDelayCache.isEmpty()) {
+			result = new ArrayList<Proxy>(proxyList.size());
+			for (Proxy proxy : proxyList) {
+				if (isDirect(proxy) || isNotUnresponsive(proxy, settings)) {
+					result.add(proxy);
+				}
 			}
+			admitFirstProxy(result, settings);
 		}
-		if(result.isEmpty()){
-		    result.add(Proxy.NO_PROXY);
+		if (!result.isEmpty() && !isDirect(result.get(0)) && result.get(0).address() != null) {
+			countRequest(result.get(0).address(), settings);
 		}
 		return result;
 	}
 
+	/*************************************************************************
+	 * Lets the breaker of the first proxy admit the request, which takes a
+	 * probe request of a half open breaker. Proxies whose last probe request
+	 * was taken in the meantime are removed.
+	 * 
+	 * @param result
+	 *            the filtered list.
+	 * @param settings
+	 *            the settings of the breakers.
+	 ************************************************************************/
+
+	private void admitFirstProxy(List<Proxy> result, ProxyCircuitBreaker.Settings settings) {
+		while (!result.isEmpty()) {
+			Proxy first = result.get(0);
+			if (isDirect(first) || first.address() == null) {
+				return;
+			}
+			ProxyCircuitBreaker breaker = this.failedDelayCache.get(first.address());
+			if (breaker == null || breaker.admit(settings)) {
+				return;
+			}
+			result.remove(0);
+		}
+		result.add(Proxy.NO_PROXY);
+	}
+
+	/*************************************************************************
+	 * Counts a request of the proxy for the failure rate of its breaker.
+	 * 
+	 * @param address
+	 *            the address of the proxy.
+	 * @param settings
+	 *            the settings of the breakers.
+	 ************************************************************************/
+
+	private void countRequest(SocketAddress address, ProxyCircuitBreaker.Settings settings) {
+		long now = this.clock.getAsLong();
+		ProxyCircuitBreaker.RequestWindow window = this.requestWindows.get(address);
+		if (window == null) {
+			ProxyCircuitBreaker.RequestWindow created = new ProxyCircuitBreaker.RequestWindow();
+			window = this.requestWindows.putIfAbsent(address, created);
+			if (window == null) {
+				window = created;
+				// Checked for requests once per window length
+				schedule(new Deadline(address, created, now + settings.window));
+			}
+		}
+		window.record(now, settings);
+	}
+
 	/*************************************************************************
 	 * Checks if the given proxy is representing a direct connection.
 	 * 
@@ -138,34 +436,76 @@ public class ProxyListFallbackSelector extends ProxySelector {
 	 * 
 	 * @param proxy
 	 *            to test.
+	 * @param settings
+	 *            the settings of the breakers.
 	 * @return true if not unresponsive.
 	 ************************************************************************/
 
-	private boolean isNotUnresponsive(Proxy proxy) {
-		Long lastFailTime = this.failedDelayCache.get(proxy.address());
-		return retryDelayHasPassedBy(lastFailTime);
+	private boolean isNotUnresponsive(Proxy proxy, ProxyCircuitBreaker.Settings settings) {
+		ProxyCircuitBreaker breaker = this.failedDelayCache.get(proxy.address());
+		return breaker == null || breaker.isAvailable(settings);
+	}
+
+	/*************************************************************************
+	 * Only used for unit testing not part of the public API.
+	 * 
+	 * @param retryAfterMs
+	 *            The retryAfterMs to set.
+	 ************************************************************************/
+
+	final void setRetryAfterMs(long retryAfterMs) {
+		this.retryAfterMs = retryAfterMs;
+		updateSettings();
 	}
 
 	/*************************************************************************
-	 * Checks if the retry delay has passed.
+	 * Only used for unit testing not part of the public API.
 	 * 
-	 * @param lastFailTime
-	 * @return true if the delay has passed.
+	 * @param clock
+	 *            the source of the <code>System.nanoTime()</code> values.
 	 ************************************************************************/
 
-	private boolean retryDelayHasPassedBy(Long lastFailTime) {
-		return lastFailTime == null || lastFailTime + this.retryAfterMs < System.currentTimeMillis();
+	final void setClock(LongSupplier clock) {
+		this.clock = clock;
 	}
 
 	/*************************************************************************
 	 * Only used for unit testing not part of the public API.
 	 * 
-	 * @param retryAfterMs
-	 *            The retryAfterMs to set.
+	 * @return the number of request windows.
 	 ************************************************************************/
 
-	final void setRetryAfterMs(long retryAfterMs) {
-		this.retryAfterMs = retryAfterMs;
+	final int getRequestWindowCount() {
+		return this.requestWindows.size();
+	}
+
+	/*************************************************************************
+	 * Only used for unit testing not part of the public API.
+	 * 
+	 * @return the number of proxies whose breaker is open.
+	 ************************************************************************/
+
+	final int getFailedProxyCount() {
+		int count = 0;
+		for (ProxyCircuitBreaker breaker : this.failedDelayCache.values()) {
+			if (breaker.getState() == ProxyCircuitBreaker.State.OPEN) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/*************************************************************************
+	 * Only used for unit testing not part of the public API.
+	 * 
+	 * @param address
+	 *            the address of the proxy.
+	 * @return the state of its breaker, null if it has none.
+	 ************************************************************************/
+
+	final ProxyCircuitBreaker.State getBreakerState(SocketAddress address) {
+		ProxyCircuitBreaker breaker = this.failedDelayCache.get(address);
+		return breaker == null ? null : breaker.getState();
 	}
 
 	@Override
@@ -174,6 +514,7 @@ public class ProxyListFallbackSelector extends ProxySelector {
 				"delegate=" + delegate +
 				", failedDelayCache=" + failedDelayCache +
 				", retryAfterMs=" + retryAfterMs +
+				", settings=" + settings +
 				'}';
 	}
 }
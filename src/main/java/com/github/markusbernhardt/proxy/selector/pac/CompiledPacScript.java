@@ -0,0 +1,748 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/*****************************************************************************
+ * A PAC script compiled into a native Java decision structure by the
+ * <code>PacScriptCompiler</code>. The <code>FindProxyForURL</code> function
+ * body is kept as tree of statements and expressions. Domain checks on the
+ * function parameters are answered by a suffix trie per parameter, shell
+ * expressions are precompiled and the <code>isInNet</code> patterns are
+ * parsed once.
+ * <p>
+ * Instances are immutable and can be evaluated concurrently.
+ * </p>
+ ****************************************************************************/
+
+final class CompiledPacScript {
+
+	/*************************************************************************
+	 * Static types of the supported expressions. TRUTHY is the result of a
+	 * logical operation on non boolean values, it can only be used where the
+	 * truthiness of a value is tested.
+	 ************************************************************************/
+
+	enum Type {
+		STRING, NUMBER, BOOLEAN, TRUTHY
+	}
+
+	/*************************************************************************
+	 * An expression of the function body.
+	 ************************************************************************/
+
+	interface Expression {
+
+		Type getType();
+
+		Object evaluate(Evaluation evaluation);
+	}
+
+	/*************************************************************************
+	 * A statement of the function body.
+	 ************************************************************************/
+
+	interface Statement {
+
+		/*********************************************************************
+		 * Executes the statement.
+		 *
+		 * @param evaluation
+		 *            the state of the current evaluation.
+		 * @return true if a return statement was executed.
+		 ********************************************************************/
+
+		boolean execute(Evaluation evaluation);
+	}
+
+	/*************************************************************************
+	 * The state of a single evaluation of the script. It holds the arguments
+	 * and lazily computed lookups that are shared by all expressions.
+	 ************************************************************************/
+
+	static final class Evaluation {
+
+		final String[] parameters;
+		final PacScriptMethods scriptMethods;
+		private final DomainSuffixTrie[] tries;
+		private final BitSet[] domainMatches;
+		String result;
+
+		Evaluation(String[] parameters, PacScriptMethods scriptMethods, DomainSuffixTrie[] tries) {
+			this.parameters = parameters;
+			this.scriptMethods = scriptMethods;
+			this.tries = tries;
+			this.domainMatches = new BitSet[tries.length];
+		}
+
+		/*********************************************************************
+		 * Looks up all domains of the parameter trie the parameter value ends
+		 * with. The lookup is done only once per evaluation.
+		 *
+		 * @param trie
+		 *            the index of the trie.
+		 * @param parameter
+		 *            the index of the parameter.
+		 * @return the ids of all matching domains.
+		 ********************************************************************/
+
+		BitSet domainMatches(int trie, int parameter) {
+			BitSet matches = this.domainMatches[trie];
+			if (matches == null) {
+				matches = this.tries[trie].matches(this.parameters[parameter]);
+				this.domainMatches[trie] = matches;
+			}
+			return matches;
+		}
+
+	}
+
+	private final Statement body;
+	private final int parameterCount;
+	private final DomainSuffixTrie[] tries;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param body
+	 *            the function body.
+	 * @param parameterCount
+	 *            the number of parameters of the function.
+	 * @param tries
+	 *            the domain suffix tries used by the body.
+	 ************************************************************************/
+
+	CompiledPacScript(Statement body, int parameterCount, DomainSuffixTrie[] tries) {
+		this.body = body;
+		this.parameterCount = parameterCount;
+		this.tries = tries;
+	}
+
+	/*************************************************************************
+	 * Evaluates the given URL and host.
+	 *
+	 * @param url
+	 *            the URL to evaluate.
+	 * @param host
+	 *            the host name part of the URL.
+	 * @param scriptMethods
+	 *            the implementation of the PAC functions to use.
+	 * @return the script result, null if the function returns undefined.
+	 ************************************************************************/
+
+	String evaluate(String url, String host, PacScriptMethods scriptMethods) {
+		String[] parameters = new String[this.parameterCount];
+		if (parameters.length > 0) {
+			parameters[0] = url;
+		}
+		if (parameters.length > 1) {
+			parameters[1] = host;
+		}
+		Evaluation evaluation = new Evaluation(parameters, scriptMethods, this.tries);
+		this.body.execute(evaluation);
+		return evaluation.result;
+	}
+
+	/*************************************************************************
+	 * Tests the truthiness of a value like JavaScript does. null stands for
+	 * null and undefined and is falsy.
+	 *
+	 * @param value
+	 *            the value, may be null.
+	 * @return true if the value is truthy.
+	 ************************************************************************/
+
+	static boolean isTrue(Object value) {
+		if (value == null) {
+			return false;
+		}
+		if (value instanceof Boolean) {
+			return (Boolean) value;
+		}
+		if (value instanceof String) {
+			return ((String) value).length() > 0;
+		}
+		if (value instanceof Number) {
+			double number = ((Number) value).doubleValue();
+			return number != 0 && !Double.isNaN(number);
+		}
+		return true;
+	}
+
+	// ---------------------------------------------------------------------
+	// Statements
+	// ---------------------------------------------------------------------
+
+	static final class Block implements Statement {
+		private final Statement[] statements;
+
+		Block(List<Statement> statements) {
+			this.statements = statements.toArray(new Statement[statements.size()]);
+		}
+
+		@Override
+		public boolean execute(Evaluation evaluation) {
+			for (Statement statement : this.statements) {
+				if (statement.execute(evaluation)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	static final class If implements Statement {
+		private final Expression condition;
+		private final Statement then;
+		private final Statement otherwise;
+
+		If(Expression condition, Statement then, Statement otherwise) {
+			this.condition = condition;
+			this.then = then;
+			this.otherwise = otherwise;
+		}
+
+		@Override
+		public boolean execute(Evaluation evaluation) {
+			if (isTrue(this.condition.evaluate(evaluation))) {
+				return this.then.execute(evaluation);
+			}
+			return this.otherwise != null && this.otherwise.execute(evaluation);
+		}
+	}
+
+	static final class Return implements Statement {
+		private final String value;
+
+		Return(String value) {
+			this.value = value;
+		}
+
+		@Override
+		public boolean execute(Evaluation evaluation) {
+			evaluation.result = this.value;
+			return true;
+		}
+	}
+
+	// ---------------------------------------------------------------------
+	// Expressions
+	// ---------------------------------------------------------------------
+
+	static final class Literal implements Expression {
+		private final Object value;
+		private final Type type;
+
+		Literal(Object value, Type type) {
+			this.value = value;
+			this.type = type;
+		}
+
+		@Override
+		public Type getType() {
+			return this.type;
+		}
+
+		@Override
+		public Object evaluate(Evaluation evaluation) {
+			return this.value;
+		}
+	}
+
+	static final class Parameter implements Expression {
+		private final int index;
+
+		Parameter(int index) {
+			this.index = index;
+		}
+
+		int getIndex() {
+			return this.index;
+		}
+
+		@Override
+		public Type getType() {
+			return Type.STRING;
+		}
+
+		@Override
+		public Object evaluate(Evaluation evaluation) {
+			return evaluation.parameters[this.index];
+		}
+	}
+
+	static final class Not implements Expression {
+		private final Expression operand;
+
+		Not(Expression operand) {
+			this.operand = operand;
+		}
+
+		@Override
+		public Type getType() {
+			return Type.BOOLEAN;
+		}
+
+		@Override
+		public Object evaluate(Evaluation evaluation) {
+			return !isTrue(this.operand.evaluate(evaluation));
+		}
+	}
+
+	static final class Logical implements Expression {
+		private final boolean and;
+		private final Expression left;
+		private final Expression right;
+
+		Logical(boolean and, Expression left, Expression right) {
+			this.and = and;
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		public Type getType() {
+			if (this.left.getType() == Type.BOOLEAN && this.right.getType() == Type.BOOLEAN) {
+				return Type.BOOLEAN;
+			}
+			return Type.TRUTHY;
+		}
+
+		@Override
+		public Object evaluate(Evaluation evaluation) {
+			Object value = this.left.evaluate(evaluation);
+			if (isTrue(value) != this.and) {
+				return value;
+			}
+			return this.right.evaluate(evaluation);
+		}
+	}
+
+	static final class Comparison implements Expression {
+		static final int EQ = 0, NE = 1, LT = 2, GT = 3, LE = 4, GE = 5;
+
+		private final int operator;
+		private final Expression left;
+		private final Expression right;
+
+		Comparison(int operator, Expression left, Expression right) {
+			this.operator = operator;
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		public Type getType() {
+			return Type.BOOLEAN;
+		}
+
+		@Override
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		public Object evaluate(Evaluation evaluation) {
+			Object l = this.left.evaluate(evaluation);
+			Object r = this.right.evaluate(evaluation);
+			switch (this.operator) {
+			case EQ:
+				return l.equals(r);
+			case NE:
+				return !l.equals(r);
+			default:
+				int c = ((Comparable) l).compareTo(r);
+				switch (this.operator) {
+				case LT:
+					return c < 0;
+				case GT:
+					return c > 0;
+				case LE:
+					return c <= 0;
+				default:
+					return c >= 0;
+				}
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Call of one of the PAC functions with arbitrary arguments.
+	 ************************************************************************/
+
+	static final class Call implements Expression {
+		private final PacFunction function;
+		private final Expression[] arguments;
+
+		Call(PacFunction function, Expression[] arguments) {
+			this.function = function;
+			this.arguments = arguments;
+		}
+
+		@Override
+		public Type getType() {
+			return this.function.returnType;
+		}
+
+		@Override
+		public Object evaluate(Evaluation evaluation) {
+			String[] values = new String[this.arguments.length];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = (String) this.arguments[i].evaluate(evaluation);
+			}
+			return this.function.invoke(evaluation, values);
+		}
+	}
+
+	/*************************************************************************
+	 * <code>dnsDomainIs(param, "literal")</code> answered by the suffix trie of
+	 * the parameter.
+	 ************************************************************************/
+
+	static final class DomainIs implements Expression {
+		private final int parameter;
+		private final int trie;
+		private final int id;
+
+		DomainIs(int parameter, int trie, int id) {
+			this.parameter = parameter;
+			this.trie = trie;
+			this.id = id;
+		}
+
+		@Override
+		public Type getType() {
+			return Type.BOOLEAN;
+		}
+
+		@Override
+		public Object evaluate(Evaluation evaluation) {
+			return evaluation.domainMatches(this.trie, this.parameter).get(this.id);
+		}
+	}
+
+	/*************************************************************************
+	 * <code>shExpMatch(expression, "literal")</code> with a precompiled
+	 * pattern.
+	 ************************************************************************/
+
+	static final class ShExpMatch implements Expression {
+		private final Expression string;
+		private final ShellExpression pattern;
+
+		ShExpMatch(Expression string, ShellExpression pattern) {
+			this.string = string;
+			this.pattern = pattern;
+		}
+
+		@Override
+		public Type getType() {
+			return Type.BOOLEAN;
+		}
+
+		@Override
+		public Object evaluate(Evaluation evaluation) {
+			return this.pattern.matches((String) this.string.evaluate(evaluation));
+		}
+	}
+
+	/*************************************************************************
+	 * <code>isInNet(expression, "pattern", "mask")</code> with the pattern and
+	 * mask parsed at compile time.
+	 ************************************************************************/
+
+	static final class InNet implements Expression {
+		private final Expression host;
+		private final long pattern;
+		private final long mask;
+
+		InNet(Expression host, long pattern, long mask) {
+			this.host = host;
+			this.pattern = pattern;
+			this.mask = mask;
+		}
+
+		@Override
+		public Type getType() {
+			return Type.BOOLEAN;
+		}
+
+		@Override
+		public Object evaluate(Evaluation evaluation) {
+			String ip = evaluation.scriptMethods.dnsResolve((String) this.host.evaluate(evaluation));
+			if (ip == null || ip.length() == 0) {
+				return false;
+			}
+			return (PacScriptMethods.parseIpAddressToLong(ip) & this.mask) == this.pattern;
+		}
+	}
+
+	// ---------------------------------------------------------------------
+	// PAC functions
+	// ---------------------------------------------------------------------
+
+	/*************************************************************************
+	 * The PAC functions supported by the compiler. All of them take string
+	 * arguments only.
+	 ************************************************************************/
+
+	enum PacFunction {
+		IS_PLAIN_HOST_NAME("isPlainHostName", 1, Type.BOOLEAN) {
+			@Override
+			Object invoke(Evaluation e, String[] a) {
+				return e.scriptMethods.isPlainHostName(a[0]);
+			}
+		},
+		DNS_DOMAIN_IS("dnsDomainIs", 2, Type.BOOLEAN) {
+			@Override
+			Object invoke(Evaluation e, String[] a) {
+				return e.scriptMethods.dnsDomainIs(a[0], a[1]);
+			}
+		},
+		LOCAL_HOST_OR_DOMAIN_IS("localHostOrDomainIs", 2, Type.BOOLEAN) {
+			@Override
+			Object invoke(Evaluation e, String[] a) {
+				return e.scriptMethods.localHostOrDomainIs(a[0], a[1]);
+			}
+		},
+		IS_RESOLVABLE("isResolvable", 1, Type.BOOLEAN) {
+			@Override
+			Object invoke(Evaluation e, String[] a) {
+				return e.scriptMethods.isResolvable(a[0]);
+			}
+		},
+		IS_RESOLVABLE_EX("isResolvableEx", 1, Type.BOOLEAN) {
+			@Override
+			Object invoke(Evaluation e, String[] a) {
+				return e.scriptMethods.isResolvableEx(a[0]);
+			}
+		},
+		IS_IN_NET("isInNet", 3, Type.BOOLEAN) {
+			@Override
+			Object invoke(Evaluation e, String[] a) {
+				String ip = e.scriptMethods.dnsResolve(a[0]);
+				if (ip == null || ip.length() == 0) {
+					return false;
+				}
+				long host = PacScriptMethods.parseIpAddressToLong(ip);
+				long pattern = PacScriptMethods.parseIpAddressToLong(a[1]);
+				long mask = PacScriptMethods.parseIpAddressToLong(a[2]);
+				return (host & mask) == pattern;
+			}
+		},
+		IS_IN_NET_EX("isInNetEx", 2, Type.BOOLEAN) {
+			@Override
+			Object invoke(Evaluation e, String[] a) {
+				return e.scriptMethods.isInNetEx(a[0], a[1]);
+			}
+		},
+		DNS_RESOLVE("dnsResolve", 1, Type.STRING) {
+			@Override
+			Object invoke(Evaluation e, String[] a) {
+				return e.scriptMethods.dnsResolve(a[0]);
+			}
+		},
+		DNS_RESOLVE_EX("dnsResolveEx", 1, Type.STRING) {
+			@Override
+			Object invoke(Evaluation e, String[] a) {
+				return e.scriptMethods.dnsResolveEx(a[0]);
+			}
+		},
+		MY_IP_ADDRESS("myIpAddress", 0, Type.STRING) {
+			@Override
+			Object invoke(Evaluation e, String[] a) {
+				return e.scriptMethods.myIpAddress();
+			}
+		},
+		MY_IP_ADDRESS_EX("myIpAddressEx", 0, Type.STRING) {
+			@Override
+			Object invoke(Evaluation e, String[] a) {
+				return e.scriptMethods.myIpAddressEx();
+			}
+		},
+		DNS_DOMAIN_LEVELS("dnsDomainLevels", 1, Type.NUMBER) {
+			@Override
+			Object invoke(Evaluation e, String[] a) {
+				return (double) e.scriptMethods.dnsDomainLevels(a[0]);
+			}
+		},
+		SH_EXP_MATCH("shExpMatch", 2, Type.BOOLEAN) {
+			@Override
+			Object invoke(Evaluation e, String[] a) {
+				return e.scriptMethods.shExpMatch(a[0], a[1]);
+			}
+		},
+		SORT_IP_ADDRESS_LIST("sortIpAddressList", 1, Type.STRING) {
+			@Override
+			Object invoke(Evaluation e, String[] a) {
+				return e.scriptMethods.sortIpAddressList(a[0]);
+			}
+		},
+		GET_CLIENT_VERSION("getClientVersion", 0, Type.STRING) {
+			@Override
+			Object invoke(Evaluation e, String[] a) {
+				return e.scriptMethods.getClientVersion();
+			}
+		};
+
+		final String functionName;
+		final int arity;
+		final Type returnType;
+
+		PacFunction(String functionName, int arity, Type returnType) {
+			this.functionName = functionName;
+			this.arity = arity;
+			this.returnType = returnType;
+		}
+
+		abstract Object invoke(Evaluation evaluation, String[] arguments);
+
+		static PacFunction forName(String name) {
+			for (PacFunction function : values()) {
+				if (function.functionName.equals(name)) {
+					return function;
+				}
+			}
+			return null;
+		}
+	}
+
+	// ---------------------------------------------------------------------
+	// Matchers
+	// ---------------------------------------------------------------------
+
+	/*************************************************************************
+	 * Trie over the reversed characters of all domains tested with
+	 * <code>dnsDomainIs</code> against one parameter. A single walk over the
+	 * parameter value from its end finds all domains the value ends with.
+	 ************************************************************************/
+
+	static final class DomainSuffixTrie {
+
+		private static final class Node {
+			char[] keys = new char[0];
+			Node[] children = new Node[0];
+			int[] ids = new int[0];
+
+			Node child(char c) {
+				int index = Arrays.binarySearch(this.keys, c);
+				return index < 0 ? null : this.children[index];
+			}
+
+			Node addChild(char c) {
+				int index = Arrays.binarySearch(this.keys, c);
+				if (index >= 0) {
+					return this.children[index];
+				}
+				index = -index - 1;
+				Node node = new Node();
+				this.keys = insert(this.keys, index, c);
+				Node[] children = new Node[this.children.length + 1];
+				System.arraycopy(this.children, 0, children, 0, index);
+				children[index] = node;
+				System.arraycopy(this.children, index, children, index + 1, this.children.length - index);
+				this.children = children;
+				return node;
+			}
+
+			private static char[] insert(char[] keys, int index, char c) {
+				char[] result = new char[keys.length + 1];
+				System.arraycopy(keys, 0, result, 0, index);
+				result[index] = c;
+				System.arraycopy(keys, index, result, index + 1, keys.length - index);
+				return result;
+			}
+		}
+
+		private final Node root = new Node();
+		private int size;
+
+		/*********************************************************************
+		 * Adds a domain to the trie.
+		 *
+		 * @param domain
+		 *            the domain suffix.
+		 * @return the id of the domain used in the result of the lookup.
+		 ********************************************************************/
+
+		int add(String domain) {
+			Node node = this.root;
+			for (int i = domain.length() - 1; i >= 0; i--) {
+				node = node.addChild(domain.charAt(i));
+			}
+			int id = this.size++;
+			node.ids = Arrays.copyOf(node.ids, node.ids.length + 1);
+			node.ids[node.ids.length - 1] = id;
+			return id;
+		}
+
+		/*********************************************************************
+		 * Finds all domains the given value ends with.
+		 *
+		 * @param value
+		 *            the value to test.
+		 * @return the ids of all matching domains.
+		 ********************************************************************/
+
+		BitSet matches(String value) {
+			BitSet result = new BitSet(this.size);
+			Node node = this.root;
+			int i = value.length();
+			while (node != null) {
+				for (int id : node.ids) {
+					result.set(id);
+				}
+				if (i == 0) {
+					break;
+				}
+				node = node.child(value.charAt(--i));
+			}
+			return result;
+		}
+	}
+
+	/*************************************************************************
+	 * A precompiled shell expression. It matches exactly like
+	 * <code>PacScriptMethods.shExpMatch</code> but splits the expression
+	 * only once.
+	 ************************************************************************/
+
+	static final class ShellExpression {
+		private final String[] tokens;
+		private final boolean startsWithWildcard;
+		private final boolean endsWithWildcard;
+
+		ShellExpression(String shexp) {
+			List<String> tokens = new ArrayList<String>();
+			StringTokenizer tokenizer = new StringTokenizer(shexp, "*");
+			while (tokenizer.hasMoreTokens()) {
+				tokens.add(tokenizer.nextToken());
+			}
+			this.tokens = tokens.toArray(new String[tokens.size()]);
+			this.startsWithWildcard = shexp.startsWith("*");
+			this.endsWithWildcard = shexp.endsWith("*");
+		}
+
+		boolean matches(String str) {
+			int startPos = 0;
+			for (int i = 0; i < this.tokens.length; i++) {
+				String token = this.tokens[i];
+				int temp = str.indexOf(token, startPos);
+
+				// Must start with first token
+				if (startPos == 0 && !this.startsWithWildcard && temp != 0) {
+					return false;
+				}
+				// Last one ends with last token
+				if (i == this.tokens.length - 1 && !this.endsWithWildcard && !str.endsWith(token)) {
+					return false;
+				}
+				if (temp == -1) {
+					return false;
+				}
+				startPos = temp + token.length();
+			}
+			return true;
+		}
+	}
+
+}
@@ -1,7 +1,13 @@
 package com.github.markusbernhardt.proxy.selector.pac;
 
 import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
 
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.Undefined;
 
 import com.github.markusbernhardt.proxy.util.Logger;
@@ -26,10 +32,29 @@ public class JavaxPacScriptParser implements PacScriptParser {
 
     static final String SOURCE_NAME = JavaxPacScriptParser.class.getName();
 
+    static final String ENTRY_POINT = "FindProxyForURL";
+
+    static final String ENTRY_POINT_FUNCTION = "__pacentrypoint";
+
+    static final String URL_ARGUMENT = "__pacurl";
+
+    static final String HOST_ARGUMENT = "__pachost";
+
+    // Constant call site for the sandbox engine, the function and the arguments are bound as variables.
+    static final String ENTRY_POINT_CALL = ENTRY_POINT_FUNCTION + "(" + URL_ARGUMENT + ", " + HOST_ARGUMENT + ")";
+
     private final PacScriptSource source;
 
+    private final PacScriptMethods scriptMethods;
+
     private final RhinoSandbox engine;
 
+    // The entry point function of the compiled script, written before compiledContent.
+    private volatile Function entryPoint;
+
+    // The script content the entry point was compiled from.
+    private volatile String compiledContent;
+
     /*************************************************************************
      * Constructor
      * 
@@ -40,6 +65,7 @@ public class JavaxPacScriptParser implements PacScriptParser {
      ************************************************************************/
     public JavaxPacScriptParser(PacScriptSource source) throws ProxyEvaluationException {
         this.source = source;
+        this.scriptMethods = new PacScriptMethods();
         this.engine = setupEngine();
     }
 
@@ -51,7 +77,7 @@ public class JavaxPacScriptParser implements PacScriptParser {
      ************************************************************************/
     private RhinoSandbox setupEngine() throws ProxyEvaluationException {
         RhinoSandbox rhinoSandbox = RhinoSandboxes.create();
-        rhinoSandbox.inject(SCRIPT_METHODS_OBJECT, new PacScriptMethods());
+        rhinoSandbox.inject(SCRIPT_METHODS_OBJECT, this.scriptMethods);
         // allow String
         rhinoSandbox.allow(String.class);
 
@@ -136,20 +162,131 @@ public class JavaxPacScriptParser implements PacScriptParser {
      ************************************************************************/
     @Override
     public String evaluate(String url, String host) throws ProxyEvaluationException {
+        return evaluate(url, host, ContextFactory.getGlobal());
+    }
+
+    /*************************************************************************
+     * Evaluates the given URL and host against the PAC script. Only used directly for unit testing.
+     * 
+     * @param url
+     *            the URL to evaluate.
+     * @param host
+     *            the host name part of the URL.
+     * @param factory
+     *            the global context factory.
+     * @return the script result.
+     * @throws ProxyEvaluationException
+     *             on execution error.
+     ************************************************************************/
+    String evaluate(String url, String host, ContextFactory factory) throws ProxyEvaluationException {
+        this.scriptMethods.startEvaluation();
         try {
-            StringBuilder script = new StringBuilder(this.source.getScriptContent());
-            String evalMethod = " ;FindProxyForURL (\"" + url + "\",\"" + host + "\")";
-            script.append(evalMethod);
-            Object result = this.engine.eval(SOURCE_NAME, script.toString());
-            if (Undefined.isUndefined(result)) {
+            Function function = compileIfChanged();
+
+            // Keep the former string representation of null values, the arguments are plain JS strings.
+            Object[] arguments = { String.valueOf(url), String.valueOf(host) };
+            Object result = call(function, arguments, factory);
+            if (result == null || Undefined.isUndefined(result)) {
                 return null;
             }
-            return (String) result;
+            return Context.toString(result);
+        }
+        catch (ProxyEvaluationException e) {
+            throw e;
         }
         catch (Exception e) {
             Logger.log(getClass(), LogLevel.ERROR, "JS evaluation error.", e);
             throw new ProxyEvaluationException("Error while executing PAC script: " + e.getMessage(), e);
         }
+        finally {
+            this.scriptMethods.endEvaluation();
+        }
+    }
+
+    /*************************************************************************
+     * Compiles the script content into the engine. The script is only compiled again if the content delivered by the
+     * script source has changed.
+     * 
+     * @return the entry point function of the compiled script.
+     * @throws Exception
+     *             on read or compile error.
+     ************************************************************************/
 
+    private Function compileIfChanged() throws Exception {
+        String content = this.source.getScriptContent();
+        if (content.equals(this.compiledContent)) {
+            return this.entryPoint;
+        }
+        synchronized (this) {
+            if (!content.equals(this.compiledContent)) {
+                this.entryPoint = compile(content);
+                this.compiledContent = content;
+            }
+            return this.entryPoint;
+        }
+    }
+
+    /*************************************************************************
+     * Calls the entry point function in the scope it was compiled in. Nothing is parsed or compiled here as long as
+     * the global context factory is the one of the sandbox. If the application installed its own factory, its
+     * contexts are not restricted by the sandbox and the call goes through the sandbox engine instead.
+     * 
+     * @param function
+     *            the entry point function.
+     * @param arguments
+     *            the url and host arguments.
+     * @param factory
+     *            the global context factory.
+     * @return the raw result of the function.
+     ************************************************************************/
+
+    private Object call(Function function, Object[] arguments, ContextFactory factory) {
+        if (!isSandboxFactory(factory)) {
+            Map<String, Object> variables = new HashMap<String, Object>(4);
+            variables.put(ENTRY_POINT_FUNCTION, function);
+            variables.put(URL_ARGUMENT, arguments[0]);
+            variables.put(HOST_ARGUMENT, arguments[1]);
+            return this.engine.eval(SOURCE_NAME, ENTRY_POINT_CALL, variables);
+        }
+        Context context = factory.enterContext();
+        try {
+            Scriptable scope = function.getParentScope();
+            return function.call(context, scope, scope, arguments);
+        }
+        finally {
+            Context.exit();
+        }
+    }
+
+    /*************************************************************************
+     * Checks if the context factory is the one installed by the sandbox.
+     * 
+     * @param factory
+     *            the context factory.
+     * @return true if its contexts are set up by the sandbox.
+     ************************************************************************/
+
+    static boolean isSandboxFactory(ContextFactory factory) {
+        return factory.getClass().getName().startsWith(RhinoSandbox.class.getPackage().getName() + ".");
+    }
+
+    /*************************************************************************
+     * Evaluates the script content once in its own scope and returns the entry point function. Subsequent
+     * evaluations call this function reference directly.
+     * 
+     * @param content
+     *            the script content.
+     * @return the entry point function.
+     * @throws ProxyEvaluationException
+     *             if the script does not define the entry point function.
+     ************************************************************************/
+
+    private Function compile(String content) throws ProxyEvaluationException {
+        Logger.log(getClass(), LogLevel.DEBUG, "Compiling PAC script from {}", this.source);
+        Object entryPoint = this.engine.eval(SOURCE_NAME, content + "\n;" + ENTRY_POINT + ";");
+        if (!(entryPoint instanceof Function)) {
+            throw new ProxyEvaluationException("PAC script entry point " + ENTRY_POINT + " is not a function.");
+        }
+        return (Function) entryPoint;
     }
 }
@@ -0,0 +1,191 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.io.IOException;
+
+import com.github.markusbernhardt.proxy.selector.pac.PacScriptCompiler.UnsupportedScriptException;
+import com.github.markusbernhardt.proxy.util.Logger;
+import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
+
+/*****************************************************************************
+ * PAC parser that evaluates the common PAC idioms without a JavaScript
+ * engine. The script is compiled into a Java decision structure once per
+ * content version. <code>dnsDomainIs</code> checks are answered by a suffix
+ * trie, <code>shExpMatch</code> patterns and <code>isInNet</code> networks
+ * are precompiled and DNS lookups are memoized per evaluation.
+ * <p>
+ * Scripts that use constructs outside of the supported subset, e.g.
+ * variables, string operations or the time based functions, are delegated
+ * to a {@link JavaxPacScriptParser} that is created on first use.
+ * </p>
+ ****************************************************************************/
+
+public class NativePacScriptParser implements PacScriptParser {
+
+	/*************************************************************************
+	 * The compilation result for one version of the script content.
+	 ************************************************************************/
+
+	private static final class CompiledContent {
+		final String content;
+		final CompiledPacScript script;
+
+		CompiledContent(String content, CompiledPacScript script) {
+			this.content = content;
+			this.script = script;
+		}
+	}
+
+	private final PacScriptSource source;
+	private final PacScriptMethods scriptMethods;
+	private volatile CompiledContent compiled;
+	private volatile PacScriptParser fallbackParser;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param source
+	 *            the source for the PAC script.
+	 ************************************************************************/
+
+	public NativePacScriptParser(PacScriptSource source) {
+		super();
+		if (source == null) {
+			throw new NullPointerException("Script source must not be null.");
+		}
+		this.source = source;
+		this.scriptMethods = new PacScriptMethods();
+	}
+
+	/***************************************************************************
+	 * getScriptSource
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.PacScriptParser#getScriptSource()
+	 **************************************************************************/
+
+	@Override
+	public PacScriptSource getScriptSource() {
+		return this.source;
+	}
+
+	/*************************************************************************
+	 * evaluate
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.PacScriptParser#evaluate(java.lang.String,
+	 *      java.lang.String)
+	 ************************************************************************/
+
+	@Override
+	public String evaluate(String url, String host) throws ProxyEvaluationException {
+		CompiledPacScript script = compileIfChanged();
+		if (script == null) {
+			return getFallbackParser().evaluate(url, host);
+		}
+		this.scriptMethods.startEvaluation();
+		try {
+			return script.evaluate(String.valueOf(url), String.valueOf(host), this.scriptMethods);
+		} catch (RuntimeException e) {
+			Logger.log(getClass(), LogLevel.ERROR, "PAC evaluation error.", e);
+			throw new ProxyEvaluationException("Error while executing PAC script: " + e.getMessage(), e);
+		} finally {
+			this.scriptMethods.endEvaluation();
+		}
+	}
+
+	/*************************************************************************
+	 * Compiles the script if the content has changed since the last
+	 * compilation.
+	 *
+	 * @return the compiled script, null if the script is not supported and
+	 *         has to be evaluated by the fallback parser.
+	 * @throws ProxyEvaluationException
+	 *             if the script can not be loaded.
+	 ************************************************************************/
+
+	private CompiledPacScript compileIfChanged() throws ProxyEvaluationException {
+		String content;
+		try {
+			content = this.source.getScriptContent();
+		} catch (IOException e) {
+			Logger.log(getClass(), LogLevel.ERROR, "Error loading PAC script.", e);
+			throw new ProxyEvaluationException("Error loading PAC script: " + e.getMessage(), e);
+		}
+		CompiledContent current = this.compiled;
+		if (current != null && current.content.equals(content)) {
+			return current.script;
+		}
+		synchronized (this) {
+			current = this.compiled;
+			if (current == null || !current.content.equals(content)) {
+				current = new CompiledContent(content, compile(content));
+				this.compiled = current;
+			}
+		}
+		return current.script;
+	}
+
+	private CompiledPacScript compile(String content) {
+		try {
+			return PacScriptCompiler.compile(content);
+		} catch (UnsupportedScriptException e) {
+			Logger.log(getClass(), LogLevel.DEBUG, "PAC script is evaluated with the script engine: {}",
+			        e.getMessage());
+			return null;
+		}
+	}
+
+	/*************************************************************************
+	 * Gets the script engine based parser for unsupported scripts and creates
+	 * it if needed.
+	 *
+	 * @return the fallback parser.
+	 * @throws ProxyEvaluationException
+	 *             on engine setup error.
+	 ************************************************************************/
+
+	private PacScriptParser getFallbackParser() throws ProxyEvaluationException {
+		PacScriptParser parser = this.fallbackParser;
+		if (parser == null) {
+			synchronized (this) {
+				parser = this.fallbackParser;
+				if (parser == null) {
+					parser = createFallbackParser();
+					this.fallbackParser = parser;
+				}
+			}
+		}
+		return parser;
+	}
+
+	/*************************************************************************
+	 * Creates the parser that evaluates scripts which are not supported by
+	 * the compiler.
+	 *
+	 * @return the parser.
+	 * @throws ProxyEvaluationException
+	 *             on engine setup error.
+	 ************************************************************************/
+
+	protected PacScriptParser createFallbackParser() throws ProxyEvaluationException {
+		return new JavaxPacScriptParser(this.source);
+	}
+
+	/*************************************************************************
+	 * Checks if the current script content is evaluated natively.
+	 *
+	 * @return true if the script is compiled, false if it is evaluated by the
+	 *         fallback parser.
+	 * @throws ProxyEvaluationException
+	 *             if the script can not be loaded.
+	 ************************************************************************/
+
+	public boolean isCompiledNatively() throws ProxyEvaluationException {
+		return compileIfChanged() != null;
+	}
+
+	@Override
+	public String toString() {
+		return "NativePacScriptParser{" +
+				"source=" + source +
+				'}';
+	}
+}
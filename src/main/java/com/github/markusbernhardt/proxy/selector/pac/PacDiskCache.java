@@ -0,0 +1,196 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+import com.github.markusbernhardt.proxy.util.Logger;
+import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
+
+/*****************************************************************************
+ * Stores the last successfully downloaded PAC script on disk. There is one
+ * file per script URL in the cache directory. It holds the script content,
+ * the HTTP validators and the fetch time. Files are replaced atomically so a
+ * reader never sees a partially written script.
+ ****************************************************************************/
+
+final class PacDiskCache {
+
+	private static final String FILE_SUFFIX = ".pac.cache";
+
+	private static final String KEY_URL = "url";
+	private static final String KEY_CONTENT = "content";
+	private static final String KEY_ETAG = "etag";
+	private static final String KEY_LAST_MODIFIED = "lastModified";
+	private static final String KEY_FETCHED_AT = "fetchedAt";
+	private static final String KEY_EXPIRE_AT = "expireAt";
+
+	/*************************************************************************
+	 * A cached script.
+	 ************************************************************************/
+
+	static final class Entry {
+		final String content;
+		final String etag;
+		final String lastModified;
+		final long fetchedAtMillis;
+		final long expireAtMillis;
+
+		Entry(String content, String etag, String lastModified, long fetchedAtMillis, long expireAtMillis) {
+			this.content = content;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.fetchedAtMillis = fetchedAtMillis;
+			this.expireAtMillis = expireAtMillis;
+		}
+	}
+
+	private final File directory;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param directory
+	 *            the directory for the cache files. It is created if needed.
+	 ************************************************************************/
+
+	PacDiskCache(File directory) {
+		this.directory = directory;
+	}
+
+	/*************************************************************************
+	 * Reads the cached script of the URL.
+	 *
+	 * @param url
+	 *            the script URL.
+	 * @return the cached script, null if there is none or it can not be read.
+	 ************************************************************************/
+
+	Entry read(String url) {
+		File file = getFile(url);
+		if (!file.isFile()) {
+			return null;
+		}
+		Properties properties = new Properties();
+		try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			properties.load(reader);
+		} catch (IOException | IllegalArgumentException e) {
+			Logger.log(getClass(), LogLevel.WARNING, "Reading cached PAC script {} failed: {}", file, e.getMessage());
+			return null;
+		}
+		String content = properties.getProperty(KEY_CONTENT);
+		if (!url.equals(properties.getProperty(KEY_URL)) || content == null || content.isEmpty()) {
+			return null;
+		}
+		try {
+			return new Entry(content, properties.getProperty(KEY_ETAG), properties.getProperty(KEY_LAST_MODIFIED),
+			        Long.parseLong(properties.getProperty(KEY_FETCHED_AT, "0")),
+			        Long.parseLong(properties.getProperty(KEY_EXPIRE_AT, "0")));
+		} catch (NumberFormatException e) {
+			Logger.log(getClass(), LogLevel.WARNING, "Cached PAC script {} is invalid.", file);
+			return null;
+		}
+	}
+
+	/*************************************************************************
+	 * Writes the script of the URL. Errors are logged only, the cache is an
+	 * optimization.
+	 *
+	 * @param url
+	 *            the script URL.
+	 * @param entry
+	 *            the script to store.
+	 ************************************************************************/
+
+	void write(String url, Entry entry) {
+		Properties properties = new Properties();
+		properties.setProperty(KEY_URL, url);
+		properties.setProperty(KEY_CONTENT, entry.content);
+		if (entry.etag != null) {
+			properties.setProperty(KEY_ETAG, entry.etag);
+		}
+		if (entry.lastModified != null) {
+			properties.setProperty(KEY_LAST_MODIFIED, entry.lastModified);
+		}
+		properties.setProperty(KEY_FETCHED_AT, Long.toString(entry.fetchedAtMillis));
+		properties.setProperty(KEY_EXPIRE_AT, Long.toString(entry.expireAtMillis));
+
+		Path target = getFile(url).toPath();
+		Path temp = null;
+		try {
+			Files.createDirectories(this.directory.toPath());
+			temp = Files.createTempFile(this.directory.toPath(), target.getFileName().toString(), ".tmp");
+			try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+				properties.store(writer, "PAC script cache");
+			}
+			try {
+				Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+			temp = null;
+		} catch (IOException e) {
+			Logger.log(getClass(), LogLevel.WARNING, "Writing cached PAC script {} failed: {}", target,
+			        e.getMessage());
+		} finally {
+			if (temp != null) {
+				try {
+					Files.deleteIfExists(temp);
+				} catch (IOException e) {
+					// Ignore, only a leftover temp file.
+				}
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Gets the cache file of the URL. The file name is the SHA-256 hash of the
+	 * URL.
+	 *
+	 * @param url
+	 *            the script URL.
+	 * @return the cache file.
+	 ************************************************************************/
+
+	File getFile(String url) {
+		return new File(this.directory, sha256(url) + FILE_SUFFIX);
+	}
+
+	/*************************************************************************
+	 * Computes the SHA-256 hash of a text.
+	 *
+	 * @param text
+	 *            the text, encoded as UTF-8.
+	 * @return the hash as hex string.
+	 ************************************************************************/
+
+	static String sha256(String text) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+			StringBuilder result = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return result.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform supports SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "PacDiskCache{" +
+				"directory=" + directory +
+				'}';
+	}
+}
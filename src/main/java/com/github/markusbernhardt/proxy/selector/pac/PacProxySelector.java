@@ -9,6 +9,7 @@ import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.github.markusbernhardt.proxy.util.AsyncDnsResolver;
 import com.github.markusbernhardt.proxy.util.Logger;
 import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
 import com.github.markusbernhardt.proxy.util.ProxyUtil;
@@ -30,6 +31,14 @@ public class PacProxySelector extends ProxySelector {
 
     private PacScriptParser pacScriptParser;
 
+    private volatile long dnsTimeout;
+
+    /**
+     * Set this system property to "true" to evaluate PAC scripts with the {@link NativePacScriptParser}. Scripts that
+     * are not supported by it are still evaluated by the JavaScript engine.
+     */
+    public static final String NATIVE_PARSER_PROP = "com.github.markusbernhardt.proxy.pacNativeParser";
+
     private static volatile boolean enabled = true;
 
     /*************************************************************************
@@ -44,6 +53,22 @@ public class PacProxySelector extends ProxySelector {
         selectEngine(pacSource);
     }
 
+    /*************************************************************************
+     * Constructor to use a given PAC parser, e.g. a {@link PacScriptParserPool} to evaluate the script concurrently
+     * with several engines.
+     * 
+     * @param pacScriptParser
+     *            the parser to evaluate the PAC script with.
+     ************************************************************************/
+
+    public PacProxySelector(PacScriptParser pacScriptParser) {
+        super();
+        if (pacScriptParser == null) {
+            throw new NullPointerException("PAC parser must not be null.");
+        }
+        this.pacScriptParser = pacScriptParser;
+    }
+
     /*************************************************************************
      * Can be used to enable / disable the proxy selector. If disabled it will return DIRECT for all urls.
      * 
@@ -65,6 +90,53 @@ public class PacProxySelector extends ProxySelector {
         return enabled;
     }
 
+    /*************************************************************************
+     * Sets the maximum time an evaluation of the PAC script may spend with DNS lookups. All lookups of one evaluation
+     * share this time. Lookups that do not finish in time are abandoned and treated as unresolvable hosts.
+     * <p>
+     * The deadline is respected by the {@link com.github.markusbernhardt.proxy.util.AsyncDnsResolver} that is part of
+     * the default DNS resolver.
+     * </p>
+     * 
+     * @param dnsTimeout
+     *            the time as amount of milliseconds, 0 to wait for lookups without time limit.
+     ************************************************************************/
+
+    public void setDnsTimeout(long dnsTimeout) {
+        this.dnsTimeout = dnsTimeout;
+    }
+
+    /*************************************************************************
+     * Gets the maximum time an evaluation of the PAC script may spend with DNS lookups.
+     * 
+     * @return the time as amount of milliseconds, 0 if there is no time limit.
+     ************************************************************************/
+
+    public long getDnsTimeout() {
+        return this.dnsTimeout;
+    }
+
+    /*************************************************************************
+     * Gets a hash of the PAC script content. It identifies the script version, e.g. to check if a snapshot of
+     * {@link com.github.markusbernhardt.proxy.selector.misc.BufferedProxySelector} was computed with the same script.
+     * 
+     * @return the SHA-256 hash as hex string, null if the script can not be loaded.
+     ************************************************************************/
+
+    public String getScriptContentHash() {
+        if (this.pacScriptParser == null || this.pacScriptParser.getScriptSource() == null) {
+            return null;
+        }
+        try {
+            return PacDiskCache.sha256(this.pacScriptParser.getScriptSource().getScriptContent());
+        }
+        catch (IOException e) {
+            Logger.log(getClass(), LogLevel.WARNING, "Loading PAC script for the content hash failed: {}",
+                e.getMessage());
+            return null;
+        }
+    }
+
     /*************************************************************************
      * Selects one of the available PAC parser engines.
      * 
@@ -74,6 +146,11 @@ public class PacProxySelector extends ProxySelector {
 
     private void selectEngine(PacScriptSource pacSource) {
         try {
+            if (Boolean.getBoolean(NATIVE_PARSER_PROP)) {
+                Logger.log(getClass(), LogLevel.INFO, "Using native PAC parser.");
+                pacScriptParser = new NativePacScriptParser(pacSource);
+                return;
+            }
             Logger.log(getClass(), LogLevel.INFO, "Using javax.script JavaScript engine.");
             pacScriptParser = new JavaxPacScriptParser(pacSource);
         }
@@ -128,7 +205,7 @@ public class PacProxySelector extends ProxySelector {
             if (pacScriptParser == null) {
                 return ProxyUtil.noProxyList();
             }
-            String parseResult = pacScriptParser.evaluate(uri.toString(), uri.getHost());
+            String parseResult = evaluate(uri);
             if (parseResult == null) {
                 return ProxyUtil.noProxyList();
             }
@@ -147,6 +224,30 @@ public class PacProxySelector extends ProxySelector {
         }
     }
 
+    /*************************************************************************
+     * Evaluates the PAC script with the DNS deadline of this selector.
+     * 
+     * @param uri
+     *            <code>URI</code> to be evaluated.
+     * @return the script result.
+     * @throws ProxyEvaluationException
+     *             on execution error.
+     ************************************************************************/
+
+    private String evaluate(URI uri) throws ProxyEvaluationException {
+        long timeout = this.dnsTimeout;
+        if (timeout <= 0) {
+            return pacScriptParser.evaluate(uri.toString(), uri.getHost());
+        }
+        AsyncDnsResolver.setDeadline(System.nanoTime() + timeout * 1000 * 1000);
+        try {
+            return pacScriptParser.evaluate(uri.toString(), uri.getHost());
+        }
+        finally {
+            AsyncDnsResolver.clearDeadline();
+        }
+    }
+
     /*************************************************************************
      * The proxy evaluator will return a proxy string. This method will take this string and build a matching
      * <code>Proxy</code> for it.
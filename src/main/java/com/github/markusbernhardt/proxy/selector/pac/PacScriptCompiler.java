@@ -0,0 +1,537 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.markusbernhardt.proxy.selector.pac.CompiledPacScript.Block;
+import com.github.markusbernhardt.proxy.selector.pac.CompiledPacScript.Call;
+import com.github.markusbernhardt.proxy.selector.pac.CompiledPacScript.Comparison;
+import com.github.markusbernhardt.proxy.selector.pac.CompiledPacScript.DomainIs;
+import com.github.markusbernhardt.proxy.selector.pac.CompiledPacScript.DomainSuffixTrie;
+import com.github.markusbernhardt.proxy.selector.pac.CompiledPacScript.Expression;
+import com.github.markusbernhardt.proxy.selector.pac.CompiledPacScript.If;
+import com.github.markusbernhardt.proxy.selector.pac.CompiledPacScript.InNet;
+import com.github.markusbernhardt.proxy.selector.pac.CompiledPacScript.Literal;
+import com.github.markusbernhardt.proxy.selector.pac.CompiledPacScript.Logical;
+import com.github.markusbernhardt.proxy.selector.pac.CompiledPacScript.Not;
+import com.github.markusbernhardt.proxy.selector.pac.CompiledPacScript.PacFunction;
+import com.github.markusbernhardt.proxy.selector.pac.CompiledPacScript.Parameter;
+import com.github.markusbernhardt.proxy.selector.pac.CompiledPacScript.Return;
+import com.github.markusbernhardt.proxy.selector.pac.CompiledPacScript.ShExpMatch;
+import com.github.markusbernhardt.proxy.selector.pac.CompiledPacScript.ShellExpression;
+import com.github.markusbernhardt.proxy.selector.pac.CompiledPacScript.Statement;
+import com.github.markusbernhardt.proxy.selector.pac.CompiledPacScript.Type;
+
+/*****************************************************************************
+ * Compiles the common subset of PAC scripts into a
+ * <code>CompiledPacScript</code> that is evaluated without a JavaScript
+ * engine.
+ * <p>
+ * Supported is a script that consists of the <code>FindProxyForURL</code>
+ * function only. Its body may contain blocks, <code>if</code> /
+ * <code>else</code> statements and <code>return</code> statements with a
+ * string literal. Conditions may use the logical and comparison operators,
+ * string, number and boolean literals, the function parameters and calls of
+ * the PAC functions that do not depend on the current time. Everything else
+ * is reported with an <code>UnsupportedScriptException</code> and the script
+ * has to be evaluated by a JavaScript engine.
+ * </p>
+ ****************************************************************************/
+
+final class PacScriptCompiler {
+
+	/*************************************************************************
+	 * Thrown if the script uses a construct that is not supported by the
+	 * compiler.
+	 ************************************************************************/
+
+	static final class UnsupportedScriptException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+
+		UnsupportedScriptException(String message) {
+			super(message);
+		}
+	}
+
+	private static final int MAX_PARAMETERS = 2;
+
+	private enum Kind {
+		IDENTIFIER, STRING, NUMBER, PUNCTUATOR, END
+	}
+
+	private static final class Token {
+		final Kind kind;
+		final String text;
+		final boolean newlineBefore;
+
+		Token(Kind kind, String text, boolean newlineBefore) {
+			this.kind = kind;
+			this.text = text;
+			this.newlineBefore = newlineBefore;
+		}
+
+		boolean is(String punctuator) {
+			return this.kind == Kind.PUNCTUATOR && this.text.equals(punctuator);
+		}
+
+		boolean isKeyword(String keyword) {
+			return this.kind == Kind.IDENTIFIER && this.text.equals(keyword);
+		}
+
+		@Override
+		public String toString() {
+			return this.kind == Kind.END ? "end of script" : "'" + this.text + "'";
+		}
+	}
+
+	private static final String[] PUNCTUATORS = { "===", "!==", "==", "!=", "<=", ">=", "&&", "||", "(", ")", "{",
+	        "}", ",", ";", "!", "<", ">" };
+
+	private final List<Token> tokens;
+	private int position;
+	private final List<String> parameters = new ArrayList<String>();
+	private final List<DomainSuffixTrie> tries = new ArrayList<DomainSuffixTrie>();
+	private final int[] trieOfParameter = new int[MAX_PARAMETERS];
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param script
+	 *            the script content.
+	 * @throws UnsupportedScriptException
+	 *             if the script can not be tokenized.
+	 ************************************************************************/
+
+	private PacScriptCompiler(String script) throws UnsupportedScriptException {
+		this.tokens = tokenize(script);
+		for (int i = 0; i < MAX_PARAMETERS; i++) {
+			this.trieOfParameter[i] = -1;
+		}
+	}
+
+	/*************************************************************************
+	 * Compiles the given PAC script.
+	 *
+	 * @param script
+	 *            the script content.
+	 * @return the compiled script.
+	 * @throws UnsupportedScriptException
+	 *             if the script uses constructs that are not supported.
+	 ************************************************************************/
+
+	static CompiledPacScript compile(String script) throws UnsupportedScriptException {
+		return new PacScriptCompiler(script).parseScript();
+	}
+
+	// ---------------------------------------------------------------------
+	// Tokenizer
+	// ---------------------------------------------------------------------
+
+	private static List<Token> tokenize(String script) throws UnsupportedScriptException {
+		List<Token> result = new ArrayList<Token>();
+		int length = script.length();
+		int i = 0;
+		boolean newline = false;
+		if (length > 0 && script.charAt(0) == '\uFEFF') {
+			i++;
+		}
+		while (i < length) {
+			char c = script.charAt(i);
+			if (c == '\n' || c == '\r' || c == '\u2028' || c == '\u2029') {
+				newline = true;
+				i++;
+			} else if (Character.isWhitespace(c) || Character.isSpaceChar(c)) {
+				i++;
+			} else if (c == '/' && i + 1 < length && script.charAt(i + 1) == '/') {
+				while (i < length && script.charAt(i) != '\n' && script.charAt(i) != '\r') {
+					i++;
+				}
+			} else if (c == '/' && i + 1 < length && script.charAt(i + 1) == '*') {
+				int end = script.indexOf("*/", i + 2);
+				if (end < 0) {
+					throw new UnsupportedScriptException("Unterminated comment");
+				}
+				String comment = script.substring(i, end);
+				if (comment.indexOf('\n') >= 0 || comment.indexOf('\r') >= 0) {
+					newline = true;
+				}
+				i = end + 2;
+			} else if (c == '"' || c == '\'') {
+				StringBuilder value = new StringBuilder();
+				i = readString(script, i, value);
+				result.add(new Token(Kind.STRING, value.toString(), newline));
+				newline = false;
+			} else if (c >= '0' && c <= '9') {
+				int start = i;
+				while (i < length && script.charAt(i) >= '0' && script.charAt(i) <= '9') {
+					i++;
+				}
+				if (i < length && (Character.isJavaIdentifierPart(script.charAt(i)) || script.charAt(i) == '.')) {
+					throw new UnsupportedScriptException("Unsupported number literal");
+				}
+				String number = script.substring(start, i);
+				if (number.length() > 1 && number.charAt(0) == '0' || number.length() > 15) {
+					throw new UnsupportedScriptException("Unsupported number literal " + number);
+				}
+				result.add(new Token(Kind.NUMBER, number, newline));
+				newline = false;
+			} else if (Character.isJavaIdentifierStart(c) && c != '\\') {
+				int start = i;
+				while (i < length && Character.isJavaIdentifierPart(script.charAt(i))
+				        && !Character.isIdentifierIgnorable(script.charAt(i))) {
+					i++;
+				}
+				result.add(new Token(Kind.IDENTIFIER, script.substring(start, i), newline));
+				newline = false;
+			} else {
+				String punctuator = null;
+				for (String candidate : PUNCTUATORS) {
+					if (script.startsWith(candidate, i)) {
+						punctuator = candidate;
+						break;
+					}
+				}
+				if (punctuator == null) {
+					throw new UnsupportedScriptException("Unsupported character '" + c + "'");
+				}
+				result.add(new Token(Kind.PUNCTUATOR, punctuator, newline));
+				newline = false;
+				i += punctuator.length();
+			}
+		}
+		result.add(new Token(Kind.END, "", newline));
+		return result;
+	}
+
+	private static int readString(String script, int start, StringBuilder value) throws UnsupportedScriptException {
+		char quote = script.charAt(start);
+		int i = start + 1;
+		while (i < script.length()) {
+			char c = script.charAt(i++);
+			if (c == quote) {
+				return i;
+			}
+			if (c == '\n' || c == '\r') {
+				break;
+			}
+			if (c != '\\') {
+				value.append(c);
+				continue;
+			}
+			if (i >= script.length()) {
+				break;
+			}
+			char escaped = script.charAt(i++);
+			switch (escaped) {
+			case '\\':
+			case '\'':
+			case '"':
+				value.append(escaped);
+				break;
+			case 'n':
+				value.append('\n');
+				break;
+			case 't':
+				value.append('\t');
+				break;
+			case 'r':
+				value.append('\r');
+				break;
+			default:
+				throw new UnsupportedScriptException("Unsupported escape sequence \\" + escaped);
+			}
+		}
+		throw new UnsupportedScriptException("Unterminated string literal");
+	}
+
+	// ---------------------------------------------------------------------
+	// Parser
+	// ---------------------------------------------------------------------
+
+	private Token peek() {
+		return this.tokens.get(this.position);
+	}
+
+	private Token next() {
+		Token token = this.tokens.get(this.position);
+		if (token.kind != Kind.END) {
+			this.position++;
+		}
+		return token;
+	}
+
+	private void expect(String punctuator) throws UnsupportedScriptException {
+		Token token = next();
+		if (!token.is(punctuator)) {
+			throw new UnsupportedScriptException("Expected '" + punctuator + "' but found " + token);
+		}
+	}
+
+	private CompiledPacScript parseScript() throws UnsupportedScriptException {
+		skipEmptyStatements();
+		if (!next().isKeyword("function") || !next().isKeyword(JavaxPacScriptParser.ENTRY_POINT)) {
+			throw new UnsupportedScriptException("Script must consist of the function "
+			        + JavaxPacScriptParser.ENTRY_POINT + " only");
+		}
+		expect("(");
+		if (!peek().is(")")) {
+			do {
+				Token name = next();
+				if (name.kind != Kind.IDENTIFIER || isReserved(name.text) || this.parameters.contains(name.text)) {
+					throw new UnsupportedScriptException("Unsupported parameter " + name);
+				}
+				if (this.parameters.size() == MAX_PARAMETERS) {
+					throw new UnsupportedScriptException("Too many parameters");
+				}
+				this.parameters.add(name.text);
+			} while (peek().is(",") && next() != null);
+		}
+		expect(")");
+		Statement body = parseBlock();
+		skipEmptyStatements();
+		if (peek().kind != Kind.END) {
+			throw new UnsupportedScriptException("Unsupported top level code " + peek());
+		}
+		return new CompiledPacScript(body, this.parameters.size(),
+		        this.tries.toArray(new DomainSuffixTrie[this.tries.size()]));
+	}
+
+	private void skipEmptyStatements() {
+		while (peek().is(";")) {
+			next();
+		}
+	}
+
+	private static boolean isReserved(String name) {
+		return PacFunction.forName(name) != null || "true".equals(name) || "false".equals(name)
+		        || "if".equals(name) || "else".equals(name) || "return".equals(name) || "function".equals(name)
+		        || "undefined".equals(name) || "arguments".equals(name);
+	}
+
+	private Statement parseBlock() throws UnsupportedScriptException {
+		expect("{");
+		List<Statement> statements = new ArrayList<Statement>();
+		while (!peek().is("}")) {
+			if (peek().kind == Kind.END) {
+				throw new UnsupportedScriptException("Unterminated block");
+			}
+			Statement statement = parseStatement();
+			if (statement != null) {
+				statements.add(statement);
+			}
+		}
+		next();
+		return new Block(statements);
+	}
+
+	private Statement parseStatement() throws UnsupportedScriptException {
+		Token token = peek();
+		if (token.is("{")) {
+			return parseBlock();
+		}
+		if (token.is(";")) {
+			next();
+			return null;
+		}
+		if (token.isKeyword("if")) {
+			next();
+			expect("(");
+			Expression condition = parseExpression();
+			expect(")");
+			Statement then = emptyIfNull(parseStatement());
+			Statement otherwise = null;
+			if (peek().isKeyword("else")) {
+				next();
+				otherwise = emptyIfNull(parseStatement());
+			}
+			return new If(condition, then, otherwise);
+		}
+		if (token.isKeyword("return")) {
+			next();
+			String value = null;
+			Token result = peek();
+			if (!result.newlineBefore && !result.is(";") && !result.is("}") && result.kind != Kind.END) {
+				if (result.kind != Kind.STRING) {
+					throw new UnsupportedScriptException("Only string literals can be returned");
+				}
+				next();
+				value = result.text;
+			}
+			endStatement();
+			return new Return(value);
+		}
+		throw new UnsupportedScriptException("Unsupported statement " + token);
+	}
+
+	private static Statement emptyIfNull(Statement statement) {
+		return statement != null ? statement : new Block(new ArrayList<Statement>());
+	}
+
+	private void endStatement() throws UnsupportedScriptException {
+		Token token = peek();
+		if (token.is(";")) {
+			next();
+		} else if (!token.newlineBefore && !token.is("}") && token.kind != Kind.END) {
+			throw new UnsupportedScriptException("Unexpected " + token);
+		}
+	}
+
+	private Expression parseExpression() throws UnsupportedScriptException {
+		Expression left = parseAnd();
+		while (peek().is("||")) {
+			next();
+			left = new Logical(false, left, parseAnd());
+		}
+		return left;
+	}
+
+	private Expression parseAnd() throws UnsupportedScriptException {
+		Expression left = parseEquality();
+		while (peek().is("&&")) {
+			next();
+			left = new Logical(true, left, parseEquality());
+		}
+		return left;
+	}
+
+	private Expression parseEquality() throws UnsupportedScriptException {
+		Expression left = parseRelational();
+		while (peek().is("==") || peek().is("===") || peek().is("!=") || peek().is("!==")) {
+			int operator = next().text.startsWith("=") ? Comparison.EQ : Comparison.NE;
+			Expression right = parseRelational();
+			checkComparable(left, right, false);
+			left = new Comparison(operator, left, right);
+		}
+		return left;
+	}
+
+	private Expression parseRelational() throws UnsupportedScriptException {
+		Expression left = parseUnary();
+		while (peek().is("<") || peek().is(">") || peek().is("<=") || peek().is(">=")) {
+			String text = next().text;
+			int operator = "<".equals(text) ? Comparison.LT
+			        : ">".equals(text) ? Comparison.GT : "<=".equals(text) ? Comparison.LE : Comparison.GE;
+			Expression right = parseUnary();
+			checkComparable(left, right, true);
+			left = new Comparison(operator, left, right);
+		}
+		return left;
+	}
+
+	/*************************************************************************
+	 * Only values of the same type are compared. That avoids to implement the
+	 * type conversions of JavaScript.
+	 ************************************************************************/
+
+	private static void checkComparable(Expression left, Expression right, boolean relational)
+	        throws UnsupportedScriptException {
+		Type type = left.getType();
+		if (type != right.getType() || type == Type.TRUTHY || relational && type == Type.BOOLEAN) {
+			throw new UnsupportedScriptException("Unsupported comparison of " + type + " and " + right.getType());
+		}
+	}
+
+	private Expression parseUnary() throws UnsupportedScriptException {
+		if (peek().is("!")) {
+			next();
+			return new Not(parseUnary());
+		}
+		return parsePrimary();
+	}
+
+	private Expression parsePrimary() throws UnsupportedScriptException {
+		Token token = next();
+		switch (token.kind) {
+		case STRING:
+			return new Literal(token.text, Type.STRING);
+		case NUMBER:
+			return new Literal(Double.valueOf(token.text), Type.NUMBER);
+		case IDENTIFIER:
+			if (token.text.equals("true") || token.text.equals("false")) {
+				return new Literal(Boolean.valueOf(token.text), Type.BOOLEAN);
+			}
+			int parameter = this.parameters.indexOf(token.text);
+			if (parameter >= 0) {
+				return new Parameter(parameter);
+			}
+			if (peek().is("(")) {
+				return parseCall(token.text);
+			}
+			throw new UnsupportedScriptException("Unsupported identifier " + token);
+		default:
+			if (token.is("(")) {
+				Expression expression = parseExpression();
+				expect(")");
+				return expression;
+			}
+			throw new UnsupportedScriptException("Unexpected " + token);
+		}
+	}
+
+	private Expression parseCall(String name) throws UnsupportedScriptException {
+		PacFunction function = PacFunction.forName(name);
+		if (function == null) {
+			throw new UnsupportedScriptException("Unsupported function " + name);
+		}
+		expect("(");
+		List<Expression> arguments = new ArrayList<Expression>();
+		if (!peek().is(")")) {
+			do {
+				Expression argument = parseExpression();
+				if (argument.getType() != Type.STRING) {
+					throw new UnsupportedScriptException("Unsupported argument for " + name);
+				}
+				arguments.add(argument);
+			} while (peek().is(",") && next() != null);
+		}
+		expect(")");
+		if (arguments.size() != function.arity) {
+			throw new UnsupportedScriptException("Unsupported number of arguments for " + name);
+		}
+		return specialize(function, arguments.toArray(new Expression[arguments.size()]));
+	}
+
+	/*************************************************************************
+	 * Replaces calls with literal arguments by precompiled matchers.
+	 ************************************************************************/
+
+	private Expression specialize(PacFunction function, Expression[] arguments) {
+		switch (function) {
+		case DNS_DOMAIN_IS:
+			if (arguments[0] instanceof Parameter && arguments[1] instanceof Literal) {
+				int parameter = ((Parameter) arguments[0]).getIndex();
+				int trie = this.trieOfParameter[parameter];
+				if (trie < 0) {
+					trie = this.tries.size();
+					this.tries.add(new DomainSuffixTrie());
+					this.trieOfParameter[parameter] = trie;
+				}
+				String domain = (String) arguments[1].evaluate(null);
+				return new DomainIs(parameter, trie, this.tries.get(trie).add(domain));
+			}
+			break;
+		case SH_EXP_MATCH:
+			if (arguments[1] instanceof Literal) {
+				return new ShExpMatch(arguments[0], new ShellExpression((String) arguments[1].evaluate(null)));
+			}
+			break;
+		case IS_IN_NET:
+			if (arguments[1] instanceof Literal && arguments[2] instanceof Literal) {
+				try {
+					long pattern = PacScriptMethods.parseIpAddressToLong((String) arguments[1].evaluate(null));
+					long mask = PacScriptMethods.parseIpAddressToLong((String) arguments[2].evaluate(null));
+					return new InNet(arguments[0], pattern, mask);
+				} catch (NumberFormatException e) {
+					// Keep the call to fail at evaluation time like the script
+					// engine does.
+				}
+			}
+			break;
+		default:
+			break;
+		}
+		return new Call(function, arguments);
+	}
+
+}
@@ -21,8 +21,10 @@ import java.util.StringTokenizer;
 import java.util.TimeZone;
 import java.util.TreeMap;
 
+import com.github.markusbernhardt.proxy.util.DnsResolver;
 import com.github.markusbernhardt.proxy.util.Logger;
 import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
+import com.github.markusbernhardt.proxy.util.ProxyUtil;
 
 /***************************************************************************
  * Implementation of PAC JavaScript functions.
@@ -60,12 +62,79 @@ public class PacScriptMethods implements ScriptMethods {
 	
 	private Calendar currentTime;
 
+	private final DnsResolver dnsResolver;
+
+	// Lookups of the current evaluation per thread, null outside of an evaluation
+	private final ThreadLocal<Map<String, Object>> evaluationLookups = new ThreadLocal<Map<String, Object>>();
+
 	/*************************************************************************
-	 * Constructor
+	 * Constructor that uses the DNS resolver set in {@link ProxyUtil}.
 	 ************************************************************************/
 
 	public PacScriptMethods() {
+		this(null);
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 * 
+	 * @param dnsResolver
+	 *            the resolver for the DNS lookups, null to use the resolver set
+	 *            in {@link ProxyUtil}.
+	 ************************************************************************/
+
+	public PacScriptMethods(DnsResolver dnsResolver) {
 		super();
+		this.dnsResolver = dnsResolver;
+	}
+
+	/*************************************************************************
+	 * Starts the evaluation of a script on the current thread. Until the
+	 * evaluation is ended every host is looked up only once.
+	 ************************************************************************/
+
+	void startEvaluation() {
+		this.evaluationLookups.set(new HashMap<String, Object>(4));
+	}
+
+	/*************************************************************************
+	 * Ends the evaluation on the current thread and drops its lookups.
+	 ************************************************************************/
+
+	void endEvaluation() {
+		this.evaluationLookups.remove();
+	}
+
+	/*************************************************************************
+	 * Resolves all addresses of the given host. Within an evaluation the
+	 * result of the first lookup of a host is reused.
+	 * 
+	 * @param host
+	 *            the host to resolve.
+	 * @return all addresses of the host.
+	 * @throws UnknownHostException
+	 *             if the host can not be resolved.
+	 ************************************************************************/
+
+	private InetAddress[] resolve(String host) throws UnknownHostException {
+		DnsResolver resolver = this.dnsResolver != null ? this.dnsResolver : ProxyUtil.getDnsResolver();
+		Map<String, Object> lookups = this.evaluationLookups.get();
+		if (lookups == null) {
+			return resolver.resolve(host);
+		}
+		Object result = lookups.get(host);
+		if (result == null) {
+			try {
+				result = resolver.resolve(host);
+			} catch (UnknownHostException e) {
+				result = e;
+			}
+			lookups.put(host, result);
+		}
+		if (result instanceof UnknownHostException) {
+			throw (UnknownHostException) result;
+		}
+		return (InetAddress[]) result;
 	}
 
 	/*************************************************************************
@@ -118,7 +187,7 @@ public class PacScriptMethods implements ScriptMethods {
 
 	public boolean isResolvable(String host) {
 		try {
-			InetAddress.getByName(host).getHostAddress();
+			resolve(host);
 			return true;
 		} catch (UnknownHostException ex) {
 			Logger.log(JavaxPacScriptParser.class, LogLevel.DEBUG, "Hostname not resolveable {}.", host);
@@ -165,7 +234,7 @@ public class PacScriptMethods implements ScriptMethods {
 	 * @return the address as long.
 	 ************************************************************************/
 
-	private long parseIpAddressToLong(String address) {
+	static long parseIpAddressToLong(String address) {
 		long result = 0;
 		String[] parts = address.split("\\.");
 		long shift = 24;
@@ -190,7 +259,7 @@ public class PacScriptMethods implements ScriptMethods {
 
 	public String dnsResolve(String host) {
 		try {
-			InetAddress ina = InetAddress.getByName(host);
+			InetAddress ina = resolve(host)[0];
 			return ina.getHostAddress();
 		} catch (UnknownHostException e) {
 			Logger.log(JavaxPacScriptParser.class, LogLevel.DEBUG, "DNS name not resolvable {}.", host);
@@ -660,12 +729,12 @@ public class PacScriptMethods implements ScriptMethods {
 			String cidrRange = cidrParts[0];
 			int cidrBits = Integer.parseInt(cidrParts[1]);
 
-			byte[] addressBytes = InetAddress.getByName(ipOrHost).getAddress();
+			byte[] addressBytes = resolve(ipOrHost)[0].getAddress();
 			BigInteger ip = new BigInteger(addressBytes);
 			BigInteger mask = addressBytes.length == 4 ? HIGH_32_INT.shiftLeft(32 - cidrBits)
 			        : HIGH_128_INT.shiftLeft(128 - cidrBits);
 
-			byte[] rangeBytes = InetAddress.getByName(cidrRange).getAddress();
+			byte[] rangeBytes = resolve(cidrRange)[0].getAddress();
 			BigInteger range = new BigInteger(rangeBytes);
 			BigInteger lowIP = range.and(mask);
 			BigInteger highIP = lowIP.add(mask.not());
@@ -685,7 +754,7 @@ public class PacScriptMethods implements ScriptMethods {
 	public String dnsResolveEx(String host) {
 		StringBuilder result = new StringBuilder();
 		try {
-			InetAddress[] list = InetAddress.getAllByName(host);
+			InetAddress[] list = resolve(host);
 			for (InetAddress inetAddress : list) {
 				result.append(inetAddress.getHostAddress());
 				result.append("; ");
@@ -0,0 +1,245 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.github.markusbernhardt.proxy.util.Logger;
+import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
+
+/*****************************************************************************
+ * PAC script parser that spreads the evaluations over a bounded pool of
+ * independent script engines. Every engine has its own JavaScript scope and
+ * its own <code>PacScriptMethods</code> instance so concurrent evaluations do
+ * not share any mutable state.
+ * <p>
+ * Engines are created lazily on demand until the maximum pool size is
+ * reached. If all engines are in use the configured
+ * <code>ExhaustedAction</code> decides what happens with the evaluation.
+ * </p>
+ ****************************************************************************/
+
+public class PacScriptParserPool implements PacScriptParser {
+
+	/*************************************************************************
+	 * Define what to do when all engines of the pool are in use.
+	 ************************************************************************/
+
+	public enum ExhaustedAction {
+
+		/*********************************************************************
+		 * Wait until an engine is returned to the pool. If no engine is
+		 * available within the maximum wait time the evaluation fails.
+		 ********************************************************************/
+
+		BLOCK,
+
+		/*********************************************************************
+		 * Do not wait but evaluate the script with a shared fallback engine
+		 * that is used concurrently by all overflowing callers.
+		 ********************************************************************/
+
+		FALLBACK
+	}
+
+	private final PacScriptSource source;
+	private final int maxSize;
+	private final ExhaustedAction exhaustedAction;
+	private final long maxWaitMs;
+
+	private final Semaphore permits;
+	private final ConcurrentLinkedQueue<PacScriptParser> idleEngines;
+	private volatile PacScriptParser fallbackEngine;
+
+	/*************************************************************************
+	 * Constructor for a pool with one engine per available processor that
+	 * blocks when exhausted.
+	 *
+	 * @param source
+	 *            the source for the PAC script.
+	 ************************************************************************/
+
+	public PacScriptParserPool(PacScriptSource source) {
+		this(source, defaultPoolSize(), ExhaustedAction.BLOCK, 0);
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param source
+	 *            the source for the PAC script.
+	 * @param maxSize
+	 *            the maximum number of engines in the pool.
+	 * @param exhaustedAction
+	 *            what to do when all engines are in use.
+	 * @param maxWaitMs
+	 *            the maximum time to wait for an engine as amount of
+	 *            milliseconds when blocking. Set it to 0 to wait without a
+	 *            time limit.
+	 ************************************************************************/
+
+	public PacScriptParserPool(PacScriptSource source, int maxSize, ExhaustedAction exhaustedAction,
+	        long maxWaitMs) {
+		super();
+		if (source == null) {
+			throw new NullPointerException("Script source must not be null.");
+		}
+		if (exhaustedAction == null) {
+			throw new NullPointerException("Exhausted action must not be null.");
+		}
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("Pool size must be at least 1.");
+		}
+		this.source = source;
+		this.maxSize = maxSize;
+		this.exhaustedAction = exhaustedAction;
+		this.maxWaitMs = maxWaitMs;
+		this.permits = new Semaphore(maxSize, true);
+		this.idleEngines = new ConcurrentLinkedQueue<PacScriptParser>();
+	}
+
+	/*************************************************************************
+	 * Gets the default pool size. This is the number of processors available
+	 * to the JVM.
+	 *
+	 * @return the default pool size.
+	 ************************************************************************/
+
+	public static int defaultPoolSize() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/***************************************************************************
+	 * getScriptSource
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.PacScriptParser#getScriptSource()
+	 **************************************************************************/
+
+	@Override
+	public PacScriptSource getScriptSource() {
+		return this.source;
+	}
+
+	/*************************************************************************
+	 * evaluate
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.PacScriptParser#evaluate(java.lang.String,
+	 *      java.lang.String)
+	 ************************************************************************/
+
+	@Override
+	public String evaluate(String url, String host) throws ProxyEvaluationException {
+		if (!acquirePermit()) {
+			return getFallbackEngine().evaluate(url, host);
+		}
+		try {
+			PacScriptParser engine = this.idleEngines.poll();
+			if (engine == null) {
+				engine = createEngine();
+			}
+			try {
+				return engine.evaluate(url, host);
+			} finally {
+				this.idleEngines.offer(engine);
+			}
+		} finally {
+			this.permits.release();
+		}
+	}
+
+	/*************************************************************************
+	 * Acquires the permit to use one of the pooled engines.
+	 *
+	 * @return true if a permit was acquired, false if the fallback engine
+	 *         should be used.
+	 * @throws ProxyEvaluationException
+	 *             if blocking and no engine became available in time.
+	 ************************************************************************/
+
+	private boolean acquirePermit() throws ProxyEvaluationException {
+		if (this.permits.tryAcquire()) {
+			return true;
+		}
+		if (this.exhaustedAction == ExhaustedAction.FALLBACK) {
+			return false;
+		}
+		try {
+			if (this.maxWaitMs <= 0) {
+				this.permits.acquire();
+				return true;
+			}
+			if (this.permits.tryAcquire(this.maxWaitMs, TimeUnit.MILLISECONDS)) {
+				return true;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ProxyEvaluationException("Interrupted while waiting for a PAC script engine.", e);
+		}
+		throw new ProxyEvaluationException("No PAC script engine available after " + this.maxWaitMs + " ms.");
+	}
+
+	/*************************************************************************
+	 * Gets the shared fallback engine and creates it if needed.
+	 *
+	 * @return the fallback engine.
+	 * @throws ProxyEvaluationException
+	 *             on engine setup error.
+	 ************************************************************************/
+
+	private PacScriptParser getFallbackEngine() throws ProxyEvaluationException {
+		PacScriptParser engine = this.fallbackEngine;
+		if (engine == null) {
+			synchronized (this) {
+				engine = this.fallbackEngine;
+				if (engine == null) {
+					engine = createEngine();
+					this.fallbackEngine = engine;
+				}
+			}
+		}
+		return engine;
+	}
+
+	/*************************************************************************
+	 * Creates a new independent script engine.
+	 *
+	 * @return the engine.
+	 * @throws ProxyEvaluationException
+	 *             on engine setup error.
+	 ************************************************************************/
+
+	protected PacScriptParser createEngine() throws ProxyEvaluationException {
+		Logger.log(getClass(), LogLevel.DEBUG, "Creating PAC script engine for {}", this.source);
+		return new JavaxPacScriptParser(this.source);
+	}
+
+	/*************************************************************************
+	 * Gets the number of engines that are currently idle in the pool.
+	 *
+	 * @return the number of idle engines.
+	 ************************************************************************/
+
+	public int getIdleCount() {
+		return this.idleEngines.size();
+	}
+
+	/*************************************************************************
+	 * Gets the maximum number of engines in the pool.
+	 *
+	 * @return the maximum pool size.
+	 ************************************************************************/
+
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	@Override
+	public String toString() {
+		return "PacScriptParserPool{" +
+				"source=" + source +
+				", maxSize=" + maxSize +
+				", exhaustedAction=" + exhaustedAction +
+				", maxWaitMs=" + maxWaitMs +
+				'}';
+	}
+}
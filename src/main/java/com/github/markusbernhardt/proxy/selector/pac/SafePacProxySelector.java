@@ -22,6 +22,17 @@ public class SafePacProxySelector extends PacProxySelector {
         super(pacSource);
     }
 
+    /*************************************************************************
+     * Constructor
+     *
+     * @param pacScriptParser
+     *            the parser to evaluate the PAC script with.
+     ***********************************************************************
+     */
+    public SafePacProxySelector(PacScriptParser pacScriptParser) {
+        super(pacScriptParser);
+    }
+
     @Override
     public List<Proxy> select(URI uri) {
         URI safeUri = sanitizeURI(uri);
@@ -3,22 +3,36 @@ package com.github.markusbernhardt.proxy.selector.pac;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.Proxy;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
 
 import com.github.markusbernhardt.proxy.util.Logger;
 import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
 
 /*****************************************************************************
  * Script source that will load the content of a PAC file from an webserver. The
- * script content is cached once it was downloaded.
+ * script content is cached once it was downloaded. When it expires it is
+ * reloaded in the background while the cached content is still used.
+ * <p>
+ * Optionally the last successfully downloaded script is kept in a cache
+ * directory. On startup the cached copy is used at once and revalidated in
+ * the background, so a slow or unreachable server does not delay the first
+ * proxy lookup. The directory is set with the constructor or with the system
+ * property {@value #PAC_CACHE_DIR_PROP}.
+ * </p>
  *
  * @author Markus Bernhardt, Copyright 2016
  * @author Bernd Rosstauscher, Copyright 2009
@@ -28,60 +42,270 @@ public class UrlPacScriptSource implements PacScriptSource {
 
 	private static final int DEFAULT_CONNECT_TIMEOUT = 15 * 1000; // seconds
 	private static final int DEFAULT_READ_TIMEOUT = 20 * 1000; // seconds
+	private static final long REFRESH_RETRY_DELAY = 60 * 1000; // milliseconds
+	private static final long DEFAULT_REVALIDATE_INTERVAL = 60 * 60 * 1000; // milliseconds
 	public static final String OVERRIDE_CONNECT_TIMEOUT = "com.btr.proxy.url.connectTimeout";
 	public static final String OVERRIDE_READ_TIMEOUT = "com.btr.proxy.url.readTimeout";
+	public static final String PAC_CACHE_DIR_PROP = "com.github.markusbernhardt.proxy.pacCacheDir";
+
+	private static volatile Executor refreshExecutor;
 
 	private final String scriptUrl;
-	private String scriptContent;
-	private long expireAtMillis;
+	private final PacDiskCache diskCache;
+	private volatile ScriptSnapshot snapshot;
+	private final AtomicBoolean refreshing;
+	private final AtomicLong downloadCount;
+	private final AtomicLong notModifiedCount;
 
 	/*************************************************************************
-	 * Constructor
+	 * Immutable state of a loaded script. Readers take it without locking.
+	 ************************************************************************/
+
+	private static final class ScriptSnapshot {
+		final String content;
+		final long expireAtMillis;
+		final String etag;
+		final String lastModified;
+		final long lifetimeMillis;
+
+		ScriptSnapshot(String content, long expireAtMillis) {
+			this(content, expireAtMillis, null, null, 0);
+		}
+
+		ScriptSnapshot(String content, long expireAtMillis, String etag, String lastModified, long lifetimeMillis) {
+			this.content = content;
+			this.expireAtMillis = expireAtMillis;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.lifetimeMillis = lifetimeMillis;
+		}
+
+		boolean isExpired(long now) {
+			return this.expireAtMillis > 0 && this.expireAtMillis < now;
+		}
+	}
+
+	/*************************************************************************
+	 * Constructor. The script is cached on disk if the system property
+	 * {@value #PAC_CACHE_DIR_PROP} names a directory.
 	 * 
 	 * @param url
 	 *            the URL to download the script from.
 	 ************************************************************************/
 
 	public UrlPacScriptSource(String url) {
+		this(url, getDefaultCacheDirectory());
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 * 
+	 * @param url
+	 *            the URL to download the script from.
+	 * @param cacheDirectory
+	 *            the directory to keep the last downloaded script in. Null to
+	 *            disable the disk cache.
+	 ************************************************************************/
+
+	public UrlPacScriptSource(String url, File cacheDirectory) {
 		super();
-		this.expireAtMillis = 0;
 		this.scriptUrl = url;
+		this.diskCache = cacheDirectory != null ? new PacDiskCache(cacheDirectory) : null;
+		this.refreshing = new AtomicBoolean();
+		this.downloadCount = new AtomicLong();
+		this.notModifiedCount = new AtomicLong();
 	}
 
 	/*************************************************************************
 	 * getScriptContent
+	 * <p>
+	 * Only the first call loads the script and blocks until it is available.
+	 * Once the loaded script is expired it is still returned while a fresh
+	 * copy is loaded in the background.
+	 * </p>
 	 * 
 	 * @see com.github.markusbernhardt.proxy.selector.pac.PacScriptSource#getScriptContent()
 	 ************************************************************************/
 
-	public synchronized String getScriptContent() throws IOException {
-		if (this.scriptContent == null
-		        || (this.expireAtMillis > 0 && this.expireAtMillis < System.currentTimeMillis())) {
-			try {
-				// Reset it again with next download we should get a new expire
-				// info
-				this.expireAtMillis = 0;
+	public String getScriptContent() throws IOException {
+		ScriptSnapshot current = this.snapshot;
+		if (current == null) {
+			current = loadFirstSnapshot();
+		} else if (current.isExpired(System.currentTimeMillis())) {
+			refreshInBackground();
+		}
+		return current.content;
+	}
 
-				if (this.scriptUrl.startsWith("file:/") || this.scriptUrl.indexOf(":/") == -1) {
-					this.scriptContent = readPacFileContent(this.scriptUrl);
-				} else {
-					this.scriptContent = downloadPacContent(this.scriptUrl);
+	/*************************************************************************
+	 * Loads the script for the first time. Concurrent callers wait for the
+	 * same load.
+	 * 
+	 * @return the loaded script.
+	 * @throws IOException
+	 *             on read error.
+	 ************************************************************************/
+
+	private synchronized ScriptSnapshot loadFirstSnapshot() throws IOException {
+		ScriptSnapshot current = this.snapshot;
+		if (current != null) {
+			return current;
+		}
+		current = readDiskCache();
+		if (current != null) {
+			this.snapshot = current;
+			if (current.isExpired(System.currentTimeMillis())) {
+				refreshInBackground();
+			}
+			return current;
+		}
+		try {
+			current = loadScript(true);
+			this.snapshot = current;
+			writeDiskCache(current);
+			return current;
+		} catch (BadRequestException e) {
+            // FritzBox returns 400 Bad Request 
+            Logger
+                .log(getClass(), LogLevel.INFO, "Loading script failed from: {} with error {}", this.scriptUrl,
+                    e.getMessage());
+            this.snapshot = new ScriptSnapshot("", 0);
+            throw new IOException(e.getMessage());
+		} catch (IOException e) {
+			Logger.log(getClass(), LogLevel.WARNING, "Loading script failed from: {} with error {}", this.scriptUrl,
+			        e.getMessage());
+			this.snapshot = new ScriptSnapshot("", 0);
+			throw e;
+		}
+	}
+
+	/*************************************************************************
+	 * Starts to load a fresh copy of the script in the background unless a
+	 * refresh is already running.
+	 ************************************************************************/
+
+	private void refreshInBackground() {
+		if (!this.refreshing.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			getRefreshExecutor().execute(this::refresh);
+		} catch (RejectedExecutionException e) {
+			this.refreshing.set(false);
+		}
+	}
+
+	/*************************************************************************
+	 * Loads a fresh copy of the script. On error the current script is kept
+	 * and the refresh is retried after a delay.
+	 ************************************************************************/
+
+	private void refresh() {
+		try {
+			ScriptSnapshot loaded = loadScript(false);
+			this.snapshot = loaded;
+			writeDiskCache(loaded);
+		} catch (Exception e) {
+			Logger.log(getClass(), LogLevel.WARNING, "Refreshing script failed from: {} with error {}",
+			        this.scriptUrl, e.getMessage());
+			ScriptSnapshot current = this.snapshot;
+			this.snapshot = new ScriptSnapshot(current.content, System.currentTimeMillis() + REFRESH_RETRY_DELAY,
+			        current.etag, current.lastModified, current.lifetimeMillis);
+		} finally {
+			this.refreshing.set(false);
+		}
+	}
+
+	/*************************************************************************
+	 * Loads the script from a file or a webserver.
+	 * 
+	 * @param disableSelector
+	 *            true to disable the PAC proxy selector during the download.
+	 * @return the loaded script.
+	 * @throws IOException
+	 *             on read error.
+	 * @throws BadRequestException
+	 *             thrown by HTTP 400 response
+	 ************************************************************************/
+
+	private ScriptSnapshot loadScript(boolean disableSelector) throws IOException, BadRequestException {
+		if (isLocalFile()) {
+			return new ScriptSnapshot(readPacFileContent(this.scriptUrl), 0);
+		}
+		return downloadPacContent(this.scriptUrl, disableSelector, this.snapshot);
+	}
+
+	private boolean isLocalFile() {
+		return this.scriptUrl.startsWith("file:/") || this.scriptUrl.indexOf(":/") == -1;
+	}
+
+	/*************************************************************************
+	 * Reads the script from the disk cache. A cached script without a valid
+	 * expire date is treated as expired so that it gets revalidated.
+	 * 
+	 * @return the cached script, null if there is none.
+	 ************************************************************************/
+
+	private ScriptSnapshot readDiskCache() {
+		if (this.diskCache == null || isLocalFile()) {
+			return null;
+		}
+		PacDiskCache.Entry entry = this.diskCache.read(this.scriptUrl);
+		if (entry == null) {
+			return null;
+		}
+		Logger.log(getClass(), LogLevel.DEBUG, "Using cached PAC script for: {}", this.scriptUrl);
+		long expireAtMillis = entry.expireAtMillis > System.currentTimeMillis() ? entry.expireAtMillis : 1;
+		long lifetimeMillis = entry.expireAtMillis > 0 && entry.fetchedAtMillis > 0
+		        ? Math.max(entry.expireAtMillis - entry.fetchedAtMillis, 0) : 0;
+		return new ScriptSnapshot(entry.content, expireAtMillis, entry.etag, entry.lastModified, lifetimeMillis);
+	}
+
+	/*************************************************************************
+	 * Stores a downloaded script in the disk cache.
+	 ************************************************************************/
+
+	private void writeDiskCache(ScriptSnapshot loaded) {
+		if (this.diskCache == null || isLocalFile() || loaded.content.isEmpty()) {
+			return;
+		}
+		this.diskCache.write(this.scriptUrl, new PacDiskCache.Entry(loaded.content, loaded.etag,
+		        loaded.lastModified, System.currentTimeMillis(), loaded.expireAtMillis));
+	}
+
+	/*************************************************************************
+	 * Gets the cache directory from the system property.
+	 ************************************************************************/
+
+	private static File getDefaultCacheDirectory() {
+		String directory = System.getProperty(PAC_CACHE_DIR_PROP);
+		if (directory == null || directory.trim().length() == 0) {
+			return null;
+		}
+		return new File(directory.trim());
+	}
+
+	/*************************************************************************
+	 * Gets the shared executor for background refreshes and creates it if
+	 * needed.
+	 ************************************************************************/
+
+	private static Executor getRefreshExecutor() {
+		Executor executor = refreshExecutor;
+		if (executor == null) {
+			synchronized (UrlPacScriptSource.class) {
+				executor = refreshExecutor;
+				if (executor == null) {
+					executor = Executors.newCachedThreadPool(runnable -> {
+						Thread thread = new Thread(runnable, "proxy-vole-pac-refresh");
+						thread.setDaemon(true);
+						return thread;
+					});
+					refreshExecutor = executor;
 				}
-			} catch (BadRequestException e) {
-                // FritzBox returns 400 Bad Request 
-                Logger
-                    .log(getClass(), LogLevel.INFO, "Loading script failed from: {} with error {}", this.scriptUrl,
-                        e.getMessage());
-                this.scriptContent = "";
-                throw new IOException(e.getMessage());
-			} catch (IOException e) {
-				Logger.log(getClass(), LogLevel.WARNING, "Loading script failed from: {} with error {}", this.scriptUrl,
-				        e.getMessage());
-				this.scriptContent = "";
-				throw e;
 			}
 		}
-		return this.scriptContent;
+		return executor;
 	}
 
 	/*************************************************************************
@@ -122,22 +346,55 @@ public class UrlPacScriptSource implements PacScriptSource {
 	 * 
 	 * @param url
 	 *            the URL to the script file.
+	 * @param disableSelector
+	 *            true to disable the PAC proxy selector during the download.
+	 *            A background refresh keeps it enabled: a recursive lookup on
+	 *            the refresh thread gets the current script without blocking.
+	 * @param previous
+	 *            the currently loaded script, used to revalidate it with a
+	 *            conditional request. Can be null.
 	 * @return the script content.
 	 * @throws IOException
 	 *             on read error.
 	 * @throws BadRequestException thrown by HTTP 400 response
 	 ************************************************************************/
 
-	private String downloadPacContent(String url) throws IOException, BadRequestException {
+	private ScriptSnapshot downloadPacContent(String url, boolean disableSelector, ScriptSnapshot previous)
+	        throws IOException, BadRequestException {
 		if (url == null) {
 			throw new IOException("Invalid PAC script URL: null");
 		}
 
-		setPacProxySelectorEnabled(false);
+		if (disableSelector) {
+			setPacProxySelectorEnabled(false);
+		}
 
 		HttpURLConnection con = null;
 		try {
 			con = setupHTTPConnection(url);
+			boolean revalidate = previous != null && previous.content.length() > 0;
+			if (revalidate && previous.etag != null) {
+				con.setRequestProperty("If-None-Match", previous.etag);
+			}
+			if (revalidate && previous.lastModified != null) {
+				con.setRequestProperty("If-Modified-Since", previous.lastModified);
+			}
+			if (revalidate && con.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				this.notModifiedCount.incrementAndGet();
+				Logger.log(getClass(), LogLevel.DEBUG, "PAC script not modified: {}", url);
+				long expireAtMillis = getExpiration(con);
+				long lifetimeMillis;
+				if (expireAtMillis > 0) {
+					lifetimeMillis = getLifetime(expireAtMillis);
+				} else {
+					// Most 304 responses carry no freshness headers, keep revalidating as before
+					lifetimeMillis = previous.lifetimeMillis > 0 ? previous.lifetimeMillis : DEFAULT_REVALIDATE_INTERVAL;
+					expireAtMillis = System.currentTimeMillis() + lifetimeMillis;
+				}
+				return new ScriptSnapshot(previous.content, expireAtMillis,
+				        valueOrDefault(con.getHeaderField("ETag"), previous.etag),
+				        valueOrDefault(con.getHeaderField("Last-Modified"), previous.lastModified), lifetimeMillis);
+			}
 			if (con.getResponseCode() != 200) {
 			    
 			    if(con.getResponseCode() == 400) {
@@ -147,14 +404,16 @@ public class UrlPacScriptSource implements PacScriptSource {
 				throw new IOException("Server returned: " + con.getResponseCode() + " " + con.getResponseMessage());
 			}
 			// Read expire date.
-			this.expireAtMillis = con.getExpiration();
+			long expireAtMillis = getExpiration(con);
 
-			BufferedReader r = getReader(con);
-			String result = readAllContent(r);
-			r.close();
-			return result;
+			String result = readAllContent(con);
+			this.downloadCount.incrementAndGet();
+			return new ScriptSnapshot(result, expireAtMillis, con.getHeaderField("ETag"),
+			        con.getHeaderField("Last-Modified"), getLifetime(expireAtMillis));
 		} finally {
-			setPacProxySelectorEnabled(true);
+			if (disableSelector) {
+				setPacProxySelectorEnabled(true);
+			}
 			if (con != null) {
 				con.disconnect();
 			}
@@ -171,37 +430,147 @@ public class UrlPacScriptSource implements PacScriptSource {
 	}
 
 	/*************************************************************************
-	 * Reads the whole content available into a String.
+	 * Gets the expire date of the response. A <code>max-age</code> directive
+	 * of the Cache-Control header takes precedence over the Expires header.
+	 * 
+	 * @param con
+	 *            the connection with the response.
+	 * @return the expire date in milliseconds, 0 if the script never
+	 *         expires.
+	 ************************************************************************/
+
+	private long getExpiration(HttpURLConnection con) {
+		String cacheControl = con.getHeaderField("Cache-Control");
+		if (cacheControl != null) {
+			for (String directive : cacheControl.split(",")) {
+				String[] parts = directive.trim().split("=", 2);
+				if (parts.length == 2 && parts[0].trim().equalsIgnoreCase("max-age")) {
+					try {
+						long maxAge = Long.parseLong(parts[1].trim().replace("\"", ""));
+						return System.currentTimeMillis() + Math.max(maxAge, 0) * 1000;
+					} catch (NumberFormatException e) {
+						Logger.log(getClass(), LogLevel.DEBUG, "Invalid Cache-Control header: {}", cacheControl);
+					}
+				}
+			}
+		}
+		return con.getExpiration();
+	}
+
+	/*************************************************************************
+	 * Gets the freshness lifetime of a response that expires at the given
+	 * date.
+	 * 
+	 * @param expireAtMillis
+	 *            the expire date, 0 if the response never expires.
+	 * @return the lifetime in milliseconds, 0 if it is unknown.
+	 ************************************************************************/
+
+	private static long getLifetime(long expireAtMillis) {
+		return expireAtMillis > 0 ? Math.max(expireAtMillis - System.currentTimeMillis(), 0) : 0;
+	}
+
+	private static String valueOrDefault(String value, String defaultValue) {
+		return value != null ? value : defaultValue;
+	}
+
+	/*************************************************************************
+	 * Reads the whole response body into a String. The body is read in one
+	 * go, uncompressed if needed and decoded with the charset of the byte
+	 * order mark or of the Content-Type header. Line endings are
+	 * normalized to "\n".
 	 * 
-	 * @param r
+	 * @param con
 	 *            to read from.
 	 * @return the complete PAC file content.
 	 * @throws IOException
 	 ************************************************************************/
 
-	private String readAllContent(BufferedReader r) throws IOException {
-		StringBuilder result = new StringBuilder();
-		String line;
-		while ((line = r.readLine()) != null) {
-			result.append(line).append("\n");
+	private String readAllContent(HttpURLConnection con) throws IOException {
+		byte[] data;
+		try (InputStream in = openBody(con)) {
+			data = in.readAllBytes();
+		}
+		return normalizeLineEndings(decode(data, con.getContentType()));
+	}
+
+	private InputStream openBody(HttpURLConnection con) throws IOException {
+		InputStream in = con.getInputStream();
+		String encoding = con.getContentEncoding();
+		if (encoding != null && (encoding.trim().equalsIgnoreCase("gzip") || encoding.trim().equalsIgnoreCase("x-gzip"))) {
+			return new GZIPInputStream(in);
 		}
-		return result.toString();
+		return in;
 	}
 
 	/*************************************************************************
-	 * Build a BufferedReader around the open HTTP connection.
+	 * Decodes the content. A byte order mark determines the charset, without
+	 * one the charset of the Content-Type header is used. The default is
+	 * UTF-8.
 	 * 
-	 * @param con
-	 *            to read from
-	 * @return the BufferedReader.
-	 * @throws UnsupportedEncodingException
-	 * @throws IOException
+	 * @param data
+	 *            the raw content.
+	 * @param contentType
+	 *            the Content-Type header.
+	 * @return the decoded content without byte order mark.
+	 ************************************************************************/
+
+	String decode(byte[] data, String contentType) {
+		Charset charset = null;
+		int offset = 0;
+		if (data.length >= 3 && (data[0] & 0xFF) == 0xEF && (data[1] & 0xFF) == 0xBB && (data[2] & 0xFF) == 0xBF) {
+			charset = StandardCharsets.UTF_8;
+			offset = 3;
+		} else if (data.length >= 2 && (data[0] & 0xFF) == 0xFE && (data[1] & 0xFF) == 0xFF) {
+			charset = StandardCharsets.UTF_16BE;
+			offset = 2;
+		} else if (data.length >= 2 && (data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xFE) {
+			charset = StandardCharsets.UTF_16LE;
+			offset = 2;
+		}
+		if (charset == null) {
+			try {
+				charset = Charset.forName(parseCharsetFromHeader(contentType));
+			} catch (IllegalArgumentException e) {
+				Logger.log(getClass(), LogLevel.DEBUG, "Unsupported charset in {}, using UTF-8", contentType);
+				charset = StandardCharsets.UTF_8;
+			}
+		}
+		return new String(data, offset, data.length - offset, charset);
+	}
+
+	/*************************************************************************
+	 * Terminates every line with "\n" like reading the content line by line
+	 * does.
+	 ************************************************************************/
+
+	private static String normalizeLineEndings(String content) {
+		if (content.isEmpty()) {
+			return content;
+		}
+		String result = content.replace("\r\n", "\n").replace('\r', '\n');
+		return result.endsWith("\n") ? result : result + "\n";
+	}
+
+	/*************************************************************************
+	 * Gets the number of times the script was downloaded completely.
+	 * 
+	 * @return the number of downloads.
+	 ************************************************************************/
+
+	public long getDownloadCount() {
+		return this.downloadCount.get();
+	}
+
+	/*************************************************************************
+	 * Gets the number of times the server confirmed that the loaded script is
+	 * still valid, so a download was avoided.
+	 * 
+	 * @return the number of "304 Not Modified" responses.
 	 ************************************************************************/
 
-	private BufferedReader getReader(HttpURLConnection con) throws UnsupportedEncodingException, IOException {
-		String charsetName = parseCharsetFromHeader(con.getContentType());
-		BufferedReader r = new BufferedReader(new InputStreamReader(con.getInputStream(), charsetName));
-		return r;
+	public long getNotModifiedCount() {
+		return this.notModifiedCount.get();
 	}
 
 	/*************************************************************************
@@ -220,6 +589,7 @@ public class UrlPacScriptSource implements PacScriptSource {
 		con.setReadTimeout(getTimeOut(OVERRIDE_READ_TIMEOUT, DEFAULT_READ_TIMEOUT));
 		con.setInstanceFollowRedirects(true);
 		con.setRequestProperty("accept", "application/x-ns-proxy-autoconfig, */*;q=0.8");
+		con.setRequestProperty("Accept-Encoding", "gzip");
 		return con;
 	}
 
@@ -67,6 +67,28 @@ public class HostnameFilter implements UriFilter {
 			return false;
 		}
 
+		String host = extractHost(uri);
+
+		switch (this.mode) {
+		case BEGINS_WITH:
+			return host.startsWith(this.matchTo);
+		case ENDS_WITH:
+			return host.endsWith(this.matchTo);
+		case REGEX:
+			return host.matches(this.matchTo);
+		}
+		return false;
+	}
+
+	/*************************************************************************
+	 * Extracts the host that is matched from the URI.
+	 * 
+	 * @param uri
+	 *            the URI, must have an authority.
+	 * @return the authority without port in lower case.
+	 ************************************************************************/
+
+	static String extractHost(URI uri) {
 		String host = uri.getAuthority();
 
 		// Strip away port take special care for IP6.
@@ -75,16 +97,7 @@ public class HostnameFilter implements UriFilter {
 		if (index != -1 && index2 < index) {
 			host = host.substring(0, index);
 		}
-
-		switch (this.mode) {
-		case BEGINS_WITH:
-			return host.toLowerCase().startsWith(this.matchTo);
-		case ENDS_WITH:
-			return host.toLowerCase().endsWith(this.matchTo);
-		case REGEX:
-			return host.toLowerCase().matches(this.matchTo);
-		}
-		return false;
+		return host.toLowerCase();
 	}
 
 	/*************************************************************************
@@ -100,4 +113,34 @@ public class HostnameFilter implements UriFilter {
 		        || uri.getScheme().equalsIgnoreCase(this.protocolFilter);
 	}
 
+	/*************************************************************************
+	 * Gets the filter mode.
+	 * 
+	 * @return the mode.
+	 ************************************************************************/
+
+	Mode getMode() {
+		return this.mode;
+	}
+
+	/*************************************************************************
+	 * Gets the match criteria without the protocol.
+	 * 
+	 * @return the criteria in lower case.
+	 ************************************************************************/
+
+	String getMatchTo() {
+		return this.matchTo;
+	}
+
+	/*************************************************************************
+	 * Gets the protocol the filter is restricted to.
+	 * 
+	 * @return the protocol in lower case, null for all protocols.
+	 ************************************************************************/
+
+	String getProtocolFilter() {
+		return this.protocolFilter;
+	}
+
 }
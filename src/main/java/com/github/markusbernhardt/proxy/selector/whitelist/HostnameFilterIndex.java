@@ -0,0 +1,213 @@
+package com.github.markusbernhardt.proxy.selector.whitelist;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import com.github.markusbernhardt.proxy.selector.whitelist.HostnameFilter.Mode;
+import com.github.markusbernhardt.proxy.util.UriFilter;
+
+/*****************************************************************************
+ * Index over many host name filters that accepts a URI if one of the filters
+ * would accept it. A list of filters costs a scan of the host per filter, the
+ * index walks the host once, whatever the number of filters.
+ * <p>
+ * The criteria of the BEGINS_WITH filters are stored in a prefix trie, the
+ * criteria of the ENDS_WITH filters in a trie of the reversed criteria. The
+ * tries work on characters, not on labels, as the filters match plain string
+ * prefixes and suffixes: <code>mynet.com</code> also matches
+ * <code>www.other-mynet.com</code>. Filters restricted to a protocol are
+ * kept in own tries per protocol. Only the tries of the protocols that match
+ * the scheme of the URI are walked, URIs without scheme walk all of them as
+ * the filters do.
+ * </p>
+ ****************************************************************************/
+
+public class HostnameFilterIndex implements UriFilter {
+
+	private final Bucket anyProtocol;
+	private final Bucket[] protocolBuckets;
+	private final int size;
+
+	/*************************************************************************
+	 * The tries of the filters for one protocol.
+	 ************************************************************************/
+
+	private static final class Bucket {
+		final String protocol;
+		final Node prefixes = new Node();
+		final Node suffixes = new Node();
+
+		Bucket(String protocol) {
+			this.protocol = protocol;
+		}
+
+		boolean matches(String host) {
+			Node node = this.prefixes;
+			for (int i = 0; node != null; i++) {
+				if (node.terminal) {
+					return true;
+				}
+				node = i < host.length() ? node.child(host.charAt(i)) : null;
+			}
+			node = this.suffixes;
+			for (int i = host.length() - 1; node != null; i--) {
+				if (node.terminal) {
+					return true;
+				}
+				node = i >= 0 ? node.child(host.charAt(i)) : null;
+			}
+			return false;
+		}
+	}
+
+	/*************************************************************************
+	 * A trie node, the children are sorted by their character.
+	 ************************************************************************/
+
+	private static final class Node {
+		private static final char[] NO_KEYS = new char[0];
+		private static final Node[] NO_CHILDREN = new Node[0];
+
+		char[] keys = NO_KEYS;
+		Node[] children = NO_CHILDREN;
+		boolean terminal;
+
+		Node child(char c) {
+			int index = Arrays.binarySearch(this.keys, c);
+			return index < 0 ? null : this.children[index];
+		}
+
+		void add(String criteria, boolean reversed) {
+			Node node = this;
+			for (int i = 0; i < criteria.length(); i++) {
+				node = node.addChild(criteria.charAt(reversed ? criteria.length() - 1 - i : i));
+			}
+			node.terminal = true;
+		}
+
+		private Node addChild(char c) {
+			int index = Arrays.binarySearch(this.keys, c);
+			if (index >= 0) {
+				return this.children[index];
+			}
+			index = -index - 1;
+			char[] newKeys = new char[this.keys.length + 1];
+			Node[] newChildren = new Node[this.children.length + 1];
+			System.arraycopy(this.keys, 0, newKeys, 0, index);
+			System.arraycopy(this.children, 0, newChildren, 0, index);
+			System.arraycopy(this.keys, index, newKeys, index + 1, this.keys.length - index);
+			System.arraycopy(this.children, index, newChildren, index + 1, this.children.length - index);
+			Node child = new Node();
+			newKeys[index] = c;
+			newChildren[index] = child;
+			this.keys = newKeys;
+			this.children = newChildren;
+			return child;
+		}
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 * 
+	 * @param filters
+	 *            the filters to index, only BEGINS_WITH and ENDS_WITH filters
+	 *            are supported.
+	 ************************************************************************/
+
+	public HostnameFilterIndex(Collection<HostnameFilter> filters) {
+		super();
+		this.anyProtocol = new Bucket(null);
+		List<Bucket> buckets = new ArrayList<Bucket>();
+		for (HostnameFilter filter : filters) {
+			Bucket bucket = bucket(buckets, filter.getProtocolFilter());
+			String matchTo = filter.getMatchTo();
+			switch (filter.getMode()) {
+			case BEGINS_WITH:
+				bucket.prefixes.add(matchTo, false);
+				break;
+			case ENDS_WITH:
+				bucket.suffixes.add(matchTo, true);
+				break;
+			default:
+				throw new IllegalArgumentException("Filter mode can not be indexed: " + filter.getMode());
+			}
+		}
+		this.protocolBuckets = buckets.toArray(new Bucket[buckets.size()]);
+		this.size = filters.size();
+	}
+
+	private Bucket bucket(List<Bucket> buckets, String protocol) {
+		if (protocol == null) {
+			return this.anyProtocol;
+		}
+		for (Bucket bucket : buckets) {
+			if (bucket.protocol.equals(protocol)) {
+				return bucket;
+			}
+		}
+		Bucket bucket = new Bucket(protocol);
+		buckets.add(bucket);
+		return bucket;
+	}
+
+	/*************************************************************************
+	 * Checks if a filter can be added to an index.
+	 * 
+	 * @param filter
+	 *            the filter to check.
+	 * @return true if it is a BEGINS_WITH or ENDS_WITH host name filter.
+	 ************************************************************************/
+
+	public static boolean isIndexable(UriFilter filter) {
+		if (filter == null || filter.getClass() != HostnameFilter.class) {
+			return false;
+		}
+		Mode mode = ((HostnameFilter) filter).getMode();
+		return mode == Mode.BEGINS_WITH || mode == Mode.ENDS_WITH;
+	}
+
+	/*************************************************************************
+	 * accept
+	 * 
+	 * @see com.github.markusbernhardt.proxy.util.UriFilter#accept(java.net.URI)
+	 ************************************************************************/
+
+	public boolean accept(URI uri) {
+		if (uri == null || uri.getAuthority() == null) {
+			return false;
+		}
+
+		String host = HostnameFilter.extractHost(uri);
+		if (this.anyProtocol.matches(host)) {
+			return true;
+		}
+		String scheme = uri.getScheme();
+		for (Bucket bucket : this.protocolBuckets) {
+			// Same protocol check as the filters
+			if ((scheme == null || scheme.equalsIgnoreCase(bucket.protocol)) && bucket.matches(host)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*************************************************************************
+	 * Gets the number of indexed filters.
+	 * 
+	 * @return the number of filters.
+	 ************************************************************************/
+
+	public int size() {
+		return this.size;
+	}
+
+	@Override
+	public String toString() {
+		return "HostnameFilterIndex{" +
+				"size=" + size +
+				'}';
+	}
+}
@@ -4,6 +4,8 @@ import java.net.InetAddress;
 import java.net.URI;
 import java.net.UnknownHostException;
 
+import com.github.markusbernhardt.proxy.util.DnsResolver;
+import com.github.markusbernhardt.proxy.util.ProxyUtil;
 import com.github.markusbernhardt.proxy.util.UriFilter;
 
 /*****************************************************************************
@@ -18,16 +20,32 @@ public class IpRangeFilter implements UriFilter {
 
 	private byte[] matchTo;
 	int numOfBits;
+	private final DnsResolver dnsResolver;
 
 	/*************************************************************************
-	 * Constructor
+	 * Constructor that uses the DNS resolver set in {@link ProxyUtil}.
 	 * 
 	 * @param matchTo
 	 *            the match subnet in CIDR notation.
 	 ************************************************************************/
 
 	public IpRangeFilter(String matchTo) {
+		this(matchTo, null);
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 * 
+	 * @param matchTo
+	 *            the match subnet in CIDR notation.
+	 * @param dnsResolver
+	 *            the resolver for the host of the tested URIs, null to use the
+	 *            resolver set in {@link ProxyUtil}.
+	 ************************************************************************/
+
+	public IpRangeFilter(String matchTo, DnsResolver dnsResolver) {
 		super();
+		this.dnsResolver = dnsResolver;
 
 		String[] parts = matchTo.split("/");
 		if (parts.length != 2) {
@@ -55,7 +73,8 @@ public class IpRangeFilter implements UriFilter {
 			return false;
 		}
 		try {
-			InetAddress address = InetAddress.getByName(uri.getHost());
+			DnsResolver resolver = this.dnsResolver != null ? this.dnsResolver : ProxyUtil.getDnsResolver();
+			InetAddress address = resolver.resolve(uri.getHost())[0];
 			byte[] addr = address.getAddress();
 
 			// Comparing IP6 against IP4?
@@ -5,6 +5,7 @@ import java.net.Proxy;
 import java.net.ProxySelector;
 import java.net.SocketAddress;
 import java.net.URI;
+import java.util.Collections;
 import java.util.List;
 
 import com.github.markusbernhardt.proxy.util.ProxyUtil;
@@ -52,13 +53,33 @@ public class ProxyBypassListSelector extends ProxySelector {
 	 * 
 	 * @param whiteList
 	 *            a list of filters for whitelist URLs as comma/space separated
-	 *            string.
+	 *            string. The host name filters are indexed.
 	 * @param proxySelector
 	 *            the proxy selector to use.
 	 ************************************************************************/
 
 	public ProxyBypassListSelector(String whiteList, ProxySelector proxySelector) {
-		this(new DefaultWhiteListParser().parseWhiteList(whiteList), proxySelector);
+		this(new DefaultWhiteListParser().parseIndexedWhiteList(whiteList), proxySelector);
+	}
+
+	/*************************************************************************
+	 * Gets the filters of the white list.
+	 * 
+	 * @return the filters, not modifiable.
+	 ************************************************************************/
+
+	public List<UriFilter> getWhiteListFilter() {
+		return Collections.unmodifiableList(this.whiteListFilter);
+	}
+
+	/*************************************************************************
+	 * Gets the selector used for the URIs that are not in the white list.
+	 * 
+	 * @return the delegate.
+	 ************************************************************************/
+
+	public ProxySelector getDelegate() {
+		return this.delegate;
 	}
 
 	/*************************************************************************
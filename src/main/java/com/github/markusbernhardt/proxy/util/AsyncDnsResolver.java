@@ -0,0 +1,250 @@
+package com.github.markusbernhardt.proxy.util;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
+
+/*****************************************************************************
+ * DNS resolver that runs the lookups of a delegate resolver on a dedicated
+ * executor. The calling thread waits for the lookup only until the deadline
+ * set with {@link #setDeadline(long)} for the current thread. A lookup that
+ * misses the deadline is abandoned and reported as unknown host, it keeps
+ * running in the background. Without a deadline the lookup runs on the
+ * calling thread.
+ * <p>
+ * Concurrent lookups of the same host are coalesced into one lookup. If the
+ * executor rejects a lookup, e.g. because all threads of the shared executor
+ * are blocked by a slow name service, it fails like a lookup that missed the
+ * deadline.
+ * </p>
+ ****************************************************************************/
+
+public class AsyncDnsResolver implements DnsResolver {
+
+	/*************************************************************************
+	 * Thrown if a lookup did not finish before the deadline. Callers treat it
+	 * as unknown host but must not remember it as such.
+	 ************************************************************************/
+
+	public static class DnsTimeoutException extends UnknownHostException {
+
+		private static final long serialVersionUID = 1L;
+
+		/*********************************************************************
+		 * Constructor
+		 *
+		 * @param host
+		 *            the host that was not resolved in time.
+		 ********************************************************************/
+
+		public DnsTimeoutException(String host) {
+			super("DNS lookup of " + host + " did not finish before the deadline.");
+		}
+	}
+
+	private static final int MAX_LOOKUP_THREADS = 16;
+	private static final int MAX_QUEUED_LOOKUPS = 64;
+
+	// Deadline of the current thread as System.nanoTime() value, null if unbounded
+	private static final ThreadLocal<Long> DEADLINE = new ThreadLocal<Long>();
+
+	private static volatile Executor defaultExecutor;
+
+	private final DnsResolver delegate;
+	private final Executor executor;
+	private final ConcurrentHashMap<String, CompletableFuture<InetAddress[]>> pendingLookups;
+
+	/*************************************************************************
+	 * Constructor that uses a shared executor with a bounded number of daemon
+	 * threads and a bounded queue.
+	 *
+	 * @param delegate
+	 *            the resolver to do the lookups.
+	 ************************************************************************/
+
+	public AsyncDnsResolver(DnsResolver delegate) {
+		this(delegate, getDefaultExecutor());
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param delegate
+	 *            the resolver to do the lookups.
+	 * @param executor
+	 *            the executor to run the lookups on.
+	 ************************************************************************/
+
+	public AsyncDnsResolver(DnsResolver delegate, Executor executor) {
+		super();
+		if (delegate == null) {
+			throw new NullPointerException("Delegate resolver must not be null.");
+		}
+		if (executor == null) {
+			throw new NullPointerException("Executor must not be null.");
+		}
+		this.delegate = delegate;
+		this.executor = executor;
+		this.pendingLookups = new ConcurrentHashMap<String, CompletableFuture<InetAddress[]>>();
+	}
+
+	/*************************************************************************
+	 * Sets the deadline for all lookups of the current thread.
+	 *
+	 * @param deadline
+	 *            the deadline as <code>System.nanoTime()</code> value.
+	 ************************************************************************/
+
+	public static void setDeadline(long deadline) {
+		DEADLINE.set(deadline);
+	}
+
+	/*************************************************************************
+	 * Removes the deadline of the current thread. Lookups wait without time
+	 * limit afterwards.
+	 ************************************************************************/
+
+	public static void clearDeadline() {
+		DEADLINE.remove();
+	}
+
+	/*************************************************************************
+	 * resolve
+	 *
+	 * @see com.github.markusbernhardt.proxy.util.DnsResolver#resolve(java.lang.String)
+	 ************************************************************************/
+
+	@Override
+	public InetAddress[] resolve(String host) throws UnknownHostException {
+		Long deadline = DEADLINE.get();
+		if (host == null) {
+			return this.delegate.resolve(host);
+		}
+		if (deadline != null && deadline - System.nanoTime() <= 0) {
+			throw new DnsTimeoutException(host);
+		}
+		CompletableFuture<InetAddress[]> lookup = startLookup(host, deadline == null);
+		try {
+			if (deadline == null) {
+				return lookup.get().clone();
+			}
+			return lookup.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS).clone();
+		} catch (TimeoutException e) {
+			Logger.log(getClass(), LogLevel.DEBUG, "DNS lookup of {} abandoned at deadline.", host);
+			throw new DnsTimeoutException(host);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DnsTimeoutException(host);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof UnknownHostException) {
+				throw (UnknownHostException) e.getCause();
+			}
+			UnknownHostException result = new UnknownHostException(host);
+			result.initCause(e.getCause());
+			throw result;
+		}
+	}
+
+	/*************************************************************************
+	 * Starts the lookup of the host or joins a lookup that is already
+	 * running.
+	 *
+	 * @param host
+	 *            the host to look up.
+	 * @param inline
+	 *            true to run a new lookup on the calling thread.
+	 * @return the lookup.
+	 ************************************************************************/
+
+	private CompletableFuture<InetAddress[]> startLookup(String host, boolean inline) {
+		CompletableFuture<InetAddress[]> lookup = this.pendingLookups.get(host);
+		if (lookup != null) {
+			return lookup;
+		}
+		CompletableFuture<InetAddress[]> created = new CompletableFuture<InetAddress[]>();
+		lookup = this.pendingLookups.putIfAbsent(host, created);
+		if (lookup != null) {
+			return lookup;
+		}
+		Runnable task = () -> {
+			try {
+				created.complete(this.delegate.resolve(host));
+			} catch (Throwable e) {
+				created.completeExceptionally(e);
+			} finally {
+				this.pendingLookups.remove(host, created);
+			}
+		};
+		if (inline) {
+			task.run();
+			return created;
+		}
+		try {
+			this.executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			Logger.log(getClass(), LogLevel.DEBUG, "DNS lookup of {} rejected by the executor.", host);
+			this.pendingLookups.remove(host, created);
+			created.completeExceptionally(new DnsTimeoutException(host));
+		}
+		return created;
+	}
+
+	/*************************************************************************
+	 * Gets the number of lookups that are currently running.
+	 *
+	 * @return the number of running lookups.
+	 ************************************************************************/
+
+	public int getPendingLookups() {
+		return this.pendingLookups.size();
+	}
+
+	/*************************************************************************
+	 * Gets the shared executor and creates it if needed.
+	 ************************************************************************/
+
+	private static Executor getDefaultExecutor() {
+		Executor executor = defaultExecutor;
+		if (executor == null) {
+			synchronized (AsyncDnsResolver.class) {
+				executor = defaultExecutor;
+				if (executor == null) {
+					executor = createDefaultExecutor();
+					defaultExecutor = executor;
+				}
+			}
+		}
+		return executor;
+	}
+
+	private static Executor createDefaultExecutor() {
+		AtomicInteger count = new AtomicInteger();
+		// Abandoned lookups keep their threads, so both threads and queue are bounded
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_LOOKUP_THREADS, MAX_LOOKUP_THREADS, 60,
+		        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(MAX_QUEUED_LOOKUPS), runnable -> {
+			        Thread thread = new Thread(runnable, "proxy-vole-dns-" + count.incrementAndGet());
+			        thread.setDaemon(true);
+			        return thread;
+		        });
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	@Override
+	public String toString() {
+		return "AsyncDnsResolver{" +
+				"delegate=" + delegate +
+				'}';
+	}
+}
@@ -0,0 +1,291 @@
+package com.github.markusbernhardt.proxy.util;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*****************************************************************************
+ * DNS resolver that caches the results of a delegate resolver. Successful
+ * and failed lookups are cached with separate "time to live" values so that
+ * unknown hosts are retried earlier than known hosts are refreshed. The
+ * number of cached hosts is bounded.
+ * <p>
+ * Lookups do not lock. For the eviction the cache is split into segments,
+ * each with a ring of slots managed with the CLOCK algorithm: a hit sets the
+ * "referenced" flag of the entry and the clock hand of a full segment evicts
+ * the first expired or not referenced entry. An insert only locks the
+ * segment of the host and does amortized constant work.
+ * </p>
+ * <p>
+ * IP address literals are passed to the delegate without caching because
+ * they are never looked up.
+ * </p>
+ ****************************************************************************/
+
+public class CachingDnsResolver implements DnsResolver {
+
+	public static final int DEFAULT_MAX_SIZE = 500;
+	public static final long DEFAULT_POSITIVE_TTL = 60 * 1000;
+	public static final long DEFAULT_NEGATIVE_TTL = 10 * 1000;
+
+	private static final int MIN_SEGMENT_CAPACITY = 16;
+	private static final int MAX_SEGMENTS = 16;
+
+	private final DnsResolver delegate;
+	private final int maxSize;
+	private final long positiveTtl;
+	private final long negativeTtl;
+
+	private final ConcurrentHashMap<String, CacheEntry> cache;
+	private final Segment[] segments;
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+
+	private static class CacheEntry {
+		final String key;
+		final InetAddress[] addresses;
+		final long expireAt;
+
+		// Set on every hit, cleared by the clock hand
+		volatile boolean referenced;
+
+		// Guarded by the lock of the segment
+		int slot;
+
+		CacheEntry(String key, InetAddress[] addresses, long expireAt) {
+			this.key = key;
+			this.addresses = addresses;
+			this.expireAt = expireAt;
+		}
+
+		boolean isExpired(long now) {
+			return now - this.expireAt >= 0;
+		}
+	}
+
+	/*************************************************************************
+	 * A ring of slots with its own clock hand.
+	 ************************************************************************/
+
+	private static final class Segment {
+		final CacheEntry[] slots;
+		int used;
+		int hand;
+
+		Segment(int capacity) {
+			this.slots = new CacheEntry[capacity];
+		}
+	}
+
+	/*************************************************************************
+	 * Constructor with the default size and "time to live" values.
+	 *
+	 * @param delegate
+	 *            the resolver to do the lookups.
+	 ************************************************************************/
+
+	public CachingDnsResolver(DnsResolver delegate) {
+		this(delegate, DEFAULT_MAX_SIZE, DEFAULT_POSITIVE_TTL, DEFAULT_NEGATIVE_TTL);
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param delegate
+	 *            the resolver to do the lookups.
+	 * @param maxSize
+	 *            the maximum number of cached hosts.
+	 * @param positiveTtl
+	 *            the "time to live" for resolved hosts as amount in
+	 *            milliseconds.
+	 * @param negativeTtl
+	 *            the "time to live" for unknown hosts as amount in
+	 *            milliseconds. Set it to 0 to not cache failed lookups.
+	 ************************************************************************/
+
+	public CachingDnsResolver(DnsResolver delegate, int maxSize, long positiveTtl, long negativeTtl) {
+		super();
+		if (delegate == null) {
+			throw new NullPointerException("Delegate resolver must not be null.");
+		}
+		this.delegate = delegate;
+		this.maxSize = Math.max(maxSize, 1);
+		this.positiveTtl = positiveTtl;
+		this.negativeTtl = negativeTtl;
+		this.cache = new ConcurrentHashMap<String, CacheEntry>();
+		int count = Integer.highestOneBit(Math.max(1, Math.min(this.maxSize / MIN_SEGMENT_CAPACITY, MAX_SEGMENTS)));
+		this.segments = new Segment[count];
+		for (int i = 0; i < count; i++) {
+			this.segments[i] = new Segment(this.maxSize / count + (i < this.maxSize % count ? 1 : 0));
+		}
+	}
+
+	/*************************************************************************
+	 * resolve
+	 *
+	 * @see com.github.markusbernhardt.proxy.util.DnsResolver#resolve(java.lang.String)
+	 ************************************************************************/
+
+	@Override
+	public InetAddress[] resolve(String host) throws UnknownHostException {
+		if (host == null || ProxyUtil.isAddressLiteral(host)) {
+			return this.delegate.resolve(host);
+		}
+		String cacheKey = host.toLowerCase(Locale.ROOT);
+		long now = System.nanoTime();
+		CacheEntry entry = this.cache.get(cacheKey);
+		if (entry != null && !entry.isExpired(now)) {
+			this.hitCount.increment();
+			// Avoid a write to shared memory if the flag is already set
+			if (!entry.referenced) {
+				entry.referenced = true;
+			}
+		} else {
+			this.missCount.increment();
+			entry = lookup(cacheKey, host, now);
+			put(entry, now);
+		}
+		if (entry.addresses == null) {
+			throw new UnknownHostException(host);
+		}
+		return entry.addresses.clone();
+	}
+
+	/*************************************************************************
+	 * Does the lookup with the delegate.
+	 *
+	 * @param cacheKey
+	 *            the cache key of the host.
+	 * @param host
+	 *            the host to look up.
+	 * @param now
+	 *            the current <code>System.nanoTime()</code> value.
+	 * @return the new cache entry.
+	 * @throws UnknownHostException
+	 *             if the failed lookup must not be cached.
+	 ************************************************************************/
+
+	private CacheEntry lookup(String cacheKey, String host, long now) throws UnknownHostException {
+		try {
+			InetAddress[] addresses = this.delegate.resolve(host);
+			return new CacheEntry(cacheKey, addresses.clone(), now + this.positiveTtl * 1000 * 1000);
+		} catch (UnknownHostException e) {
+			// An abandoned lookup says nothing about the host
+			if (this.negativeTtl <= 0 || e instanceof AsyncDnsResolver.DnsTimeoutException) {
+				throw e;
+			}
+			return new CacheEntry(cacheKey, null, now + this.negativeTtl * 1000 * 1000);
+		}
+	}
+
+	/*************************************************************************
+	 * Adds the entry or replaces the entry of the same host. If the segment
+	 * of the host is full another entry is evicted.
+	 ************************************************************************/
+
+	private void put(CacheEntry entry, long now) {
+		Segment segment = segmentFor(entry.key);
+		synchronized (segment) {
+			CacheEntry old = this.cache.put(entry.key, entry);
+			entry.slot = old != null ? old.slot : freeSlot(segment, now);
+			segment.slots[entry.slot] = entry;
+		}
+	}
+
+	/*************************************************************************
+	 * Finds a slot for a new entry. Unused slots are taken first, then the
+	 * clock hand looks for a victim. It terminates after at most two rounds
+	 * because the first round clears all "referenced" flags.
+	 ************************************************************************/
+
+	private int freeSlot(Segment segment, long now) {
+		CacheEntry[] slots = segment.slots;
+		if (segment.used < slots.length) {
+			return segment.used++;
+		}
+		while (true) {
+			int slot = segment.hand;
+			segment.hand = slot + 1 == slots.length ? 0 : slot + 1;
+			CacheEntry entry = slots[slot];
+			if (entry == null) {
+				return slot;
+			}
+			if (!entry.isExpired(now) && entry.referenced) {
+				entry.referenced = false;
+				continue;
+			}
+			this.cache.remove(entry.key, entry);
+			slots[slot] = null;
+			return slot;
+		}
+	}
+
+	private Segment segmentFor(String key) {
+		if (this.segments.length == 1) {
+			return this.segments[0];
+		}
+		int h = key.hashCode() * 0x9E3779B9;
+		return this.segments[(h ^ (h >>> 16)) & (this.segments.length - 1)];
+	}
+
+	/*************************************************************************
+	 * Removes all cached hosts.
+	 ************************************************************************/
+
+	public void clear() {
+		for (Segment segment : this.segments) {
+			synchronized (segment) {
+				for (int i = 0; i < segment.used; i++) {
+					CacheEntry entry = segment.slots[i];
+					if (entry != null) {
+						this.cache.remove(entry.key, entry);
+						segment.slots[i] = null;
+					}
+				}
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Gets the number of cached hosts including expired ones that are not
+	 * purged yet.
+	 *
+	 * @return the number of cached hosts.
+	 ************************************************************************/
+
+	public int getSize() {
+		return this.cache.size();
+	}
+
+	/*************************************************************************
+	 * Gets the number of lookups that were answered from the cache.
+	 *
+	 * @return the hit count.
+	 ************************************************************************/
+
+	public long getHitCount() {
+		return this.hitCount.sum();
+	}
+
+	/*************************************************************************
+	 * Gets the number of lookups that were delegated.
+	 *
+	 * @return the miss count.
+	 ************************************************************************/
+
+	public long getMissCount() {
+		return this.missCount.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "CachingDnsResolver{" +
+				"delegate=" + delegate +
+				", maxSize=" + maxSize +
+				", positiveTtl=" + positiveTtl +
+				", negativeTtl=" + negativeTtl +
+				'}';
+	}
+}
@@ -0,0 +1,28 @@
+package com.github.markusbernhardt.proxy.util;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/*****************************************************************************
+ * Interface for the DNS lookups done by the PAC functions and the IP range
+ * filters. The default resolver can be set with
+ * {@link ProxyUtil#setDnsResolver(DnsResolver)}, e.g. to use a stub resolver
+ * in tests.
+ ****************************************************************************/
+
+public interface DnsResolver {
+
+	/*************************************************************************
+	 * Resolves all addresses of the given host like
+	 * <code>InetAddress.getAllByName</code> does.
+	 * 
+	 * @param host
+	 *            the host name or IP address literal.
+	 * @return all addresses of the host, never empty.
+	 * @throws UnknownHostException
+	 *             if the host can not be resolved.
+	 ************************************************************************/
+
+	public abstract InetAddress[] resolve(String host) throws UnknownHostException;
+
+}
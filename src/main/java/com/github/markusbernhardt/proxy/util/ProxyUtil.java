@@ -27,6 +27,9 @@ public class ProxyUtil {
 
 	private static List<Proxy> noProxyList;
 
+	private static volatile DnsResolver dnsResolver = new CachingDnsResolver(
+	        new AsyncDnsResolver(new SystemDnsResolver()));
+
 	/*************************************************************************
 	 * Parse host and port out of a proxy variable.
 	 * 
@@ -134,6 +137,57 @@ public class ProxyUtil {
 		return hostOrIP;
 	}
 
+	/*************************************************************************
+	 * Checks if the host is an IPv4 or IPv6 address literal. Only the
+	 * characters are checked, the address is not validated. An empty host is
+	 * treated as a literal because there is no name to look up.
+	 * 
+	 * @param host
+	 *            the host without IPv6 brackets.
+	 * @return true if the host is an address literal.
+	 ************************************************************************/
+
+	public static boolean isAddressLiteral(String host) {
+		if (host.isEmpty() || host.indexOf(':') >= 0) {
+			return true;
+		}
+		for (int i = 0; i < host.length(); i++) {
+			char c = host.charAt(i);
+			if ((c < '0' || c > '9') && c != '.') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*************************************************************************
+	 * Gets the DNS resolver used by the PAC functions and the IP range
+	 * filters. By default this is a caching resolver that does the lookups
+	 * with the name service of the JVM on a separate executor, so lookups can
+	 * be bounded by a deadline.
+	 * 
+	 * @return the DNS resolver.
+	 ************************************************************************/
+
+	public static DnsResolver getDnsResolver() {
+		return dnsResolver;
+	}
+
+	/*************************************************************************
+	 * Sets the DNS resolver used by the PAC functions and the IP range
+	 * filters.
+	 * 
+	 * @param resolver
+	 *            the resolver to use.
+	 ************************************************************************/
+
+	public static void setDnsResolver(DnsResolver resolver) {
+		if (resolver == null) {
+			throw new NullPointerException("DNS resolver must not be null.");
+		}
+		dnsResolver = resolver;
+	}
+
 	public static boolean isPacUrlSanitizationEnabled() {
 		return Boolean.parseBoolean(System.getProperty(PAC_URL_SANITIZATION_PROP, "true"));
 	}
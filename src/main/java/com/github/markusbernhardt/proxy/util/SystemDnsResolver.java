@@ -0,0 +1,27 @@
+package com.github.markusbernhardt.proxy.util;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/*****************************************************************************
+ * DNS resolver that uses the name service of the JVM.
+ ****************************************************************************/
+
+public class SystemDnsResolver implements DnsResolver {
+
+	/*************************************************************************
+	 * resolve
+	 * 
+	 * @see com.github.markusbernhardt.proxy.util.DnsResolver#resolve(java.lang.String)
+	 ************************************************************************/
+
+	@Override
+	public InetAddress[] resolve(String host) throws UnknownHostException {
+		return InetAddress.getAllByName(host);
+	}
+
+	@Override
+	public String toString() {
+		return "SystemDnsResolver";
+	}
+}
@@ -1,5 +1,7 @@
 package com.github.markusbernhardt.proxy;
 
+import java.io.File;
+import java.net.MalformedURLException;
 import java.net.Proxy;
 import java.net.ProxySelector;
 import java.net.URI;
@@ -8,12 +10,17 @@ import java.util.List;
 
 import org.assertj.core.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.github.markusbernhardt.proxy.ProxySearch.Strategy;
 import com.github.markusbernhardt.proxy.selector.fixed.FixedProxySelector;
+import com.github.markusbernhardt.proxy.selector.misc.HealthCheckingProxySelector;
+import com.github.markusbernhardt.proxy.selector.misc.LoadBalancingProxySelector.BalancingStrategy;
 import com.github.markusbernhardt.proxy.selector.misc.ProtocolDispatchSelector;
+import com.github.markusbernhardt.proxy.selector.pac.PacProxySelector;
+import com.github.markusbernhardt.proxy.selector.pac.UrlPacScriptSource;
 import com.github.markusbernhardt.proxy.util.ProxyException;
 
 class ProxySearchTest {
@@ -83,4 +90,91 @@ class ProxySearchTest {
         Assertions
             .assertThat(proxies.get(0).toString()).matches("HTTP @ custom@localhost\\.com(\\/<unresolved>)?:1234");
     }
+
+    @Test
+    void testSnapshotWritersRunUntilShutdown(@TempDir File directory) throws InterruptedException {
+        File snapshot = new File(directory, "cache.snapshot");
+        ProxySearch proxySearch = new ProxySearch();
+        proxySearch.addStrategy(pacStrategy(), false);
+        proxySearch.setPacCacheSnapshot(snapshot, 60 * 1000);
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertThat(proxySearch.getProxySelector()).isNotNull();
+        }
+        // One thread writes the snapshots of all returned selectors
+        Assertions.assertThat(countThreads("proxy-vole-cache-snapshot")).isEqualTo(1);
+        Assertions.assertThat(snapshot).doesNotExist();
+
+        proxySearch.shutdown();
+        Assertions.assertThat(snapshot).isFile();
+        long end = System.currentTimeMillis() + 5000;
+        while (countThreads("proxy-vole-cache-snapshot") > 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        Assertions.assertThat(countThreads("proxy-vole-cache-snapshot")).isZero();
+    }
+
+    @Test
+    void testHealthCheckingSelectorIsExposed() throws InterruptedException {
+        ProxySearch proxySearch = new ProxySearch();
+        proxySearch.addStrategy(pacStrategy(), false);
+        Assertions.assertThat(proxySearch.getHealthCheckingSelector()).isNull();
+        proxySearch.setProxyHealthCheck(60 * 1000, 1000, 1);
+
+        Assertions.assertThat(proxySearch.getProxySelector()).isNotNull();
+        HealthCheckingProxySelector first = proxySearch.getHealthCheckingSelector();
+        Assertions.assertThat(first).isNotNull();
+        Assertions.assertThat(proxySearch.getProxySelector()).isNotNull();
+        HealthCheckingProxySelector second = proxySearch.getHealthCheckingSelector();
+        Assertions.assertThat(second).isNotNull().isNotSameAs(first);
+
+        // The selector returned before keeps probing
+        long end = System.currentTimeMillis() + 5000;
+        while (countThreads("proxy-vole-health-check") < 2 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        Assertions.assertThat(countThreads("proxy-vole-health-check")).isEqualTo(2);
+
+        proxySearch.shutdown();
+        Assertions.assertThat(proxySearch.getHealthCheckingSelector()).isNull();
+        end = System.currentTimeMillis() + 5000;
+        while (countThreads("proxy-vole-health-check") > 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        Assertions.assertThat(countThreads("proxy-vole-health-check")).isZero();
+    }
+
+    @Test
+    void testLoadBalancingWithoutRequestReportsIsRejected() {
+        ProxySearch proxySearch = new ProxySearch();
+        proxySearch.setPacLoadBalancing(BalancingStrategy.BALANCING_ROUND_ROBIN);
+        Assertions.assertThatThrownBy(
+            () -> proxySearch.setPacLoadBalancing(BalancingStrategy.BALANCING_POWER_OF_TWO_CHOICES))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static ProxySearchStrategy pacStrategy() {
+        return new ProxySearchStrategy() {
+
+            @Override
+            public ProxySelector getProxySelector() throws ProxyException {
+                try {
+                    File file = new File(TestUtil.TEST_DATA_FOLDER + "pac", "test1.pac");
+                    return new PacProxySelector(new UrlPacScriptSource(file.toURI().toURL().toString()));
+                }
+                catch (MalformedURLException e) {
+                    throw new ProxyException(e);
+                }
+            }
+
+            @Override
+            public String getName() {
+                return "pac";
+            }
+        };
+    }
+
+    private static long countThreads(String name) {
+        return Thread.getAllStackTraces().keySet().stream().filter(t -> t.isAlive() && name.equals(t.getName()))
+            .count();
+    }
 }
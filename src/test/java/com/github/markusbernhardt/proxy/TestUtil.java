@@ -1,14 +1,19 @@
 package com.github.markusbernhardt.proxy;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.Proxy.Type;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
 
 import com.github.markusbernhardt.proxy.util.PlatformUtil;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.List;
+import java.util.function.Supplier;
 
 /*****************************************************************************
  * This class defines some constants and helper methods for the unit tests.
@@ -66,4 +71,39 @@ public class TestUtil {
 		        System.getProperty("user.dir") + File.separator + TestUtil.TEST_DATA_FOLDER + folder);
 	}
 
+	/*************************************************************************
+	 * Creates a delegate selector that returns always the given list.
+	 * 
+	 * @param list
+	 *            the list returned by the selector.
+	 * @return the selector.
+	 ************************************************************************/
+
+	public static final ProxySelector fixedSelector(List<Proxy> list) {
+		return delegateSelector(() -> list);
+	}
+
+	/*************************************************************************
+	 * Creates a delegate selector that returns the list of the given supplier
+	 * and ignores connect failures.
+	 * 
+	 * @param proxies
+	 *            supplies the list for each call to select.
+	 * @return the selector.
+	 ************************************************************************/
+
+	public static final ProxySelector delegateSelector(Supplier<List<Proxy>> proxies) {
+		return new ProxySelector() {
+			@Override
+			public List<Proxy> select(URI uri) {
+				return proxies.get();
+			}
+
+			@Override
+			public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+				// Not used on the delegate
+			}
+		};
+	}
+
 }
@@ -0,0 +1,348 @@
+package com.github.markusbernhardt.proxy.selector.misc;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.markusbernhardt.proxy.selector.misc.BufferedProxySelector.CacheScope;
+import com.github.markusbernhardt.proxy.selector.misc.BufferedProxySelector.CacheStorage;
+
+/*****************************************************************************
+ * Small benchmark program that compares the BufferedProxySelector with the
+ * previous implementation, which purged the cache under a global lock. The
+ * hosts are chosen with a skewed (Zipf like) distribution from a set that is
+ * four times larger than the cache. The current implementation is measured
+ * with and without a near cache, also with only a few hot hosts.
+ * <p>
+ * It also measures the bytes allocated per cache hit for the cache scopes
+ * with the allocation counter of the thread and the heap used by a large
+ * URL scope cache with the different storages.
+ * </p>
+ * <p>
+ * This is not a unit test, start it with the test classpath.
+ * </p>
+ ****************************************************************************/
+
+public class BufferedProxySelectorBenchmark {
+
+	private static final int THREADS = 64;
+	private static final long RUN_MILLIS = 3000;
+	private static final List<Proxy> RESULT = Collections.singletonList(Proxy.NO_PROXY);
+
+	/*************************************************************************
+	 * Delegate that answers at once and counts the calls.
+	 ************************************************************************/
+
+	private static class CountingSelector extends ProxySelector {
+
+		final LongAdder calls = new LongAdder();
+
+		@Override
+		public List<Proxy> select(URI uri) {
+			this.calls.increment();
+			return RESULT;
+		}
+
+		@Override
+		public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+			// Not used
+		}
+	}
+
+	/*************************************************************************
+	 * The previous implementation: purge with a full scan under a global
+	 * lock once the cache is full.
+	 ************************************************************************/
+
+	private static class LegacyBufferedProxySelector extends ProxySelector {
+
+		private final ProxySelector delegate;
+		private final ConcurrentHashMap<String, LegacyEntry> cache = new ConcurrentHashMap<String, LegacyEntry>();
+		private final int maxSize;
+		private final long ttl;
+		private final CacheScope cacheScope;
+
+		private static class LegacyEntry {
+			final List<Proxy> result;
+			final long expireAt;
+
+			LegacyEntry(List<Proxy> r, long expireAt) {
+				this.result = Collections.unmodifiableList(new ArrayList<Proxy>(r));
+				this.expireAt = expireAt;
+			}
+
+			boolean isExpired() {
+				return System.nanoTime() >= this.expireAt;
+			}
+		}
+
+		LegacyBufferedProxySelector(int maxSize, long ttl, ProxySelector delegate, CacheScope cacheScope) {
+			this.maxSize = maxSize;
+			this.ttl = ttl;
+			this.delegate = delegate;
+			this.cacheScope = cacheScope;
+		}
+
+		@Override
+		public List<Proxy> select(URI uri) {
+			String cacheKey;
+			switch (this.cacheScope) {
+				case CACHE_SCOPE_HOST_PORT:
+					cacheKey = uri.getHost() + ":" + uri.getPort();
+					break;
+				case CACHE_SCOPE_URL:
+					cacheKey = uri.toString();
+					break;
+				default:
+					cacheKey = uri.getHost();
+			}
+			LegacyEntry entry = this.cache.get(cacheKey);
+			if (entry == null || entry.isExpired()) {
+				entry = new LegacyEntry(this.delegate.select(uri), System.nanoTime() + this.ttl * 1000 * 1000);
+				synchronized (this.cache) {
+					if (this.cache.size() >= this.maxSize) {
+						purgeCache();
+					}
+					this.cache.put(cacheKey, entry);
+				}
+			}
+			return entry.result;
+		}
+
+		private void purgeCache() {
+			boolean removedOne = false;
+			Entry<String, LegacyEntry> oldest = null;
+			for (Iterator<Entry<String, LegacyEntry>> it = this.cache.entrySet().iterator(); it.hasNext();) {
+				Entry<String, LegacyEntry> entry = it.next();
+				if (entry.getValue().isExpired()) {
+					it.remove();
+					removedOne = true;
+				} else if (oldest == null || entry.getValue().expireAt < oldest.getValue().expireAt) {
+					oldest = entry;
+				}
+			}
+			if (!removedOne && oldest != null) {
+				this.cache.remove(oldest.getKey());
+			}
+		}
+
+		@Override
+		public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+			// Not used
+		}
+	}
+
+	/*************************************************************************
+	 * Builds the URIs, the index of a URI is chosen with a Zipf like
+	 * distribution by {@link #nextIndex(int)}.
+	 ************************************************************************/
+
+	private static URI[] buildUris(int count) {
+		URI[] uris = new URI[count];
+		for (int i = 0; i < count; i++) {
+			uris[i] = URI.create("http://host" + i + ".example/");
+		}
+		return uris;
+	}
+
+	private static int nextIndex(int count) {
+		// Inverse transform of a power law, small indices are hot
+		double u = ThreadLocalRandom.current().nextDouble();
+		return (int) (count * Math.pow(u, 4));
+	}
+
+	/*************************************************************************
+	 * Runs the selector with all threads for a fixed time.
+	 *
+	 * @return the number of selects per second.
+	 ************************************************************************/
+
+	private static long run(ProxySelector selector, URI[] uris) throws InterruptedException {
+		LongAdder selects = new LongAdder();
+		AtomicBoolean running = new AtomicBoolean(true);
+		CountDownLatch done = new CountDownLatch(THREADS);
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int t = 0; t < THREADS; t++) {
+			workers.add(new Thread(() -> {
+				long count = 0;
+				while (running.get()) {
+					selector.select(uris[nextIndex(uris.length)]);
+					count++;
+				}
+				selects.add(count);
+				done.countDown();
+			}));
+		}
+		long start = System.nanoTime();
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		Thread.sleep(RUN_MILLIS);
+		running.set(false);
+		done.await();
+		return selects.sum() * 1000L * 1000L * 1000L / (System.nanoTime() - start);
+	}
+
+	private static void compare(int maxSize) throws InterruptedException {
+		URI[] uris = buildUris(maxSize * 4);
+		long ttl = 60 * 1000;
+
+		CountingSelector legacyDelegate = new CountingSelector();
+		ProxySelector legacy = new LegacyBufferedProxySelector(maxSize, ttl, legacyDelegate,
+		        CacheScope.CACHE_SCOPE_HOST);
+		CountingSelector currentDelegate = new CountingSelector();
+		ProxySelector current = new BufferedProxySelector(maxSize, ttl, currentDelegate,
+		        CacheScope.CACHE_SCOPE_HOST);
+		CountingSelector nearDelegate = new CountingSelector();
+		BufferedProxySelector near = new BufferedProxySelector(maxSize, ttl, nearDelegate,
+		        CacheScope.CACHE_SCOPE_HOST);
+		near.setNearCacheSize(32);
+
+		// Warm up
+		run(legacy, uris);
+		run(current, uris);
+		run(near, uris);
+
+		legacyDelegate.calls.reset();
+		long legacyRate = run(legacy, uris);
+		long legacyMisses = legacyDelegate.calls.sum();
+		currentDelegate.calls.reset();
+		long currentRate = run(current, uris);
+		long currentMisses = currentDelegate.calls.sum();
+		nearDelegate.calls.reset();
+		long nearRate = run(near, uris);
+		long nearMisses = nearDelegate.calls.sum();
+
+		System.out.printf("%8d %-8s %14d %10.1f%%%n", maxSize, "legacy", legacyRate,
+		        hitRatio(legacyRate, legacyMisses));
+		System.out.printf("%8d %-8s %14d %10.1f%%%n", maxSize, "current", currentRate,
+		        hitRatio(currentRate, currentMisses));
+		System.out.printf("%8d %-8s %14d %10.1f%%%n", maxSize, "near", nearRate, hitRatio(nearRate, nearMisses));
+	}
+
+	/*************************************************************************
+	 * Compares the shared cache with the near cache when all threads ask for
+	 * the same few hosts, like event loop threads.
+	 ************************************************************************/
+
+	private static void compareHotHosts() throws InterruptedException {
+		URI[] uris = buildUris(16);
+		BufferedProxySelector current = new BufferedProxySelector(100, 60 * 1000, new CountingSelector(),
+		        CacheScope.CACHE_SCOPE_HOST);
+		BufferedProxySelector near = new BufferedProxySelector(100, 60 * 1000, new CountingSelector(),
+		        CacheScope.CACHE_SCOPE_HOST);
+		near.setNearCacheSize(32);
+		run(current, uris);
+		run(near, uris);
+		System.out.printf("%8d %-8s %14d%n", uris.length, "current", run(current, uris));
+		System.out.printf("%8d %-8s %14d%n", uris.length, "near", run(near, uris));
+	}
+
+	/*************************************************************************
+	 * Measures the bytes allocated by the current thread per cache hit.
+	 ************************************************************************/
+
+	private static double bytesPerHit(ProxySelector selector) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+		        .getThreadMXBean();
+		// New URI instances per host like an application that parses them
+		URI[] uris = new URI[16];
+		for (int i = 0; i < uris.length; i++) {
+			uris[i] = URI.create("http://Host" + i + ".cdn.example:8080/path/index.html?query=" + i);
+			uris[i].toString();
+			selector.select(uris[i]);
+		}
+		int hits = 1000 * 1000;
+		for (int i = 0; i < hits; i++) {
+			selector.select(uris[i & (uris.length - 1)]);
+		}
+		long threadId = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < hits; i++) {
+			selector.select(uris[i & (uris.length - 1)]);
+		}
+		return (double) (threads.getThreadAllocatedBytes(threadId) - before) / hits;
+	}
+
+	private static void compareAllocation() {
+		long ttl = 60 * 1000;
+		System.out.println("scope                       legacy bytes/hit  current bytes/hit");
+		for (CacheScope scope : CacheScope.values()) {
+			String legacy = "-";
+			if (scope == CacheScope.CACHE_SCOPE_HOST || scope == CacheScope.CACHE_SCOPE_HOST_PORT
+			        || scope == CacheScope.CACHE_SCOPE_URL) {
+				legacy = String.format("%.1f",
+				        bytesPerHit(new LegacyBufferedProxySelector(100, ttl, new CountingSelector(), scope)));
+			}
+			double current = bytesPerHit(new BufferedProxySelector(100, ttl, new CountingSelector(), scope));
+			System.out.printf("%-27s %16s %18.1f%n", scope, legacy, current);
+		}
+	}
+
+	/*************************************************************************
+	 * Measures the heap used per entry of a full URL scope cache.
+	 ************************************************************************/
+
+	private static void compareMemory(int maxSize) {
+		System.out.println("storage                        bytes/entry (" + maxSize + " URLs)");
+		for (CacheStorage storage : CacheStorage.values()) {
+			long before = usedHeap();
+			BufferedProxySelector selector = new BufferedProxySelector(maxSize, 60 * 1000, new CountingSelector(),
+			        CacheScope.CACHE_SCOPE_URL, storage);
+			for (int i = 0; i < maxSize; i++) {
+				selector.select(URI.create("http://host" + (i % 1000) + ".example/path/" + i));
+			}
+			long used = usedHeap() - before;
+			System.out.printf("%-30s %12d%n", storage, used / maxSize);
+			// Keep the selector reachable until it is measured
+			selector.getStatistics();
+		}
+	}
+
+	private static long usedHeap() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static double hitRatio(long rate, long misses) {
+		double selects = rate * (RUN_MILLIS / 1000.0);
+		return 100.0 * Math.max(0, selects - misses) / selects;
+	}
+
+	/*************************************************************************
+	 * Main entry point for the benchmark.
+	 *
+	 * @param args
+	 *            the command line arguments.
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+
+	public static void main(String[] args) throws Exception {
+		System.out.println(" entries selector    selects/s  hit ratio   (" + THREADS + " threads)");
+		compare(10 * 1000);
+		compare(100 * 1000);
+		compareHotHosts();
+		System.out.println();
+		compareAllocation();
+		System.out.println();
+		compareMemory(1000 * 1000);
+	}
+
+}
@@ -0,0 +1,787 @@
+package com.github.markusbernhardt.proxy.selector.misc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.github.markusbernhardt.proxy.selector.misc.BufferedProxySelector.CacheScope;
+import com.github.markusbernhardt.proxy.selector.misc.BufferedProxySelector.CacheStorage;
+
+/*****************************************************************************
+ * Unit Tests for the BufferedProxySelector
+ ****************************************************************************/
+
+public class BufferedProxySelectorTest {
+
+	/*************************************************************************
+	 * Delegate that returns a proxy per host and counts the calls.
+	 ************************************************************************/
+
+	static class CountingSelector extends ProxySelector {
+
+		final AtomicInteger calls = new AtomicInteger();
+
+		@Override
+		public List<Proxy> select(URI uri) {
+			this.calls.incrementAndGet();
+			return Collections.singletonList(
+			        new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved(uri.getHost() + ".proxy", 8080)));
+		}
+
+		@Override
+		public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+			// Not used
+		}
+	}
+
+	/*************************************************************************
+	 * Delegate that blocks until it is released and fails if requested.
+	 ************************************************************************/
+
+	static class BlockingSelector extends CountingSelector {
+
+		final CountDownLatch release = new CountDownLatch(1);
+		volatile boolean fail;
+
+		@Override
+		public List<Proxy> select(URI uri) {
+			List<Proxy> result = super.select(uri);
+			try {
+				this.release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (this.fail) {
+				throw new IllegalStateException("PAC evaluation failed");
+			}
+			return result;
+		}
+	}
+
+	private static URI uri(String host) {
+		return URI.create("http://" + host + "/");
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testResultIsCached() {
+		CountingSelector delegate = new CountingSelector();
+		BufferedProxySelector selector = new BufferedProxySelector(10, 60 * 1000, delegate,
+		        CacheScope.CACHE_SCOPE_HOST);
+
+		List<Proxy> first = selector.select(uri("a.example"));
+		assertSame(first, selector.select(URI.create("https://a.example/other")));
+		assertEquals(1, delegate.calls.get());
+
+		selector.select(uri("b.example"));
+		assertEquals(2, delegate.calls.get());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws InterruptedException
+	 *             if the test wait period was interrupted
+	 ************************************************************************/
+	@Test
+	public void testExpiredResultIsReloaded() throws InterruptedException {
+		CountingSelector delegate = new CountingSelector();
+		BufferedProxySelector selector = new BufferedProxySelector(10, 20, delegate, CacheScope.CACHE_SCOPE_URL);
+
+		selector.select(uri("a.example"));
+		Thread.sleep(50);
+		selector.select(uri("a.example"));
+
+		assertEquals(2, delegate.calls.get());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testRecentlyUsedEntriesSurviveEviction() {
+		ProxyDecisionCache cache = new ProxyDecisionCache(4);
+		List<Proxy> result = Collections.singletonList(Proxy.NO_PROXY);
+		long expireAt = System.nanoTime() + 60L * 1000 * 1000 * 1000;
+		for (int i = 0; i < 4; i++) {
+			cache.put(new ProxyDecisionCache.Entry("host" + i, result, expireAt));
+		}
+
+		// The hot entry is used between the inserts, the others are not
+		for (int i = 4; i < 20; i++) {
+			assertTrue(cache.get("host0") != null);
+			cache.put(new ProxyDecisionCache.Entry("host" + i, result, expireAt));
+			assertEquals(4, cache.size());
+		}
+		assertTrue(cache.get("host0") != null);
+		assertTrue(cache.get("host19") != null);
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testExpiredEntriesAreEvictedFirst() {
+		ProxyDecisionCache cache = new ProxyDecisionCache(2);
+		List<Proxy> result = Collections.singletonList(Proxy.NO_PROXY);
+		long now = System.nanoTime();
+		cache.put(new ProxyDecisionCache.Entry("expired", result, now - 1));
+		cache.put(new ProxyDecisionCache.Entry("valid", result, now + 60L * 1000 * 1000 * 1000));
+		cache.get("expired");
+		cache.get("valid");
+
+		cache.put(new ProxyDecisionCache.Entry("new", result, now + 60L * 1000 * 1000 * 1000));
+
+		assertEquals(null, cache.get("expired"));
+		assertTrue(cache.get("valid") != null);
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws InterruptedException
+	 *             if the test was interrupted
+	 ************************************************************************/
+	@Test
+	public void testSizeIsBoundedUnderConcurrency() throws InterruptedException {
+		CountingSelector delegate = new CountingSelector();
+		BufferedProxySelector selector = new BufferedProxySelector(100, 60 * 1000, delegate,
+		        CacheScope.CACHE_SCOPE_HOST_PORT);
+		ProxyDecisionCache cache = selector.getCache();
+		AtomicInteger wrongResults = new AtomicInteger();
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 8; t++) {
+			final int offset = t * 1000;
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < 5000; i++) {
+					URI uri = uri("host" + ((offset + i) % 400) + ".example");
+					InetSocketAddress address = (InetSocketAddress) selector.select(uri).get(0).address();
+					if (!address.getHostString().equals(uri.getHost() + ".proxy")) {
+						wrongResults.incrementAndGet();
+					}
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(0, wrongResults.get());
+		assertTrue(cache.size() <= 100, "size " + cache.size());
+		assertTrue(cache.size() >= 50, "size " + cache.size());
+	}
+
+	/*************************************************************************
+	 * Starts threads that select the URI and waits until they are blocked in
+	 * the delegate or waiting for it, then releases the delegate.
+	 *
+	 * @return the number of threads that got an exception.
+	 ************************************************************************/
+
+	private static int selectConcurrently(ProxySelector selector, BlockingSelector delegate, URI uri)
+	        throws InterruptedException {
+		AtomicInteger failures = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 8; t++) {
+			threads.add(new Thread(() -> {
+				try {
+					selector.select(uri);
+				} catch (IllegalStateException e) {
+					failures.incrementAndGet();
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		Thread.sleep(200);
+		delegate.release.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return failures.get();
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws InterruptedException
+	 *             if the test was interrupted
+	 ************************************************************************/
+	@Test
+	public void testConcurrentMissesShareOneCall() throws InterruptedException {
+		for (CacheScope scope : CacheScope.values()) {
+			BlockingSelector delegate = new BlockingSelector();
+			BufferedProxySelector selector = new BufferedProxySelector(10, 60 * 1000, delegate, scope);
+
+			assertEquals(0, selectConcurrently(selector, delegate, uri("a.example")), scope.name());
+			assertEquals(1, delegate.calls.get(), scope.name());
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws InterruptedException
+	 *             if the test was interrupted
+	 ************************************************************************/
+	@Test
+	public void testFailureIsSharedAndNotCached() throws InterruptedException {
+		BlockingSelector delegate = new BlockingSelector();
+		delegate.fail = true;
+		BufferedProxySelector selector = new BufferedProxySelector(10, 60 * 1000, delegate,
+		        CacheScope.CACHE_SCOPE_HOST);
+
+		assertEquals(8, selectConcurrently(selector, delegate, uri("a.example")));
+		assertEquals(1, delegate.calls.get());
+
+		assertThrows(IllegalStateException.class, () -> selector.select(uri("a.example")));
+		assertEquals(2, delegate.calls.get());
+		delegate.fail = false;
+		assertEquals(1, selector.select(uri("a.example")).size());
+		assertEquals(3, delegate.calls.get());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws InterruptedException
+	 *             if the test wait period was interrupted
+	 ************************************************************************/
+	@Test
+	public void testHitInRefreshWindowReloadsInBackground() throws InterruptedException {
+		CountingSelector delegate = new CountingSelector();
+		BufferedProxySelector selector = new BufferedProxySelector(10, 2000, delegate, CacheScope.CACHE_SCOPE_HOST);
+		selector.setExpiryJitter(0);
+		selector.setRefreshAhead(1900);
+
+		List<Proxy> first = selector.select(uri("a.example"));
+		Thread.sleep(150);
+		assertSame(first, selector.select(uri("a.example")));
+
+		long end = System.currentTimeMillis() + 5000;
+		while (selector.select(uri("a.example")) == first && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertNotSame(first, selector.select(uri("a.example")));
+		assertEquals(2, delegate.calls.get());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testExpiryIsJittered() {
+		CountingSelector delegate = new CountingSelector();
+		BufferedProxySelector selector = new BufferedProxySelector(100, 1000, delegate, CacheScope.CACHE_SCOPE_HOST);
+		assertEquals(0, selector.getExpiryJitter());
+		selector.setExpiryJitter(0.5);
+		long start = System.nanoTime();
+		for (int i = 0; i < 50; i++) {
+			selector.select(uri("host" + i + ".example"));
+		}
+		long end = System.nanoTime();
+
+		Set<Long> expireDates = new HashSet<Long>();
+		for (ProxyDecisionCache.Entry entry : selector.getCache().entries()) {
+			assertTrue(entry.expireAt - start >= 500L * 1000 * 1000);
+			assertTrue(entry.expireAt - end <= 1000L * 1000 * 1000);
+			expireDates.add(entry.expireAt);
+		}
+		assertTrue(expireDates.size() > 1);
+		assertThrows(IllegalArgumentException.class, () -> selector.setExpiryJitter(1));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws InterruptedException
+	 *             if the test was interrupted
+	 ************************************************************************/
+	@Test
+	public void testStatistics() throws InterruptedException {
+		BlockingSelector delegate = new BlockingSelector();
+		delegate.release.countDown();
+		BufferedProxySelector selector = new BufferedProxySelector(16, 60 * 1000, delegate,
+		        CacheScope.CACHE_SCOPE_HOST);
+		selector.setExpiryJitter(0);
+		assertEquals(1.0, selector.getStatistics().getHitRatio());
+
+		for (int i = 0; i < 20; i++) {
+			selector.select(uri("host" + i + ".example"));
+		}
+		selector.select(uri("host19.example"));
+		delegate.fail = true;
+		assertThrows(IllegalStateException.class, () -> selector.select(uri("failing.example")));
+
+		CacheStatistics statistics = selector.getStatistics();
+		assertEquals(1, statistics.getHitCount());
+		assertEquals(21, statistics.getMissCount());
+		assertEquals(1.0 / 22, statistics.getHitRatio(), 0.0001);
+		assertEquals(4, statistics.getCapacityEvictionCount());
+		assertEquals(0, statistics.getExpiredEvictionCount());
+		assertEquals(21, statistics.getLoadCount());
+		assertEquals(1, statistics.getLoadFailureCount());
+		assertEquals(16, statistics.getSize());
+		assertTrue(statistics.getMaxLoadTime() > 0);
+		assertTrue(statistics.getTotalLoadTime() >= statistics.getMaxLoadTime());
+		long loads = 0;
+		for (long count : statistics.getLoadTimeHistogram()) {
+			loads += count;
+		}
+		assertEquals(21, loads);
+		assertEquals(CacheStatistics.getLoadTimeBucketLimits().length + 1,
+		        statistics.getLoadTimeHistogram().length);
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws InterruptedException
+	 *             if the test wait period was interrupted
+	 ************************************************************************/
+	@Test
+	public void testExpiredEvictionsAreCounted() throws InterruptedException {
+		CountingSelector delegate = new CountingSelector();
+		BufferedProxySelector selector = new BufferedProxySelector(2, 20, delegate, CacheScope.CACHE_SCOPE_HOST);
+		selector.select(uri("a.example"));
+		selector.select(uri("b.example"));
+		Thread.sleep(50);
+		selector.select(uri("c.example"));
+
+		assertEquals(1, selector.getStatistics().getExpiredEvictionCount());
+		assertEquals(0, selector.getStatistics().getCapacityEvictionCount());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testDomainScopeSharesEntries() {
+		CountingSelector delegate = new CountingSelector();
+		BufferedProxySelector selector = new BufferedProxySelector(10, 60 * 1000, delegate,
+		        CacheScope.CACHE_SCOPE_DOMAIN);
+
+		List<Proxy> first = selector.select(uri("a1.cdn.example.com"));
+		assertSame(first, selector.select(uri("b2.cdn.example.com")));
+		assertSame(first, selector.select(URI.create("https://WWW.Example.com:8443/")));
+		selector.select(uri("a1.cdn.example.co.uk"));
+		assertSame(selector.select(uri("b2.example.co.uk")), selector.select(uri("a1.cdn.example.co.uk")));
+		assertEquals(2, delegate.calls.get());
+
+		selector.setDomainDepth(3);
+		selector.select(uri("a1.cdn.example.com"));
+		selector.select(uri("b2.cdn.example.com"));
+		selector.select(uri("www.example.com"));
+		assertEquals(4, delegate.calls.get());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testSchemeDomainScopeSeparatesSchemes() {
+		CountingSelector delegate = new CountingSelector();
+		BufferedProxySelector selector = new BufferedProxySelector(10, 60 * 1000, delegate,
+		        CacheScope.CACHE_SCOPE_SCHEME_DOMAIN);
+
+		selector.select(uri("a1.cdn.example.com"));
+		selector.select(uri("b2.cdn.example.com"));
+		selector.select(URI.create("https://a1.cdn.example.com/"));
+		selector.select(URI.create("https://b2.cdn.example.com/"));
+
+		assertEquals(2, delegate.calls.get());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testDomainKeys() {
+		assertEquals("example.com", DomainKeys.domainOf("a.b.Example.COM", 0));
+		assertEquals("example.com", DomainKeys.domainOf("example.com.", 0));
+		assertEquals("example.co.uk", DomainKeys.domainOf("www.example.co.uk", 0));
+		assertEquals("example.de", DomainKeys.domainOf("www.example.de", 0));
+		assertEquals("b.example.com", DomainKeys.domainOf("a.b.example.com", 3));
+		assertEquals("example.com", DomainKeys.domainOf("example.com", 3));
+		assertEquals("intranet", DomainKeys.domainOf("intranet", 0));
+		assertEquals("192.168.0.1", DomainKeys.domainOf("192.168.0.1", 2));
+		assertEquals("[::1]", DomainKeys.domainOf("[::1]", 0));
+		assertEquals(null, DomainKeys.domainOf(null, 0));
+		// Unknown multi label suffixes are only handled with an explicit depth
+		assertEquals("github.io", DomainKeys.domainOf("project.github.io", 0));
+		assertEquals("project.github.io", DomainKeys.domainOf("project.github.io", 3));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testHostsAreComparedIgnoringCase() {
+		for (CacheScope scope : new CacheScope[] { CacheScope.CACHE_SCOPE_HOST, CacheScope.CACHE_SCOPE_HOST_PORT,
+		        CacheScope.CACHE_SCOPE_DOMAIN, CacheScope.CACHE_SCOPE_SCHEME_DOMAIN }) {
+			CountingSelector delegate = new CountingSelector();
+			BufferedProxySelector selector = new BufferedProxySelector(10, 60 * 1000, delegate, scope);
+
+			List<Proxy> first = selector.select(uri("www.example.com"));
+			assertSame(first, selector.select(uri("WWW.Example.COM")), scope.name());
+			assertSame(first, selector.select(URI.create("HTTP://www.EXAMPLE.com/")), scope.name());
+			assertEquals(1, delegate.calls.get(), scope.name());
+
+			selector.select(uri("www.example.org"));
+			selector.select(URI.create("http://www.example.com:8080/"));
+			assertEquals(scope == CacheScope.CACHE_SCOPE_HOST_PORT ? 3 : 2, delegate.calls.get(), scope.name());
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testUriWithoutHost() {
+		CountingSelector delegate = new CountingSelector();
+		BufferedProxySelector selector = new BufferedProxySelector(10, 60 * 1000, delegate,
+		        CacheScope.CACHE_SCOPE_HOST);
+
+		selector.select(URI.create("file:///tmp/test"));
+		selector.select(URI.create("file:///tmp/test"));
+
+		assertEquals(2, delegate.calls.get());
+		assertEquals(0, selector.getCache().size());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws InterruptedException
+	 *             if the test wait period was interrupted
+	 ************************************************************************/
+	@Test
+	public void testCompactStorage() throws InterruptedException {
+		for (CacheStorage storage : new CacheStorage[] { CacheStorage.CACHE_STORAGE_COMPACT,
+		        CacheStorage.CACHE_STORAGE_COMPACT_VERIFIED }) {
+			CountingSelector delegate = new CountingSelector();
+			BufferedProxySelector selector = new BufferedProxySelector(32, 60 * 1000, delegate,
+			        CacheScope.CACHE_SCOPE_URL, storage);
+
+			List<Proxy> first = selector.select(URI.create("http://a.example/1"));
+			assertSame(first, selector.select(URI.create("http://a.example/1")), storage.name());
+			assertEquals(1, delegate.calls.get(), storage.name());
+
+			// Equal results of different URLs share one list
+			assertSame(first, selector.select(URI.create("http://a.example/2")), storage.name());
+			assertEquals(2, delegate.calls.get(), storage.name());
+			assertEquals(1, selector.getCompactCache().getInternedResultCount(), storage.name());
+
+			for (int i = 0; i < 1000; i++) {
+				selector.select(URI.create("http://a.example/page" + i));
+			}
+			assertTrue(selector.getCompactCache().size() <= 32, storage.name());
+			assertEquals(selector.getCompactCache().size(), selector.getStatistics().getSize(), storage.name());
+			assertTrue(selector.getStatistics().getCapacityEvictionCount() > 0, storage.name());
+		}
+
+		CountingSelector delegate = new CountingSelector();
+		BufferedProxySelector selector = new BufferedProxySelector(10, 20, delegate, CacheScope.CACHE_SCOPE_URL,
+		        CacheStorage.CACHE_STORAGE_COMPACT);
+		selector.select(uri("a.example"));
+		Thread.sleep(50);
+		selector.select(uri("a.example"));
+		assertEquals(2, delegate.calls.get());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testCompactCacheFingerprintCollisions() {
+		CacheKey a = CacheKey.lookupKey(uri("a.example"), CacheScope.CACHE_SCOPE_HOST, 0).copy();
+		CacheKey b = CacheKey.lookupKey(uri("b.example"), CacheScope.CACHE_SCOPE_HOST, 0).copy();
+		List<Proxy> resultA = Collections.singletonList(Proxy.NO_PROXY);
+		List<Proxy> resultB = Collections
+		        .singletonList(new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved("proxy", 8080)));
+		long now = System.nanoTime();
+		long expireAt = now + 60L * 1000 * 1000 * 1000;
+
+		CompactProxyDecisionCache verified = new CompactProxyDecisionCache(16, true);
+		verified.put(a, 42, resultA, expireAt);
+		verified.put(b, 42, resultB, expireAt);
+		assertEquals(resultA, verified.get(a, 42, now));
+		assertEquals(resultB, verified.get(b, 42, now));
+		assertEquals(2, verified.size());
+
+		CompactProxyDecisionCache unverified = new CompactProxyDecisionCache(16, false);
+		unverified.put(a, 42, resultA, expireAt);
+		unverified.put(b, 42, resultB, expireAt);
+		assertEquals(resultB, unverified.get(a, 42, now));
+		assertEquals(1, unverified.size());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testCompactCacheEvictionKeepsProbeSequences() {
+		CacheKey key = CacheKey.lookupKey(uri("a.example"), CacheScope.CACHE_SCOPE_HOST, 0).copy();
+		List<Proxy> result = Collections.singletonList(Proxy.NO_PROXY);
+		long now = System.nanoTime();
+		long expireAt = now + 60L * 1000 * 1000 * 1000;
+		CompactProxyDecisionCache cache = new CompactProxyDecisionCache(8, false);
+
+		// Fingerprints with the same or neighbouring home slots build long
+		// probe sequences, evictions must not cut them
+		List<Long> fingerprints = new ArrayList<Long>();
+		for (int i = 1; i <= 40; i++) {
+			long fingerprint = i % 3 == 0 ? i * 16L + 2 : i * 16L + 1;
+			fingerprints.add(fingerprint);
+			cache.put(key, fingerprint, result, expireAt);
+			assertTrue(cache.get(key, fingerprint, now) != null);
+
+			int found = 0;
+			for (long f : fingerprints) {
+				if (cache.get(key, f, now) != null) {
+					found++;
+				}
+			}
+			assertEquals(Math.min(i, 8), found);
+			assertEquals(Math.min(i, 8), cache.size());
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @param directory
+	 *            the directory for the snapshot.
+	 * @throws IOException
+	 *             on snapshot error
+	 ************************************************************************/
+	@Test
+	public void testSnapshotRestoresEntries(@TempDir File directory) throws IOException {
+		File file = new File(directory, "cache.snapshot");
+		for (CacheStorage storage : CacheStorage.values()) {
+			BufferedProxySelector selector = new BufferedProxySelector(100, 60 * 1000, new CountingSelector(),
+			        CacheScope.CACHE_SCOPE_HOST_PORT, storage);
+			List<Proxy> first = selector.select(uri("a.example"));
+			selector.select(URI.create("https://b.example:8443/"));
+			assertEquals(2, selector.writeSnapshot(file, "hash1"), storage.name());
+
+			CountingSelector delegate = new CountingSelector();
+			BufferedProxySelector restored = new BufferedProxySelector(100, 60 * 1000, delegate,
+			        CacheScope.CACHE_SCOPE_HOST_PORT, storage);
+			assertEquals(2, restored.readSnapshot(file, "hash1"), storage.name());
+			assertEquals(first, restored.select(uri("A.example")), storage.name());
+			assertThrows(UnsupportedOperationException.class,
+			        () -> restored.select(uri("a.example")).add(Proxy.NO_PROXY), storage.name());
+			assertEquals("b.example.proxy", ((InetSocketAddress) restored.select(URI.create("https://b.example:8443/"))
+			        .get(0).address()).getHostString(), storage.name());
+			assertEquals(0, delegate.calls.get(), storage.name());
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @param directory
+	 *            the directory for the snapshot.
+	 * @throws IOException
+	 *             on snapshot error
+	 ************************************************************************/
+	@Test
+	public void testSnapshotOfOtherScriptIsIgnored(@TempDir File directory) throws IOException {
+		File file = new File(directory, "cache.snapshot");
+		BufferedProxySelector selector = new BufferedProxySelector(100, 60 * 1000, new CountingSelector(),
+		        CacheScope.CACHE_SCOPE_HOST);
+		selector.select(uri("a.example"));
+		selector.writeSnapshot(file, "hash1");
+
+		CountingSelector delegate = new CountingSelector();
+		BufferedProxySelector restored = new BufferedProxySelector(100, 60 * 1000, delegate,
+		        CacheScope.CACHE_SCOPE_HOST);
+		assertEquals(0, restored.readSnapshot(file, "hash2"));
+		assertEquals(0, new BufferedProxySelector(100, 60 * 1000, delegate, CacheScope.CACHE_SCOPE_URL)
+		        .readSnapshot(file, "hash1"));
+		restored.select(uri("a.example"));
+		assertEquals(1, delegate.calls.get());
+
+		Files.write(file.toPath(), new byte[] { 1, 2, 3 });
+		assertThrows(IOException.class, () -> restored.readSnapshot(file, "hash1"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @param directory
+	 *            the directory for the snapshot.
+	 * @throws Exception
+	 *             on snapshot error
+	 ************************************************************************/
+	@Test
+	public void testSnapshotKeepsRemainingTtl(@TempDir File directory) throws Exception {
+		File file = new File(directory, "cache.snapshot");
+		BufferedProxySelector selector = new BufferedProxySelector(100, 200, new CountingSelector(),
+		        CacheScope.CACHE_SCOPE_HOST);
+		selector.setExpiryJitter(0);
+		selector.select(uri("a.example"));
+		assertEquals(1, selector.writeSnapshot(file, null));
+
+		Thread.sleep(300);
+		assertEquals(0, new BufferedProxySelector(100, 60 * 1000, new CountingSelector(),
+		        CacheScope.CACHE_SCOPE_HOST).readSnapshot(file, null));
+		assertEquals(0, selector.writeSnapshot(file, null));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws InterruptedException
+	 *             if the test wait period was interrupted
+	 ************************************************************************/
+	@Test
+	public void testNearCache() throws InterruptedException {
+		for (CacheStorage storage : CacheStorage.values()) {
+			CountingSelector delegate = new CountingSelector();
+			BufferedProxySelector selector = new BufferedProxySelector(10, 60 * 1000, delegate,
+			        CacheScope.CACHE_SCOPE_HOST, storage);
+			selector.setNearCacheSize(20);
+			assertEquals(32, selector.getNearCacheSize(), storage.name());
+
+			List<Proxy> first = selector.select(uri("a.example"));
+			assertSame(first, selector.select(uri("a.example")), storage.name());
+			assertSame(first, selector.select(uri("A.EXAMPLE")), storage.name());
+			assertEquals(1, delegate.calls.get(), storage.name());
+			assertEquals(2, selector.getStatistics().getHitCount(), storage.name());
+
+			// Invalidation reaches the near cache of this and other threads
+			Thread other = new Thread(() -> selector.select(uri("a.example")));
+			other.start();
+			other.join();
+			selector.invalidateAll();
+			selector.select(uri("a.example"));
+			assertEquals(2, delegate.calls.get(), storage.name());
+			AtomicReference<List<Proxy>> otherResult = new AtomicReference<List<Proxy>>();
+			other = new Thread(() -> otherResult.set(selector.select(uri("a.example"))));
+			other.start();
+			other.join();
+			assertEquals(2, delegate.calls.get(), storage.name());
+			if (storage == CacheStorage.CACHE_STORAGE_STANDARD) {
+				assertNotSame(first, otherResult.get());
+			}
+		}
+
+		CountingSelector delegate = new CountingSelector();
+		BufferedProxySelector selector = new BufferedProxySelector(10, 20, delegate, CacheScope.CACHE_SCOPE_HOST);
+		selector.setNearCacheSize(32);
+		selector.select(uri("a.example"));
+		selector.select(uri("a.example"));
+		Thread.sleep(50);
+		selector.select(uri("a.example"));
+		assertEquals(2, delegate.calls.get());
+
+		assertThrows(IllegalArgumentException.class, () -> selector.setNearCacheSize(-1));
+		selector.setNearCacheSize(0);
+		assertEquals(0, selector.getNearCacheSize());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testNearCacheSlots() {
+		NearCache near = new NearCache(1);
+		CacheKey a = CacheKey.lookupKey(uri("a.example"), CacheScope.CACHE_SCOPE_HOST, 0).copy();
+		CacheKey b = CacheKey.lookupKey(uri("b.example"), CacheScope.CACHE_SCOPE_HOST, 0).copy();
+		List<Proxy> result = Collections.singletonList(Proxy.NO_PROXY);
+		long now = System.nanoTime();
+
+		near.put(a, result, now + 1000 * 1000 * 1000, 0);
+		assertSame(result, near.get(a, 0, now));
+		assertEquals(null, near.get(b, 0, now));
+		assertEquals(null, near.get(a, 0, now + 1000 * 1000 * 1000));
+
+		// Keys of one slot replace each other
+		near.put(b, result, now + 1000 * 1000 * 1000, 0);
+		assertEquals(null, near.get(a, 0, now));
+		assertSame(result, near.get(b, 0, now));
+
+		// A new generation drops all entries
+		assertEquals(null, near.get(b, 1, now));
+		near.put(b, result, now + 1000 * 1000 * 1000, 1);
+		assertEquals(null, near.get(b, 2, now));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testConnectFailedEvictsEntriesWithTheProxy() {
+		for (CacheStorage storage : CacheStorage.values()) {
+			CountingSelector delegate = new CountingSelector();
+			BufferedProxySelector selector = new BufferedProxySelector(100, 60 * 1000, delegate,
+			        CacheScope.CACHE_SCOPE_URL, storage);
+			selector.setNearCacheSize(16);
+			List<Proxy> failed = selector.select(URI.create("http://a.example/1"));
+			selector.select(URI.create("http://a.example/2"));
+			selector.select(URI.create("http://b.example/1"));
+			SocketAddress address = failed.get(0).address();
+			assertEquals(2, selector.getIndexedEntryCount(address), storage.name());
+
+			selector.connectFailed(URI.create("http://a.example/1"), address, new IOException("Connection refused"));
+			assertEquals(0, selector.getIndexedEntryCount(address), storage.name());
+
+			selector.select(URI.create("http://a.example/1"));
+			selector.select(URI.create("http://a.example/2"));
+			selector.select(URI.create("http://b.example/1"));
+			assertEquals(5, delegate.calls.get(), storage.name());
+			assertEquals(2, selector.getIndexedEntryCount(address), storage.name());
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testProxyIndexFollowsEvictions() {
+		for (CacheStorage storage : CacheStorage.values()) {
+			BufferedProxySelector selector = new BufferedProxySelector(16, 60 * 1000, new CountingSelector(),
+			        CacheScope.CACHE_SCOPE_URL, storage);
+			SocketAddress address = selector.select(URI.create("http://a.example/")).get(0).address();
+			for (int i = 0; i < 1000; i++) {
+				selector.select(URI.create("http://a.example/" + i));
+			}
+			assertTrue(selector.getIndexedEntryCount(address) <= 16, storage.name());
+
+			selector.invalidateAll();
+			assertEquals(0, selector.getIndexedEntryCount(address), storage.name());
+		}
+	}
+
+}
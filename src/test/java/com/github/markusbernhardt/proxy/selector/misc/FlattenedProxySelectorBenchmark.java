@@ -0,0 +1,93 @@
+package com.github.markusbernhardt.proxy.selector.misc;
+
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+
+import com.github.markusbernhardt.proxy.search.browser.ie.IELocalByPassFilter;
+import com.github.markusbernhardt.proxy.selector.fixed.FixedProxySelector;
+import com.github.markusbernhardt.proxy.selector.fixed.FixedSocksSelector;
+import com.github.markusbernhardt.proxy.selector.whitelist.ProxyBypassListSelector;
+import com.github.markusbernhardt.proxy.util.UriFilter;
+
+/*****************************************************************************
+ * Small benchmark program that compares a typical selector chain of the
+ * desktop search strategies with its flattened form: a bypass list and the
+ * local bypass filter on a protocol dispatch selector with fixed proxies.
+ * The URIs mix the schemes and bypassed and proxied hosts.
+ * <p>
+ * This is not a unit test, start it with the test classpath.
+ * </p>
+ ****************************************************************************/
+
+public class FlattenedProxySelectorBenchmark {
+
+	private static final long RUN_MILLIS = 2000;
+	private static final int ROUNDS = 3;
+
+	private static ProxySelector buildChain() {
+		ProtocolDispatchSelector ps = new ProtocolDispatchSelector();
+		ps.setSelector("http", new FixedProxySelector("http-proxy", 8080));
+		ps.setSelector("https", new FixedProxySelector("https-proxy", 8443));
+		ps.setSelector("ftp", new FixedProxySelector("ftp-proxy", 2121));
+		ps.setFallbackSelector(new FixedSocksSelector("socks-proxy", 1080));
+		String bypassList = "localhost, 127.0.0.1, *.corp.example.com, *.lab.example.com, build.*, "
+		        + "*.internal, wiki.example.org, http://*.legacy.example.net, jira.*, .svc.cluster.local";
+		return new ProxyBypassListSelector(bypassList,
+		        new ProxyBypassListSelector(Collections.<UriFilter> singletonList(new IELocalByPassFilter()), ps));
+	}
+
+	private static URI[] buildUris() throws Exception {
+		String[] schemes = { "http", "https", "ftp", "ws" };
+		String[] hosts = { "www.example.com", "api.corp.example.com", "build.example.com", "intranet",
+		        "cdn.example.net", "old.legacy.example.net", "service.svc.cluster.local", "www.google.com" };
+		URI[] uris = new URI[schemes.length * hosts.length];
+		int i = 0;
+		for (String scheme : schemes) {
+			for (String host : hosts) {
+				uris[i++] = new URI(scheme + "://" + host + "/path");
+			}
+		}
+		return uris;
+	}
+
+	private static long run(ProxySelector selector, URI[] uris) {
+		long count = 0;
+		int checksum = 0;
+		long end = System.nanoTime() + RUN_MILLIS * 1000 * 1000;
+		while (System.nanoTime() < end) {
+			for (int i = 0; i < 1000; i++) {
+				List<Proxy> result = selector.select(uris[i % uris.length]);
+				checksum += result.size();
+			}
+			count += 1000;
+		}
+		if (checksum == 42) {
+			System.out.println();
+		}
+		return count * 1000 / RUN_MILLIS;
+	}
+
+	/*************************************************************************
+	 * Runs the benchmark.
+	 *
+	 * @param args
+	 *            not used.
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+
+	public static void main(String[] args) throws Exception {
+		ProxySelector chain = buildChain();
+		ProxySelector flattened = FlattenedProxySelector.flatten(chain);
+		URI[] uris = buildUris();
+		System.out.println("round selector       selects/s");
+		for (int round = 1; round <= ROUNDS; round++) {
+			System.out.printf("%5d %-10s %13d%n", round, "chain", run(chain, uris));
+			System.out.printf("%5d %-10s %13d%n", round, "flattened", run(flattened, uris));
+		}
+	}
+
+}
@@ -0,0 +1,172 @@
+package com.github.markusbernhardt.proxy.selector.misc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.markusbernhardt.proxy.search.browser.ie.IELocalByPassFilter;
+import com.github.markusbernhardt.proxy.selector.direct.NoProxySelector;
+import com.github.markusbernhardt.proxy.selector.fixed.FixedProxySelector;
+import com.github.markusbernhardt.proxy.selector.fixed.FixedSocksSelector;
+import com.github.markusbernhardt.proxy.selector.misc.BufferedProxySelector.CacheScope;
+import com.github.markusbernhardt.proxy.selector.whitelist.ProxyBypassListSelector;
+import com.github.markusbernhardt.proxy.util.UriFilter;
+
+/*****************************************************************************
+ * Unit Tests for the FlattenedProxySelector. Each flattened chain is compared
+ * with the original chain on a set of URIs.
+ ****************************************************************************/
+
+public class FlattenedProxySelectorTest {
+
+	private static final String[] URIS = { "http://www.example.com/", "https://www.example.com:8443/a",
+	        "ftp://ftp.example.com/file", "gopher://gopher.example.com/", "socks://socks.example.com/",
+	        "HTTP://www.example.com/", "http://localhost/", "http://intranet/", "http://host.mynet.com/",
+	        "https://HOST.MYNET.COM:443/", "http://mynet.com.evil.org/", "http://www.mynet.org/",
+	        "https://www.mynet.org/", "http://192.168.10.5/", "http://192.169.10.5/", "http://[::1]:8080/",
+	        "https://build.intranet.example.com/", "ws://www.example.com/socket", "mailto:someone@example.com",
+	        "file:///tmp/x", "urn:isbn:123" };
+
+	/*************************************************************************
+	 * PAC like selector that decides by the host and records failures.
+	 ************************************************************************/
+
+	private static class HostSelector extends ProxySelector {
+
+		final List<SocketAddress> failed = new ArrayList<SocketAddress>();
+
+		@Override
+		public List<Proxy> select(URI uri) {
+			String host = uri.getHost();
+			if (host == null || host.endsWith(".org")) {
+				return Collections.singletonList(Proxy.NO_PROXY);
+			}
+			return Collections.singletonList(
+			        new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved("pac-" + host, 8080)));
+		}
+
+		@Override
+		public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+			this.failed.add(sa);
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void testBypassDispatchFixedChain() throws Exception {
+		ProtocolDispatchSelector ps = new ProtocolDispatchSelector();
+		ps.setSelector("http", new FixedProxySelector("http-proxy", 8080));
+		ps.setSelector("https", new FixedProxySelector("https-proxy", 8443));
+		ps.setSelector("ftp", new FixedProxySelector("ftp-proxy", 2121));
+		ps.setFallbackSelector(new FixedSocksSelector("socks-proxy", 1080));
+		ProxySelector chain = new ProxyBypassListSelector(
+		        "localhost, *.mynet.com, http://www.mynet.*, 192.168.0.0/16",
+		        new ProxyBypassListSelector(Collections.<UriFilter> singletonList(new IELocalByPassFilter()), ps));
+
+		ProxySelector flattened = FlattenedProxySelector.flatten(chain);
+		assertTrue(flattened instanceof FlattenedProxySelector);
+		assertSameDecisions(chain, flattened);
+
+		// Constant results are the lists of the fixed selectors
+		assertSame(ps.getSelector("https").select(new URI("https://a.b/")),
+		        flattened.select(new URI("https://www.example.com/")));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void testNestedDispatchAndBypass() throws Exception {
+		HostSelector pac = new HostSelector();
+		ProtocolDispatchSelector inner = new ProtocolDispatchSelector();
+		inner.setSelector("ftp", new FixedProxySelector("inner-ftp", 21));
+		inner.setSelector("ws", NoProxySelector.getInstance());
+		inner.setFallbackSelector(new ProxyBypassListSelector("*.example.com", pac));
+		ProtocolDispatchSelector outer = new ProtocolDispatchSelector();
+		outer.setSelector("http", new ProxyBypassListSelector("intranet, *.org", inner));
+		outer.setSelector("https", new FixedProxySelector("https-proxy", 8443));
+		outer.setFallbackSelector(inner);
+		ProxySelector chain = new ProxyBypassListSelector("localhost", outer);
+
+		ProxySelector flattened = FlattenedProxySelector.flatten(chain);
+		assertSameDecisions(chain, flattened);
+
+		// The DIRECT route needs no bypass filters
+		FlattenedProxySelector.Route ws = ((FlattenedProxySelector) flattened).getRoutes().get("ws");
+		assertEquals(0, ws.bypass.length);
+		assertNull(ws.delegate);
+		// One PAC selector ends the default route
+		assertSame(pac, ((FlattenedProxySelector) flattened).getRoutes().get(null).delegate);
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void testFailuresAreForwardedToTheRouteSelector() throws Exception {
+		HostSelector pac = new HostSelector();
+		ProxySelector buffered = new BufferedProxySelector(10, 60000, pac, CacheScope.CACHE_SCOPE_HOST);
+		ProtocolDispatchSelector ps = new ProtocolDispatchSelector();
+		ps.setSelector("https", new FixedProxySelector("https-proxy", 8443));
+		ps.setFallbackSelector(buffered);
+		ProxySelector chain = new ProxyBypassListSelector("localhost", ps);
+
+		ProxySelector flattened = FlattenedProxySelector.flatten(chain);
+		assertSameDecisions(chain, flattened);
+
+		SocketAddress address = InetSocketAddress.createUnresolved("pac-www.example.com", 8080);
+		flattened.connectFailed(new URI("http://www.example.com/"), address, new IOException("TEST"));
+		flattened.connectFailed(new URI("https://www.example.com/"), address, new IOException("TEST"));
+		assertEquals(Arrays.asList(address), pac.failed);
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testOtherSelectorsAreNotFlattened() {
+		ProxySelector fallback = new ProxyListFallbackSelector(new HostSelector());
+		assertSame(fallback, FlattenedProxySelector.flatten(fallback));
+
+		// Subclasses may change the behavior
+		ProxySelector subclass = new FixedProxySelector("proxy", 8080) {
+			@Override
+			public List<Proxy> select(URI uri) {
+				return Collections.singletonList(Proxy.NO_PROXY);
+			}
+		};
+		assertSame(subclass, FlattenedProxySelector.flatten(subclass));
+	}
+
+	private static void assertSameDecisions(ProxySelector chain, ProxySelector flattened) throws Exception {
+		for (String uri : URIS) {
+			assertEquals(chain.select(new URI(uri)), flattened.select(new URI(uri)), uri);
+		}
+	}
+
+}
@@ -0,0 +1,294 @@
+package com.github.markusbernhardt.proxy.selector.misc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.markusbernhardt.proxy.TestUtil;
+
+/*****************************************************************************
+ * Unit Tests for the HealthCheckingProxySelector. The proxies are loopback
+ * stand-ins that accept connections and answer CONNECT requests.
+ ****************************************************************************/
+
+public class HealthCheckingProxySelectorTest {
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void testUnreachableProxyIsFilteredOut() throws Exception {
+		try (StandInProxy alive = new StandInProxy(200)) {
+			Proxy dead = new Proxy(Proxy.Type.HTTP, unusedAddress());
+			HealthCheckingProxySelector selector = new HealthCheckingProxySelector(
+			        TestUtil.fixedSelector(Arrays.asList(dead, alive.proxy())), 50, 1000, 2);
+			selector.setFailureThreshold(1);
+			selector.start();
+			try {
+				// Unknown proxies are healthy until probed
+				assertEquals(Arrays.asList(dead, alive.proxy()), selector.select(TestUtil.HTTP_TEST_URI));
+				awaitTrue(() -> !selector.getHealth(dead.address()).isHealthy());
+
+				assertEquals(Arrays.asList(alive.proxy()), selector.select(TestUtil.HTTP_TEST_URI));
+				awaitTrue(() -> selector.getHealth(alive.address()).isProbed());
+				ProxyHealth health = selector.getHealth(alive.address());
+				assertTrue(health.isHealthy());
+				assertTrue(health.getLatency() >= 0);
+				assertEquals(0, health.getConsecutiveFailures());
+				assertEquals(2, selector.getHealth().size());
+			} finally {
+				selector.stop();
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void testHttpConnectProbe() throws Exception {
+		try (StandInProxy accepting = new StandInProxy(200); StandInProxy refusing = new StandInProxy(503)) {
+			HealthCheckingProxySelector selector = new HealthCheckingProxySelector(
+			        TestUtil.fixedSelector(Arrays.asList(refusing.proxy(), accepting.proxy())), 50, 1000, 2);
+			selector.setFailureThreshold(1);
+			selector.setHttpConnectProbe("example.com", 443);
+			selector.start();
+			try {
+				selector.select(TestUtil.HTTP_TEST_URI);
+				awaitTrue(() -> !selector.getHealth(refusing.address()).isHealthy());
+				awaitTrue(() -> selector.getHealth(accepting.address()).getProbeCount() > 0);
+
+				assertEquals(Arrays.asList(accepting.proxy()), selector.select(TestUtil.HTTP_TEST_URI));
+				assertTrue(selector.getHealth(accepting.address()).isHealthy());
+				assertEquals("CONNECT example.com:443 HTTP/1.1", accepting.lastRequestLine);
+			} finally {
+				selector.stop();
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void testRecoveryAndFallbackToNoProxy() throws Exception {
+		try (StandInProxy proxy = new StandInProxy(503)) {
+			HealthCheckingProxySelector selector = new HealthCheckingProxySelector(
+			        TestUtil.fixedSelector(Arrays.asList(proxy.proxy())), 50, 1000, 1);
+			selector.setFailureThreshold(2);
+			selector.setHttpConnectProbe("example.com", 443);
+			selector.start();
+			try {
+				selector.select(TestUtil.HTTP_TEST_URI);
+				awaitTrue(() -> !selector.getHealth(proxy.address()).isHealthy());
+				assertTrue(selector.getHealth(proxy.address()).getConsecutiveFailures() >= 2);
+				assertEquals(Arrays.asList(Proxy.NO_PROXY), selector.select(TestUtil.HTTP_TEST_URI));
+
+				proxy.status = 200;
+				awaitTrue(() -> selector.getHealth(proxy.address()).isHealthy());
+				assertEquals(Arrays.asList(proxy.proxy()), selector.select(TestUtil.HTTP_TEST_URI));
+			} finally {
+				selector.stop();
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void testProbeConcurrencyAndTimeoutAreBounded() throws Exception {
+		StandInProxy[] proxies = new StandInProxy[4];
+		try {
+			Proxy[] list = new Proxy[proxies.length];
+			for (int i = 0; i < proxies.length; i++) {
+				// Never answers the CONNECT request
+				proxies[i] = new StandInProxy(0);
+				list[i] = proxies[i].proxy();
+			}
+			HealthCheckingProxySelector selector = new HealthCheckingProxySelector(
+			        TestUtil.fixedSelector(Arrays.asList(list)), 60000, 200, 2);
+			selector.setFailureThreshold(1);
+			selector.setHttpConnectProbe("example.com", 443);
+			selector.start();
+			long start = System.nanoTime();
+			try {
+				selector.select(TestUtil.HTTP_TEST_URI);
+				awaitTrue(() -> selector.getHealth().stream().noneMatch(ProxyHealth::isHealthy));
+				assertEquals(Arrays.asList(Proxy.NO_PROXY), selector.select(TestUtil.HTTP_TEST_URI));
+			} finally {
+				selector.stop();
+			}
+			// Two probes at a time, each ends with the timeout: two rounds of 200 ms
+			long elapsedMs = (System.nanoTime() - start) / (1000 * 1000);
+			assertTrue(elapsedMs >= 380 && elapsedMs < 3000, "Elapsed: " + elapsedMs);
+		} finally {
+			for (StandInProxy proxy : proxies) {
+				if (proxy != null) {
+					proxy.close();
+				}
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void testStoppedSelectorDoesNotFilter() throws Exception {
+		Proxy dead = new Proxy(Proxy.Type.HTTP, unusedAddress());
+		HealthCheckingProxySelector selector = new HealthCheckingProxySelector(
+		        TestUtil.fixedSelector(Arrays.asList(dead, Proxy.NO_PROXY)), 50, 1000, 1);
+		selector.setFailureThreshold(1);
+		selector.start();
+		try {
+			selector.select(TestUtil.HTTP_TEST_URI);
+			awaitTrue(() -> !selector.getHealth(dead.address()).isHealthy());
+			assertEquals(Arrays.asList(Proxy.NO_PROXY), selector.select(TestUtil.HTTP_TEST_URI));
+		} finally {
+			selector.stop();
+		}
+
+		// The health state would not be updated anymore
+		assertEquals(Arrays.asList(dead, Proxy.NO_PROXY), selector.select(TestUtil.HTTP_TEST_URI));
+		assertNull(selector.getHealth(dead.address()));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testNotStartedSelectorDoesNotProbe() {
+		HealthCheckingProxySelector selector = new HealthCheckingProxySelector(
+		        TestUtil.fixedSelector(Arrays.asList(TestUtil.HTTP_TEST_PROXY, Proxy.NO_PROXY)));
+
+		assertEquals(Arrays.asList(TestUtil.HTTP_TEST_PROXY, Proxy.NO_PROXY),
+		        selector.select(TestUtil.HTTP_TEST_URI));
+		ProxyHealth health = selector.getHealth(TestUtil.HTTP_TEST_PROXY.address());
+		assertTrue(health.isHealthy());
+		assertFalse(health.isProbed());
+		assertEquals(-1, health.getLatency());
+		assertNull(selector.getHealth(TestUtil.HTTPS_TEST_PROXY.address()));
+	}
+
+	private static InetSocketAddress unusedAddress() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			return new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort());
+		}
+	}
+
+	private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new AssertionError("Condition not met in time");
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	/*************************************************************************
+	 * Loopback stand-in of an HTTP proxy. It answers CONNECT requests with
+	 * the configured status, with status 0 it never answers.
+	 ************************************************************************/
+
+	private static final class StandInProxy implements Closeable {
+		final ServerSocket server;
+		volatile int status;
+		volatile String lastRequestLine;
+
+		StandInProxy(int status) throws IOException {
+			this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+			this.status = status;
+			Thread thread = new Thread(this::acceptLoop, "stand-in-proxy");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		InetSocketAddress address() {
+			return (InetSocketAddress) this.server.getLocalSocketAddress();
+		}
+
+		Proxy proxy() {
+			return new Proxy(Proxy.Type.HTTP, address());
+		}
+
+		private void acceptLoop() {
+			while (!this.server.isClosed()) {
+				try {
+					Socket socket = this.server.accept();
+					Thread handler = new Thread(() -> handle(socket), "stand-in-proxy-connection");
+					handler.setDaemon(true);
+					handler.start();
+				} catch (IOException e) {
+					// Closed
+				}
+			}
+		}
+
+		private void handle(Socket socket) {
+			try (Socket s = socket) {
+				InputStream in = s.getInputStream();
+				StringBuilder line = new StringBuilder();
+				int c;
+				while ((c = in.read()) >= 0 && c != '\n') {
+					line.append((char) c);
+				}
+				if (c < 0) {
+					return;
+				}
+				this.lastRequestLine = line.toString().trim();
+				int status = this.status;
+				if (status == 0) {
+					// Wait until the client gives up
+					while (in.read() >= 0) {
+						// Discard
+					}
+					return;
+				}
+				OutputStream out = s.getOutputStream();
+				out.write(("HTTP/1.1 " + status + " Stand-in\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+				out.flush();
+			} catch (IOException e) {
+				// Client closed
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.server.close();
+		}
+	}
+
+}
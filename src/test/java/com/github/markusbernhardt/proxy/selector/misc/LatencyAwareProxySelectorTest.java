@@ -0,0 +1,170 @@
+package com.github.markusbernhardt.proxy.selector.misc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.markusbernhardt.proxy.TestUtil;
+
+/*****************************************************************************
+ * Unit Tests for the LatencyAwareProxySelector
+ ****************************************************************************/
+
+public class LatencyAwareProxySelectorTest {
+
+	private static final Proxy P1 = new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved("p1", 8080));
+	private static final Proxy P2 = new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved("p2", 8080));
+	private static final Proxy P3 = new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved("p3", 8080));
+	private static final Proxy S1 = new Proxy(Proxy.Type.SOCKS, InetSocketAddress.createUnresolved("s1", 1080));
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testListIsKeptWithoutReports() {
+		List<Proxy> list = Arrays.asList(P1, P2, Proxy.NO_PROXY);
+		LatencyAwareProxySelector selector = new LatencyAwareProxySelector(TestUtil.fixedSelector(list));
+
+		assertSame(list, selector.select(TestUtil.HTTP_TEST_URI));
+		selector.connectSucceeded(TestUtil.HTTP_TEST_URI, P1.address(), 10);
+		selector.connectSucceeded(TestUtil.HTTP_TEST_URI, P2.address(), 20);
+		// Already in order, not copied
+		assertSame(list, selector.select(TestUtil.HTTP_TEST_URI));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testFasterProxyComesFirst() {
+		LatencyAwareProxySelector selector = new LatencyAwareProxySelector(
+		        TestUtil.fixedSelector(Arrays.asList(P1, P2, Proxy.NO_PROXY)));
+		selector.connectSucceeded(TestUtil.HTTP_TEST_URI, P1.address(), 200);
+		selector.connectSucceeded(TestUtil.HTTP_TEST_URI, P2.address(), 20);
+
+		assertEquals(Arrays.asList(P2, P1, Proxy.NO_PROXY), selector.select(TestUtil.HTTP_TEST_URI));
+		assertEquals(200, selector.getLatency(P1.address()), 0.001);
+
+		// The average follows the new samples
+		for (int i = 0; i < 20; i++) {
+			selector.connectSucceeded(TestUtil.HTTP_TEST_URI, P1.address(), 5);
+		}
+		assertTrue(selector.getLatency(P1.address()) < 20);
+		assertEquals(Arrays.asList(P1, P2, Proxy.NO_PROXY), selector.select(TestUtil.HTTP_TEST_URI));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testDirectKeepsItsPosition() {
+		LatencyAwareProxySelector selector = new LatencyAwareProxySelector(
+		        TestUtil.fixedSelector(Arrays.asList(P1, Proxy.NO_PROXY, P2, P3)));
+		selector.connectSucceeded(TestUtil.HTTP_TEST_URI, P1.address(), 500);
+		selector.connectSucceeded(TestUtil.HTTP_TEST_URI, P2.address(), 300);
+		selector.connectSucceeded(TestUtil.HTTP_TEST_URI, P3.address(), 10);
+
+		// P1 is not moved across DIRECT
+		assertEquals(Arrays.asList(P1, Proxy.NO_PROXY, P3, P2), selector.select(TestUtil.HTTP_TEST_URI));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testOnlyProxiesOfTheSameTypeAreReordered() {
+		LatencyAwareProxySelector selector = new LatencyAwareProxySelector(
+		        TestUtil.fixedSelector(Arrays.asList(P1, S1, P2)));
+		selector.connectSucceeded(TestUtil.HTTP_TEST_URI, P1.address(), 500);
+		selector.connectSucceeded(TestUtil.HTTP_TEST_URI, S1.address(), 100);
+		selector.connectSucceeded(TestUtil.HTTP_TEST_URI, P2.address(), 10);
+
+		assertEquals(Arrays.asList(P1, S1, P2), selector.select(TestUtil.HTTP_TEST_URI));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testProxiesWithoutReportsKeepTheirSlots() {
+		LatencyAwareProxySelector selector = new LatencyAwareProxySelector(
+		        TestUtil.fixedSelector(Arrays.asList(P1, P2, P3)));
+		selector.connectSucceeded(TestUtil.HTTP_TEST_URI, P1.address(), 500);
+		selector.connectSucceeded(TestUtil.HTTP_TEST_URI, P3.address(), 10);
+
+		assertEquals(Arrays.asList(P3, P2, P1), selector.select(TestUtil.HTTP_TEST_URI));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testEqualScoresKeepTheOrderOfTheDelegate() {
+		LatencyAwareProxySelector selector = new LatencyAwareProxySelector(
+		        TestUtil.fixedSelector(Arrays.asList(P1, P2, P3)));
+		selector.connectSucceeded(TestUtil.HTTP_TEST_URI, P1.address(), 50);
+		selector.connectSucceeded(TestUtil.HTTP_TEST_URI, P2.address(), 10);
+		selector.connectSucceeded(TestUtil.HTTP_TEST_URI, P3.address(), 50);
+
+		assertEquals(Arrays.asList(P2, P1, P3), selector.select(TestUtil.HTTP_TEST_URI));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testFailuresDemoteAProxy() {
+		List<SocketAddress> failed = new ArrayList<SocketAddress>();
+		LatencyAwareProxySelector selector = new LatencyAwareProxySelector(new ProxySelector() {
+			@Override
+			public List<Proxy> select(URI uri) {
+				return Arrays.asList(P1, P2);
+			}
+
+			@Override
+			public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+				failed.add(sa);
+			}
+		});
+		selector.setFailurePenalty(1000);
+		selector.connectSucceeded(TestUtil.HTTP_TEST_URI, P1.address(), 10);
+		selector.connectSucceeded(TestUtil.HTTP_TEST_URI, P2.address(), 100);
+		selector.connectFailed(TestUtil.HTTP_TEST_URI, P1.address(), new IOException("TEST"));
+
+		assertEquals(0.3, selector.getFailureRate(P1.address()), 0.001);
+		assertEquals(Arrays.asList(P2, P1), selector.select(TestUtil.HTTP_TEST_URI));
+		assertEquals(Arrays.asList(P1.address()), failed);
+
+		// Successes let the failure rate decay again
+		for (int i = 0; i < 20; i++) {
+			selector.connectSucceeded(TestUtil.HTTP_TEST_URI, P1.address(), 10);
+		}
+		assertEquals(Arrays.asList(P1, P2), selector.select(TestUtil.HTTP_TEST_URI));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testInvalidSettings() {
+		LatencyAwareProxySelector selector = new LatencyAwareProxySelector(TestUtil.fixedSelector(Arrays.asList(P1)));
+		assertThrows(IllegalArgumentException.class, () -> selector.setSmoothing(0));
+		assertThrows(IllegalArgumentException.class, () -> selector.setFailurePenalty(-1));
+		assertThrows(IllegalArgumentException.class,
+		        () -> selector.connectSucceeded(TestUtil.HTTP_TEST_URI, P1.address(), -1));
+	}
+
+}
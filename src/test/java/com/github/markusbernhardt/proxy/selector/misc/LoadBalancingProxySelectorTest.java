@@ -0,0 +1,175 @@
+package com.github.markusbernhardt.proxy.selector.misc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.markusbernhardt.proxy.TestUtil;
+import com.github.markusbernhardt.proxy.selector.misc.BufferedProxySelector.CacheScope;
+import com.github.markusbernhardt.proxy.selector.misc.LoadBalancingProxySelector.BalancingStrategy;
+
+/*****************************************************************************
+ * Unit Tests for the LoadBalancingProxySelector
+ ****************************************************************************/
+
+public class LoadBalancingProxySelectorTest {
+
+	private static final Proxy P1 = new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved("p1", 8080));
+	private static final Proxy P2 = new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved("p2", 8080));
+	private static final Proxy P3 = new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved("p3", 8080));
+	private static final Proxy P4 = new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved("p4", 8080));
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testRoundRobin() {
+		LoadBalancingProxySelector selector = new LoadBalancingProxySelector(
+		        TestUtil.fixedSelector(Arrays.asList(P1, P2, P3, P4, Proxy.NO_PROXY)), BalancingStrategy.BALANCING_ROUND_ROBIN);
+
+		assertEquals(Arrays.asList(P1, P2, P3, P4, Proxy.NO_PROXY), selector.select(TestUtil.HTTP_TEST_URI));
+		assertEquals(Arrays.asList(P2, P3, P4, P1, Proxy.NO_PROXY), selector.select(TestUtil.HTTP_TEST_URI));
+		assertEquals(Arrays.asList(P3, P4, P1, P2, Proxy.NO_PROXY), selector.select(TestUtil.HTTP_TEST_URI));
+		assertEquals(Arrays.asList(P4, P1, P2, P3, Proxy.NO_PROXY), selector.select(TestUtil.HTTP_TEST_URI));
+		assertEquals(Arrays.asList(P1, P2, P3, P4, Proxy.NO_PROXY), selector.select(TestUtil.HTTP_TEST_URI));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testDirectKeepsItsPosition() {
+		List<Proxy> list = Arrays.asList(P1, Proxy.NO_PROXY, P2, P3);
+		LoadBalancingProxySelector selector = new LoadBalancingProxySelector(TestUtil.fixedSelector(list),
+		        BalancingStrategy.BALANCING_ROUND_ROBIN);
+
+		// The first run has one proxy only, the second one is rotated
+		assertSame(list, selector.select(TestUtil.HTTP_TEST_URI));
+		assertEquals(Arrays.asList(P1, Proxy.NO_PROXY, P3, P2), selector.select(TestUtil.HTTP_TEST_URI));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testPowerOfTwoChoices() {
+		LoadBalancingProxySelector selector = new LoadBalancingProxySelector(
+		        TestUtil.fixedSelector(Arrays.asList(P1, P2, P3, P4)), BalancingStrategy.BALANCING_POWER_OF_TWO_CHOICES);
+
+		for (int i = 0; i < 400; i++) {
+			selector.select(TestUtil.HTTP_TEST_URI);
+		}
+		int min = Integer.MAX_VALUE;
+		int max = 0;
+		int total = 0;
+		for (Proxy proxy : Arrays.asList(P1, P2, P3, P4)) {
+			int count = selector.getInFlightCount(proxy.address());
+			min = Math.min(min, count);
+			max = Math.max(max, count);
+			total += count;
+		}
+		assertEquals(400, total);
+		assertTrue(max - min <= 10, "In flight from " + min + " to " + max);
+
+		// Finished requests and failures are no longer in flight
+		int before = selector.getInFlightCount(P1.address());
+		selector.requestFinished(P1.address());
+		selector.connectFailed(TestUtil.HTTP_TEST_URI, P1.address(), new IOException("TEST"));
+		assertEquals(before - 2, selector.getInFlightCount(P1.address()));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testPowerOfTwoChoicesAvoidsBusyProxy() {
+		LoadBalancingProxySelector selector = new LoadBalancingProxySelector(TestUtil.fixedSelector(Arrays.asList(P1, P2)),
+		        BalancingStrategy.BALANCING_POWER_OF_TWO_CHOICES);
+
+		for (int i = 0; i < 10; i++) {
+			List<Proxy> result = selector.select(TestUtil.HTTP_TEST_URI);
+			if (result.get(0) == P2) {
+				selector.requestFinished(P2.address());
+			}
+		}
+		// P2 finishes its requests at once, so P1 gets at most one
+		assertTrue(selector.getInFlightCount(P1.address()) <= 1);
+		assertEquals(0, selector.getInFlightCount(P2.address()));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void testConsistentHash() throws Exception {
+		List<Proxy> list = new ArrayList<Proxy>(Arrays.asList(P1, P2, P3, P4));
+		LoadBalancingProxySelector selector = new LoadBalancingProxySelector(TestUtil.fixedSelector(list),
+		        BalancingStrategy.BALANCING_CONSISTENT_HASH);
+
+		Map<String, Proxy> firstByHost = new HashMap<String, Proxy>();
+		for (int i = 0; i < 200; i++) {
+			String host = "host" + i + ".unit-test.invalid";
+			Proxy first = selector.select(new URI("http://" + host + "/a")).get(0);
+			firstByHost.put(host, first);
+			// Same host, same proxy, also with another case
+			assertSame(first, selector.select(new URI("https://" + host.toUpperCase() + "/b")).get(0));
+		}
+		assertEquals(4, new HashSet<Proxy>(firstByHost.values()).size());
+
+		// Without P4 only the hosts of P4 move
+		list.remove(P4);
+		Set<Proxy> movedTo = new HashSet<Proxy>();
+		for (Map.Entry<String, Proxy> entry : firstByHost.entrySet()) {
+			Proxy first = selector.select(new URI("http://" + entry.getKey() + "/")).get(0);
+			if (entry.getValue() == P4) {
+				movedTo.add(first);
+			} else {
+				assertSame(entry.getValue(), first);
+			}
+		}
+		assertTrue(movedTo.size() > 1);
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testBalancingAfterCacheLookup() {
+		AtomicInteger calls = new AtomicInteger();
+		List<Proxy> list = Arrays.asList(P1, P2, P3);
+		BufferedProxySelector cache = new BufferedProxySelector(10, 60000, TestUtil.delegateSelector(() -> {
+			calls.incrementAndGet();
+			return list;
+		}), CacheScope.CACHE_SCOPE_HOST);
+		LoadBalancingProxySelector selector = new LoadBalancingProxySelector(cache,
+		        BalancingStrategy.BALANCING_ROUND_ROBIN);
+
+		Set<Proxy> firsts = new HashSet<Proxy>();
+		for (int i = 0; i < 3; i++) {
+			firsts.add(selector.select(TestUtil.HTTP_TEST_URI).get(0));
+		}
+		assertEquals(3, firsts.size());
+		assertEquals(1, calls.get());
+		// The cached result is not changed
+		assertEquals(Arrays.asList(P1, P2, P3), cache.select(TestUtil.HTTP_TEST_URI));
+	}
+
+}
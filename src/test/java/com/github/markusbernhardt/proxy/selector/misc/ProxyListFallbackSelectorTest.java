@@ -1,14 +1,20 @@
 package com.github.markusbernhardt.proxy.selector.misc;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.ProxySelector;
 import java.net.SocketAddress;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
@@ -34,17 +40,8 @@ public class ProxyListFallbackSelectorTest {
 	 ************************************************************************/
 	@BeforeAll
 	public void setup() {
-		this.selector = new ProxyListFallbackSelector(new ProxySelector() {
-			@Override
-			public List<Proxy> select(URI uri) {
-				return Arrays.asList(TestUtil.HTTP_TEST_PROXY, TestUtil.HTTPS_TEST_PROXY);
-			}
-
-			@Override
-			public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
-				// Not used on the delegate
-			}
-		});
+		this.selector = new ProxyListFallbackSelector(
+		        TestUtil.fixedSelector(Arrays.asList(TestUtil.HTTP_TEST_PROXY, TestUtil.HTTPS_TEST_PROXY)));
 	}
 
 	/*************************************************************************
@@ -125,4 +122,258 @@ public class ProxyListFallbackSelectorTest {
         assertEquals(TestUtil.HTTPS_TEST_PROXY, result.get(1));
     }
 
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testFailureIsForwardedToTheDelegate() {
+		List<SocketAddress> failed = new ArrayList<SocketAddress>();
+		ProxyListFallbackSelector fallbackSelector = new ProxyListFallbackSelector(new ProxySelector() {
+			@Override
+			public List<Proxy> select(URI uri) {
+				return Arrays.asList(TestUtil.HTTP_TEST_PROXY);
+			}
+
+			@Override
+			public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+				failed.add(sa);
+			}
+		});
+
+		fallbackSelector.connectFailed(TestUtil.HTTP_TEST_URI, TestUtil.HTTP_TEST_PROXY.address(),
+		        new IOException("TEST"));
+
+		assertEquals(Arrays.asList(TestUtil.HTTP_TEST_PROXY.address()), failed);
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testExpiredFailuresAreRemoved() {
+		ProxyListFallbackSelector fallbackSelector = newBreakerSelector(50);
+		AtomicLong clock = newClock(fallbackSelector);
+		for (int i = 0; i < 100; i++) {
+			SocketAddress address = InetSocketAddress.createUnresolved("proxy" + i, 8080);
+			fallbackSelector.connectFailed(TestUtil.HTTP_TEST_URI, address, new IOException("TEST"));
+		}
+		fallbackSelector.select(TestUtil.HTTP_TEST_URI);
+		assertEquals(100, fallbackSelector.getFailedProxyCount());
+
+		advance(clock, 100);
+		fallbackSelector.select(TestUtil.HTTP_TEST_URI);
+		assertEquals(0, fallbackSelector.getFailedProxyCount());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testRepeatedFailureExtendsTheDelay() {
+		ProxyListFallbackSelector fallbackSelector = newBreakerSelector(200);
+		AtomicLong clock = newClock(fallbackSelector);
+		fallbackSelector.connectFailed(TestUtil.HTTP_TEST_URI, TestUtil.HTTP_TEST_PROXY.address(),
+		        new IOException("TEST"));
+		advance(clock, 120);
+		fallbackSelector.connectFailed(TestUtil.HTTP_TEST_URI, TestUtil.HTTP_TEST_PROXY.address(),
+		        new IOException("TEST"));
+		advance(clock, 120);
+
+		// The first failure expired, the second one still holds
+		List<Proxy> result = fallbackSelector.select(TestUtil.HTTP_TEST_URI);
+		assertEquals(Arrays.asList(TestUtil.HTTPS_TEST_PROXY), result);
+		assertEquals(1, fallbackSelector.getFailedProxyCount());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testBackoffDoublesUpToTheRetryDelay() {
+		ProxyListFallbackSelector fallbackSelector = newBreakerSelector(300);
+		AtomicLong clock = newClock(fallbackSelector);
+		fallbackSelector.setInitialRetryDelay(100);
+		SocketAddress address = TestUtil.HTTP_TEST_PROXY.address();
+
+		fallbackSelector.connectFailed(TestUtil.HTTP_TEST_URI, address, new IOException("TEST"));
+		advance(clock, 150);
+		// Half open, the probe fails and the backoff doubles to 200 ms
+		assertEquals(2, fallbackSelector.select(TestUtil.HTTP_TEST_URI).size());
+		fallbackSelector.connectFailed(TestUtil.HTTP_TEST_URI, address, new IOException("TEST"));
+		advance(clock, 150);
+		assertEquals(Arrays.asList(TestUtil.HTTPS_TEST_PROXY), fallbackSelector.select(TestUtil.HTTP_TEST_URI));
+		advance(clock, 100);
+		assertEquals(2, fallbackSelector.select(TestUtil.HTTP_TEST_URI).size());
+		assertEquals(ProxyCircuitBreaker.State.HALF_OPEN, fallbackSelector.getBreakerState(address));
+
+		// 400 ms is capped to the retry delay of 300 ms
+		fallbackSelector.connectFailed(TestUtil.HTTP_TEST_URI, address, new IOException("TEST"));
+		fallbackSelector.connectFailed(TestUtil.HTTP_TEST_URI, address, new IOException("TEST"));
+		advance(clock, 350);
+		assertEquals(2, fallbackSelector.select(TestUtil.HTTP_TEST_URI).size());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testHalfOpenAdmitsLimitedProbes() {
+		ProxyListFallbackSelector fallbackSelector = newBreakerSelector(50);
+		AtomicLong clock = newClock(fallbackSelector);
+		fallbackSelector.setHalfOpenProbes(2, 10000);
+		SocketAddress address = TestUtil.HTTP_TEST_PROXY.address();
+
+		fallbackSelector.connectFailed(TestUtil.HTTP_TEST_URI, address, new IOException("TEST"));
+		advance(clock, 100);
+		assertEquals(2, fallbackSelector.select(TestUtil.HTTP_TEST_URI).size());
+		assertEquals(2, fallbackSelector.select(TestUtil.HTTP_TEST_URI).size());
+		assertEquals(Arrays.asList(TestUtil.HTTPS_TEST_PROXY), fallbackSelector.select(TestUtil.HTTP_TEST_URI));
+
+		// The successful probes close the breaker
+		fallbackSelector.connectSucceeded(TestUtil.HTTP_TEST_URI, address);
+		assertEquals(ProxyCircuitBreaker.State.HALF_OPEN, fallbackSelector.getBreakerState(address));
+		fallbackSelector.connectSucceeded(TestUtil.HTTP_TEST_URI, address);
+		assertEquals(ProxyCircuitBreaker.State.CLOSED, fallbackSelector.getBreakerState(address));
+		for (int i = 0; i < 5; i++) {
+			assertEquals(2, fallbackSelector.select(TestUtil.HTTP_TEST_URI).size());
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testHalfOpenClosesWithoutFailureInTheProbeTimeout() {
+		ProxyListFallbackSelector fallbackSelector = newBreakerSelector(50);
+		AtomicLong clock = newClock(fallbackSelector);
+		fallbackSelector.setHalfOpenProbes(1, 200);
+		SocketAddress address = TestUtil.HTTP_TEST_PROXY.address();
+
+		fallbackSelector.connectFailed(TestUtil.HTTP_TEST_URI, address, new IOException("TEST"));
+		advance(clock, 80);
+		assertEquals(2, fallbackSelector.select(TestUtil.HTTP_TEST_URI).size());
+		assertEquals(1, fallbackSelector.select(TestUtil.HTTP_TEST_URI).size());
+
+		advance(clock, 250);
+		fallbackSelector.select(TestUtil.HTTP_TEST_URI);
+		assertEquals(ProxyCircuitBreaker.State.CLOSED, fallbackSelector.getBreakerState(address));
+		assertEquals(2, fallbackSelector.select(TestUtil.HTTP_TEST_URI).size());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testFailureRateThreshold() {
+		ProxyListFallbackSelector fallbackSelector = newBreakerSelector(10000);
+		fallbackSelector.setFailureRateThreshold(0.5, 4, 60000);
+		SocketAddress address = TestUtil.HTTP_TEST_PROXY.address();
+
+		// The first failure opens the breaker as there are too few requests
+		fallbackSelector.connectFailed(TestUtil.HTTP_TEST_URI, address, new IOException("TEST"));
+		assertEquals(ProxyCircuitBreaker.State.OPEN, fallbackSelector.getBreakerState(address));
+
+		ProxyListFallbackSelector rateSelector = newBreakerSelector(10000);
+		rateSelector.setFailureRateThreshold(0.5, 4, 60000);
+		for (int i = 0; i < 10; i++) {
+			rateSelector.select(TestUtil.HTTP_TEST_URI);
+		}
+		for (int i = 0; i < 4; i++) {
+			rateSelector.connectFailed(TestUtil.HTTP_TEST_URI, address, new IOException("TEST"));
+			assertEquals(ProxyCircuitBreaker.State.CLOSED, rateSelector.getBreakerState(address));
+		}
+		rateSelector.connectFailed(TestUtil.HTTP_TEST_URI, address, new IOException("TEST"));
+		assertEquals(ProxyCircuitBreaker.State.OPEN, rateSelector.getBreakerState(address));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testRequestsOfHealthyProxiesNeedNoBreaker() {
+		ProxyListFallbackSelector fallbackSelector = newBreakerSelector(10000);
+		for (int i = 0; i < 10; i++) {
+			assertEquals(2, fallbackSelector.select(TestUtil.HTTP_TEST_URI).size());
+		}
+		assertNull(fallbackSelector.getBreakerState(TestUtil.HTTP_TEST_PROXY.address()));
+		assertNull(fallbackSelector.getBreakerState(TestUtil.HTTPS_TEST_PROXY.address()));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testIdleRequestWindowsAreRemoved() {
+		List<List<Proxy>> lists = new ArrayList<List<Proxy>>();
+		lists.add(Arrays.asList(TestUtil.HTTP_TEST_PROXY, TestUtil.HTTPS_TEST_PROXY));
+		ProxyListFallbackSelector fallbackSelector = new ProxyListFallbackSelector(
+		        TestUtil.delegateSelector(() -> lists.get(lists.size() - 1)));
+		AtomicLong clock = newClock(fallbackSelector);
+		fallbackSelector.setFailureRateThreshold(0.5, 4, 1000);
+
+		fallbackSelector.select(TestUtil.HTTP_TEST_URI);
+		assertEquals(1, fallbackSelector.getRequestWindowCount());
+		advance(clock, 900);
+		fallbackSelector.select(TestUtil.HTTP_TEST_URI);
+		advance(clock, 900);
+		// Still used in the window
+		fallbackSelector.select(TestUtil.HTTP_TEST_URI);
+		assertEquals(1, fallbackSelector.getRequestWindowCount());
+
+		lists.add(Arrays.asList(Proxy.NO_PROXY));
+		advance(clock, 1100);
+		fallbackSelector.select(TestUtil.HTTP_TEST_URI);
+		assertEquals(0, fallbackSelector.getRequestWindowCount());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testOnlyTheFirstProxyTakesAProbe() {
+		ProxyListFallbackSelector fallbackSelector = newBreakerSelector(50);
+		AtomicLong clock = newClock(fallbackSelector);
+		fallbackSelector.setHalfOpenProbes(1, 10000);
+		SocketAddress address = TestUtil.HTTPS_TEST_PROXY.address();
+
+		fallbackSelector.connectFailed(TestUtil.HTTP_TEST_URI, address, new IOException("TEST"));
+		advance(clock, 100);
+		for (int i = 0; i < 5; i++) {
+			assertEquals(2, fallbackSelector.select(TestUtil.HTTP_TEST_URI).size());
+		}
+		assertEquals(ProxyCircuitBreaker.State.HALF_OPEN, fallbackSelector.getBreakerState(address));
+
+		// Now it is first and takes the only probe
+		fallbackSelector.connectFailed(TestUtil.HTTP_TEST_URI, TestUtil.HTTP_TEST_PROXY.address(),
+		        new IOException("TEST"));
+		assertEquals(Arrays.asList(TestUtil.HTTPS_TEST_PROXY), fallbackSelector.select(TestUtil.HTTP_TEST_URI));
+		assertEquals(Arrays.asList(Proxy.NO_PROXY), fallbackSelector.select(TestUtil.HTTP_TEST_URI));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testInvalidBreakerSettings() {
+		ProxyListFallbackSelector fallbackSelector = newBreakerSelector(100);
+		assertThrows(IllegalArgumentException.class, () -> fallbackSelector.setInitialRetryDelay(0));
+		assertThrows(IllegalArgumentException.class, () -> fallbackSelector.setFailureRateThreshold(1.5, 1, 100));
+		assertThrows(IllegalArgumentException.class, () -> fallbackSelector.setHalfOpenProbes(0, 100));
+	}
+
+	private static AtomicLong newClock(ProxyListFallbackSelector fallbackSelector) {
+		AtomicLong clock = new AtomicLong(TimeUnit.HOURS.toNanos(1));
+		fallbackSelector.setClock(clock::get);
+		return clock;
+	}
+
+	private static void advance(AtomicLong clock, long millis) {
+		clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+	}
+
+	private ProxyListFallbackSelector newBreakerSelector(long retryAfterMs) {
+		return new ProxyListFallbackSelector(retryAfterMs,
+		        TestUtil.fixedSelector(Arrays.asList(TestUtil.HTTP_TEST_PROXY, TestUtil.HTTPS_TEST_PROXY)));
+	}
+
 }
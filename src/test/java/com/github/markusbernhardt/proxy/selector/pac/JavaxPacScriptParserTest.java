@@ -8,6 +8,7 @@ import org.assertj.core.api.Assertions;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.mozilla.javascript.ContextFactory;
 
 import com.github.markusbernhardt.proxy.TestUtil;
 import com.github.markusbernhardt.proxy.util.ProxyException;
@@ -178,6 +179,102 @@ public class JavaxPacScriptParserTest {
         Assertions.assertThatThrownBy(()-> p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host.does.not.matter")).isInstanceOf(Exception.class);
     }
 
+    /*************************************************************************
+     * Test method
+     * 
+     * @throws ProxyException
+     *             on proxy detection error.
+     ************************************************************************/
+    @Test
+    public void topLevelCodeAccessingJavaShouldFail() throws ProxyException {
+        PacScriptParser p = new JavaxPacScriptParser(new StringPacScriptSource(
+            "java.lang.Runtime.getRuntime().exec(\"java\");\nfunction FindProxyForURL(url, host) { return \"DIRECT\"; }"));
+        Assertions.assertThatThrownBy(()-> p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host.does.not.matter")).isInstanceOf(Exception.class);
+    }
+
+    /*************************************************************************
+     * Test that the entry point is called through the sandbox engine if the application installed its own context
+     * factory.
+     * 
+     * @throws ProxyException
+     *             on proxy detection error.
+     ************************************************************************/
+    @Test
+    public void foreignContextFactoryShouldUseTheSandbox() throws ProxyException {
+        ContextFactory foreign = new ContextFactory();
+        Assertions.assertThat(JavaxPacScriptParser.isSandboxFactory(foreign)).isFalse();
+
+        JavaxPacScriptParser p = new JavaxPacScriptParser(new StringPacScriptSource(
+            "function FindProxyForURL(url, host) { return url + \"|\" + host; }"));
+        Assertions.assertThat(p.evaluate("http://host1.unit-test.invalid/", "host1.unit-test.invalid", foreign))
+            .isEqualTo("http://host1.unit-test.invalid/|host1.unit-test.invalid");
+
+        JavaxPacScriptParser hostile = new JavaxPacScriptParser(new StringPacScriptSource(
+            "function FindProxyForURL(url, host) { java.lang.System.exit(1); return \"DIRECT\"; }"));
+        Assertions.assertThatThrownBy(
+            () -> hostile.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host.does.not.matter", foreign))
+            .isInstanceOf(ProxyEvaluationException.class);
+    }
+
+    /*************************************************************************
+     * Test that url and host are passed as arguments and not as script code.
+     * 
+     * @throws ProxyException
+     *             on proxy detection error.
+     ************************************************************************/
+    @Test
+    public void argumentsShouldNotBeEvaluatedAsCode() throws ProxyException {
+        PacScriptParser p = new JavaxPacScriptParser(
+            new StringPacScriptSource("function FindProxyForURL(url, host) { return url + \"|\" + host; }"));
+        String url = "http://host1.unit-test.invalid/\");java.lang.System.exit(1);(\"";
+        String actual = p.evaluate(url, "host1.unit-test.invalid");
+        Assertions.assertThat(actual).isEqualTo(url + "|host1.unit-test.invalid");
+    }
+
+    /*************************************************************************
+     * Test that the script is compiled again when the script content changes.
+     * 
+     * @throws ProxyException
+     *             on proxy detection error.
+     ************************************************************************/
+    @Test
+    public void scriptShouldBeRecompiledOnContentChange() throws ProxyException {
+        StringPacScriptSource source = new StringPacScriptSource(
+            "function FindProxyForURL(url, host) { return \"PROXY first.unit-test.invalid:8080\"; }");
+        PacScriptParser p = new JavaxPacScriptParser(source);
+        Assertions.assertThat(p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"))
+            .isEqualTo("PROXY first.unit-test.invalid:8080");
+        Assertions.assertThat(p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"))
+            .isEqualTo("PROXY first.unit-test.invalid:8080");
+
+        source.content = "function FindProxyForURL(url, host) { return \"DIRECT\"; }";
+        Assertions.assertThat(p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"))
+            .isEqualTo("DIRECT");
+    }
+
+    /*************************************************************************
+     * Script source that serves the script from a string.
+     ************************************************************************/
+
+    private static class StringPacScriptSource implements PacScriptSource {
+
+        volatile String content;
+
+        StringPacScriptSource(String content) {
+            this.content = content;
+        }
+
+        @Override
+        public String getScriptContent() {
+            return this.content;
+        }
+
+        @Override
+        public boolean isScriptValid() {
+            return true;
+        }
+    }
+
     /*************************************************************************
      * Helper method to build the url to the given test file
      * 
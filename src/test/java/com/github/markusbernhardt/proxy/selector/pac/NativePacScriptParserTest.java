@@ -0,0 +1,264 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.markusbernhardt.proxy.TestUtil;
+import com.github.markusbernhardt.proxy.util.ProxyException;
+
+/*****************************************************************************
+ * Tests for the PAC parser that evaluates scripts without JavaScript engine.
+ * The results are compared with the results of the javax.script parser.
+ ****************************************************************************/
+
+public class NativePacScriptParserTest {
+
+	private static final String SCRIPT = "// Typical rules\n"
+	        + "function FindProxyForURL(url, host) {\n"
+	        + "  if (isPlainHostName(host) || host == 'localhost')\n"
+	        + "    return \"DIRECT\";\n"
+	        + "  /* internal networks */\n"
+	        + "  if (isInNet(host, \"10.0.0.0\", \"255.0.0.0\") && !isInNet(host, \"10.1.0.0\", \"255.255.0.0\")) {\n"
+	        + "    return 'DIRECT';\n"
+	        + "  } else if (isInNet(host, '10.1.0.0', '255.255.0.0')) {\n"
+	        + "    return 'PROXY internal.unit-test.invalid:3128';\n"
+	        + "  }\n"
+	        + "  if (dnsDomainIs(host, \".intra.unit-test.invalid\") || dnsDomainIs(host, \"intra.unit-test.invalid\")\n"
+	        + "      || localHostOrDomainIs(host, \"www.unit-test.invalid\"))\n"
+	        + "    return \"DIRECT\";\n"
+	        + "  if (dnsDomainIs(host, \".unit-test.invalid\") && dnsDomainLevels(host) > 2)\n"
+	        + "    return \"PROXY deep.unit-test.invalid:8080; DIRECT\";\n"
+	        + "  if (shExpMatch(url, \"https://*\") || shExpMatch(host, \"*.secure.*\"))\n"
+	        + "    return \"PROXY https_proxy.unit-test.invalid:8091\";\n"
+	        + "  if (shExpMatch(url, \"*/nothing/*\"))\n"
+	        + "    return\n"
+	        + "  if (false || dnsDomainLevels(host) === 0) { ; }\n"
+	        + "  return \"PROXY http_proxy.unit-test.invalid:8090\";\n"
+	        + "};\n";
+
+	private static final String[] HOSTS = { "intranet", "localhost", "10.2.3.4", "10.1.3.4", "11.1.3.4",
+	        "host.intra.unit-test.invalid", "intra.unit-test.invalid", "www", "www.unit-test.invalid",
+	        "a.b.unit-test.invalid", "b.unit-test.invalid", "www.secure.example", "www.example.invalid" };
+
+	/*************************************************************************
+	 * Script source with a content that can be changed.
+	 ************************************************************************/
+
+	private static class StringPacScriptSource implements PacScriptSource {
+
+		volatile String content;
+
+		StringPacScriptSource(String content) {
+			this.content = content;
+		}
+
+		@Override
+		public String getScriptContent() {
+			return this.content;
+		}
+
+		@Override
+		public boolean isScriptValid() {
+			return true;
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws ProxyException
+	 *             on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void testSameResultsAsScriptEngine() throws ProxyException {
+		PacScriptSource source = new StringPacScriptSource(SCRIPT);
+		NativePacScriptParser nativeParser = new NativePacScriptParser(source);
+		JavaxPacScriptParser javaxParser = new JavaxPacScriptParser(source);
+
+		assertTrue(nativeParser.isCompiledNatively());
+		for (String host : HOSTS) {
+			for (String url : new String[] { "http://" + host + "/index.html", "https://" + host + "/",
+			        "http://" + host + "/nothing/here" }) {
+				assertEquals(javaxParser.evaluate(url, host), nativeParser.evaluate(url, host), url);
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws ProxyException
+	 *             on proxy detection error.
+	 * @throws MalformedURLException
+	 *             on URL erros
+	 ************************************************************************/
+	@Test
+	public void testPacFilesAreCompiled() throws ProxyException, MalformedURLException {
+		for (String file : new String[] { "test1.pac", "test2.pac", "testMultiProxy.pac", "pacWithBom.pac" }) {
+			PacScriptSource source = new UrlPacScriptSource(toUrl(file));
+			NativePacScriptParser parser = new NativePacScriptParser(source);
+
+			assertTrue(parser.isCompiledNatively(), file);
+			assertEquals(new JavaxPacScriptParser(source).evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1"),
+			        parser.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1"), file);
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws ProxyException
+	 *             on proxy detection error.
+	 * @throws MalformedURLException
+	 *             on URL erros
+	 ************************************************************************/
+	@Test
+	public void testUnsupportedScriptUsesScriptEngine() throws ProxyException, MalformedURLException {
+		NativePacScriptParser parser = new NativePacScriptParser(new UrlPacScriptSource(toUrl("testLocalIP.pac")));
+
+		assertFalse(parser.isCompiledNatively());
+		assertEquals("PROXY " + new PacScriptMethods().myIpAddress() + ":8080",
+		        parser.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws ProxyException
+	 *             on proxy detection error.
+	 * @throws MalformedURLException
+	 *             on URL erros
+	 ************************************************************************/
+	@Test
+	public void shouldNotExecuteCodeInPac() throws ProxyException, MalformedURLException {
+		NativePacScriptParser parser = new NativePacScriptParser(
+		        new UrlPacScriptSource(toUrl("testRemoteCodeExecution.pac")));
+
+		assertFalse(parser.isCompiledNatively());
+		assertThrows(Exception.class, () -> parser.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws ProxyException
+	 *             on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void testUndefinedResult() throws ProxyException {
+		NativePacScriptParser parser = new NativePacScriptParser(
+		        new StringPacScriptSource("function FindProxyForURL(url, host) { if (host == 'a') return; }"));
+
+		assertTrue(parser.isCompiledNatively());
+		assertNull(parser.evaluate("http://a/", "a"));
+		assertNull(parser.evaluate("http://b/", "b"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testTruthinessOfMissingAndNonDoubleValues() {
+		assertFalse(CompiledPacScript.isTrue(null));
+		assertFalse(CompiledPacScript.isTrue(0));
+		assertTrue(CompiledPacScript.isTrue(2));
+		assertFalse(CompiledPacScript.isTrue(Double.NaN));
+		assertTrue(CompiledPacScript.isTrue(new Object()));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws ProxyException
+	 *             on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void testUnresolvableHostInConditionIsFalsy() throws ProxyException {
+		PacScriptSource source = new StringPacScriptSource("function FindProxyForURL(url, host) {"
+		        + " if (dnsResolve(host)) return 'PROXY resolved:8080'; return 'DIRECT'; }");
+		NativePacScriptParser parser = new NativePacScriptParser(source);
+
+		String host = "host1.unit-test.invalid";
+
+		assertTrue(parser.isCompiledNatively());
+		assertEquals(new JavaxPacScriptParser(source).evaluate("http://" + host + "/", host),
+		        parser.evaluate("http://" + host + "/", host));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws ProxyException
+	 *             on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void testInvalidNetworkFailsLikeScriptEngine() throws ProxyException {
+		PacScriptSource source = new StringPacScriptSource(
+		        "function FindProxyForURL(url, host) { if (isInNet(host, '::1', '255.0.0.0')) return 'DIRECT'; }");
+
+		assertThrows(ProxyEvaluationException.class,
+		        () -> new JavaxPacScriptParser(source).evaluate("http://127.0.0.1/", "127.0.0.1"));
+		assertThrows(ProxyEvaluationException.class,
+		        () -> new NativePacScriptParser(source).evaluate("http://127.0.0.1/", "127.0.0.1"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws ProxyException
+	 *             on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void testScriptIsRecompiledOnContentChange() throws ProxyException {
+		StringPacScriptSource source = new StringPacScriptSource(
+		        "function FindProxyForURL(url, host) { return \"DIRECT\"; }");
+		NativePacScriptParser parser = new NativePacScriptParser(source);
+		assertEquals("DIRECT", parser.evaluate("http://host1/", "host1"));
+
+		source.content = "function FindProxyForURL(url, host) { return \"PROXY changed.unit-test.invalid:8080\"; }";
+		assertEquals("PROXY changed.unit-test.invalid:8080", parser.evaluate("http://host1/", "host1"));
+
+		source.content = "var x = 1; function FindProxyForURL(url, host) { return \"PROXY fallback:8080\"; }";
+		assertFalse(parser.isCompiledNatively());
+		assertEquals("PROXY fallback:8080", parser.evaluate("http://host1/", "host1"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws MalformedURLException
+	 *             on URL erros
+	 ************************************************************************/
+	@Test
+	public void testProxySelectorWithNativeParser() throws MalformedURLException {
+		PacProxySelector selector = new PacProxySelector(
+		        new NativePacScriptParser(new UrlPacScriptSource(toUrl("test1.pac"))));
+		List<Proxy> result = selector.select(TestUtil.HTTP_TEST_URI);
+
+		assertEquals(TestUtil.HTTP_TEST_PROXY, result.get(0));
+	}
+
+	/*************************************************************************
+	 * Helper method to build the url to the given test file
+	 *
+	 * @param testFile
+	 *            the name of the test file.
+	 * @return the URL.
+	 * @throws MalformedURLException
+	 ************************************************************************/
+
+	private String toUrl(String testFile) throws MalformedURLException {
+		return new File(TestUtil.TEST_DATA_FOLDER + "pac", testFile).toURI().toURL().toString();
+	}
+
+}
@@ -1,6 +1,7 @@
 package com.github.markusbernhardt.proxy.selector.pac;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
@@ -12,10 +13,15 @@ import java.net.ProxySelector;
 import java.net.SocketAddress;
 import java.net.URI;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.jupiter.api.Test;
 
 import com.github.markusbernhardt.proxy.TestUtil;
+import com.github.markusbernhardt.proxy.util.AsyncDnsResolver;
+import com.github.markusbernhardt.proxy.util.AsyncDnsResolverTest;
+import com.github.markusbernhardt.proxy.util.DnsResolver;
+import com.github.markusbernhardt.proxy.util.ProxyUtil;
 
 /*****************************************************************************
  * Tests for the Pac script parser and proxy selector.
@@ -154,6 +160,44 @@ public class PacProxySelectorTest {
         assertEquals(8080, addr.getPort());
     }
 
+    /*************************************************************************
+     * Test method
+     *
+     ************************************************************************/
+    @Test
+    public void testDnsTimeout() {
+        AsyncDnsResolverTest.BlockingDnsResolver blocking = new AsyncDnsResolverTest.BlockingDnsResolver();
+        DnsResolver previous = ProxyUtil.getDnsResolver();
+        ProxyUtil.setDnsResolver(new AsyncDnsResolver(blocking));
+        try {
+            PacProxySelector pacProxySelector = new PacProxySelector(getTestPacScriptSource("testDnsTimeout.pac"));
+            pacProxySelector.setDnsTimeout(100);
+
+            long start = System.nanoTime();
+            List<Proxy> result = pacProxySelector.select(TestUtil.HTTP_TEST_URI);
+
+            // Host is treated as unresolvable
+            assertEquals(TestUtil.HTTP_TEST_PROXY, result.get(0));
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+        }
+        finally {
+            blocking.release.countDown();
+            ProxyUtil.setDnsResolver(previous);
+        }
+    }
+
+    /*************************************************************************
+     * Test method
+     ************************************************************************/
+    @Test
+    public void testScriptContentHash() {
+        String hash = new PacProxySelector(getTestPacScriptSource("test1.pac")).getScriptContentHash();
+
+        assertEquals(64, hash.length());
+        assertEquals(hash, new PacProxySelector(getTestPacScriptSource("test1.pac")).getScriptContentHash());
+        assertTrue(!hash.equals(new PacProxySelector(getTestPacScriptSource("test2.pac")).getScriptContentHash()));
+    }
+
     /*************************************************************************
      * Helper method to build the url to the given test file
      * 
@@ -12,6 +12,7 @@ import java.util.Calendar;
 import org.junit.jupiter.api.Test;
 
 import com.github.markusbernhardt.proxy.TestUtil;
+import com.github.markusbernhardt.proxy.util.StubDnsResolver;
 
 /*****************************************************************************
  * Tests for the global PAC script methods that are used as context inside of
@@ -241,4 +242,33 @@ public class PacScriptMethodsTest {
 		assertEquals(false, buildParser().timeRange(12, 50, 00, 9, 30, 00, "GMT"));
 	}
 
+	/*************************************************************************
+	 * Test method
+	 * 
+	 * @throws UnknownHostException
+	 *             on resolve error.
+	 ************************************************************************/
+	@Test
+	public void testLookupsAreMemoizedPerEvaluation() throws UnknownHostException {
+		StubDnsResolver resolver = new StubDnsResolver().add("host1.unit-test.invalid", "10.1.2.3");
+		PacScriptMethods methods = new PacScriptMethods(resolver);
+
+		methods.startEvaluation();
+		try {
+			assertEquals(true, methods.isInNet("host1.unit-test.invalid", "10.0.0.0", "255.0.0.0"));
+			assertEquals(false, methods.isInNet("host1.unit-test.invalid", "10.2.0.0", "255.255.0.0"));
+			assertEquals(true, methods.isResolvable("host1.unit-test.invalid"));
+			assertEquals("10.1.2.3; ", methods.dnsResolveEx("host1.unit-test.invalid"));
+			assertEquals(false, methods.isResolvable("host2.unit-test.invalid"));
+			assertEquals("", methods.dnsResolve("host2.unit-test.invalid"));
+		} finally {
+			methods.endEvaluation();
+		}
+		assertEquals(2, resolver.getLookups());
+
+		// Outside of an evaluation every call is a lookup
+		methods.dnsResolve("host1.unit-test.invalid");
+		assertEquals(3, resolver.getLookups());
+	}
+
 }
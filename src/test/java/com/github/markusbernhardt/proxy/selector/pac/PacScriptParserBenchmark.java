@@ -0,0 +1,122 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import com.github.markusbernhardt.proxy.util.ProxyException;
+
+/*****************************************************************************
+ * Small benchmark program for the PAC script evaluation. It generates a large
+ * PAC script and measures the latency of a single evaluation.
+ * <p>
+ * The "recompile" run changes the script content for every call and therefore
+ * pays the full parse and compile of the script like every evaluation did
+ * before the script was compiled only once. The "compiled" run evaluates the
+ * unchanged script and shows the steady state latency. The "native" run
+ * evaluates the same script with the <code>NativePacScriptParser</code>.
+ * </p>
+ * This is not a unit test, start it with the test classpath.
+ ****************************************************************************/
+
+public class PacScriptParserBenchmark {
+
+	private static final int RULES = 600;
+	private static final int WARMUP = 200;
+	private static final int ITERATIONS = 2000;
+
+	/*************************************************************************
+	 * Script source where the content can be changed from the outside.
+	 ************************************************************************/
+
+	private static class BenchmarkScriptSource implements PacScriptSource {
+
+		private final String script;
+		private volatile String content;
+		private long version;
+
+		BenchmarkScriptSource(String script) {
+			this.script = script;
+			this.content = script;
+		}
+
+		void changeContent() {
+			this.content = this.script + "\n// version " + (++this.version);
+		}
+
+		@Override
+		public String getScriptContent() {
+			return this.content;
+		}
+
+		@Override
+		public boolean isScriptValid() {
+			return true;
+		}
+	}
+
+	/*************************************************************************
+	 * Builds a PAC script with the given number of typical rules.
+	 *
+	 * @param rules
+	 *            the number of rules.
+	 * @return the script.
+	 ************************************************************************/
+
+	static String buildScript(int rules) {
+		StringBuilder script = new StringBuilder("function FindProxyForURL(url, host) {\n");
+		script.append("  if (isPlainHostName(host)) {\n    return \"DIRECT\";\n  }\n");
+		for (int i = 0; i < rules; i++) {
+			script.append("  if (dnsDomainIs(host, \".domain").append(i).append(".example\")\n");
+			script.append("      || shExpMatch(url, \"*://*.site").append(i).append(".example/*\")) {\n");
+			script.append("    return \"PROXY proxy").append(i % 4).append(".example:8080; DIRECT\";\n  }\n");
+		}
+		script.append("  return \"DIRECT\";\n}\n");
+		return script.toString();
+	}
+
+	/*************************************************************************
+	 * Runs the given number of evaluations.
+	 *
+	 * @return the average latency in microseconds.
+	 ************************************************************************/
+
+	private static double run(PacScriptParser parser, BenchmarkScriptSource source, int iterations,
+	        boolean recompile) throws ProxyException {
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			if (recompile) {
+				source.changeContent();
+			}
+			parser.evaluate("http://www.host" + (i % 50) + ".example/index.html", "www.host" + (i % 50) + ".example");
+		}
+		return (System.nanoTime() - start) / 1000.0 / iterations;
+	}
+
+	/*************************************************************************
+	 * Main entry point for the benchmark.
+	 *
+	 * @param args
+	 *            the command line arguments.
+	 * @throws ProxyException
+	 *             on evaluation errors.
+	 ************************************************************************/
+
+	public static void main(String[] args) throws ProxyException {
+		String script = buildScript(RULES);
+		System.out.println("PAC script size: " + script.length() + " characters");
+
+		BenchmarkScriptSource source = new BenchmarkScriptSource(script);
+		PacScriptParser parser = new JavaxPacScriptParser(source);
+
+		run(parser, source, WARMUP / 4, true);
+		double recompile = run(parser, source, WARMUP, true);
+		System.out.printf("recompile per call: %10.1f us/call%n", recompile);
+
+		run(parser, source, WARMUP, false);
+		double compiled = run(parser, source, ITERATIONS, false);
+		System.out.printf("compiled once:      %10.1f us/call%n", compiled);
+
+		PacScriptParser nativeParser = new NativePacScriptParser(source);
+		run(nativeParser, source, WARMUP, false);
+		double nativeCompiled = run(nativeParser, source, ITERATIONS, false);
+		System.out.printf("native parser:      %10.1f us/call%n", nativeCompiled);
+	}
+
+}
@@ -0,0 +1,99 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.markusbernhardt.proxy.selector.pac.PacScriptParserPool.ExhaustedAction;
+import com.github.markusbernhardt.proxy.util.ProxyException;
+
+/*****************************************************************************
+ * Small benchmark program that measures the PAC evaluation throughput with
+ * 1 to N concurrent threads. It compares one shared engine with a pool of
+ * independent engines of the default pool size.
+ * <p>
+ * This is not a unit test, start it with the test classpath.
+ * </p>
+ ****************************************************************************/
+
+public class PacScriptParserPoolBenchmark {
+
+	private static final int RULES = 100;
+	private static final long RUN_MILLIS = 2000;
+
+	/*************************************************************************
+	 * Evaluates the script with the given number of threads for a fixed time.
+	 *
+	 * @return the number of evaluations per second.
+	 ************************************************************************/
+
+	private static long run(PacScriptParser parser, int threads) throws InterruptedException {
+		LongAdder evaluations = new LongAdder();
+		AtomicBoolean running = new AtomicBoolean(true);
+		CountDownLatch done = new CountDownLatch(threads);
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			final int offset = t;
+			workers.add(new Thread(() -> {
+				int i = offset;
+				while (running.get()) {
+					try {
+						parser.evaluate("http://www.host" + (i % 50) + ".example/", "www.host" + (i % 50) + ".example");
+					} catch (ProxyException e) {
+						throw new IllegalStateException(e);
+					}
+					evaluations.increment();
+					i++;
+				}
+				done.countDown();
+			}));
+		}
+		long start = System.nanoTime();
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		Thread.sleep(RUN_MILLIS);
+		running.set(false);
+		done.await();
+		return evaluations.sum() * 1000L * 1000L * 1000L / (System.nanoTime() - start);
+	}
+
+	/*************************************************************************
+	 * Main entry point for the benchmark.
+	 *
+	 * @param args
+	 *            the command line arguments.
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+
+	public static void main(String[] args) throws Exception {
+		String script = PacScriptParserBenchmark.buildScript(RULES);
+		PacScriptSource source = new PacScriptSource() {
+			@Override
+			public String getScriptContent() {
+				return script;
+			}
+
+			@Override
+			public boolean isScriptValid() {
+				return true;
+			}
+		};
+		int poolSize = PacScriptParserPool.defaultPoolSize();
+		PacScriptParser shared = new JavaxPacScriptParser(source);
+		PacScriptParser pool = new PacScriptParserPool(source, poolSize, ExhaustedAction.BLOCK, 0);
+
+		// Warm up both and let the pool create all of its engines.
+		run(shared, 1);
+		run(pool, poolSize);
+
+		System.out.println("threads   shared engine   pool of " + poolSize + " engines   (evaluations/s)");
+		for (int threads = 1; threads <= poolSize * 2; threads *= 2) {
+			System.out.printf("%7d %15d %15d%n", threads, run(shared, threads), run(pool, threads));
+		}
+	}
+
+}
@@ -0,0 +1,178 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.markusbernhardt.proxy.TestUtil;
+import com.github.markusbernhardt.proxy.selector.pac.PacScriptParserPool.ExhaustedAction;
+
+/*****************************************************************************
+ * Tests for the pool of PAC script engines.
+ ****************************************************************************/
+
+public class PacScriptParserPoolTest {
+
+	/*************************************************************************
+	 * Engine stub that blocks the evaluation until it is released.
+	 ************************************************************************/
+
+	private static class BlockingParser implements PacScriptParser {
+
+		private final CountDownLatch entered;
+		private final CountDownLatch release;
+		private final String result;
+
+		BlockingParser(CountDownLatch entered, CountDownLatch release, String result) {
+			this.entered = entered;
+			this.release = release;
+			this.result = result;
+		}
+
+		@Override
+		public PacScriptSource getScriptSource() {
+			return null;
+		}
+
+		@Override
+		public String evaluate(String url, String host) throws ProxyEvaluationException {
+			this.entered.countDown();
+			try {
+				this.release.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				throw new ProxyEvaluationException(e);
+			}
+			return this.result;
+		}
+	}
+
+	/*************************************************************************
+	 * Pool that creates blocking engine stubs.
+	 ************************************************************************/
+
+	private static class BlockingPool extends PacScriptParserPool {
+
+		final AtomicInteger created = new AtomicInteger();
+		final CountDownLatch entered;
+		final CountDownLatch release;
+
+		BlockingPool(int maxSize, ExhaustedAction exhaustedAction, long maxWaitMs, int expectedCalls) {
+			super(PacProxySelectorTest.getTestPacScriptSource("test1.pac"), maxSize, exhaustedAction, maxWaitMs);
+			this.entered = new CountDownLatch(expectedCalls);
+			this.release = new CountDownLatch(1);
+		}
+
+		@Override
+		protected PacScriptParser createEngine() {
+			int number = this.created.incrementAndGet();
+			return new BlockingParser(this.entered, this.release, "engine" + number);
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void testPoolEvaluatesScript() throws Exception {
+		PacScriptParserPool pool = new PacScriptParserPool(PacProxySelectorTest.getTestPacScriptSource("test1.pac"),
+		        2, ExhaustedAction.BLOCK, 0);
+		List<Proxy> result = new PacProxySelector(pool).select(TestUtil.HTTP_TEST_URI);
+
+		assertEquals(TestUtil.HTTP_TEST_PROXY, result.get(0));
+		assertEquals(1, pool.getIdleCount());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void testConcurrentEvaluationsUseIndependentEngines() throws Exception {
+		PacScriptParserPool pool = new PacScriptParserPool(PacProxySelectorTest.getTestPacScriptSource("test1.pac"),
+		        4, ExhaustedAction.BLOCK, 0);
+		ExecutorService executor = Executors.newFixedThreadPool(16);
+		try {
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for (int i = 0; i < 200; i++) {
+				results.add(executor.submit(() -> pool.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1")));
+			}
+			for (Future<String> result : results) {
+				assertEquals("PROXY http_proxy.unit-test.invalid:8090", result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertTrue(pool.getIdleCount() <= 4);
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void testBlockWhenExhaustedTimesOut() throws Exception {
+		BlockingPool pool = new BlockingPool(1, ExhaustedAction.BLOCK, 50, 1);
+		Thread busy = new Thread(() -> {
+			try {
+				pool.evaluate("http://host1/", "host1");
+			} catch (ProxyEvaluationException e) {
+				// Not expected
+			}
+		});
+		busy.start();
+		assertTrue(pool.entered.await(5, TimeUnit.SECONDS));
+
+		assertThrows(ProxyEvaluationException.class, () -> pool.evaluate("http://host2/", "host2"));
+
+		pool.release.countDown();
+		busy.join();
+		assertEquals(1, pool.created.get());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void testFallbackWhenExhausted() throws Exception {
+		BlockingPool pool = new BlockingPool(1, ExhaustedAction.FALLBACK, 0, 2);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<String> first = executor.submit(() -> pool.evaluate("http://host1/", "host1"));
+			Future<String> second = executor.submit(() -> pool.evaluate("http://host2/", "host2"));
+
+			// Both evaluations run at the same time, one of them on the fallback engine.
+			assertTrue(pool.entered.await(5, TimeUnit.SECONDS));
+			pool.release.countDown();
+
+			assertTrue(first.get().startsWith("engine"));
+			assertTrue(second.get().startsWith("engine"));
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(2, pool.created.get());
+		assertEquals(1, pool.getIdleCount());
+	}
+
+}
@@ -1,8 +1,26 @@
 package com.github.markusbernhardt.proxy.selector.pac;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 
 /*****************************************************************************
  * Tests for the UrlPacScriptSource.
@@ -13,6 +31,316 @@ import org.junit.jupiter.api.Test;
 
 public class UrlPacScriptSourceTest {
 
+	private static final String EXPIRED = "Thu, 01 Jan 2015 00:00:00 GMT";
+
+	private HttpServer server;
+	private volatile String content;
+	private volatile int status;
+	private volatile long delayMillis;
+	private volatile String cacheControl;
+	private volatile boolean gzip;
+	private volatile boolean bareNotModified;
+	private final AtomicInteger requests = new AtomicInteger();
+
+	/*************************************************************************
+	 * Starts a local web server that serves the PAC script.
+	 * 
+	 * @throws IOException
+	 *             on error.
+	 ************************************************************************/
+	@BeforeEach
+	public void startServer() throws IOException {
+		this.content = "function FindProxyForURL(url, host) { return \"DIRECT\"; }";
+		this.status = 200;
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		this.server.createContext("/proxy.pac", this::handle);
+		this.server.start();
+	}
+
+	/*************************************************************************
+	 * Stops the local web server.
+	 ************************************************************************/
+	@AfterEach
+	public void stopServer() {
+		this.server.stop(0);
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		this.requests.incrementAndGet();
+		try {
+			Thread.sleep(this.delayMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		String etag = "\"" + Integer.toHexString(this.content.hashCode()) + "\"";
+		boolean notModified = this.status == 200 && etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"));
+		if (!notModified || !this.bareNotModified) {
+			exchange.getResponseHeaders().add("Expires", EXPIRED);
+			if (this.cacheControl != null) {
+				exchange.getResponseHeaders().add("Cache-Control", this.cacheControl);
+			}
+		}
+		exchange.getResponseHeaders().add("ETag", etag);
+		if (notModified) {
+			exchange.sendResponseHeaders(304, -1);
+			exchange.close();
+			return;
+		}
+		byte[] body = this.content.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", "application/x-ns-proxy-autoconfig");
+		String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		if (this.gzip && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+				out.write(body);
+			}
+			body = compressed.toByteArray();
+			exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+		}
+		exchange.sendResponseHeaders(this.status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	private String serverUrl() {
+		return "http://" + this.server.getAddress().getHostString() + ":" + this.server.getAddress().getPort()
+		        + "/proxy.pac";
+	}
+
+	private static void awaitContent(UrlPacScriptSource source, String expected) throws Exception {
+		long end = System.currentTimeMillis() + 5000;
+		while (!expected.equals(source.getScriptContent()) && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals(expected, source.getScriptContent());
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 * 
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void expiredScriptIsRefreshedInBackground() throws Exception {
+		UrlPacScriptSource source = new UrlPacScriptSource(serverUrl());
+		String first = source.getScriptContent();
+		assertTrue(first.contains("DIRECT"));
+
+		// A slow server does not delay the readers, they get the stale script
+		this.content = "function FindProxyForURL(url, host) { return \"PROXY changed:8080\"; }";
+		this.delayMillis = 1000;
+		long start = System.nanoTime();
+		assertEquals(first, source.getScriptContent());
+		assertEquals(first, source.getScriptContent());
+		assertTrue(System.nanoTime() - start < 500L * 1000 * 1000);
+
+		awaitContent(source, this.content + "\n");
+		assertEquals(2, this.requests.get());
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 * 
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void unchangedScriptIsRevalidated() throws Exception {
+		UrlPacScriptSource source = new UrlPacScriptSource(serverUrl());
+		String first = source.getScriptContent();
+
+		source.getScriptContent();
+		long end = System.currentTimeMillis() + 5000;
+		while (source.getNotModifiedCount() == 0 && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(first, source.getScriptContent());
+		assertEquals(1, source.getDownloadCount());
+		assertTrue(source.getNotModifiedCount() >= 1);
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 * 
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void notModifiedWithoutFreshnessKeepsLifetime() throws Exception {
+		this.cacheControl = "max-age=1";
+		this.bareNotModified = true;
+		UrlPacScriptSource source = new UrlPacScriptSource(serverUrl());
+		source.getScriptContent();
+
+		// Each revalidation gets the one second lifetime of the first response
+		for (int revalidations = 1; revalidations <= 2; revalidations++) {
+			Thread.sleep(1100);
+			source.getScriptContent();
+			long end = System.currentTimeMillis() + 5000;
+			while (source.getNotModifiedCount() < revalidations && System.currentTimeMillis() < end) {
+				Thread.sleep(10);
+			}
+			assertEquals(revalidations, source.getNotModifiedCount());
+		}
+		assertEquals(1, source.getDownloadCount());
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 * 
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void maxAgeTakesPrecedenceOverExpires() throws Exception {
+		this.cacheControl = "public, max-age=3600";
+		UrlPacScriptSource source = new UrlPacScriptSource(serverUrl());
+		source.getScriptContent();
+		source.getScriptContent();
+		Thread.sleep(100);
+
+		assertEquals(1, this.requests.get());
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 * 
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void compressedScriptIsDecoded() throws Exception {
+		this.gzip = true;
+		this.content = "function FindProxyForURL(url, host) {\r\n  return \"DIRECT\";\r\n}";
+		UrlPacScriptSource source = new UrlPacScriptSource(serverUrl());
+
+		assertEquals("function FindProxyForURL(url, host) {\n  return \"DIRECT\";\n}\n", source.getScriptContent());
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 ************************************************************************/
+	@Test
+	public void charsetIsDetected() {
+		UrlPacScriptSource scriptSource = new UrlPacScriptSource("");
+		byte[] latin1 = "// \u00e4".getBytes(StandardCharsets.ISO_8859_1);
+		assertEquals("// \u00e4", scriptSource.decode(latin1, "application/x-ns-proxy-autoconfig; charset=ISO-8859-1"));
+
+		byte[] utf8 = "\ufeff// \u00e4".getBytes(StandardCharsets.UTF_8);
+		assertEquals("// \u00e4", scriptSource.decode(utf8, null));
+
+		byte[] utf16 = "\ufeff// \u00e4".getBytes(StandardCharsets.UTF_16LE);
+		assertEquals("// \u00e4", scriptSource.decode(utf16, "application/x-ns-proxy-autoconfig"));
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 * 
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void failedRefreshKeepsScript() throws Exception {
+		UrlPacScriptSource source = new UrlPacScriptSource(serverUrl());
+		String first = source.getScriptContent();
+
+		this.status = 500;
+		source.getScriptContent();
+		long end = System.currentTimeMillis() + 5000;
+		while (this.requests.get() < 2 && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(100);
+
+		// Not retried before the retry delay
+		assertEquals(first, source.getScriptContent());
+		assertEquals(first, source.getScriptContent());
+		assertEquals(2, this.requests.get());
+		assertTrue(source.isScriptValid());
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 * 
+	 * @param cacheDirectory
+	 *            the directory for the cached script.
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void cachedScriptIsUsedOnStartup(@TempDir File cacheDirectory) throws Exception {
+		String first = new UrlPacScriptSource(serverUrl(), cacheDirectory).getScriptContent();
+		File[] files = cacheDirectory.listFiles();
+		assertEquals(1, files.length);
+		assertTrue(files[0].getName().endsWith(".pac.cache"));
+
+		// The server is unreachable, the cached script is used at once
+		this.status = 500;
+		this.delayMillis = 1000;
+		UrlPacScriptSource source = new UrlPacScriptSource(serverUrl(), cacheDirectory);
+		long start = System.nanoTime();
+		assertEquals(first, source.getScriptContent());
+		assertTrue(source.isScriptValid());
+		assertTrue(System.nanoTime() - start < 500L * 1000 * 1000);
+		assertEquals(0, source.getDownloadCount());
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 * 
+	 * @param cacheDirectory
+	 *            the directory for the cached script.
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void cachedScriptIsRevalidated(@TempDir File cacheDirectory) throws Exception {
+		String first = new UrlPacScriptSource(serverUrl(), cacheDirectory).getScriptContent();
+
+		UrlPacScriptSource source = new UrlPacScriptSource(serverUrl(), cacheDirectory);
+		assertEquals(first, source.getScriptContent());
+		long end = System.currentTimeMillis() + 5000;
+		while (source.getNotModifiedCount() == 0 && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, source.getNotModifiedCount());
+		assertEquals(0, source.getDownloadCount());
+
+		// A changed script replaces the cached copy
+		this.content = "function FindProxyForURL(url, host) { return \"PROXY changed:8080\"; }";
+		UrlPacScriptSource changed = new UrlPacScriptSource(serverUrl(), cacheDirectory);
+		assertEquals(first, changed.getScriptContent());
+		awaitContent(changed, this.content + "\n");
+		end = System.currentTimeMillis() + 5000;
+		String cached = "";
+		while (!cached.contains("changed\\:8080") && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+			cached = new String(Files.readAllBytes(cacheDirectory.listFiles()[0].toPath()), StandardCharsets.UTF_8);
+		}
+		assertTrue(cached.contains("changed\\:8080"));
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 * 
+	 * @param cacheDirectory
+	 *            the directory for the cached script.
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void corruptCacheIsIgnored(@TempDir File cacheDirectory) throws Exception {
+		File cacheFile = new PacDiskCache(cacheDirectory).getFile(serverUrl());
+		Files.write(cacheFile.toPath(), "url=http\\://other/\ncontent=x\n".getBytes(StandardCharsets.UTF_8));
+
+		UrlPacScriptSource source = new UrlPacScriptSource(serverUrl(), cacheDirectory);
+		assertTrue(source.getScriptContent().contains("DIRECT"));
+		assertEquals(1, source.getDownloadCount());
+	}
+
 	/*************************************************************************
 	 * Unit Test
 	 ************************************************************************/
@@ -0,0 +1,148 @@
+package com.github.markusbernhardt.proxy.selector.whitelist;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.markusbernhardt.proxy.search.browser.ie.IELocalByPassFilter;
+import com.github.markusbernhardt.proxy.selector.whitelist.HostnameFilter.Mode;
+import com.github.markusbernhardt.proxy.util.UriFilter;
+
+/*****************************************************************************
+ * Unit tests for the HostnameFilterIndex. The index must make the same
+ * decisions as the list of filters it was built from.
+ ****************************************************************************/
+
+public class HostnameFilterIndexTest {
+
+	private static final String WHITE_LIST = "*.mynet.com, mynet.*, Intranet, .Corp.Example.org, "
+	        + "http://*.legacy.net, ftp://files.*, HTTPS://secure.example.com, build*";
+
+	private static final String[] URIS = { "http://rossi.mynet.com", "http://rossi.mynet.com.test",
+	        "http://mynet.junit.test", "https://MYNET.COM:8443/path", "http://intranet", "http://my-intranet:80",
+	        "http://a.corp.example.org", "http://corp.example.org", "http://old.legacy.net",
+	        "https://old.legacy.net", "ftp://files.example.com", "http://files.example.com",
+	        "https://secure.example.com", "http://secure.example.com", "socket://build-server:22",
+	        "http://user@intranet:8080", "http://[::1]:8080", "//old.legacy.net/no/scheme", "file:///tmp/x",
+	        "mailto:someone@mynet.com", "http://www.google.com" };
+
+	/*************************************************************************
+	 * Test method
+	 * 
+	 * @throws URISyntaxException
+	 *             on error
+	 ************************************************************************/
+	@Test
+	public void testSameDecisionsAsFilters() throws URISyntaxException {
+		DefaultWhiteListParser parser = new DefaultWhiteListParser();
+		List<UriFilter> filters = parser.parseWhiteList(WHITE_LIST);
+		UriFilter index = new HostnameFilterIndex(hostnameFilters(filters));
+
+		for (String uri : URIS) {
+			assertEquals(anyAccepts(filters, new URI(uri)), index.accept(new URI(uri)), uri);
+		}
+		assertTrue(index.accept(new URI("http://rossi.mynet.com")));
+		assertFalse(index.accept(new URI("http://www.google.com")));
+		assertFalse(index.accept(null));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * 
+	 * @throws URISyntaxException
+	 *             on error
+	 ************************************************************************/
+	@Test
+	public void testEmptyCriteriaMatchesAllHosts() throws URISyntaxException {
+		UriFilter index = new HostnameFilterIndex(hostnameFilters(new DefaultWhiteListParser().parseWhiteList("*")));
+
+		assertTrue(index.accept(new URI("http://www.google.com")));
+		assertFalse(index.accept(new URI("file:///tmp/x")));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * 
+	 * @throws URISyntaxException
+	 *             on error
+	 ************************************************************************/
+	@Test
+	public void testRandomListsMatchFilters() throws URISyntaxException {
+		Random random = new Random(4711);
+		String[] labels = { "a", "b", "ab", "ba", "mynet", "com", "org" };
+		String[] schemes = { "http", "https", "ftp" };
+		for (int round = 0; round < 50; round++) {
+			List<HostnameFilter> filters = new ArrayList<HostnameFilter>();
+			for (int i = 0; i < 20; i++) {
+				String criteria = randomHost(random, labels);
+				if (random.nextInt(4) == 0) {
+					criteria = schemes[random.nextInt(schemes.length)] + "://" + criteria;
+				}
+				filters.add(new HostnameFilter(random.nextBoolean() ? Mode.BEGINS_WITH : Mode.ENDS_WITH, criteria));
+			}
+			HostnameFilterIndex index = new HostnameFilterIndex(filters);
+			assertEquals(filters.size(), index.size());
+			for (int i = 0; i < 200; i++) {
+				URI uri = new URI(schemes[random.nextInt(schemes.length)] + "://" + randomHost(random, labels)
+				        + ":8080/");
+				assertEquals(anyAccepts(new ArrayList<UriFilter>(filters), uri), index.accept(uri), uri.toString());
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * 
+	 * @throws URISyntaxException
+	 *             on error
+	 ************************************************************************/
+	@Test
+	public void testParserIndexesHostnameFilters() throws URISyntaxException {
+		List<UriFilter> filters = new DefaultWhiteListParser()
+		        .parseIndexedWhiteList("192.168.0.0/24, *.mynet.com, <local>, mynet.*, 10.0.0.0/8");
+
+		assertEquals(4, filters.size());
+		assertTrue(filters.get(0) instanceof IpRangeFilter);
+		assertTrue(filters.get(1) instanceof HostnameFilterIndex);
+		assertTrue(filters.get(2) instanceof IELocalByPassFilter);
+		assertTrue(filters.get(3) instanceof IpRangeFilter);
+		assertEquals(2, ((HostnameFilterIndex) filters.get(1)).size());
+		assertTrue(filters.get(1).accept(new URI("http://mynet.junit.test")));
+		assertEquals(1, new DefaultWhiteListParser().parseIndexedWhiteList("<local>").size());
+	}
+
+	private static String randomHost(Random random, String[] labels) {
+		StringBuilder host = new StringBuilder(labels[random.nextInt(labels.length)]);
+		int count = random.nextInt(3);
+		for (int i = 0; i < count; i++) {
+			host.append('.').append(labels[random.nextInt(labels.length)]);
+		}
+		return host.toString();
+	}
+
+	private static List<HostnameFilter> hostnameFilters(List<UriFilter> filters) {
+		List<HostnameFilter> result = new ArrayList<HostnameFilter>();
+		for (UriFilter filter : filters) {
+			result.add((HostnameFilter) filter);
+		}
+		return result;
+	}
+
+	private static boolean anyAccepts(List<UriFilter> filters, URI uri) {
+		for (UriFilter filter : filters) {
+			if (filter.accept(uri)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
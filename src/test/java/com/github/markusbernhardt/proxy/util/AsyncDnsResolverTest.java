@@ -0,0 +1,172 @@
+package com.github.markusbernhardt.proxy.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.markusbernhardt.proxy.util.AsyncDnsResolver.DnsTimeoutException;
+
+/*****************************************************************************
+ * Tests for the DNS resolver with lookup deadline.
+ ****************************************************************************/
+
+public class AsyncDnsResolverTest {
+
+	/*************************************************************************
+	 * Resolver stub that blocks every lookup until it is released.
+	 ************************************************************************/
+
+	public static class BlockingDnsResolver extends StubDnsResolver {
+
+		public final CountDownLatch release = new CountDownLatch(1);
+
+		@Override
+		public InetAddress[] resolve(String host) throws UnknownHostException {
+			try {
+				this.release.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				throw new UnknownHostException(host);
+			}
+			return super.resolve(host);
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * 
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void testLookupIsAbandonedAtDeadline() throws Exception {
+		BlockingDnsResolver stub = new BlockingDnsResolver();
+		stub.add("host1.unit-test.invalid", "10.0.0.1");
+		AsyncDnsResolver resolver = new AsyncDnsResolver(stub);
+
+		long start = System.nanoTime();
+		AsyncDnsResolver.setDeadline(start + TimeUnit.MILLISECONDS.toNanos(100));
+		try {
+			assertThrows(DnsTimeoutException.class, () -> resolver.resolve("host1.unit-test.invalid"));
+			// The deadline is used up, no further waiting
+			assertThrows(DnsTimeoutException.class, () -> resolver.resolve("host2.unit-test.invalid"));
+		} finally {
+			AsyncDnsResolver.clearDeadline();
+		}
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+
+		stub.release.countDown();
+		assertEquals("10.0.0.1", resolver.resolve("host1.unit-test.invalid")[0].getHostAddress());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * 
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void testConcurrentLookupsAreCoalesced() throws Exception {
+		BlockingDnsResolver stub = new BlockingDnsResolver();
+		stub.add("host1.unit-test.invalid", "10.0.0.1");
+		AsyncDnsResolver resolver = new AsyncDnsResolver(stub);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			Future<InetAddress[]> first = executor.submit(() -> resolver.resolve("host1.unit-test.invalid"));
+			Future<InetAddress[]> second = executor.submit(() -> resolver.resolve("host1.unit-test.invalid"));
+			while (stub.getLookups() == 0) {
+				Thread.sleep(10);
+			}
+			Thread.sleep(100);
+			stub.release.countDown();
+
+			assertEquals("10.0.0.1", first.get()[0].getHostAddress());
+			assertEquals("10.0.0.1", second.get()[0].getHostAddress());
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(1, stub.getLookups());
+		assertEquals(0, resolver.getPendingLookups());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * 
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void testLookupWithoutDeadlineRunsOnCallingThread() throws Exception {
+		StubDnsResolver stub = new StubDnsResolver();
+		stub.add("host1.unit-test.invalid", "10.0.0.1");
+		AtomicInteger executions = new AtomicInteger();
+		AsyncDnsResolver resolver = new AsyncDnsResolver(stub, runnable -> {
+			executions.incrementAndGet();
+			runnable.run();
+		});
+
+		assertEquals("10.0.0.1", resolver.resolve("host1.unit-test.invalid")[0].getHostAddress());
+		assertEquals(0, executions.get());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * 
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void testRejectedLookupFailsLikeTimeout() throws Exception {
+		BlockingDnsResolver stub = new BlockingDnsResolver();
+		stub.add("host1.unit-test.invalid", "10.0.0.1");
+		stub.add("host2.unit-test.invalid", "10.0.0.2");
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+		        new SynchronousQueue<Runnable>());
+		AsyncDnsResolver resolver = new AsyncDnsResolver(stub, executor);
+		AsyncDnsResolver.setDeadline(System.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+		try {
+			Future<?> blocked = Executors.newSingleThreadExecutor().submit(() -> {
+				AsyncDnsResolver.setDeadline(System.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+				return resolver.resolve("host1.unit-test.invalid");
+			});
+			while (stub.getLookups() == 0) {
+				Thread.sleep(10);
+			}
+			// The only thread is blocked, the lookup is not queued
+			assertThrows(DnsTimeoutException.class, () -> resolver.resolve("host2.unit-test.invalid"));
+			stub.release.countDown();
+			blocked.get();
+		} finally {
+			AsyncDnsResolver.clearDeadline();
+			executor.shutdown();
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * 
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void testUnknownHostWithoutDeadline() throws Exception {
+		AsyncDnsResolver resolver = new AsyncDnsResolver(new StubDnsResolver());
+
+		UnknownHostException e = assertThrows(UnknownHostException.class,
+		        () -> resolver.resolve("unknown.unit-test.invalid"));
+		assertTrue(!(e instanceof DnsTimeoutException));
+	}
+
+}
@@ -0,0 +1,139 @@
+package com.github.markusbernhardt.proxy.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.net.UnknownHostException;
+
+import org.junit.jupiter.api.Test;
+
+/*****************************************************************************
+ * Tests for the caching DNS resolver.
+ ****************************************************************************/
+
+public class CachingDnsResolverTest {
+
+	/*************************************************************************
+	 * Test method
+	 * 
+	 * @throws UnknownHostException
+	 *             on resolve error.
+	 ************************************************************************/
+	@Test
+	public void testPositiveResultIsCached() throws UnknownHostException {
+		StubDnsResolver stub = new StubDnsResolver().add("host1.unit-test.invalid", "10.0.0.1", "10.0.0.2");
+		CachingDnsResolver resolver = new CachingDnsResolver(stub);
+
+		assertEquals("10.0.0.1", resolver.resolve("host1.unit-test.invalid")[0].getHostAddress());
+		assertEquals(2, resolver.resolve("HOST1.unit-test.invalid").length);
+
+		assertEquals(1, stub.getLookups());
+		assertEquals(1, resolver.getHitCount());
+		assertEquals(1, resolver.getMissCount());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * 
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void testNegativeResultUsesOwnTtl() throws Exception {
+		StubDnsResolver stub = new StubDnsResolver();
+		CachingDnsResolver resolver = new CachingDnsResolver(stub, 10, 60 * 1000, 50);
+
+		assertThrows(UnknownHostException.class, () -> resolver.resolve("unknown.unit-test.invalid"));
+		assertThrows(UnknownHostException.class, () -> resolver.resolve("unknown.unit-test.invalid"));
+		assertEquals(1, stub.getLookups());
+
+		Thread.sleep(100);
+		stub.add("unknown.unit-test.invalid", "10.0.0.3");
+		assertEquals("10.0.0.3", resolver.resolve("unknown.unit-test.invalid")[0].getHostAddress());
+		assertEquals(2, stub.getLookups());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * 
+	 * @throws UnknownHostException
+	 *             on resolve error.
+	 ************************************************************************/
+	@Test
+	public void testNegativeResultNotCached() throws UnknownHostException {
+		StubDnsResolver stub = new StubDnsResolver();
+		CachingDnsResolver resolver = new CachingDnsResolver(stub, 10, 60 * 1000, 0);
+
+		assertThrows(UnknownHostException.class, () -> resolver.resolve("unknown.unit-test.invalid"));
+		assertThrows(UnknownHostException.class, () -> resolver.resolve("unknown.unit-test.invalid"));
+		assertEquals(2, stub.getLookups());
+		assertEquals(0, resolver.getSize());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * 
+	 * @throws UnknownHostException
+	 *             on resolve error.
+	 ************************************************************************/
+	@Test
+	public void testSizeIsBounded() throws UnknownHostException {
+		StubDnsResolver stub = new StubDnsResolver();
+		for (int i = 0; i < 10; i++) {
+			stub.add("host" + i + ".unit-test.invalid", "10.0.0." + i);
+		}
+		CachingDnsResolver resolver = new CachingDnsResolver(stub, 3, 60 * 1000, 60 * 1000);
+		for (int i = 0; i < 10; i++) {
+			resolver.resolve("host" + i + ".unit-test.invalid");
+		}
+
+		assertEquals(3, resolver.getSize());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * 
+	 * @throws UnknownHostException
+	 *             on resolve error.
+	 ************************************************************************/
+	@Test
+	public void testRecentlyUsedHostIsKept() throws UnknownHostException {
+		StubDnsResolver stub = new StubDnsResolver();
+		for (int i = 0; i < 4; i++) {
+			stub.add("host" + i + ".unit-test.invalid", "10.0.0." + i);
+		}
+		CachingDnsResolver resolver = new CachingDnsResolver(stub, 3, 60 * 1000, 60 * 1000);
+		for (int i = 0; i < 3; i++) {
+			resolver.resolve("host" + i + ".unit-test.invalid");
+		}
+		resolver.resolve("host0.unit-test.invalid");
+		resolver.resolve("host3.unit-test.invalid");
+		assertEquals(4, resolver.getMissCount());
+
+		// host1 was evicted instead of the used host0
+		resolver.resolve("host0.unit-test.invalid");
+		assertEquals(4, resolver.getMissCount());
+		resolver.resolve("host1.unit-test.invalid");
+		assertEquals(5, resolver.getMissCount());
+		assertEquals(3, resolver.getSize());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * 
+	 * @throws UnknownHostException
+	 *             on resolve error.
+	 ************************************************************************/
+	@Test
+	public void testAddressLiteralsAreNotCached() throws UnknownHostException {
+		StubDnsResolver stub = new StubDnsResolver();
+		CachingDnsResolver resolver = new CachingDnsResolver(stub);
+
+		assertEquals("192.168.0.1", resolver.resolve("192.168.0.1")[0].getHostAddress());
+		resolver.resolve("::1");
+
+		assertEquals(0, resolver.getSize());
+		assertEquals(0, resolver.getMissCount());
+	}
+
+}
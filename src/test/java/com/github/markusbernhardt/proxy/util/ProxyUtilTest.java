@@ -96,4 +96,15 @@ public class ProxyUtilTest {
 		Assertions.assertThat(psList.get(0).toString()).matches(Pattern.compile("HTTP @ 2001:4860:0:2001::68(\\/<unresolved>)?:8080"));
 	}
 
+	/*************************************************************************
+	 * Test address literal detection.
+	 ************************************************************************/
+	@Test
+	public void testIsAddressLiteral() {
+		Assertions.assertThat(ProxyUtil.isAddressLiteral("192.168.10.9")).isTrue();
+		Assertions.assertThat(ProxyUtil.isAddressLiteral("2001:4860:0:2001::68")).isTrue();
+		Assertions.assertThat(ProxyUtil.isAddressLiteral("host1.unit-test.invalid")).isFalse();
+		Assertions.assertThat(ProxyUtil.isAddressLiteral("localhost")).isFalse();
+	}
+
 }
@@ -0,0 +1,62 @@
+package com.github.markusbernhardt.proxy.util;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*****************************************************************************
+ * DNS resolver for tests. It knows only the hosts added to it and counts the
+ * lookups.
+ ****************************************************************************/
+
+public class StubDnsResolver implements DnsResolver {
+
+	private final Map<String, InetAddress[]> hosts = new ConcurrentHashMap<String, InetAddress[]>();
+	private final AtomicInteger lookups = new AtomicInteger();
+
+	/*************************************************************************
+	 * Adds a host.
+	 * 
+	 * @param host
+	 *            the host name.
+	 * @param addresses
+	 *            the IP address literals of the host.
+	 * @return this resolver.
+	 * @throws UnknownHostException
+	 *             on invalid address literal.
+	 ************************************************************************/
+
+	public StubDnsResolver add(String host, String... addresses) throws UnknownHostException {
+		InetAddress[] result = new InetAddress[addresses.length];
+		for (int i = 0; i < addresses.length; i++) {
+			result[i] = InetAddress.getByAddress(host, InetAddress.getByName(addresses[i]).getAddress());
+		}
+		this.hosts.put(host, result);
+		return this;
+	}
+
+	@Override
+	public InetAddress[] resolve(String host) throws UnknownHostException {
+		this.lookups.incrementAndGet();
+		InetAddress[] result = this.hosts.get(host);
+		if (result == null) {
+			if (host != null && (host.indexOf(':') >= 0 || host.matches("[0-9.]+"))) {
+				return InetAddress.getAllByName(host);
+			}
+			throw new UnknownHostException(host);
+		}
+		return result.clone();
+	}
+
+	/*************************************************************************
+	 * Gets the number of lookups.
+	 * 
+	 * @return the number of lookups.
+	 ************************************************************************/
+
+	public int getLookups() {
+		return this.lookups.get();
+	}
+}
@@ -1,5 +1,6 @@
 package com.github.markusbernhardt.proxy.util;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -132,6 +133,22 @@ public class UriFilterTest {
 		assertFalse(filter.accept(new URI("http://192.168.1.100:81/test.data")));
 	}
 
+	/*************************************************************************
+	 * Test method
+	 * 
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void testIpRangeFilterResolvesHostName() throws Exception {
+		StubDnsResolver resolver = new StubDnsResolver().add("host1.unit-test.invalid", "192.168.0.100");
+		UriFilter filter = new IpRangeFilter("192.168.0.0/24", resolver);
+
+		assertTrue(filter.accept(new URI("http://host1.unit-test.invalid:81/test.data")));
+		assertFalse(filter.accept(new URI("http://host2.unit-test.invalid:81/test.data")));
+		assertEquals(2, resolver.getLookups());
+	}
+
 	/*************************************************************************
 	 * Test method
 	 * 